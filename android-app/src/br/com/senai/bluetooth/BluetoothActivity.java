@@ -1,5 +1,8 @@
 package br.com.senai.bluetooth;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import android.app.Activity;
@@ -19,6 +22,12 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
+import br.com.senai.bluetooth.discovery.DiscoveredDevice;
+import br.com.senai.bluetooth.discovery.DiscoveryStream;
+import br.com.senai.bluetooth.discovery.DiscoveryTarget;
+import br.com.senai.bluetooth.pool.WarmPool;
+import br.com.senai.bluetooth.transport.ChannelCache;
+import br.com.senai.bluetooth.transport.RfcommTransportProvider;
 
 public class BluetoothActivity extends Activity {
 	
@@ -27,6 +36,20 @@ public class BluetoothActivity extends Activity {
 	private BluetoothAdapter mBluetoothAdapter;
 	
 	private final int REQUEST_ENABLE_BT = 1;
+	
+	/**
+	 * Extras naming a device to connect to on start, by address or by
+	 * name prefix
+	 */
+	public static final String EXTRA_DEVICE_ADDRESS = "br.com.senai.bluetooth.DEVICE_ADDRESS";
+	public static final String EXTRA_DEVICE_NAME_PREFIX =
+			"br.com.senai.bluetooth.DEVICE_NAME_PREFIX";
+	
+	// File of the RFCOMM channels found by service lookups
+	private static final String CHANNEL_CACHE = "rfcomm-channels";
+	
+	// File of the scores of the devices kept connected ahead of time
+	private static final String WARM_POOL = "warm-pool";
 
 	private ArrayAdapter<BluetoothDevice> pairedDevicesArrayAdapter;
 	
@@ -34,6 +57,15 @@ public class BluetoothActivity extends Activity {
 	
 	private BluetoothService bluetoothConnectionService;
 	
+	private WarmPool warmPool;
+	
+	// The device picked last, whose connection belongs to this activity
+	private String connectedAddress;
+	
+	private boolean serviceStarted;
+	
+	private DiscoveryStream discoveryStream;
+	
 	/**
      * String buffer for outgoing messages
      */
@@ -49,11 +81,16 @@ public class BluetoothActivity extends Activity {
 				
 			}	
 			
-	        if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+	        if (BluetoothDevice.ACTION_FOUND.equals(action)
+	        		|| BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
 	            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
+	            // Repeats are dropped here; the list is updated in batches
 	            if (device.getBondState() != BluetoothDevice.BOND_BONDED)
-	            	newDevicesArrayAdapter.add(device);
+	            	discoveryStream.offer(device.getAddress(),
+	            			intent.getStringExtra(BluetoothDevice.EXTRA_NAME),
+	            			intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE),
+	            			BluetoothDiscovery.majorClassOf(device));
 	        }
 			
 	        if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
@@ -93,12 +130,14 @@ public class BluetoothActivity extends Activity {
 		} else if (bluetoothConnectionService == null) {
 			setupConnectionService();
 			
-			bluetoothDiscovery = new BluetoothDiscovery(this, bluetoothDiscoveryReceiver);
+			bluetoothDiscovery = new BluetoothDiscovery(this, bluetoothDiscoveryReceiver,
+					bluetoothConnectionService);
 			
 			Button scanButton = (Button) findViewById(R.id.scanDevices);
 	        scanButton.setOnClickListener(new View.OnClickListener() {
 	            public void onClick(View v) {
 	            	newDevicesArrayAdapter.clear();
+	            	discoveryStream.reset();
 	                bluetoothDiscovery.start();
 	            }
 	        });
@@ -112,6 +151,10 @@ public class BluetoothActivity extends Activity {
 	        
 	        managePairedDevices();
 	        manageDiscoveryDevices();
+	        // Listen before dialing anything, so the target's dial below does not
+	        // stop onResume from starting the service
+	        startConnectionService();
+	        connectToTarget();
 		}
 	}
 	
@@ -169,6 +212,17 @@ public class BluetoothActivity extends Activity {
 		
 	private void manageDiscoveryDevices() {
 		newDevicesArrayAdapter = new ArrayAdapter<BluetoothDevice>(this, R.layout.device_name);
+		discoveryStream = new DiscoveryStream(new DiscoveryStream.Listener() {
+			@Override
+			public void onDevices(final List<DiscoveredDevice> devices) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						addDiscoveredDevices(devices);
+					}
+				});
+			}
+		});
         
         final ListView devicesDiscoverableList = (ListView) findViewById(R.id.devicesDiscoverable);
         devicesDiscoverableList.setAdapter(newDevicesArrayAdapter);
@@ -190,7 +244,7 @@ public class BluetoothActivity extends Activity {
 						
 						@Override
 						public void onClick(DialogInterface dialog, int which) {
-							bluetoothConnectionService.connect(device, true);
+							connectDevice(device.getAddress());
 						}
 					})
 					.setNegativeButton("Não", null)
@@ -200,8 +254,65 @@ public class BluetoothActivity extends Activity {
 		} );
 	}
 	
+	/**
+	 * Connect to the device the intent names, if any. A known address is
+	 * connected to directly; a name prefix stops discovery at the first
+	 * match.
+	 */
+	private void connectToTarget() {
+		String address = getIntent().getStringExtra(EXTRA_DEVICE_ADDRESS);
+		String namePrefix = getIntent().getStringExtra(EXTRA_DEVICE_NAME_PREFIX);
+		DiscoveryTarget target;
+		if (address != null)
+			target = DiscoveryTarget.address(address);
+		else if (namePrefix != null)
+			target = DiscoveryTarget.namePrefix(namePrefix);
+		else
+			return;
+		
+		bluetoothDiscovery.find(target, new BluetoothDiscovery.FindCallback() {
+			@Override
+			public void onFound(BluetoothDevice device) {
+				connectDevice(device.getAddress());
+			}
+			
+			@Override
+			public void onNotFound() {
+				Log.i("bluetooth", "target device not found");
+			}
+		});
+	}
+	
+	/**
+	 * Connect to a device through the pool, handing the previous device
+	 * back to it, which keeps it open only if it is used often.
+	 */
+	private void connectDevice(String address) {
+		if (connectedAddress != null && !connectedAddress.equals(address))
+			warmPool.release(connectedAddress);
+		connectedAddress = address;
+		warmPool.connect(address, true);
+	}
+	
+	/**
+	 * Show a batch of the discovery stream, redrawing the list once.
+	 */
+	private void addDiscoveredDevices(List<DiscoveredDevice> devices) {
+		newDevicesArrayAdapter.setNotifyOnChange(false);
+		for (DiscoveredDevice device : devices) {
+			if (device.isNew())
+				newDevicesArrayAdapter.add(mBluetoothAdapter.getRemoteDevice(device.getAddress()));
+		}
+		// Names and signal strengths of the others changed
+		newDevicesArrayAdapter.notifyDataSetChanged();
+	}
+	
 	private void setupConnectionService() {
-		bluetoothConnectionService = new BluetoothService(this);
+		RfcommTransportProvider provider =
+				new RfcommTransportProvider(BluetoothAdapter.getDefaultAdapter());
+		provider.setChannelCache(new ChannelCache(new File(getFilesDir(), CHANNEL_CACHE)));
+		bluetoothConnectionService = new BluetoothService(provider.newConnectRace());
+		warmPool = new WarmPool(bluetoothConnectionService, new File(getFilesDir(), WARM_POOL));
 		mOutStringBuffer = new StringBuffer();
 	}
 
@@ -210,8 +321,29 @@ public class BluetoothActivity extends Activity {
 		super.onResume();
 
         if (bluetoothConnectionService != null)
-            if (bluetoothConnectionService.getState() == BluetoothConnectionService.STATE_NONE)
-            	bluetoothConnectionService.start();
+        	startConnectionService();
+	}
+	
+	/**
+	 * Start listening and warming the pool, once. A flag rather than the
+	 * service state decides, since a dial made before this moves the state
+	 * out of STATE_NONE without starting anything.
+	 */
+	private void startConnectionService() {
+		if (serviceStarted)
+			return;
+		serviceStarted = true;
+		bluetoothConnectionService.start();
+		// Connect in the background to the paired devices used most
+		warmPool.warm(getPairedAddresses());
+	}
+	
+	private List<String> getPairedAddresses() {
+		List<String> addresses = new ArrayList<String>();
+		for (BluetoothDevice device : mBluetoothAdapter.getBondedDevices()) {
+			addresses.add(device.getAddress());
+		}
+		return addresses;
 	}
 	
 	@Override
@@ -221,10 +353,14 @@ public class BluetoothActivity extends Activity {
         if (mBluetoothAdapter != null)
 			mBluetoothAdapter.cancelDiscovery();
 		
+		if (discoveryStream != null)
+			discoveryStream.close();
+		
 		bluetoothDiscovery.unregister();
         
         if (bluetoothConnectionService != null)
         	bluetoothConnectionService.stop();
+        serviceStarted = false;
     }
 
 	private void sendMessage() {
@@ -0,0 +1,692 @@
+package br.com.senai.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.util.Log;
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.framing.FragmentAssembler;
+import br.com.senai.bluetooth.framing.FrameDecoder;
+import br.com.senai.bluetooth.framing.FrameEncoder;
+import br.com.senai.bluetooth.framing.FrameException;
+import br.com.senai.bluetooth.heartbeat.Heartbeat;
+import br.com.senai.bluetooth.reconnect.ReconnectPolicy;
+import br.com.senai.bluetooth.reconnect.Reconnector;
+import br.com.senai.bluetooth.state.ConnectionStateMachine;
+import br.com.senai.bluetooth.state.StateListener;
+import br.com.senai.bluetooth.transport.ChannelCache;
+import br.com.senai.bluetooth.transport.ConnectRace;
+import br.com.senai.bluetooth.transport.RfcommTransportProvider;
+import br.com.senai.bluetooth.transport.Transport;
+
+public class BluetoothConnectionService {
+	// Debugging
+    private static final String TAG = "bluetooth";
+ 
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "bluetoothConnectionSecure";
+
+    private final BluetoothAdapter mAdapter;
+	private AcceptThread mSecureAcceptThread;
+    private ConnectThread mConnectThread;    
+    private ConnectedThread mConnectedThread;
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+    private final Reconnector mReconnector = new Reconnector(ReconnectPolicy.DEFAULT);
+    // The device last dialed with connect(), redialed when lost
+    private volatile BluetoothDevice mLastDevice;
+    private long mConnectedAt;
+    // Read, reassembly and write buffers, kept across connections
+    private final BufferPool mBufferPool = new BufferPool();
+    // Connects by the fastest method, remembering the winner per device
+    private final ConnectRace mConnectRace;
+    // Receives the messages read, or null to drop them
+    private volatile Handler mHandler;
+
+	private Context context;
+    
+    public static final int STATE_NONE = ConnectionStateMachine.STATE_NONE;
+    public static final int STATE_LISTEN = ConnectionStateMachine.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+    
+    /**
+     * What of a message sent to the Handler for each message read. arg1 is
+     * its length, arg2 its channel and obj a byte[] holding it.
+     */
+    public static final int MESSAGE_READ = 2;
+    
+	private static final UUID MY_UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+	
+	public BluetoothConnectionService(Context context) {
+		this.context = context;
+		mAdapter = BluetoothAdapter.getDefaultAdapter();
+		RfcommTransportProvider provider = new RfcommTransportProvider(mAdapter);
+		provider.setChannelCache(new ChannelCache(
+				new File(context.getFilesDir(), "rfcomm-channels")));
+		mConnectRace = provider.newConnectRace();
+	}
+	
+	/**
+     * Set the Handler the messages read are sent to, as {@link #MESSAGE_READ}.
+     *
+     * @param handler The Handler, or null to drop the messages
+     */
+	public void setHandler(Handler handler) {
+		mHandler = handler;
+	}
+	
+	/**
+     * Start the chat service. Specifically start AcceptThread to begin a
+     * session in listening (server) mode. Called by the Activity onResume()
+     */
+	public synchronized void start(){
+		Log.d(TAG, "start");
+		 
+        // Cancel any thread attempting to make a connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+ 
+        // Cancel any thread currently running a connection
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+ 
+        setState(STATE_LISTEN);
+ 
+        // Start the thread to listen on a BluetoothServerSocket
+        if (mSecureAcceptThread == null) {
+            mSecureAcceptThread = new AcceptThread();
+            mSecureAcceptThread.start();
+        }
+	}
+	
+	/**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        Log.d(TAG, "stop");
+        
+        // Forget the device to redial
+        mLastDevice = null;
+        mReconnector.cancelAll();
+ 
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+ 
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+ 
+        if (mSecureAcceptThread != null) {
+            mSecureAcceptThread.cancel();
+            mSecureAcceptThread = null;
+        }
+        setState(STATE_NONE);
+    }
+    
+    /**
+     * Write to the ConnectedThread in an unsynchronized manner
+     *
+     * @param out The bytes to write
+     * @see ConnectedThread#write(byte[])
+     */
+    public void write(byte[] out) {
+        // Create temporary object
+        ConnectedThread r;
+        // Synchronize a copy of the ConnectedThread
+        synchronized (this) {
+            if (getState() != STATE_CONNECTED) return;
+            r = mConnectedThread;
+        }
+        // Perform the write unsynchronized
+        r.write(out);
+    }
+	
+	public synchronized void connect(BluetoothDevice device){
+		// Remember the device for redialing and start its backoff over
+		mLastDevice = device;
+		mReconnector.reset(device.getAddress());
+		dial(device);
+	}
+	
+	private synchronized void dial(BluetoothDevice device){
+		if (getState() == STATE_CONNECTING){
+			if (mConnectThread != null){
+				mConnectThread.cancel();
+				mConnectThread = null;
+			}
+		}
+		
+		if (mConnectedThread != null){
+			mConnectedThread.cancel();
+			mConnectedThread = null;
+		}
+		
+		// Start the thread to connect with the given device
+        mConnectThread = new ConnectThread(device);
+        mConnectThread.start();
+        setState(STATE_CONNECTING);
+	}
+	
+	/**
+     * Start the ConnectedThread to begin managing a Bluetooth connection
+     *
+     * @param socket The BluetoothSocket on which the connection was made
+     * @param device The BluetoothDevice that has been connected
+     */
+    public void connected(BluetoothSocket socket, BluetoothDevice
+            device) {
+        Log.d(TAG, "CONNECTTTTTTTEDDDDDDDDDDDDD");
+ 
+        // Only swap the threads under the lock; the broadcast goes out after
+        synchronized (this) {
+            // The service was stopped; drop the socket
+            if (getState() == STATE_NONE) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close unwanted socket", e);
+                }
+                return;
+            }
+            
+            // Cancel the thread that completed the connection
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+     
+            // Cancel any thread currently running a connection
+            if (mConnectedThread != null) {
+                mConnectedThread.cancel();
+                mConnectedThread = null;
+            }
+     
+            // Cancel the accept thread because we only want to connect to one device
+            if (mSecureAcceptThread != null) {
+                mSecureAcceptThread.cancel();
+                mSecureAcceptThread = null;
+            }
+     
+            // Start the thread to manage the connection and perform transmissions
+            mConnectedThread = new ConnectedThread(socket);
+            mConnectedThread.start();
+            mConnectedAt = System.currentTimeMillis();
+            
+            setState(STATE_CONNECTED);
+        }
+
+        Log.i(TAG, "Connected to device " + device.getName());
+        
+        Intent intent = new Intent("DEVICE_CONNECTED");
+        context.getApplicationContext().sendBroadcast(intent);
+    }
+	
+	/**
+     * Indicate that the connection was lost and notify the UI Activity.
+     */
+    private void connectionLost() {
+        // Send a failure message back to the Activity
+        //Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        //Bundle bundle = new Bundle();
+        //bundle.putString(Constants.TOAST, "Device connection was lost");
+        //msg.setData(bundle);
+        //mHandler.sendMessage(msg);
+ 
+        // A connection that stayed up for a while starts the backoff over
+        BluetoothDevice device = mLastDevice;
+        if (device != null && System.currentTimeMillis() - mConnectedAt
+                >= mReconnector.getPolicy().getMaxDelayMillis()) {
+            mReconnector.reset(device.getAddress());
+        }
+        
+        redialOrListen();
+    }
+    
+    /**
+     * Set how the last dialed device is redialed after the connection fails
+     * or is lost. {@link ReconnectPolicy#NEVER} turns redialing off.
+     *
+     * @param policy The reconnect policy
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnector.setPolicy(policy);
+    }
+    
+    /**
+     * Redial the last dialed device after the delay given by the reconnect
+     * policy. Called with the lock held.
+     *
+     * @return false if there is no device to redial, or the policy gave up
+     */
+    private boolean scheduleRedial() {
+        final BluetoothDevice device = mLastDevice;
+        if (device == null) {
+            return false;
+        }
+        long delay = mReconnector.schedule(device.getAddress(), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BluetoothConnectionService.this) {
+                    // Unless connect(), start() or stop() was called since
+                    if (mLastDevice == device && getState() == STATE_CONNECTING
+                            && mConnectThread == null) {
+                        dial(device);
+                    }
+                }
+            }
+        });
+        if (delay < 0) {
+            Log.i(TAG, "giving up on " + device.getAddress());
+            mLastDevice = null;
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Set the current state of the chat connection
+     *
+     * @param state An integer defining the current connection state
+     */
+    private void setState(int state) {
+        int previous = mStateMachine.moveTo(state);
+        Log.d(TAG, "setState() " + previous + " -> " + state);
+    }
+    
+    /**
+     * Return the current connection state. Never blocks.
+     */
+    public int getState() {
+        return mStateMachine.getState();
+    }
+    
+    /**
+     * Register a listener for connection state changes.
+     *
+     * @param listener The listener to add
+     */
+    public void addStateListener(StateListener listener) {
+        mStateMachine.addListener(listener);
+    }
+    
+    /**
+     * Unregister a listener added with {@link #addStateListener}.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeStateListener(StateListener listener) {
+        mStateMachine.removeListener(listener);
+    }
+    
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed() {
+    	Log.i(TAG, "CONNECTION FAILED");
+    	
+        // Send a failure message back to the Activity
+        //Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        //Bundle bundle = new Bundle();
+        //bundle.putString(Constants.TOAST, "Unable to connect device");
+        //msg.setData(bundle);
+        //mHandler.sendMessage(msg);
+ 
+        redialOrListen();
+    }
+    
+    /**
+     * Wait for the redial the reconnect policy times, or, with no device
+     * to redial, start the service over to restart listening mode. Nothing
+     * else connects in the meantime, so the policy alone sets the pace.
+     */
+    private synchronized void redialOrListen() {
+        if (getState() == STATE_NONE) {
+            // Stopped meanwhile
+            return;
+        }
+        if (!scheduleRedial()) {
+            BluetoothConnectionService.this.start();
+            return;
+        }
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+        setState(STATE_CONNECTING);
+    }
+    
+    public void unpairDevice(BluetoothDevice device) {
+    	try {
+    	    Method m = device.getClass()
+    	        .getMethod("removeBond", (Class[]) null);
+    	    m.invoke(device, (Object[]) null);
+    	} catch (Exception e) {
+    	    Log.e(TAG, e.getMessage());
+    	}
+	}
+	
+    /**
+     * This thread runs while listening for incoming connections. It behaves
+     * like a server-side client. It runs until a connection is accepted
+     * (or until cancelled).
+     */
+	@SuppressLint("NewApi")
+	private class AcceptThread extends Thread {
+    	// The local server socket
+        private final BluetoothServerSocket mmServerSocket;
+        
+        public AcceptThread() {
+            BluetoothServerSocket tmp = null;
+ 
+            // Create a new listening server socket
+            try {
+                tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                        MY_UUID_SECURE);
+            } catch (IOException e) {
+                Log.e(TAG, "Socket Type: listen() failed", e);
+            }
+            mmServerSocket = tmp;
+        }
+        
+        public void run() {
+            Log.d(TAG, "Socket Type: BEGIN mAcceptThread" + this);
+            setName("AcceptThread");
+ 
+            BluetoothSocket socket = null;
+ 
+            // Listen to the server socket if we're not connected
+            while (BluetoothConnectionService.this.getState() != STATE_CONNECTED) {
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    socket = mmServerSocket.accept();
+                } catch (IOException e) {
+                    Log.e(TAG, "Socket Type: accept() failed", e);
+                    break;
+                }
+ 
+                // If a connection was accepted
+                if (socket != null) {
+                    synchronized (BluetoothConnectionService.this) {
+                        switch (BluetoothConnectionService.this.getState()) {
+                            case STATE_LISTEN:
+                            case STATE_CONNECTING:
+                                // Situation normal. Start the connected thread.
+                                connected(socket, socket.getRemoteDevice());
+                                break;
+                            case STATE_NONE:
+                            case STATE_CONNECTED:
+                                // Either not ready or already connected. Terminate new socket.
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                    Log.e(TAG, "Could not close unwanted socket", e);
+                                }
+                                break;
+                        }
+                    }
+                }
+            }
+            Log.i(TAG, "END mAcceptThread, socket Type: ");
+        }
+        
+        public void cancel() {
+            Log.d(TAG, "Socket Type cancel " + this);
+            try {
+                mmServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Socket Type close() of server failed", e);
+            }
+        }
+    }
+    
+	private class ConnectThread extends Thread{
+		private final Transport mmTransport;
+		private final BluetoothDevice mmDevice;
+		
+		public ConnectThread(BluetoothDevice device){
+			mmDevice = device;
+			// Race the service lookup against a direct connect to channel 1,
+			// instead of trying the channel only after the lookup timed out
+			mmTransport = mConnectRace.create(device.getAddress(), true);
+		}
+		
+		public void run(){
+            Log.i(TAG, "BEGIN mConnectThread");
+            setName("ConnectThread");
+            
+            mAdapter.cancelDiscovery();
+            
+            try {
+            	mmTransport.connect();
+            } catch(IOException e){
+                Log.e(TAG, "unable to connect to " + mmDevice.getAddress(), e);
+                cancel();
+                connectionFailed();
+                return;
+            }
+            
+            // Reset the ConnectThread because we're done
+            synchronized (BluetoothConnectionService.this) {
+                mConnectThread = null;
+            }
+            
+            connected(RfcommTransportProvider.getSocket(mmTransport), mmDevice);
+		}
+		
+		public void cancel() {
+            try {
+                mmTransport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect transport failed", e);
+            }
+        }
+	}
+	
+    private class ConnectedThread extends Thread
+            implements FrameDecoder.Handler, FragmentAssembler.Handler {
+    	private final BluetoothSocket mmSocket;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private final FrameDecoder mmDecoder =
+                new FrameDecoder(this, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, mBufferPool);
+        private final FragmentAssembler mmAssembler = new FragmentAssembler(this, mBufferPool,
+                BluetoothService.MAX_CHANNELS, BluetoothService.MAX_MESSAGE_LENGTH);
+        private final Heartbeat mmHeartbeat = new Heartbeat(Heartbeat.DEFAULT_MAX_MISSED);
+        // Keeps the fragments of a message together on the stream
+        private final Object mmWriteLock = new Object();
+        // Frames read since the peer was last granted credit for them.
+        // Reader-only.
+        private int mmGrant;
+        private boolean mmProtocolError;
+        
+        public ConnectedThread(BluetoothSocket socket) {
+            Log.d(TAG, "create ConnectedThread: ");
+            mmSocket = socket;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+ 
+            // Get the BluetoothSocket input and output streams
+            try {
+                tmpIn = socket.getInputStream();
+                tmpOut = socket.getOutputStream();
+            } catch (IOException e) {
+                Log.e(TAG, "temp sockets not created", e);
+            }
+ 
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+        }
+        
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectedThread");
+            PooledBuffer lease = mBufferPool.allocate(1024);
+            byte[] buffer = lease.array();
+            int bytes;
+ 
+            // Keep listening to the InputStream while connected
+            while (true) {
+                try {
+                    // Read from the InputStream
+                    bytes = mmInStream.read(buffer);
+                    if (bytes < 0) {
+                        // The remote device closed the stream
+                        Log.i(TAG, "disconnected: end of stream");
+                        connectionLost();
+                        break;
+                    }
+                    
+                    // Split what was read into frames, sent to the Handler
+                    mmDecoder.feed(buffer, 0, bytes);
+                    if (mmProtocolError) {
+                        throw new IOException("bad message");
+                    }
+                    
+                    // A peer with flow control sends once granted credit
+                    // for the frames it sent before
+                    if (mmGrant > 0) {
+                        writeCredit(mmGrant);
+                        mmGrant = 0;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "disconnected", e);
+                    // connectionLost() starts the service over
+                    connectionLost();
+                    break;
+                }
+            }
+            mmDecoder.reset();
+            mmAssembler.reset();
+            lease.release();
+        }
+        
+        @Override
+        public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length) {
+            mmGrant++;
+            if (mmProtocolError) {
+                return;
+            }
+            try {
+                mmAssembler.onFrame(channel, more, buffer, offset, length);
+            } catch (FrameException e) {
+                Log.e(TAG, "bad message", e);
+                mmProtocolError = true;
+            }
+        }
+
+        @Override
+        public void onMessage(int channel, byte[] buffer, int offset, int length) {
+            Handler handler = mHandler;
+            if (handler == null) {
+                return;
+            }
+            // The payload is only valid until this returns
+            byte[] message = new byte[length];
+            System.arraycopy(buffer, offset, message, 0, length);
+            handler.obtainMessage(MESSAGE_READ, length, channel, message).sendToTarget();
+        }
+
+        @Override
+        public void onCredit(int credit) {
+            // Writes go straight to the socket here, without flow control
+        }
+
+        @Override
+        public void onControl(byte[] buffer, int offset, int length) {
+            // No heartbeats of our own, the read failing is what ends the
+            // connection; but answer the peer's so it keeps the link up
+            byte[] pong = mmHeartbeat.onControl(buffer, offset, length, System.nanoTime());
+            if (pong == null) {
+                return;
+            }
+            byte[] frame = new byte[FrameEncoder.MAX_HEADER_LENGTH + pong.length];
+            int end = FrameEncoder.encodeControl(0, pong, 0, pong.length, frame, 0);
+            try {
+                synchronized (mmWriteLock) {
+                    mmOutStream.write(frame, 0, end);
+                }
+            } catch (IOException e) {
+                // The read loop notices the connection is gone
+                Log.e(TAG, "Exception during write", e);
+            }
+        }
+        
+        private void writeCredit(int credit) throws IOException {
+            byte[] frame = new byte[FrameEncoder.MAX_HEADER_LENGTH];
+            int end = FrameEncoder.encodeCredit(credit, frame, 0);
+            synchronized (mmWriteLock) {
+                mmOutStream.write(frame, 0, end);
+            }
+        }
+        
+        /**
+         * Write a message to the connected OutStream, on channel 0. One
+         * longer than the peer's largest frame goes as several, each but
+         * the last flagged as having more to follow.
+         *
+         * @param buffer The bytes to write
+         */
+        public void write(byte[] buffer) {
+            int maxFragment = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+            // Encode into a pooled buffer rather than a new array per frame
+            PooledBuffer frame = mBufferPool.allocate(
+                    FrameEncoder.MAX_HEADER_LENGTH + Math.min(buffer.length, maxFragment));
+            try {
+                synchronized (mmWriteLock) {
+                    int offset = 0;
+                    do {
+                        int length = Math.min(buffer.length - offset, maxFragment);
+                        boolean more = offset + length < buffer.length;
+                        int pos = FrameEncoder.encodeHeader(length, 0, 0, more, frame.array(), 0);
+                        System.arraycopy(buffer, offset, frame.array(), pos, length);
+                        mmOutStream.write(frame.array(), 0, pos + length);
+                        offset += length;
+                    } while (offset < buffer.length);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            } finally {
+                frame.release();
+            }
+        }
+        
+        public void cancel() {
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    	
+    	
+    }
+    
+	
+	
+
+}
@@ -0,0 +1,166 @@
+package br.com.senai.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.IntentFilter;
+import android.util.Log;
+import br.com.senai.bluetooth.discovery.DiscoveryScheduler;
+import br.com.senai.bluetooth.discovery.DiscoveryTarget;
+import br.com.senai.bluetooth.receiver.BluetoothDiscoveryReceiver;
+
+public class BluetoothDiscovery {
+	
+	/**
+	 * Told the outcome of {@link BluetoothDiscovery#find}, on the main thread.
+	 */
+	public interface FindCallback {
+		
+		void onFound(BluetoothDevice device);
+		
+		void onNotFound();
+	}
+
+	private BluetoothActivity bluetoothActivity;
+	
+	private BluetoothDiscoveryReceiver bluetoothDiscoveryReceiver;
+
+	private BluetoothAdapter bluetoothAdapter;
+	
+	private BroadcastReceiver receiver;
+	
+	// Holds discovery back while the connections are transferring
+	private DiscoveryScheduler scheduler;
+	
+	// The device looked for, and whom to tell
+	private DiscoveryTarget target;
+	
+	private FindCallback findCallback;
+	
+	private long findStartedAt;
+	
+	public BluetoothDiscovery(BluetoothActivity bluetoothActivity, BroadcastReceiver receiver,
+			BluetoothService service) {
+		this.bluetoothActivity = bluetoothActivity;
+		this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		this.scheduler = new DiscoveryScheduler(service, new DiscoveryScheduler.Scanner() {
+			@Override
+			public boolean startDiscovery() {
+				// Only the scheduler cancels discovery; one already running
+				// is joined, and its early end seen as an interruption
+				return bluetoothAdapter.isDiscovering() || bluetoothAdapter.startDiscovery();
+			}
+			
+			@Override
+			public boolean cancelDiscovery() {
+				return bluetoothAdapter.isDiscovering() && bluetoothAdapter.cancelDiscovery();
+			}
+		});
+		this.bluetoothDiscoveryReceiver = new BluetoothDiscoveryReceiver(this);
+		this.receiver = receiver;
+		registerReceiver(receiver);
+		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+		bluetoothActivity.registerReceiver(bluetoothDiscoveryReceiver, filter);
+	}
+	
+	private void registerReceiver(BroadcastReceiver receiver) {
+		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+		filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+		bluetoothActivity.registerReceiver(receiver, filter);
+	}
+
+	/**
+	 * Ask for a discovery, which waits while the connections are busy.
+	 */
+	public void start() {
+		scheduler.requestDiscovery();
+	}
+	
+	/**
+	 * Look for one device, stopping discovery as soon as it is found. A
+	 * target given by a valid address, or matching a paired device, is
+	 * found without any discovery. Looking for another target replaces
+	 * this one, which is then never told.
+	 */
+	public void find(DiscoveryTarget target, FindCallback callback) {
+		String address = target.getAddress();
+		if (address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+			callback.onFound(bluetoothAdapter.getRemoteDevice(address));
+			return;
+		}
+		for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+			if (target.matches(device.getAddress(), device.getName(), majorClassOf(device))) {
+				callback.onFound(device);
+				return;
+			}
+		}
+		
+		this.target = target;
+		this.findCallback = callback;
+		this.findStartedAt = System.currentTimeMillis();
+		scheduler.requestDiscovery();
+	}
+	
+	/**
+	 * Called by the receiver for every device discovery finds.
+	 */
+	public void onDeviceFound(BluetoothDevice device, String name) {
+		if (target == null
+				|| !target.matches(device.getAddress(), name != null ? name : device.getName(),
+						majorClassOf(device)))
+			return;
+		
+		Log.i("bluetooth", "found " + target + " in "
+				+ (System.currentTimeMillis() - findStartedAt) + " ms");
+		FindCallback callback = findCallback;
+		target = null;
+		findCallback = null;
+		// The rest of the inquiry would only slow down the connection
+		scheduler.cancel();
+		callback.onFound(device);
+	}
+	
+	/**
+	 * Called by the receiver when an inquiry ends.
+	 */
+	public void onDiscoveryFinished() {
+		scheduler.onDiscoveryFinished();
+		// An inquiry cut short by a transfer is still requested
+		if (target == null || scheduler.isRequested())
+			return;
+		
+		FindCallback callback = findCallback;
+		target = null;
+		findCallback = null;
+		callback.onNotFound();
+	}
+	
+	static int majorClassOf(BluetoothDevice device) {
+		BluetoothClass bluetoothClass = device.getBluetoothClass();
+		return bluetoothClass != null ? bluetoothClass.getMajorDeviceClass() : -1;
+	}
+	
+	public void unregister(){
+		scheduler.close();
+		Log.i("bluetooth", "discovery ran " + scheduler.getDiscoveryTime(TimeUnit.MILLISECONDS)
+				+ " ms, " + scheduler.getContendedTime(TimeUnit.MILLISECONDS)
+				+ " ms of it during transfers, costing about "
+				+ scheduler.getLostTransferTime(TimeUnit.MILLISECONDS) + " ms of transfer time");
+		bluetoothActivity.unregisterReceiver(bluetoothDiscoveryReceiver);
+		bluetoothActivity.unregisterReceiver(receiver);
+	}
+	
+	/**
+	 * Return the scheduler, for its counters of the time lost to discovery.
+	 */
+	public DiscoveryScheduler getScheduler() {
+		return scheduler;
+	}
+	
+}
@@ -0,0 +1,32 @@
+package br.com.senai.bluetooth.receiver;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import br.com.senai.bluetooth.BluetoothDiscovery;
+
+public class BluetoothDiscoveryReceiver extends BroadcastReceiver {
+	
+	private final BluetoothDiscovery discovery;
+	
+	public BluetoothDiscoveryReceiver(BluetoothDiscovery discovery) {
+		this.discovery = discovery;
+	}
+		
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		String action = intent.getAction();
+		
+		if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			discovery.onDeviceFound(device, intent.getStringExtra(BluetoothDevice.EXTRA_NAME));
+		}
+		
+		// Lets the scheduler tell a finished inquiry from one it cut short
+		if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action))
+			discovery.onDiscoveryFinished();
+	}
+	
+}
@@ -0,0 +1,371 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Transport provider backed by Android RFCOMM sockets.
+ */
+public class RfcommTransportProvider implements TransportProvider {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    // Names of the ways to connect, for ConnectRace
+    public static final String METHOD_SECURE = "secure";
+    public static final String METHOD_INSECURE = "insecure";
+    public static final String METHOD_CHANNEL = "channel";
+
+    // Android 9, from which reading hidden fields such as the channel of a
+    // socket is restricted
+    private static final int API_PIE = 28;
+
+    private final BluetoothAdapter mAdapter;
+    private volatile ChannelCache mChannelCache;
+
+    public RfcommTransportProvider(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * Set where the channels found by service lookups are kept. With a
+     * cache, connecting to a device whose channel is known skips the
+     * lookup; if that fails, the entry is dropped and the lookup made.
+     *
+     * @param cache The cache, or null to always look the service up
+     */
+    public void setChannelCache(ChannelCache cache) {
+        mChannelCache = cache;
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new RfcommTransportServer(serverSocket);
+    }
+
+    @Override
+    public Transport create(String address, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        ChannelCache cache = mChannelCache;
+        if (cache != null) {
+            return new LookupTransport(mAdapter, device, secure, cache, true, true);
+        }
+        return new RfcommTransport(mAdapter, createLookupSocket(device, secure));
+    }
+
+    // Create a transport that always looks the service up, and caches the
+    // channel it finds if there is a cache
+    private Transport createLookup(String address, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        ChannelCache cache = mChannelCache;
+        if (cache != null) {
+            return new LookupTransport(mAdapter, device, secure, cache, false, true);
+        }
+        return new RfcommTransport(mAdapter, createLookupSocket(device, secure));
+    }
+
+    /**
+     * Return a provider that connects by racing the secure and insecure
+     * service lookups and a direct connect to the channel cached for the
+     * secure service, which needs no lookup, and listens like this one.
+     * Without a cached channel the direct connect fails at once and the
+     * lookups run alone.
+     */
+    public ConnectRace newConnectRace() {
+        ConnectMethod secure = new ConnectMethod() {
+            @Override
+            public String getName() {
+                return METHOD_SECURE;
+            }
+
+            @Override
+            public Transport create(String address) throws IOException {
+                return createLookup(address, true);
+            }
+        };
+        ConnectMethod insecure = new ConnectMethod() {
+            @Override
+            public String getName() {
+                return METHOD_INSECURE;
+            }
+
+            @Override
+            public Transport create(String address) throws IOException {
+                return createLookup(address, false);
+            }
+        };
+        ConnectMethod channel = new ConnectMethod() {
+            @Override
+            public String getName() {
+                return METHOD_CHANNEL;
+            }
+
+            @Override
+            public Transport create(String address) throws IOException {
+                ChannelCache cache = mChannelCache;
+                if (cache == null) {
+                    throw new IOException("No channel cache");
+                }
+                return new LookupTransport(mAdapter, mAdapter.getRemoteDevice(address), true,
+                        cache, true, false);
+            }
+        };
+        // A cached channel connects fastest, and fails at once when there
+        // is none
+        List<ConnectMethod> secureMethods = new ArrayList<ConnectMethod>();
+        secureMethods.add(channel);
+        secureMethods.add(secure);
+        List<ConnectMethod> insecureMethods = new ArrayList<ConnectMethod>();
+        insecureMethods.add(insecure);
+        return new ConnectRace(this, secureMethods, insecureMethods);
+    }
+
+    /**
+     * Create a transport to an RFCOMM channel, skipping the service lookup.
+     * Android has no public API for it, so this goes through reflection.
+     *
+     * @param address The remote address
+     * @param channel The RFCOMM channel, from 1 to 30
+     */
+    public Transport createToChannel(String address, int channel) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return new RfcommTransport(mAdapter, createChannelSocket(device, channel, true));
+    }
+
+    /**
+     * Return the socket of a transport from this provider, or of one that
+     * won a race of its methods.
+     *
+     * @param transport The transport
+     * @return The socket, or null if the transport is not an RFCOMM one
+     */
+    public static BluetoothSocket getSocket(Transport transport) {
+        transport = ConnectRace.unwrap(transport);
+        if (transport instanceof RfcommTransport) {
+            return ((RfcommTransport) transport).mmSocket;
+        }
+        return null;
+    }
+
+    private static BluetoothSocket createLookupSocket(BluetoothDevice device, boolean secure)
+            throws IOException {
+        if (secure) {
+            return device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        }
+        return device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+    }
+
+    // The secure and insecure variants are both hidden, so each goes
+    // through reflection
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel,
+            boolean secure) throws IOException {
+        String name = secure ? "createRfcommSocket" : "createInsecureRfcommSocket";
+        try {
+            return (BluetoothSocket) device.getClass()
+                    .getMethod(name, int.class).invoke(device, channel);
+        } catch (InvocationTargetException e) {
+            throw new IOException(name + "(" + channel + ") failed: " + e.getCause());
+        } catch (Exception e) {
+            throw new IOException(name + "() unavailable: " + e);
+        }
+    }
+
+    // Return the RFCOMM channel of a connected socket, or 0 if it cannot
+    // be read. Android keeps it in a hidden field, filled in by the
+    // lookup; from Android 9 on, reading hidden fields is restricted, so
+    // nothing is read and nothing cached there.
+    private static int getChannel(BluetoothSocket socket) {
+        if (Build.VERSION.SDK_INT >= API_PIE) {
+            return 0;
+        }
+        int channel;
+        try {
+            Field port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+            channel = port.getInt(socket);
+        } catch (Exception e) {
+            Log.d(TAG, "Cannot read the channel of a socket: " + e);
+            return 0;
+        }
+        // Not filled in, or something other than a channel
+        return channel >= 1 && channel <= 30 ? channel : 0;
+    }
+
+    private static class RfcommTransportServer implements TransportServer {
+        private final BluetoothServerSocket mmServerSocket;
+
+        public RfcommTransportServer(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            return new RfcommTransport(null, mmServerSocket.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class RfcommTransport implements Transport {
+        private final BluetoothAdapter mmAdapter;
+        volatile BluetoothSocket mmSocket;
+
+        public RfcommTransport(BluetoothAdapter adapter, BluetoothSocket socket) {
+            mmAdapter = adapter;
+            mmSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            if (mmAdapter != null) {
+                mmAdapter.cancelDiscovery();
+            }
+            mmSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+
+    /**
+     * A transport to a service, connecting to its cached channel, looking
+     * it up, or the first then the second.
+     */
+    private static class LookupTransport extends RfcommTransport {
+        private final BluetoothDevice mmDevice;
+        private final boolean mmSecure;
+        private final ChannelCache mmCache;
+        private final String mmService;
+        private final boolean mmUseCache;
+        private final boolean mmLookup;
+        private boolean mmClosed;
+
+        /**
+         * @param useCache Whether to try the cached channel
+         * @param lookup Whether to look the service up, after the cached
+         *               channel if tried
+         */
+        public LookupTransport(BluetoothAdapter adapter, BluetoothDevice device, boolean secure,
+                ChannelCache cache, boolean useCache, boolean lookup) {
+            super(adapter, null);
+            mmDevice = device;
+            mmSecure = secure;
+            mmCache = cache;
+            mmService = (secure ? MY_UUID_SECURE : MY_UUID_INSECURE).toString();
+            mmUseCache = useCache;
+            mmLookup = lookup;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            String address = mmDevice.getAddress();
+            int channel = mmUseCache ? mmCache.get(address, mmService) : 0;
+            if (channel > 0) {
+                try {
+                    use(createChannelSocket(mmDevice, channel, mmSecure));
+                    super.connect();
+                    return;
+                } catch (IOException e) {
+                    Log.d(TAG, "Cached channel " + channel + " of " + address + " failed");
+                    mmCache.invalidate(address, mmService);
+                    if (!mmLookup) {
+                        throw e;
+                    }
+                }
+            }
+            if (!mmLookup) {
+                throw new IOException("No cached channel of " + mmService + " on " + address);
+            }
+            use(createLookupSocket(mmDevice, mmSecure));
+            super.connect();
+            channel = getChannel(mmSocket);
+            if (channel > 0) {
+                mmCache.put(address, mmService, channel);
+            }
+        }
+
+        // Replace the socket, closing the one it had
+        private void use(BluetoothSocket socket) throws IOException {
+            BluetoothSocket old;
+            synchronized (this) {
+                if (mmClosed) {
+                    socket.close();
+                    throw new IOException("Transport closed");
+                }
+                old = mmSocket;
+                mmSocket = socket;
+            }
+            if (old != null) {
+                old.close();
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmDevice.getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            BluetoothSocket socket;
+            synchronized (this) {
+                mmClosed = true;
+                socket = mmSocket;
+            }
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
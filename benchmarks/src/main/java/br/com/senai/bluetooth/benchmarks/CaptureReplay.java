@@ -0,0 +1,83 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.MessageListener;
+import br.com.senai.bluetooth.capture.ReplayTransport;
+import br.com.senai.bluetooth.reconnect.ReconnectPolicy;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+
+/**
+ * Plays a capture recorded with BluetoothService.setCaptureDirectory()
+ * back through the framing and dispatch path of a fresh service, and
+ * reports what the listeners received and how fast:
+ *
+ *   ./gradlew :benchmarks:replay -Pcapture=path/to/file.cap [-Pfast]
+ *
+ * Without -Pfast the reads keep their original timing, which reproduces
+ * how the connection behaved; with it they come as fast as the service
+ * takes them, which measures the receive path on real traffic.
+ */
+public final class CaptureReplay {
+
+    private CaptureReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CaptureReplay <capture file> [--fast]");
+            System.exit(2);
+        }
+        boolean fast = args.length > 1 && args[1].equals("--fast");
+        ReplayTransport transport = new ReplayTransport(new File(args[0]), !fast);
+        String address = transport.getRemoteAddress();
+
+        final AtomicLongArray messages = new AtomicLongArray(BluetoothService.MAX_CHANNELS);
+        final AtomicLong bytes = new AtomicLong();
+        BluetoothService service = new BluetoothService(new PipeTransportProvider(
+                new PipeTransportProvider.Network(), "replay"));
+        // The capture holds the original heartbeats and redials nothing
+        service.setHeartbeat(0, TimeUnit.MILLISECONDS, 1);
+        service.setReconnectPolicy(ReconnectPolicy.NEVER);
+        service.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(String from, int channel, ByteBuffer payload) {
+                messages.incrementAndGet(channel);
+                bytes.addAndGet(payload.remaining());
+            }
+        });
+
+        service.start();
+        long start = System.nanoTime();
+        service.connected(transport, "Replay");
+        // The connection ends with the capture; then let the dispatcher finish
+        while (service.getState(address) != BluetoothService.STATE_NONE) {
+            Thread.sleep(1);
+        }
+        service.stop();
+        while (service.getExecutor().getActiveCount() > 0) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        System.out.println("Replayed " + args[0] + " from " + address
+                + (fast ? " as fast as possible" : " in real time"));
+        for (int channel = 0; channel < messages.length(); channel++) {
+            if (messages.get(channel) > 0) {
+                System.out.println("  channel " + channel + ": " + messages.get(channel)
+                        + " messages");
+                total += messages.get(channel);
+            }
+        }
+        double seconds = elapsed / 1e9;
+        System.out.printf("%d messages, %d bytes read, %d bytes of payload in %.3f s:"
+                + " %.0f messages/s, %.2f MB/s%n", total, transport.getBytesRead(),
+                bytes.get(), seconds, total / seconds, transport.getBytesRead() / seconds / 1e6);
+    }
+}
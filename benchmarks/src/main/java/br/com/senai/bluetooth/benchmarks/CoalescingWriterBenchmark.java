@@ -0,0 +1,110 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.senai.bluetooth.io.CoalescingWriter;
+
+/**
+ * Send path, end to end: a burst of messages queued to a CoalescingWriter
+ * and written by its thread to a stream that only counts bytes. Each
+ * invocation waits until the whole burst has been written, so the score
+ * includes queueing, coalescing, framing and the hand-off to the writer.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoalescingWriterBenchmark {
+
+    private static final int BURST = 256;
+
+    @Param({ "16", "256" })
+    public int payloadSize;
+
+    private CoalescingWriter mWriter;
+    private Thread mWriterThread;
+    private byte[] mPayload;
+    private long mSubmitted;
+
+    /**
+     * Stands in for the socket; counts what would have been sent.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        volatile long mWrites;
+
+        @Override
+        public void write(int b) {
+            mWrites++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mWrites++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mWriter = new CoalescingWriter(new CountingOutputStream(), new CoalescingWriter.Callback() {
+            @Override
+            public void onWriteError(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        mWriterThread = new Thread(mWriter, "WriterThread");
+        mWriterThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mWriter.close();
+        mWriterThread.join();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public long burst() {
+        for (int i = 0; i < BURST; i++) {
+            mWriter.write(mPayload);
+        }
+        mSubmitted += BURST;
+        return awaitWritten();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long singleMessageLatency() {
+        mWriter.write(mPayload);
+        mSubmitted++;
+        return awaitWritten();
+    }
+
+    private long awaitWritten() {
+        long written;
+        while ((written = mWriter.getMessagesWritten()) < mSubmitted) {
+            Thread.yield();
+        }
+        return written;
+    }
+}
@@ -0,0 +1,80 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import br.com.senai.bluetooth.state.ConnectionStateMachine;
+import br.com.senai.bluetooth.state.StateListener;
+
+/**
+ * Connection state bookkeeping: a full connect/disconnect cycle with a
+ * listener attached, and getState() polled by several threads while another
+ * keeps changing the state, as the UI does while the service works.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionStateBenchmark {
+
+    private ConnectionStateMachine mStateMachine;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mStateMachine = new ConnectionStateMachine(ConnectionStateMachine.STATE_LISTEN);
+        mStateMachine.addListener(new StateListener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                blackhole.consume(newState);
+            }
+        });
+    }
+
+    // LISTEN -> CONNECTING -> CONNECTED -> LISTEN
+    @Benchmark
+    @Group("cycle")
+    @OperationsPerInvocation(3)
+    public boolean cycle() {
+        return mStateMachine.compareAndSet(ConnectionStateMachine.STATE_LISTEN,
+                        ConnectionStateMachine.STATE_CONNECTING)
+                & mStateMachine.compareAndSet(ConnectionStateMachine.STATE_CONNECTING,
+                        ConnectionStateMachine.STATE_CONNECTED)
+                & mStateMachine.compareAndSet(ConnectionStateMachine.STATE_CONNECTED,
+                        ConnectionStateMachine.STATE_LISTEN);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int writer() {
+        int state = mStateMachine.getState();
+        int next = state == ConnectionStateMachine.STATE_CONNECTED
+                ? ConnectionStateMachine.STATE_LISTEN
+                : state + 1;
+        mStateMachine.compareAndSet(state, next);
+        return next;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public int reader() {
+        return mStateMachine.getState();
+    }
+}
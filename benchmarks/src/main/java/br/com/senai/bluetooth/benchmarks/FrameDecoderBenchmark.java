@@ -0,0 +1,87 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import br.com.senai.bluetooth.framing.FrameDecoder;
+import br.com.senai.bluetooth.framing.FrameEncoder;
+
+/**
+ * Receive path: a stream of frames fed to the decoder in chunks the size of
+ * a ConnectedTask read. Scores are frames per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int FRAMES = 1024;
+
+    // Bytes returned by each read(), from worst case to a full buffer
+    @Param({ "1", "16", "128", "1024" })
+    public int chunkSize;
+
+    @Param({ "8", "64", "512" })
+    public int payloadSize;
+
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        Random random = new Random(42);
+        byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = FrameEncoder.encode(payload, 0, payload.length);
+            out.write(frame, 0, frame.length);
+        }
+        mStream = out.toByteArray();
+
+        mDecoder = new FrameDecoder(new FrameDecoder.Handler() {
+            @Override
+            public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length) {
+                blackhole.consume(buffer[offset + length - 1]);
+            }
+
+            @Override
+            public void onCredit(int credit) {
+                blackhole.consume(credit);
+            }
+
+            @Override
+            public void onControl(byte[] buffer, int offset, int length) {
+                blackhole.consume(length);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() throws Exception {
+        byte[] stream = mStream;
+        for (int off = 0; off < stream.length; off += chunkSize) {
+            mDecoder.feed(stream, off, Math.min(chunkSize, stream.length - off));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.senai.bluetooth.framing.FrameEncoder;
+
+/**
+ * Send path, framing only: writing the length prefix and payload into a
+ * reused batch buffer, as CoalescingWriter does, against allocating a new
+ * frame per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncoderBenchmark {
+
+    @Param({ "8", "64", "512", "4096" })
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private byte[] mBatch;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mBatch = new byte[FrameEncoder.MAX_HEADER_LENGTH + payloadSize];
+    }
+
+    @Benchmark
+    public int encodeIntoBatch() {
+        int pos = FrameEncoder.encodeHeader(mPayload.length, mBatch, 0);
+        System.arraycopy(mPayload, 0, mBatch, pos, mPayload.length);
+        return pos + mPayload.length;
+    }
+
+    @Benchmark
+    public byte[] encodeNewArray() {
+        return FrameEncoder.encode(mPayload, 0, mPayload.length);
+    }
+}
@@ -0,0 +1,103 @@
+package br.com.senai.bluetooth.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.senai.bluetooth.ring.BusySpinWaitStrategy;
+import br.com.senai.bluetooth.ring.ParkingWaitStrategy;
+import br.com.senai.bluetooth.ring.RingBuffer;
+import br.com.senai.bluetooth.ring.WaitStrategy;
+import br.com.senai.bluetooth.ring.YieldingWaitStrategy;
+
+/**
+ * Receive hand-off: the reader publishing frames into the ring while a
+ * dispatcher thread consumes them, under each wait strategy. Each
+ * invocation waits until the consumer has caught up, so the score is the
+ * end-to-end hand-off rate in messages per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+    private static final int BURST = 1024;
+
+    @Param({ "park", "yield", "spin" })
+    public String waitStrategy;
+
+    @Param({ "16", "256" })
+    public int payloadSize;
+
+    private RingBuffer mRing;
+    private RingBuffer.Consumer mConsumer;
+    private Thread mConsumerThread;
+    private byte[] mPayload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        WaitStrategy strategy;
+        if ("spin".equals(waitStrategy)) {
+            strategy = new BusySpinWaitStrategy();
+        } else if ("yield".equals(waitStrategy)) {
+            strategy = new YieldingWaitStrategy();
+        } else {
+            strategy = new ParkingWaitStrategy();
+        }
+        mRing = new RingBuffer(256, strategy);
+        mConsumer = mRing.addConsumer();
+        mPayload = new byte[payloadSize];
+
+        final RingBuffer.Handler handler = new RingBuffer.Handler() {
+            @Override
+            public void onEntry(RingBuffer.Entry entry, long sequence, boolean endOfBatch) {
+                // Touch the payload as a listener would
+                entry.view().get(0);
+            }
+        };
+        mConsumerThread = new Thread("DispatchThread") {
+            @Override
+            public void run() {
+                while (mConsumer.process(handler) >= 0) {
+                    // Until halted
+                }
+            }
+        };
+        mConsumerThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mRing.halt();
+        mConsumerThread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long publish() {
+        for (int i = 0; i < BURST; i++) {
+            mRing.publish(mPayload, 0, mPayload.length);
+        }
+        long cursor = mRing.getCursor();
+        while (mConsumer.getSequence() < cursor) {
+            Thread.yield();
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,1758 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.senai.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.capture.CaptureFile;
+import br.com.senai.bluetooth.capture.CaptureInputStream;
+import br.com.senai.bluetooth.capture.CaptureOutputStream;
+import br.com.senai.bluetooth.framing.FragmentAssembler;
+import br.com.senai.bluetooth.framing.FrameDecoder;
+import br.com.senai.bluetooth.framing.FrameException;
+import br.com.senai.bluetooth.heartbeat.Heartbeat;
+import br.com.senai.bluetooth.heartbeat.RttEstimator;
+import br.com.senai.bluetooth.io.CoalescingWriter;
+import br.com.senai.bluetooth.io.IoExecutor;
+import br.com.senai.bluetooth.outbox.Outbox;
+import br.com.senai.bluetooth.reconnect.ReconnectPolicy;
+import br.com.senai.bluetooth.reconnect.Reconnector;
+import br.com.senai.bluetooth.session.Session;
+import br.com.senai.bluetooth.ring.ParkingWaitStrategy;
+import br.com.senai.bluetooth.ring.RingBuffer;
+import br.com.senai.bluetooth.ring.WaitStrategy;
+import br.com.senai.bluetooth.state.ConnectionStateMachine;
+import br.com.senai.bluetooth.state.StateListener;
+import br.com.senai.bluetooth.transport.Transport;
+import br.com.senai.bluetooth.transport.TransportProvider;
+import br.com.senai.bluetooth.transport.TransportServer;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * This class does all the work for setting up and managing Bluetooth
+ * connections with other devices. It has a task that listens for
+ * incoming connections, a task for each outgoing connection attempt,
+ * and a task for performing data transmissions with each connected
+ * device. The tasks run on a bounded {@link IoExecutor} of the service's
+ * own. Up to {@link #MAX_CONNECTIONS} devices can be connected at once,
+ * inbound and outbound, and the service keeps listening while connected.
+ * Each connection, from its first attempt until its last task ends, holds
+ * a slot with room in the executor for all of its tasks; a connection
+ * that finds no free slot is refused, so none waits for a thread.
+ * The sockets themselves come from a {@link TransportProvider}: RFCOMM on
+ * Android, or an in-memory pipe or TCP loopback on a plain JVM.
+ */
+public class BluetoothService {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // Member fields
+    private final TransportProvider mTransportProvider;
+    private final IoExecutor mExecutor;
+    private volatile AcceptTask mSecureAcceptTask;
+    private volatile AcceptTask mInsecureAcceptTask;
+    // Connection attempts and live connections, keyed by remote address.
+    // Lifecycle calls (start, stop, connect) serialize on the service lock;
+    // the connection threads update the maps without it.
+    private final ConcurrentHashMap<String, ConnectTask> mConnectTasks =
+            new ConcurrentHashMap<String, ConnectTask>();
+    private final ConcurrentHashMap<String, ConnectedTask> mConnectedTasks =
+            new ConcurrentHashMap<String, ConnectedTask>();
+    // Connections whose tasks may still hold threads, winding down or not
+    private final Semaphore mSlots = new Semaphore(MAX_CONNECTIONS);
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+    // Devices we dialed ourselves and redial when lost, with their socket type
+    private final ConcurrentHashMap<String, Boolean> mDialedPeers =
+            new ConcurrentHashMap<String, Boolean>();
+    private final Reconnector mReconnector = new Reconnector(ReconnectPolicy.DEFAULT);
+    private final CopyOnWriteArrayList<MessageListener> mMessageListeners =
+            new CopyOnWriteArrayList<MessageListener>();
+    private volatile long mMaxWriteDelayNanos;
+    // Read, reassembly and write buffers shared by every connection
+    private final BufferPool mBufferPool = new BufferPool();
+    // How each connection's dispatcher waits for received messages
+    private volatile WaitStrategy mWaitStrategy = new ParkingWaitStrategy();
+    // Priority and weight of each channel, applied to every connection.
+    // Guarded by mChannelPriority.
+    private final int[] mChannelPriority = new int[MAX_CHANNELS];
+    private final int[] mChannelWeight = new int[MAX_CHANNELS];
+    // Sends the heartbeats of every connection
+    private final ScheduledThreadPoolExecutor mHeartbeatTimer;
+    private volatile long mHeartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private volatile int mMaxMissedHeartbeats = Heartbeat.DEFAULT_MAX_MISSED;
+    // Where connections record their traffic, or null to record none
+    private volatile File mCaptureDirectory;
+    // Keeps messages for devices that are away, on the channels in the mask
+    private volatile Outbox mOutbox;
+    private volatile int mOutboxChannels;
+    // What each device has received of ours and we of theirs, kept across
+    // reconnects while resumable sessions are on
+    private volatile boolean mResumableSessions;
+    private final ConcurrentHashMap<String, Session> mSessions =
+            new ConcurrentHashMap<String, Session>();
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = ConnectionStateMachine.STATE_NONE;
+    public static final int STATE_LISTEN = ConnectionStateMachine.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+
+    // The most devices that can be connected at once (the piconet limit)
+    public static final int MAX_CONNECTIONS = 7;
+
+    // Received messages a connection can hold before its reader waits. It
+    // is also the credit window each side grants the other, so a peer that
+    // honours its credits can never make the reader wait.
+    public static final int RECEIVE_RING_SIZE = 256;
+
+    // Bytes a connection queues for sending on one channel before write()
+    // drops messages
+    public static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+    // Logical channels multiplexed over each connection
+    public static final int MAX_CHANNELS = CoalescingWriter.MAX_CHANNELS;
+
+    // Longest message accepted from a device, after reassembly
+    public static final int MAX_MESSAGE_LENGTH = 4 * 1024 * 1024;
+
+    // Bytes written to the socket at once, and the longest fragment. A
+    // message on an urgent channel waits for at most one batch to go out
+    // ahead of it, a few milliseconds at RFCOMM speeds.
+    private static final int SEND_BATCH_SIZE = 4 * 1024;
+    private static final int FRAGMENT_SIZE = 1024;
+
+    // Bytes of kept messages read from the outbox at once, and the longest
+    // the outbox drain sleeps; the writer and the device's credit wake it
+    // as soon as there is room or an acknowledgement
+    private static final int OUTBOX_BATCH_SIZE = 64 * 1024;
+    private static final long OUTBOX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // Two accept tasks, plus a connect task, a reader, a dispatcher, a
+    // writer and an outbox drain per connection slot
+    private static final int MAX_IO_THREADS = 2 + 5 * MAX_CONNECTIONS;
+
+    /**
+     * Constructor. Prepares a new session over the given transport.
+     *
+     * @param transportProvider Creates the client and server endpoints
+     */
+    public BluetoothService(TransportProvider transportProvider) {
+        mTransportProvider = transportProvider;
+        mExecutor = new IoExecutor("bluetooth-io", MAX_IO_THREADS);
+        for (int channel = 0; channel < MAX_CHANNELS; channel++) {
+            mChannelWeight[channel] = 1;
+        }
+        mHeartbeatTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HeartbeatTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mHeartbeatTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mHeartbeatTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the executor running the socket work, for its counters.
+     */
+    public IoExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Return the pool the connections take their buffers from. Messages to
+     * send can be built in buffers leased from it and passed to
+     * {@link #write(PooledBuffer)}, and listeners that need to keep a
+     * received message can copy it into one.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Set the current state of the chat connection
+     *
+     * @param state An integer defining the current connection state
+     */
+    private void setState(int state) {
+        int previous = mStateMachine.moveTo(state);
+        Log.d(TAG, "setState() " + previous + " -> " + state);
+    }
+
+    /**
+     * Return the current connection state. This is STATE_CONNECTED while at
+     * least one device is connected. Never blocks.
+     */
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * Register a listener for connection state changes.
+     *
+     * @param listener The listener to add
+     * @see StateListener
+     */
+    public void addStateListener(StateListener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    /**
+     * Unregister a listener added with {@link #addStateListener}.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeStateListener(StateListener listener) {
+        mStateMachine.removeListener(listener);
+    }
+
+    /**
+     * Return the state of the connection to one device: STATE_CONNECTED,
+     * STATE_CONNECTING or STATE_NONE.
+     *
+     * @param address The address of the remote device
+     */
+    public int getState(String address) {
+        if (mConnectedTasks.containsKey(address)) {
+            return STATE_CONNECTED;
+        }
+        if (mConnectTasks.containsKey(address)) {
+            return STATE_CONNECTING;
+        }
+        return STATE_NONE;
+    }
+
+    /**
+     * Return the counters of the connection to one device.
+     *
+     * @param address The address of the remote device
+     * @return The counters, or null if the device is not connected
+     */
+    public ConnectionStats getConnectionStats(String address) {
+        ConnectedTask r = mConnectedTasks.get(address);
+        if (r == null) {
+            return null;
+        }
+        CoalescingWriter writer = r.mmWriter;
+        RttEstimator rtt = r.mmHeartbeat.getEstimator();
+        Session session = mSessions.get(address);
+        return new ConnectionStats(address, writer.getQueuedBytes(),
+                writer.getMessagesWritten(), writer.getSendCredits(),
+                writer.getPendingGrant(), writer.getCreditsReceived(),
+                writer.getCreditsGranted(), writer.getCreditStalls(),
+                rtt.getSmoothedRtt(TimeUnit.MICROSECONDS),
+                rtt.getRttVariance(TimeUnit.MICROSECONDS),
+                rtt.getRetransmitTimeout(TimeUnit.MICROSECONDS),
+                r.mmHeartbeat.getMissedCount(),
+                session != null ? session.getUnackedCount() : 0,
+                session != null ? session.getRetransmittedCount() : 0,
+                session != null ? session.getDuplicateCount() : 0);
+    }
+
+    /**
+     * Return how long an answer from a device may take before it is
+     * overdue, from the round trip times its heartbeats measured. Protocols
+     * on top of the service should derive their timeouts from this rather
+     * than from constants.
+     *
+     * @param address The address of the remote device
+     * @param unit The unit of the result
+     * @return The retransmit timeout, or -1 if the device is not connected
+     * @see RttEstimator#getRetransmitTimeout(TimeUnit)
+     */
+    public long getRetransmitTimeout(String address, TimeUnit unit) {
+        ConnectedTask r = mConnectedTasks.get(address);
+        if (r == null) {
+            return -1;
+        }
+        return r.mmHeartbeat.getEstimator().getRetransmitTimeout(unit);
+    }
+
+    /**
+     * Return the counters of one channel of the connection to a device.
+     *
+     * @param address The address of the remote device
+     * @param channel The channel
+     * @return The counters, or null if the device is not connected
+     */
+    public ChannelStats getChannelStats(String address, int channel) {
+        ConnectedTask r = mConnectedTasks.get(address);
+        if (r == null) {
+            return null;
+        }
+        CoalescingWriter writer = r.mmWriter;
+        return new ChannelStats(address, channel, writer.getChannelPriority(channel),
+                writer.getChannelWeight(channel), writer.getQueuedBytes(channel),
+                writer.getMessagesWritten(channel), writer.getBytesWritten(channel),
+                writer.getFragmentsWritten(channel), r.mmMessagesReceived.get(channel),
+                r.mmBytesReceived.get(channel));
+    }
+
+    /**
+     * Return the addresses of the devices currently connected.
+     */
+    public Set<String> getConnectedAddresses() {
+        return new HashSet<String>(mConnectedTasks.keySet());
+    }
+
+    /**
+     * Return the payload bytes sent and received so far over the devices
+     * currently connected. Sampling it twice gives the throughput between
+     * the samples; it goes down when a connection closes.
+     */
+    public long getBytesTransferred() {
+        long bytes = 0;
+        for (ConnectedTask r : mConnectedTasks.values()) {
+            for (int channel = 0; channel < MAX_CHANNELS; channel++) {
+                bytes += r.mmWriter.getBytesWritten(channel) + r.mmBytesReceived.get(channel);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Derive the overall state from the connections and attempts in progress.
+     * Retries until the state matches the maps, so concurrent callers
+     * converge on the right answer without a lock. Never leaves STATE_NONE.
+     */
+    private void updateState() {
+        while (true) {
+            int current = mStateMachine.getState();
+            if (current == STATE_NONE) {
+                return;
+            }
+            int state;
+            if (!mConnectedTasks.isEmpty()) {
+                state = STATE_CONNECTED;
+            } else if (!mConnectTasks.isEmpty()) {
+                state = STATE_CONNECTING;
+            } else {
+                state = STATE_LISTEN;
+            }
+            if (state == current) {
+                return;
+            }
+            if (mStateMachine.compareAndSet(current, state)) {
+                Log.d(TAG, "setState() " + current + " -> " + state);
+            }
+        }
+    }
+
+    /**
+     * Register a listener for received messages.
+     *
+     * @param listener The listener to add
+     */
+    public void addMessageListener(MessageListener listener) {
+        mMessageListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregister a listener added with {@link #addMessageListener}.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeMessageListener(MessageListener listener) {
+        mMessageListeners.remove(listener);
+    }
+
+    /**
+     * Set how long outgoing messages may be held back so that they can be
+     * sent together in one socket write. Zero, the default, only combines
+     * messages that are already waiting and never delays a write.
+     *
+     * @param delay The maximum delay
+     * @param unit The unit of delay
+     */
+    public void setMaxWriteDelay(long delay, TimeUnit unit) {
+        mMaxWriteDelayNanos = unit.toNanos(delay);
+        for (ConnectedTask r : mConnectedTasks.values()) {
+            r.mmWriter.setMaxDelay(mMaxWriteDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Set how a channel shares each connection with the others, for current
+     * and future connections. The channels with the highest priority that
+     * have anything to send always go first, while channels of equal
+     * priority take turns, sending up to their weight in fragments each.
+     * All channels start at priority 0 and weight 1. For instance, commands
+     * on a channel of priority 1 overtake bulk data on channel 0.
+     *
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param priority The priority; higher goes first
+     * @param weight The share among channels of equal priority, at least 1
+     */
+    public void setChannelPriority(int channel, int priority, int weight) {
+        if (channel < 0 || channel >= MAX_CHANNELS || weight < 1) {
+            throw new IllegalArgumentException("channel " + channel + " weight " + weight);
+        }
+        synchronized (mChannelPriority) {
+            mChannelPriority[channel] = priority;
+            mChannelWeight[channel] = weight;
+            for (ConnectedTask r : mConnectedTasks.values()) {
+                r.mmWriter.setChannelPriority(channel, priority, weight);
+            }
+        }
+    }
+
+    /**
+     * Set how often connections made from now on send a heartbeat, and how
+     * many may go unanswered before the device is considered gone. A dead
+     * link is then noticed within about interval * maxMissed, instead of
+     * whenever the socket read gives up.
+     *
+     * @param interval The time between heartbeats, or 0 to send none
+     * @param unit The unit of interval
+     * @param maxMissed Unanswered heartbeats that mean the link is dead
+     */
+    public void setHeartbeat(long interval, TimeUnit unit, int maxMissed) {
+        if (interval < 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("interval " + interval + " maxMissed " + maxMissed);
+        }
+        mHeartbeatIntervalMillis = unit.toMillis(interval);
+        mMaxMissedHeartbeats = maxMissed;
+    }
+
+    /**
+     * Record the traffic of connections made from now on, each in its own
+     * {@link CaptureFile} named after the device and the time it
+     * connected. Recording copies each read and write into a memory-mapped
+     * file, cheap enough to leave on while chasing a problem in the field;
+     * {@link br.com.senai.bluetooth.capture.ReplayTransport} plays the
+     * captures back.
+     *
+     * @param directory The directory to write captures to, or null to stop
+     *                  capturing
+     */
+    public void setCaptureDirectory(File directory) {
+        mCaptureDirectory = directory;
+    }
+
+    /**
+     * Keep messages written to a device that is not connected, or
+     * reconnecting, in an outbox instead of dropping them, and send them
+     * once it connects, ahead of anything written after. Until the device
+     * has caught up, its new messages go to the outbox too, so they stay
+     * in order. Messages written to every device are kept for the devices
+     * being redialed. Messages already handed to a connection that then
+     * drops are lost as before.
+     *
+     * @param outbox The outbox, or null to keep nothing
+     * @param channels The channels whose messages are kept; all of them if
+     *                 none are given
+     */
+    public void setOutbox(Outbox outbox, int... channels) {
+        int mask = channels.length == 0 ? -1 : 0;
+        for (int channel : channels) {
+            if (channel < 0 || channel >= MAX_CHANNELS) {
+                throw new IllegalArgumentException("channel " + channel);
+            }
+            mask |= 1 << channel;
+        }
+        mOutboxChannels = mask;
+        mOutbox = outbox;
+    }
+
+    /**
+     * Resume transfers across reconnects, for connections made from now
+     * on. Messages are numbered and kept until the device acknowledges
+     * them; when it reconnects, the messages it did not get are sent again
+     * and those it got twice are dropped, so a dropped link neither loses
+     * nor repeats messages. Both devices must turn this on. Up to
+     * {@link Session#DEFAULT_MAX_RETAINED_BYTES} are held per device;
+     * past that, writes fail until it acknowledges some. Sessions are
+     * forgotten when the service stops.
+     *
+     * @param enabled Whether to keep sessions
+     * @see Session
+     */
+    public void setResumableSessions(boolean enabled) {
+        mResumableSessions = enabled;
+    }
+
+    /**
+     * Set how the thread delivering received messages to the listeners waits
+     * for the next one, for connections made from now on. Parking, the
+     * default, sleeps while idle; {@link br.com.senai.bluetooth.ring.YieldingWaitStrategy}
+     * and {@link br.com.senai.bluetooth.ring.BusySpinWaitStrategy} cut
+     * latency at the cost of CPU. One strategy serves all connections.
+     *
+     * @param waitStrategy The wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        mWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Set how devices we connected to are redialed after the connection
+     * fails or is lost. {@link ReconnectPolicy#NEVER} turns redialing off.
+     *
+     * @param policy The reconnect policy
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnector.setPolicy(policy);
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptTask to begin a
+     * session in listening (server) mode. Called by the Activity onResume()
+     */
+    public synchronized void start() {
+        Log.d(TAG, "start yeah");
+
+        // Cancel any thread attempting to make a connection
+        cancelConnectTasks();
+
+        // Cancel any thread currently running a connection
+        cancelConnectedTasks();
+
+        setState(STATE_LISTEN);
+        startListening();
+    }
+
+    /**
+     * Start the AcceptTasks that are not running, for instance because
+     * the server socket failed.
+     */
+    private synchronized void startListening() {
+        if (getState() == STATE_NONE) {
+            return;
+        }
+
+        // Start the thread to listen on a BluetoothServerSocket
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = new AcceptTask(true);
+            mExecutor.execute(mSecureAcceptTask);
+        }
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = new AcceptTask(false);
+            mExecutor.execute(mInsecureAcceptTask);
+        }
+    }
+
+    /**
+     * Start the ConnectTask to initiate a connection to a remote address.
+     *
+     * @param address The address of the remote peer
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        // Remember the device for redialing and start its backoff over
+        mDialedPeers.put(address, secure);
+        mReconnector.reset(address);
+        dial(address, secure);
+    }
+
+    private synchronized void dial(String address, boolean secure) {
+        Log.d(TAG, "connect to: " + address);
+
+        // Nothing to do if the device is already connected
+        if (mConnectedTasks.containsKey(address)) {
+            Log.d(TAG, "already connected to: " + address);
+            return;
+        }
+
+        // Cancel any thread attempting to make a connection to this device
+        ConnectTask previous = mConnectTasks.remove(address);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        // The attempt's slot passes to the connection if it succeeds
+        if (!mSlots.tryAcquire()) {
+            Log.e(TAG, "connect to: " + address + " refused, too many connections");
+            return;
+        }
+
+        // Start the thread to connect with the given device
+        ConnectTask connectTask = new ConnectTask(address, secure);
+        mConnectTasks.put(address, connectTask);
+        mExecutor.execute(connectTask);
+        if (!mStateMachine.compareAndSet(STATE_NONE, STATE_CONNECTING)) {
+            updateState();
+        }
+    }
+
+    /**
+     * Close the connection to one device, or stop connecting to it, and
+     * stop redialing it.
+     *
+     * @param address The address of the remote peer
+     */
+    public synchronized void disconnect(String address) {
+        Log.d(TAG, "disconnect from: " + address);
+        mDialedPeers.remove(address);
+        mReconnector.reset(address);
+
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null) {
+            connectTask.cancel();
+        }
+        ConnectedTask connectedTask = mConnectedTasks.get(address);
+        if (connectedTask != null) {
+            unregister(address, connectedTask);
+        }
+        updateState();
+    }
+
+    /**
+     * Start the ConnectedTask to begin managing a Bluetooth connection
+     *
+     * @param transport The Transport on which the connection was made
+     * @param socketType The socket type, used for logging
+     */
+    public void connected(Transport transport, final String socketType) {
+        if (!mSlots.tryAcquire()) {
+            Log.e(TAG, "connected, Socket Type:" + socketType + " refused, too many connections");
+            closeUnwanted(transport);
+            return;
+        }
+        connected(transport, socketType, null);
+    }
+
+    /**
+     * Start the ConnectedTask for a connection the caller holds a slot for.
+     * The slot passes to the connection, or is freed if there is none.
+     *
+     * @param transport The Transport on which the connection was made
+     * @param socketType The socket type, used for logging
+     * @param origin The task that produced the socket, or null
+     */
+    private void connected(Transport transport, String socketType, IoExecutor.Task origin) {
+        Log.d(TAG, "connected, Socket Type:" + socketType);
+        String address = transport.getRemoteAddress();
+
+        // The service was stopped; there is nothing to hand the socket to
+        if (getState() == STATE_NONE) {
+            closeUnwanted(transport);
+            mSlots.release();
+            return;
+        }
+
+        // Cancel any other attempt to connect to this device
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null) {
+            connectTask.cancel();
+        }
+
+        // Start the thread to manage the connection and perform transmissions,
+        // replacing any connection already running with this device
+        ConnectedTask connectedTask = new ConnectedTask(transport, socketType);
+        ConnectedTask previous = mConnectedTasks.put(address, connectedTask);
+        if (previous != null) {
+            previous.cancel();
+        }
+        mExecutor.execute(connectedTask);
+        updateState();
+
+        // Undo if stop() ran while this connection was being registered. The
+        // origin is cancelled before stop() returns, so this also catches a
+        // socket accepted before a stop() and start() that both ran since.
+        if ((getState() == STATE_NONE || (origin != null && origin.isCancelled()))
+                && unregister(address, connectedTask)) {
+            updateState();
+        }
+    }
+
+    /**
+     * Unregister a connection and close it. Its outbox session closes
+     * first, as in {@link #connectionLost}, so the outbox keeps messages
+     * again before anyone sees the connection gone.
+     *
+     * @return false if the connection had been replaced or removed already
+     */
+    private boolean unregister(String address, ConnectedTask connectedTask) {
+        if (mConnectedTasks.get(address) != connectedTask) {
+            return false;
+        }
+        connectedTask.closeOutboxSession();
+        boolean removed = mConnectedTasks.remove(address, connectedTask);
+        connectedTask.cancel();
+        return removed;
+    }
+
+    private void closeUnwanted(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close unwanted socket", e);
+        }
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        Log.d(TAG, "stop");
+
+        // Go to STATE_NONE first so that no new connection is registered
+        setState(STATE_NONE);
+
+        // Forget the devices to redial
+        mReconnector.cancelAll();
+        mDialedPeers.clear();
+
+        cancelConnectTasks();
+        cancelConnectedTasks();
+        closeSessions();
+
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
+        }
+
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
+        }
+
+        // Every task is cancelled; let their threads go
+        mExecutor.shutdown();
+    }
+
+    private void cancelConnectTasks() {
+        for (String address : mConnectTasks.keySet()) {
+            ConnectTask connectTask = mConnectTasks.remove(address);
+            if (connectTask != null) {
+                connectTask.cancel();
+            }
+        }
+    }
+
+    private Session session(String address) {
+        Session session = mSessions.get(address);
+        if (session == null) {
+            session = new Session(MAX_CHANNELS, MAX_QUEUED_BYTES);
+            Session raced = mSessions.putIfAbsent(address, session);
+            if (raced != null) {
+                session = raced;
+            }
+        }
+        return session;
+    }
+
+    private void closeSessions() {
+        for (String address : mSessions.keySet()) {
+            Session session = mSessions.remove(address);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private void cancelConnectedTasks() {
+        for (Map.Entry<String, ConnectedTask> entry : mConnectedTasks.entrySet()) {
+            unregister(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Write to every connected device. The message is queued and sent by
+     * each connection's writer thread, so this never blocks on the socket.
+     * The array must not be modified afterwards. A device whose send queue
+     * is full, because it does not grant credit fast enough, misses the
+     * message.
+     *
+     * @param out The bytes to write
+     * @see ConnectedTask#write(int, PooledBuffer)
+     */
+    public void write(byte[] out) {
+        write(0, PooledBuffer.wrap(out));
+    }
+
+    /**
+     * Write to every connected device, without copying the message. Each
+     * connection holds its own reference to the buffer until it has been
+     * sent, and the caller's reference is released here.
+     *
+     * @param out The message, which must not be modified afterwards
+     */
+    public void write(PooledBuffer out) {
+        write(0, out);
+    }
+
+    /**
+     * Write to every connected device on a channel.
+     *
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param out The bytes to write
+     * @see #write(byte[])
+     */
+    public void write(int channel, byte[] out) {
+        write(channel, PooledBuffer.wrap(out));
+    }
+
+    /**
+     * Write to every connected device on a channel, without copying the
+     * message.
+     *
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param out The message, which must not be modified afterwards
+     * @see #write(PooledBuffer)
+     */
+    public void write(int channel, PooledBuffer out) {
+        Outbox outbox = mOutbox;
+        if (outbox != null && (mOutboxChannels & 1 << channel) != 0) {
+            // Also keep the message for the devices being redialed
+            Set<String> addresses = new HashSet<String>(mConnectedTasks.keySet());
+            addresses.addAll(mDialedPeers.keySet());
+            for (String address : addresses) {
+                write(outbox, address, channel, out.retain());
+            }
+            out.release();
+            return;
+        }
+        // The map is concurrent, so no lock is needed to walk it
+        for (ConnectedTask r : mConnectedTasks.values()) {
+            r.write(channel, out.retain());
+        }
+        out.release();
+    }
+
+    /**
+     * Write to one connected device. The message is queued and sent by the
+     * connection's writer thread, so this never blocks on the socket. The
+     * array must not be modified afterwards.
+     *
+     * @param address The address of the remote device
+     * @param out The bytes to write
+     * @return false if the device is not connected or its send queue is full
+     */
+    public boolean write(String address, byte[] out) {
+        return write(address, 0, PooledBuffer.wrap(out));
+    }
+
+    /**
+     * Write to one connected device, without copying the message. The
+     * caller's reference to the buffer passes to the connection, or is
+     * released here if the device is not connected.
+     *
+     * @param address The address of the remote device
+     * @param out The message, which must not be modified afterwards
+     * @return false if the device is not connected or its send queue is full
+     */
+    public boolean write(String address, PooledBuffer out) {
+        return write(address, 0, out);
+    }
+
+    /**
+     * Write to one connected device on a channel. Messages on one channel
+     * arrive in order; messages on different channels may overtake each
+     * other, according to the channel priorities.
+     *
+     * @param address The address of the remote device
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param out The bytes to write
+     * @return false if the device is not connected or the channel's send
+     *         queue is full
+     * @see #setChannelPriority(int, int, int)
+     */
+    public boolean write(String address, int channel, byte[] out) {
+        return write(address, channel, PooledBuffer.wrap(out));
+    }
+
+    /**
+     * Write to one connected device on a channel, without copying the
+     * message.
+     *
+     * @param address The address of the remote device
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param out The message, which must not be modified afterwards
+     * @return false if the device is not connected or the channel's send
+     *         queue is full
+     * @see #write(String, PooledBuffer)
+     */
+    public boolean write(String address, int channel, PooledBuffer out) {
+        Outbox outbox = mOutbox;
+        if (outbox != null && (mOutboxChannels & 1 << channel) != 0) {
+            return write(outbox, address, channel, out);
+        }
+        ConnectedTask r = mConnectedTasks.get(address);
+        if (r == null) {
+            out.release();
+            return false;
+        }
+        return r.write(channel, out);
+    }
+
+    /**
+     * Keep a message in the outbox, or send it right away if the device is
+     * connected and has caught up with the outbox.
+     *
+     * @return false if the outbox is full or the send queue is
+     */
+    private boolean write(Outbox outbox, String address, int channel, PooledBuffer out) {
+        try {
+            // A connection closes its outbox session before it is
+            // unregistered, so a device found live with no connection has
+            // just lost it, and the outbox takes the message on a retry
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    if (outbox.offer(address, channel, out.array(), 0, out.length())) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Outbox refused a message for " + address, e);
+                    return false;
+                }
+                ConnectedTask r = mConnectedTasks.get(address);
+                if (r != null) {
+                    return r.write(channel, out.retain());
+                }
+            }
+            return false;
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed(String address, ConnectTask connectTask) {
+        // Forget the attempt unless it has been replaced already
+        boolean current = mConnectTasks.remove(address, connectTask);
+        updateState();
+        ensureListening();
+        if (current) {
+            scheduleRedial(address);
+        }
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the UI Activity.
+     */
+    private void connectionLost(String address, ConnectedTask connectedTask) {
+        // Keep messages in the outbox again before anyone sees it gone
+        connectedTask.closeOutboxSession();
+        // Forget the connection unless it has been replaced already
+        boolean current = mConnectedTasks.remove(address, connectedTask);
+        updateState();
+        ensureListening();
+        if (current) {
+            // A connection that stayed up for a while starts the backoff over;
+            // one that keeps dropping right away keeps backing off
+            long uptime = System.currentTimeMillis() - connectedTask.mmConnectedAt;
+            if (uptime >= mReconnector.getPolicy().getMaxDelayMillis()) {
+                mReconnector.reset(address);
+            }
+            scheduleRedial(address);
+        }
+    }
+
+    /**
+     * Redial a device we connected to ourselves, after the delay given by
+     * the reconnect policy.
+     */
+    private void scheduleRedial(final String address) {
+        final Boolean secure = mDialedPeers.get(address);
+        if (secure == null || getState() == STATE_NONE) {
+            return;
+        }
+        long delay = mReconnector.schedule(address, new Runnable() {
+            @Override
+            public void run() {
+                if (getState() != STATE_NONE && mDialedPeers.containsKey(address)
+                        && !mConnectedTasks.containsKey(address)) {
+                    dial(address, secure);
+                }
+            }
+        });
+        if (delay < 0) {
+            Log.i(TAG, "giving up on " + address);
+            mDialedPeers.remove(address);
+        } else {
+            Log.d(TAG, "redial " + address + " in " + delay + " ms");
+        }
+    }
+
+    /**
+     * Make sure listening mode is still running, taking the lock only if an
+     * AcceptTask has to be restarted.
+     */
+    private void ensureListening() {
+        if (mSecureAcceptTask == null || mInsecureAcceptTask == null) {
+            startListening();
+        }
+    }
+
+    /**
+     * This task runs while listening for incoming connections. It behaves
+     * like a server-side client. It keeps accepting connections, while
+     * there is room for them, until cancelled.
+     */
+    private class AcceptTask extends IoExecutor.Task {
+        // The local server socket
+        private final TransportServer mmServerSocket;
+        private String mSocketType;
+
+        public AcceptTask(boolean secure) {
+            super("AcceptThread" + (secure ? "Secure" : "Insecure"));
+            TransportServer tmp = null;
+            mSocketType = secure ? "Secure" : "Insecure";
+
+            // Create a new listening server socket
+            try {
+                tmp = mTransportProvider.listen(secure);
+            } catch (IOException e) {
+                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
+            }
+            mmServerSocket = tmp;
+        }
+
+        @Override
+        protected void runTask() {
+            Log.d(TAG, "Socket Type: " + mSocketType +
+                    "BEGIN mAcceptTask" + this);
+
+            try {
+                acceptAll();
+            } finally {
+                // Let startListening() replace this thread if it died on its own
+                synchronized (BluetoothService.this) {
+                    if (mSecureAcceptTask == this) {
+                        mSecureAcceptTask = null;
+                    } else if (mInsecureAcceptTask == this) {
+                        mInsecureAcceptTask = null;
+                    }
+                }
+            }
+        }
+
+        private void acceptAll() {
+            Transport socket = null;
+
+            // Listen to the server socket until cancelled
+            while (mmServerSocket != null) {
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    socket = mmServerSocket.accept();
+                } catch (IOException e) {
+                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    break;
+                }
+
+                // If a connection was accepted
+                if (socket != null) {
+                    if (getState() != STATE_NONE && mSlots.tryAcquire()) {
+                        // Situation normal. Start the connected thread.
+                        connected(socket, mSocketType, this);
+                    } else {
+                        // Either not ready or out of room. Terminate new socket.
+                        closeUnwanted(socket);
+                    }
+                }
+            }
+            Log.i(TAG, "END mAcceptTask, socket Type: " + mSocketType);
+        }
+
+        @Override
+        protected void onCancel() {
+            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            if (mmServerSocket == null) {
+                return;
+            }
+            try {
+                mmServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
+            }
+        }
+    }
+
+
+    /**
+     * This task runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectTask extends IoExecutor.Task {
+        private final Transport mmSocket;
+        private final String mmAddress;
+        private String mSocketType;
+        // Whether the slot taken for the attempt went to the connection
+        private volatile boolean mmConnected;
+
+        public ConnectTask(String address, boolean secure) {
+            super("ConnectThread" + (secure ? "Secure" : "Insecure"));
+            mmAddress = address;
+            Transport tmp = null;
+            mSocketType = secure ? "Secure" : "Insecure";
+
+            // Get a Transport for a connection with the given address
+            try {
+                tmp = mTransportProvider.create(address, secure);
+            } catch (IOException e) {
+                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+            }
+            mmSocket = tmp;
+        }
+
+        @Override
+        protected void runTask() {
+            Log.i(TAG, "BEGIN mConnectTask SocketType:" + mSocketType);
+
+            // create() failed; there is nothing to connect
+            if (mmSocket == null) {
+                connectionFailed(mmAddress, this);
+                return;
+            }
+
+            // Make a connection to the BluetoothSocket
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                mmSocket.connect();
+            } catch (IOException e) {
+                Log.e(TAG, mSocketType + " connect() to " + mmAddress + " failed", e);
+                // Close the socket
+                try {
+                    mmSocket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "unable to close() " + mSocketType +
+                            " socket during connection failure", e2);
+                }
+                connectionFailed(mmAddress, this);
+                return;
+            }
+
+            // Reset the ConnectTask because we're done
+            if (!mConnectTasks.remove(mmAddress, this)) {
+                // Cancelled or replaced while connecting
+                closeUnwanted(mmSocket);
+                return;
+            }
+
+            // Start the connected thread
+            mmConnected = true;
+            connected(mmSocket, mSocketType, null);
+        }
+
+        @Override
+        protected void onCancel() {
+            if (mmSocket == null) {
+                return;
+            }
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+            }
+        }
+
+        @Override
+        protected void onError(RuntimeException e) {
+            onCancel();
+            connectionFailed(mmAddress, this);
+        }
+
+        @Override
+        protected void onDone() {
+            if (!mmConnected) {
+                mSlots.release();
+            }
+        }
+    }
+
+    /**
+     * A message of the outbox queued on a connection. Once it is sent, it
+     * is acknowledged by the credit for the frames written up to it.
+     */
+    private static final class OutboxSend {
+        final long mmPosition;
+        // Only compared with what the writer sends, never read, as the
+        // drain releases it once queued
+        final PooledBuffer mmPayload;
+        // Frames written once it was sent, or -1 until then. Guarded by
+        // the connection's mmOutboxSends.
+        long mmFrames = -1;
+
+        OutboxSend(PooledBuffer payload, long position) {
+            mmPayload = payload;
+            mmPosition = position;
+        }
+    }
+
+    /**
+     * This task runs during a connection with a remote device.
+     * It handles all incoming and outgoing transmissions. Every write is
+     * sent as one length-prefixed frame, and the incoming stream is split
+     * back into those frames regardless of how the reads chop it up.
+     * Outgoing frames are queued to a CoalescingWriter that runs as its
+     * own task for the lifetime of the connection. Incoming frames are
+     * copied into a RingBuffer and handed to the listeners by a dispatcher
+     * task, so slow listeners never hold up the socket reads. Each side
+     * grants the other credit for the messages its dispatcher has handed
+     * out, which keeps the peer from sending more than the ring holds.
+     * Every frame belongs to a logical channel; the dispatcher joins
+     * fragmented messages back together before the listeners see them.
+     * Heartbeats travel in control frames, answered by the reader itself.
+     */
+    private class ConnectedTask extends IoExecutor.Task
+            implements FrameDecoder.Handler, RingBuffer.Handler, FragmentAssembler.Handler,
+            CoalescingWriter.Callback, CoalescingWriter.SentListener {
+        private final Transport mmSocket;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private final CoalescingWriter mmWriter;
+        private final FrameDecoder mmDecoder =
+                new FrameDecoder(this, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, mBufferPool);
+        private final RingBuffer mmRing = new RingBuffer(RECEIVE_RING_SIZE, mWaitStrategy);
+        private final RingBuffer.Consumer mmDispatcher = mmRing.addConsumer();
+        // Dispatcher-only: partial messages, and the entry being delivered
+        private final FragmentAssembler mmAssembler =
+                new FragmentAssembler(this, mBufferPool, MAX_CHANNELS, MAX_MESSAGE_LENGTH);
+        private RingBuffer.Entry mmEntry;
+        private boolean mmProtocolError;
+        private final AtomicLongArray mmMessagesReceived = new AtomicLongArray(MAX_CHANNELS);
+        private final AtomicLongArray mmBytesReceived = new AtomicLongArray(MAX_CHANNELS);
+        private final Heartbeat mmHeartbeat = new Heartbeat(mMaxMissedHeartbeats);
+        private volatile ScheduledFuture<?> mmHeartbeatTask;
+        private final String mmAddress;
+        private final long mmConnectedAt = System.currentTimeMillis();
+        private final CaptureFile mmCapture;
+        private final Outbox mmOutbox = mOutbox;
+        private final int mmOutboxSession;
+        // Messages the outbox drain queued, in outbox order, and per
+        // channel those not sent yet. Guarded by mmOutboxSends.
+        private final LinkedList<OutboxSend> mmOutboxSends = new LinkedList<OutboxSend>();
+        private final ArrayList<LinkedList<OutboxSend>> mmOutboxUnsent =
+                new ArrayList<LinkedList<OutboxSend>>();
+        // The thread draining the outbox, woken when it may go on
+        private volatile Thread mmDrainThread;
+        // This connection's part of the session with the device, or null
+        private final Session.Link mmLink;
+        // Tasks of the connection that may still hold a thread; the slot
+        // is free once none does
+        private final AtomicInteger mmTasks = new AtomicInteger(1);
+
+        public ConnectedTask(Transport socket, String socketType) {
+            super("ConnectedThread");
+            Log.d(TAG, "create ConnectedTask: " + socketType);
+            mmSocket = socket;
+            mmAddress = socket.getRemoteAddress();
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // Get the Transport input and output streams
+            try {
+                tmpIn = socket.getInputStream();
+                tmpOut = socket.getOutputStream();
+            } catch (IOException e) {
+                Log.e(TAG, "temp sockets not created", e);
+            }
+
+            // Messages written from here on wait in the outbox until it is
+            // drained
+            mmOutboxSession = mmOutbox != null ? mmOutbox.openSession(mmAddress) : 0;
+            mmCapture = openCapture();
+            if (mmCapture != null && tmpIn != null && tmpOut != null) {
+                tmpIn = new CaptureInputStream(tmpIn, mmCapture);
+                tmpOut = new CaptureOutputStream(tmpOut, mmCapture);
+            }
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+            mmWriter = new CoalescingWriter(mmOutStream, this, mBufferPool, SEND_BATCH_SIZE);
+            mmWriter.setMaxDelay(mMaxWriteDelayNanos, TimeUnit.NANOSECONDS);
+            mmWriter.setMaxQueuedBytes(MAX_QUEUED_BYTES);
+            mmWriter.setFragmentSize(FRAGMENT_SIZE);
+            mmWriter.enableFlowControl(RECEIVE_RING_SIZE, RECEIVE_RING_SIZE / 4);
+            synchronized (mChannelPriority) {
+                for (int channel = 0; channel < MAX_CHANNELS; channel++) {
+                    mmWriter.setChannelPriority(channel, mChannelPriority[channel],
+                            mChannelWeight[channel]);
+                }
+            }
+            mmLink = mResumableSessions ? session(mmAddress).attach(mmWriter) : null;
+            if (mmOutbox != null) {
+                for (int channel = 0; channel < MAX_CHANNELS; channel++) {
+                    mmOutboxUnsent.add(new LinkedList<OutboxSend>());
+                }
+                // Passes what is sent on to the session, if any
+                mmWriter.setSentListener(this);
+            }
+        }
+
+        @Override
+        protected void runTask() {
+            Log.i(TAG, "BEGIN mConnectedTask");
+            mmTasks.addAndGet(mmOutbox != null ? 3 : 2);
+            mExecutor.execute(new IoExecutor.Task("WriterThread") {
+                @Override
+                protected void runTask() {
+                    mmWriter.run();
+                }
+
+                @Override
+                protected void onCancel() {
+                    mmWriter.close();
+                }
+
+                @Override
+                protected void onError(RuntimeException e) {
+                    // Closing the socket makes the read loop report the lost connection
+                    ConnectedTask.this.cancel();
+                }
+
+                @Override
+                protected void onDone() {
+                    taskDone();
+                }
+            });
+            mExecutor.execute(new IoExecutor.Task("DispatchThread") {
+                @Override
+                protected void runTask() {
+                    try {
+                        // Deliver until the reader halts the ring, giving the
+                        // peer back a credit for every message handed out
+                        int count;
+                        while ((count = mmDispatcher.process(ConnectedTask.this)) >= 0) {
+                            mmWriter.grantCredits(count);
+                        }
+                    } finally {
+                        // Never leave the reader waiting on a dead dispatcher
+                        mmRing.removeConsumer(mmDispatcher);
+                        mmAssembler.reset();
+                    }
+                }
+
+                @Override
+                protected void onCancel() {
+                    mmRing.halt();
+                }
+
+                @Override
+                protected void onError(RuntimeException e) {
+                    ConnectedTask.this.cancel();
+                }
+
+                @Override
+                protected void onDone() {
+                    taskDone();
+                }
+            });
+
+            if (mmLink != null) {
+                // Before anything else, so the device knows where to resume
+                mmWriter.writeControl(mmLink.hello());
+            }
+            if (mmOutbox != null) {
+                mExecutor.execute(new IoExecutor.Task("OutboxThread") {
+                    @Override
+                    protected void runTask() {
+                        drainOutbox();
+                    }
+
+                    @Override
+                    protected void onCancel() {
+                        // The drain stops once the connection is gone
+                        wakeDrain();
+                    }
+
+                    @Override
+                    protected void onError(RuntimeException e) {
+                        ConnectedTask.this.cancel();
+                    }
+
+                    @Override
+                    protected void onDone() {
+                        taskDone();
+                    }
+                });
+            }
+
+            startHeartbeat();
+
+            PooledBuffer lease = mBufferPool.allocate(1024);
+            byte[] buffer = lease.array();
+            int bytes;
+
+            try {
+                // Keep listening to the InputStream while connected
+                while (true) {
+                    try {
+                        // Read from the InputStream
+                        bytes = mmInStream.read(buffer);
+                        if (bytes < 0) {
+                            // The remote device closed the stream
+                            Log.i(TAG, "disconnected: end of stream");
+                            connectionLost(mmAddress, this);
+                            break;
+                        }
+
+                        // Split what was read into frames
+                        mmDecoder.feed(buffer, 0, bytes);
+                    } catch (IOException e) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(mmAddress, this);
+                        break;
+                    }
+                }
+            } finally {
+                stopHeartbeat();
+                mmWriter.close();
+                wakeDrain();
+                // The dispatcher delivers what was already read, then stops
+                mmRing.halt();
+                mmDecoder.reset();
+                lease.release();
+                closeCapture();
+            }
+        }
+
+        @Override
+        protected void onError(RuntimeException e) {
+            // Do not leave the device registered as connected
+            connectionLost(mmAddress, this);
+            cancel();
+        }
+
+        @Override
+        protected void onDone() {
+            taskDone();
+        }
+
+        // Free the slot once the last task of the connection is done
+        private void taskDone() {
+            if (mmTasks.decrementAndGet() == 0) {
+                mSlots.release();
+            }
+        }
+
+        private CaptureFile openCapture() {
+            File directory = mCaptureDirectory;
+            if (directory == null) {
+                return null;
+            }
+            File file = new File(directory, mmAddress.replaceAll("[^A-Za-z0-9.-]", "_")
+                    + "-" + mmConnectedAt + ".cap");
+            try {
+                CaptureFile capture = new CaptureFile(file, mmAddress);
+                Log.i(TAG, "Capturing " + mmAddress + " to " + file);
+                return capture;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot capture to " + file, e);
+                return null;
+            }
+        }
+
+        private void closeCapture() {
+            if (mmCapture == null) {
+                return;
+            }
+            if (mmCapture.getDroppedCount() > 0) {
+                Log.w(TAG, "Capture of " + mmAddress + " full, dropped "
+                        + mmCapture.getDroppedCount() + " chunks");
+            }
+            try {
+                mmCapture.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of capture failed", e);
+            }
+        }
+
+        /**
+         * Send what the outbox kept for the device, in large batches, then
+         * let new messages through. Messages are committed once the device
+         * has handled them, which the credit it grants back tells;
+         * whatever is not committed when the connection drops is sent
+         * again on the next one.
+         */
+        private void drainOutbox() {
+            ArrayList<Outbox.Message> batch = new ArrayList<Outbox.Message>();
+            boolean more = true;
+            // Set before looking, so a wakeup in between is not lost
+            mmDrainThread = Thread.currentThread();
+            try {
+                while (more && isCurrent()) {
+                    more = mmOutbox.read(mmAddress, mmOutboxSession, OUTBOX_BATCH_SIZE,
+                            mBufferPool, batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        Outbox.Message message = batch.get(i);
+                        int channel = message.getChannel();
+                        OutboxSend send = new OutboxSend(message.getPayload(),
+                                message.getPosition());
+                        synchronized (mmOutboxSends) {
+                            mmOutboxSends.add(send);
+                            mmOutboxUnsent.get(channel).add(send);
+                        }
+                        // A full queue takes more once it has sent a batch
+                        while (!write(channel, message.getPayload().retain())) {
+                            if (!isCurrent()) {
+                                return;
+                            }
+                            LockSupport.parkNanos(this, OUTBOX_WAIT_NANOS);
+                        }
+                        batch.set(i, null).getPayload().release();
+                    }
+                    batch.clear();
+                    commitAcknowledged();
+                }
+                while (commitAcknowledged() && isCurrent()) {
+                    LockSupport.parkNanos(this, OUTBOX_WAIT_NANOS);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Outbox drain for " + mmAddress + " failed", e);
+            } finally {
+                mmDrainThread = null;
+                for (Outbox.Message message : batch) {
+                    if (message != null) {
+                        message.getPayload().release();
+                    }
+                }
+            }
+        }
+
+        // Let the outbox drain look again: the send queue has room, the
+        // device granted credit, or the connection is gone
+        private void wakeDrain() {
+            Thread thread = mmDrainThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Move the outbox cursor past the messages the device has handled.
+         *
+         * @return true if some are still to be handled
+         */
+        private boolean commitAcknowledged() throws IOException {
+            long credits = mmWriter.getCreditsReceived();
+            long position = -1;
+            boolean pending;
+            synchronized (mmOutboxSends) {
+                OutboxSend send;
+                while ((send = mmOutboxSends.peek()) != null
+                        && send.mmFrames >= 0 && credits >= send.mmFrames) {
+                    position = mmOutboxSends.removeFirst().mmPosition;
+                }
+                pending = !mmOutboxSends.isEmpty();
+            }
+            if (position >= 0) {
+                mmOutbox.commit(mmAddress, mmOutboxSession, position);
+            }
+            return pending;
+        }
+
+        @Override
+        public void onMessageSent(int channel, PooledBuffer message) {
+            if (mmLink != null) {
+                mmLink.onMessageSent(channel, message);
+            }
+            // Messages on one channel go out in the order queued, so an
+            // outbox message is the first unsent one of its channel
+            synchronized (mmOutboxSends) {
+                LinkedList<OutboxSend> unsent = mmOutboxUnsent.get(channel);
+                if (!unsent.isEmpty() && unsent.getFirst().mmPayload == message) {
+                    unsent.removeFirst().mmFrames = mmWriter.getFramesWritten();
+                }
+            }
+            wakeDrain();
+        }
+
+        private boolean isCurrent() {
+            return !isCancelled() && mConnectedTasks.get(mmAddress) == this;
+        }
+
+        void closeOutboxSession() {
+            if (mmOutbox != null) {
+                mmOutbox.closeSession(mmAddress, mmOutboxSession);
+            }
+            if (mmLink != null) {
+                mmLink.detach();
+            }
+        }
+
+        @Override
+        public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length) {
+            // Copy the frame out of the read buffer for the dispatcher;
+            // this only waits if the dispatcher is a full ring behind. The
+            // tag carries the channel, or -1 if the peer sent a bad one.
+            int tag = channel < MAX_CHANNELS ? channel << 1 | (more ? 1 : 0) : -1;
+            mmRing.publish(tag, buffer, offset, length);
+        }
+
+        @Override
+        public void onCredit(int credit) {
+            mmWriter.addCredits(credit);
+            // Credit is how the device acknowledges outbox messages
+            wakeDrain();
+        }
+
+        @Override
+        public void onControl(byte[] buffer, int offset, int length) {
+            if (mmLink != null && length > 0) {
+                if (buffer[offset] == Session.TYPE_HELLO) {
+                    mmLink.onHello(buffer, offset, length);
+                    return;
+                }
+                if (buffer[offset] == Session.TYPE_ACK) {
+                    mmLink.onAck(buffer, offset, length);
+                    return;
+                }
+            }
+            // Answer pings right away, ahead of any queued message
+            byte[] pong = mmHeartbeat.onControl(buffer, offset, length, System.nanoTime());
+            if (pong != null) {
+                mmWriter.writeControl(pong);
+            }
+        }
+
+        private void startHeartbeat() {
+            long interval = mHeartbeatIntervalMillis;
+            if (interval <= 0) {
+                return;
+            }
+            mmHeartbeatTask = mHeartbeatTimer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] ping = mmHeartbeat.onTick(System.nanoTime());
+                    if (ping != null) {
+                        mmWriter.writeControl(ping);
+                        // Acknowledge the last few messages of a lull
+                        byte[] ack = mmLink != null ? mmLink.pollAck(true) : null;
+                        if (ack != null) {
+                            mmWriter.writeControl(ack);
+                        }
+                        return;
+                    }
+                    Log.e(TAG, "disconnected: " + mmAddress + " missed "
+                            + mMaxMissedHeartbeats + " heartbeats");
+                    stopHeartbeat();
+                    connectionLost(mmAddress, ConnectedTask.this);
+                    // Closing the socket also ends the read loop
+                    cancel();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private void stopHeartbeat() {
+            ScheduledFuture<?> task = mmHeartbeatTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public void onEntry(RingBuffer.Entry entry, long sequence, boolean endOfBatch) {
+            if (mmProtocolError) {
+                return;
+            }
+            int tag = entry.tag();
+            mmEntry = entry;
+            try {
+                mmAssembler.onFrame(tag >> 1, (tag & 1) != 0, entry.array(), 0, entry.length());
+            } catch (FrameException e) {
+                Log.e(TAG, "disconnected, bad message", e);
+                mmProtocolError = true;
+                cancel();
+            } finally {
+                mmEntry = null;
+            }
+        }
+
+        @Override
+        public void onMessage(int channel, byte[] buffer, int offset, int length) {
+            if (mmLink != null) {
+                if (!mmLink.onReceived(length)) {
+                    // Delivered already, before the previous connection ended
+                    return;
+                }
+                byte[] ack = mmLink.pollAck(false);
+                if (ack != null) {
+                    mmWriter.writeControl(ack);
+                }
+            }
+            mmMessagesReceived.incrementAndGet(channel);
+            mmBytesReceived.addAndGet(channel, length);
+            // The payload is only valid until this returns
+            for (MessageListener listener : mMessageListeners) {
+                // Listeners may move position and limit, so reset them each
+                // time. Unfragmented messages use the entry's own view.
+                ByteBuffer view = mmEntry != null && buffer == mmEntry.array()
+                        ? mmEntry.view()
+                        : ByteBuffer.wrap(buffer, offset, length).asReadOnlyBuffer();
+                try {
+                    listener.onMessage(mmAddress, channel, view);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "MessageListener failed", e);
+                }
+            }
+        }
+
+        /**
+         * Queue one message for the connected OutStream.
+         *
+         * @param channel The channel to send it on
+         * @param buffer The bytes to write; the reference passes to the writer
+         * @return false if the send queue is full or closed
+         */
+        public boolean write(int channel, PooledBuffer buffer) {
+            if (mmLink != null) {
+                return mmLink.write(channel, buffer);
+            }
+            return mmWriter.write(channel, buffer);
+        }
+
+        @Override
+        public void onWriteError(IOException e) {
+            Log.e(TAG, "Exception during write", e);
+            // Closing the socket makes the read loop report the lost connection
+            cancel();
+        }
+
+        @Override
+        protected void onCancel() {
+            closeOutboxSession();
+            stopHeartbeat();
+            mmWriter.close();
+            wakeDrain();
+            mmRing.halt();
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
+}
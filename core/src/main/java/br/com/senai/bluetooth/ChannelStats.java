@@ -0,0 +1,118 @@
+package br.com.senai.bluetooth;
+
+/**
+ * A snapshot of the counters of one logical channel of a connection, taken
+ * by {@link BluetoothService#getChannelStats(String, int)}.
+ */
+public final class ChannelStats {
+
+    private final String mAddress;
+    private final int mChannel;
+    private final int mPriority;
+    private final int mWeight;
+    private final long mQueuedBytes;
+    private final long mMessagesSent;
+    private final long mBytesSent;
+    private final long mFragmentsSent;
+    private final long mMessagesReceived;
+    private final long mBytesReceived;
+
+    ChannelStats(String address, int channel, int priority, int weight, long queuedBytes,
+            long messagesSent, long bytesSent, long fragmentsSent, long messagesReceived,
+            long bytesReceived) {
+        mAddress = address;
+        mChannel = channel;
+        mPriority = priority;
+        mWeight = weight;
+        mQueuedBytes = queuedBytes;
+        mMessagesSent = messagesSent;
+        mBytesSent = bytesSent;
+        mFragmentsSent = fragmentsSent;
+        mMessagesReceived = messagesReceived;
+        mBytesReceived = bytesReceived;
+    }
+
+    /**
+     * Return the address of the remote device.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the channel.
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Return the priority of the channel.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Return the weight of the channel among channels of equal priority.
+     */
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Return the bytes queued on the channel and not yet written.
+     */
+    public long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Return the messages sent in full on the channel.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    /**
+     * Return the payload bytes sent on the channel.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Return the frames sent on the channel, one per fragment.
+     */
+    public long getFragmentsSent() {
+        return mFragmentsSent;
+    }
+
+    /**
+     * Return the whole messages received on the channel.
+     */
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    /**
+     * Return the payload bytes received on the channel.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelStats{" + mAddress
+                + " channel=" + mChannel
+                + " priority=" + mPriority
+                + " weight=" + mWeight
+                + " queued=" + mQueuedBytes
+                + " sent=" + mMessagesSent
+                + " bytesSent=" + mBytesSent
+                + " fragments=" + mFragmentsSent
+                + " received=" + mMessagesReceived
+                + " bytesReceived=" + mBytesReceived + "}";
+    }
+}
@@ -0,0 +1,173 @@
+package br.com.senai.bluetooth;
+
+/**
+ * A snapshot of the counters of one connection, taken by
+ * {@link BluetoothService#getConnectionStats(String)}.
+ */
+public final class ConnectionStats {
+
+    private final String mAddress;
+    private final long mQueuedBytes;
+    private final long mMessagesWritten;
+    private final int mSendCredits;
+    private final int mPendingGrant;
+    private final long mCreditsReceived;
+    private final long mCreditsGranted;
+    private final long mCreditStalls;
+    private final long mSmoothedRttMicros;
+    private final long mRttVarianceMicros;
+    private final long mRetransmitTimeoutMicros;
+    private final long mMissedHeartbeats;
+    private final int mUnackedMessages;
+    private final long mRetransmittedMessages;
+    private final long mDuplicateMessages;
+
+    ConnectionStats(String address, long queuedBytes, long messagesWritten, int sendCredits,
+            int pendingGrant, long creditsReceived, long creditsGranted, long creditStalls,
+            long smoothedRttMicros, long rttVarianceMicros, long retransmitTimeoutMicros,
+            long missedHeartbeats, int unackedMessages, long retransmittedMessages,
+            long duplicateMessages) {
+        mAddress = address;
+        mQueuedBytes = queuedBytes;
+        mMessagesWritten = messagesWritten;
+        mSendCredits = sendCredits;
+        mPendingGrant = pendingGrant;
+        mCreditsReceived = creditsReceived;
+        mCreditsGranted = creditsGranted;
+        mCreditStalls = creditStalls;
+        mSmoothedRttMicros = smoothedRttMicros;
+        mRttVarianceMicros = rttVarianceMicros;
+        mRetransmitTimeoutMicros = retransmitTimeoutMicros;
+        mMissedHeartbeats = missedHeartbeats;
+        mUnackedMessages = unackedMessages;
+        mRetransmittedMessages = retransmittedMessages;
+        mDuplicateMessages = duplicateMessages;
+    }
+
+    /**
+     * Return the address of the remote device.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the bytes queued for sending and not yet written.
+     */
+    public long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Return the messages written so far.
+     */
+    public long getMessagesWritten() {
+        return mMessagesWritten;
+    }
+
+    /**
+     * Return the messages we may still send before the device grants more.
+     */
+    public int getSendCredits() {
+        return mSendCredits;
+    }
+
+    /**
+     * Return the credit owed to the device and not sent yet.
+     */
+    public int getPendingGrant() {
+        return mPendingGrant;
+    }
+
+    /**
+     * Return the total credit the device has granted us.
+     */
+    public long getCreditsReceived() {
+        return mCreditsReceived;
+    }
+
+    /**
+     * Return the total credit we have granted the device.
+     */
+    public long getCreditsGranted() {
+        return mCreditsGranted;
+    }
+
+    /**
+     * Return how many times sending stalled for lack of credit.
+     */
+    public long getCreditStalls() {
+        return mCreditStalls;
+    }
+
+    /**
+     * Return the smoothed round trip time in microseconds, or 0 before the
+     * first heartbeat came back.
+     */
+    public long getSmoothedRttMicros() {
+        return mSmoothedRttMicros;
+    }
+
+    /**
+     * Return the mean deviation of the round trip time in microseconds.
+     */
+    public long getRttVarianceMicros() {
+        return mRttVarianceMicros;
+    }
+
+    /**
+     * Return how long an answer may take before it is overdue, in
+     * microseconds.
+     */
+    public long getRetransmitTimeoutMicros() {
+        return mRetransmitTimeoutMicros;
+    }
+
+    /**
+     * Return the heartbeats the device left unanswered.
+     */
+    public long getMissedHeartbeats() {
+        return mMissedHeartbeats;
+    }
+
+    /**
+     * Return the messages sent and not yet acknowledged by the device, with
+     * resumable sessions on.
+     */
+    public int getUnackedMessages() {
+        return mUnackedMessages;
+    }
+
+    /**
+     * Return the messages sent again after reconnects to the device.
+     */
+    public long getRetransmittedMessages() {
+        return mRetransmittedMessages;
+    }
+
+    /**
+     * Return the messages the device sent twice, which were dropped.
+     */
+    public long getDuplicateMessages() {
+        return mDuplicateMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" + mAddress
+                + " queued=" + mQueuedBytes
+                + " written=" + mMessagesWritten
+                + " credits=" + mSendCredits
+                + " pendingGrant=" + mPendingGrant
+                + " received=" + mCreditsReceived
+                + " granted=" + mCreditsGranted
+                + " stalls=" + mCreditStalls
+                + " srtt=" + mSmoothedRttMicros + "us"
+                + " rttvar=" + mRttVarianceMicros + "us"
+                + " rto=" + mRetransmitTimeoutMicros + "us"
+                + " missed=" + mMissedHeartbeats
+                + " unacked=" + mUnackedMessages
+                + " retransmitted=" + mRetransmittedMessages
+                + " duplicates=" + mDuplicateMessages + "}";
+    }
+}
@@ -0,0 +1,25 @@
+package br.com.senai.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the messages read by BluetoothService.
+ */
+public interface MessageListener {
+
+    /**
+     * Called on the connection's dispatcher thread for every received
+     * message, in order. The payload is a read-only view of a receive ring
+     * entry between its position and limit. It is only valid until this
+     * method returns, so copy out anything that must outlive the call,
+     * preferably into a buffer from {@link BluetoothService#getBufferPool()}.
+     * The socket keeps being read while listeners run, until they fall
+     * {@link BluetoothService#RECEIVE_RING_SIZE} frames behind. Messages
+     * sent in fragments are delivered once, whole.
+     *
+     * @param address The address of the peer that sent the message
+     * @param channel The logical channel the message was sent on
+     * @param payload The message
+     */
+    void onMessage(String address, int channel, ByteBuffer payload);
+}
@@ -0,0 +1,152 @@
+package br.com.senai.bluetooth.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays in power-of-two size classes, from
+ * {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. A request is served
+ * from the smallest class that fits it, so once every class in use has
+ * warmed up, leasing and releasing buffers allocates nothing.
+ * <p>
+ * Each class keeps idle buffers up to a byte budget, so small classes can
+ * hold many buffers and large ones only a few; extra releases are left to
+ * the garbage collector, and requests larger than the biggest
+ * class get an array of their own that is never pooled. This class is
+ * thread safe.
+ */
+public class BufferPool {
+
+    // Smallest and largest pooled arrays
+    public static final int MIN_BUFFER_SIZE = 64;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    // Bytes of idle buffers kept per size class by default
+    public static final int DEFAULT_MAX_IDLE_BYTES = 256 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASSES =
+            Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+    /**
+     * The idle buffers of one size class. A plain array stack under a lock
+     * keeps releases from allocating queue nodes.
+     */
+    private static class SizeClass {
+        private final PooledBuffer[] mmIdle;
+        private int mmCount;
+
+        SizeClass(int maxIdle) {
+            mmIdle = new PooledBuffer[maxIdle];
+        }
+
+        synchronized PooledBuffer poll() {
+            if (mmCount == 0) {
+                return null;
+            }
+            PooledBuffer buffer = mmIdle[--mmCount];
+            mmIdle[mmCount] = null;
+            return buffer;
+        }
+
+        synchronized boolean offer(PooledBuffer buffer) {
+            if (mmCount == mmIdle.length) {
+                return false;
+            }
+            mmIdle[mmCount++] = buffer;
+            return true;
+        }
+
+        synchronized int size() {
+            return mmCount;
+        }
+    }
+
+    private final SizeClass[] mClasses = new SizeClass[SIZE_CLASSES];
+
+    // Statistics
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_IDLE_BYTES);
+    }
+
+    /**
+     * @param maxIdleBytes The most memory held by the idle buffers of one
+     *                     size class; every class keeps at least one buffer
+     */
+    public BufferPool(int maxIdleBytes) {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            mClasses[i] = new SizeClass(Math.max(1, maxIdleBytes / (MIN_BUFFER_SIZE << i)));
+        }
+    }
+
+    /**
+     * Lease a buffer of at least the given size, with a length of 0 and one
+     * reference held by the caller.
+     *
+     * @param minCapacity The smallest usable size
+     */
+    public PooledBuffer allocate(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new IllegalArgumentException("capacity " + minCapacity);
+        }
+        int sizeClass = sizeClass(minCapacity);
+        PooledBuffer buffer;
+        if (sizeClass < 0) {
+            buffer = new PooledBuffer(new byte[minCapacity], null, -1);
+            mAllocated.incrementAndGet();
+        } else {
+            buffer = mClasses[sizeClass].poll();
+            if (buffer != null) {
+                mReused.incrementAndGet();
+            } else {
+                buffer = new PooledBuffer(new byte[MIN_BUFFER_SIZE << sizeClass], this, sizeClass);
+                mAllocated.incrementAndGet();
+            }
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Return the number of arrays this pool has had to allocate. It stops
+     * growing once the pool has warmed up.
+     */
+    public long getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    /**
+     * Return the number of allocations served by an idle buffer.
+     */
+    public long getReusedCount() {
+        return mReused.get();
+    }
+
+    /**
+     * Return the number of idle buffers held, over all size classes.
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (SizeClass sizeClass : mClasses) {
+            count += sizeClass.size();
+        }
+        return count;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        mClasses[buffer.sizeClass()].offer(buffer);
+    }
+
+    // Index of the smallest class holding size bytes, or -1 if none does
+    private static int sizeClass(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,130 @@
+package br.com.senai.bluetooth.buffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A byte array leased from a {@link BufferPool}, with a reference count.
+ * The buffer starts with one reference held by whoever allocated it. Every
+ * extra holder calls {@link #retain()}, and every holder calls
+ * {@link #release()} once when done; the last release returns the array
+ * to its pool. The bytes in use are {@code array()[0 .. length())}.
+ * <p>
+ * A buffer must not be touched after its last release, since the array is
+ * handed out again by the next allocation.
+ */
+public final class PooledBuffer {
+
+    private final byte[] mArray;
+    private final BufferPool mPool;
+    private final int mSizeClass;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+
+    PooledBuffer(byte[] array, BufferPool pool, int sizeClass) {
+        mArray = array;
+        mPool = pool;
+        mSizeClass = sizeClass;
+    }
+
+    /**
+     * Wrap an array that does not belong to any pool, so that it can be
+     * passed where a PooledBuffer is expected. Releasing it just drops it.
+     *
+     * @param array The bytes, all of which are in use
+     */
+    public static PooledBuffer wrap(byte[] array) {
+        PooledBuffer buffer = new PooledBuffer(array, null, -1);
+        buffer.mLength = array.length;
+        buffer.mRefCount.set(1);
+        return buffer;
+    }
+
+    /**
+     * Return the backing array. It may be longer than requested.
+     */
+    public byte[] array() {
+        return mArray;
+    }
+
+    /**
+     * Return the size of the backing array.
+     */
+    public int capacity() {
+        return mArray.length;
+    }
+
+    /**
+     * Return the number of bytes in use, from the start of the array.
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * Set the number of bytes in use.
+     *
+     * @param length The length, at most {@link #capacity()}
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > mArray.length) {
+            throw new IndexOutOfBoundsException("length " + length + ", capacity " + mArray.length);
+        }
+        mLength = length;
+    }
+
+    /**
+     * Add a reference for another holder.
+     *
+     * @return This buffer
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public PooledBuffer retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("retain() of a released buffer");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference, returning the buffer to its pool if it was the last.
+     *
+     * @return true if this was the last reference
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public boolean release() {
+        int count = mRefCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        }
+        if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("release() of a released buffer");
+        }
+        if (mPool != null) {
+            mPool.recycle(this);
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of references held.
+     */
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    int sizeClass() {
+        return mSizeClass;
+    }
+
+    // Called by the pool when the buffer is handed out
+    void reset() {
+        mLength = 0;
+        mRefCount.set(1);
+    }
+}
@@ -0,0 +1,180 @@
+package br.com.senai.bluetooth.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * An append-only record of the bytes a connection read and wrote, for
+ * reproducing problems offline with {@link ReplayTransport}. Records are
+ * copied straight into a memory-mapped region of the file, so recording
+ * costs a copy and no system call; the kernel writes the pages out in the
+ * background.
+ * <p>
+ * The file starts with a {@link #HEADER_LENGTH} byte header: the magic
+ * number, the format version, the wall clock time the capture started,
+ * the offset where the records end, and the remote address. Each record is
+ * then a direction byte, the time since the start in nanoseconds, the
+ * length of the data and the data itself. The end offset is updated after
+ * every record, so a capture cut short by a crash still reads up to its
+ * last complete record.
+ * <p>
+ * Instances are thread safe; the reader and the writer of a connection
+ * record into the same file.
+ */
+public class CaptureFile implements Closeable {
+
+    public static final byte DIRECTION_READ = 0;
+    public static final byte DIRECTION_WRITE = 1;
+
+    static final int MAGIC = 0x42544350; // "BTCP"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 64;
+    static final int END_OFFSET_POSITION = 16;
+    static final int ADDRESS_POSITION = 24;
+    static final int MAX_ADDRESS_LENGTH = HEADER_LENGTH - ADDRESS_POSITION - 1;
+    static final int RECORD_HEADER_LENGTH = 13;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Size of each mapped region of the file
+    public static final int DEFAULT_REGION_SIZE = 1024 * 1024;
+    // Captures stop growing here, and further records are dropped
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private final int mRegionSize;
+    private final long mMaxSize;
+    private final long mStartNanos = System.nanoTime();
+
+    // Guarded by this
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+    private long mEnd = HEADER_LENGTH;
+    private long mDropped;
+    private boolean mClosed;
+
+    /**
+     * Create a capture file, replacing any file of that name.
+     *
+     * @param file The file
+     * @param address The address of the remote device
+     */
+    public CaptureFile(File file, String address) throws IOException {
+        this(file, address, DEFAULT_REGION_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a capture file, replacing any file of that name.
+     *
+     * @param file The file
+     * @param address The address of the remote device
+     * @param regionSize The bytes mapped at once
+     * @param maxSize The size past which records are dropped
+     */
+    public CaptureFile(File file, String address, int regionSize, long maxSize)
+            throws IOException {
+        mRegionSize = regionSize;
+        mMaxSize = maxSize;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        byte[] name = address.getBytes(UTF_8);
+        int nameLength = Math.min(name.length, MAX_ADDRESS_LENGTH);
+        mHeader.putInt(0, MAGIC);
+        mHeader.putInt(4, VERSION);
+        mHeader.putLong(8, System.currentTimeMillis());
+        mHeader.putLong(END_OFFSET_POSITION, mEnd);
+        mHeader.put(ADDRESS_POSITION, (byte) nameLength);
+        for (int i = 0; i < nameLength; i++) {
+            mHeader.put(ADDRESS_POSITION + 1 + i, name[i]);
+        }
+    }
+
+    /**
+     * Append a chunk of the byte stream. Never throws; if the file cannot
+     * grow, the chunk is dropped and counted.
+     *
+     * @param direction {@link #DIRECTION_READ} or {@link #DIRECTION_WRITE}
+     * @param data The array holding the chunk
+     * @param off The offset of the chunk in the array
+     * @param len The length of the chunk
+     */
+    public void record(byte direction, byte[] data, int off, int len) {
+        long timestamp = System.nanoTime() - mStartNanos;
+        int recordLength = RECORD_HEADER_LENGTH + len;
+        synchronized (this) {
+            if (mClosed || mEnd + recordLength > mMaxSize || !ensureRegion(recordLength)) {
+                mDropped++;
+                return;
+            }
+            MappedByteBuffer region = mRegion;
+            region.position((int) (mEnd - mRegionStart));
+            region.put(direction);
+            region.putLong(timestamp);
+            region.putInt(len);
+            region.put(data, off, len);
+            mEnd += recordLength;
+            mHeader.putLong(END_OFFSET_POSITION, mEnd);
+        }
+    }
+
+    /**
+     * Return the size of the capture so far.
+     */
+    public synchronized long getSize() {
+        return mEnd;
+    }
+
+    /**
+     * Return the number of chunks dropped because the capture was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stop recording, and cut the file down to the records it holds.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mRegion = null;
+        try {
+            mHeader.force();
+            mChannel.truncate(mEnd);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    // Map the next region if the record does not fit in the current one
+    private boolean ensureRegion(int recordLength) {
+        if (mRegion != null && mEnd + recordLength <= mRegionStart + mRegion.capacity()) {
+            return true;
+        }
+        try {
+            mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mEnd,
+                    Math.max(mRegionSize, recordLength));
+            mRegionStart = mEnd;
+            return true;
+        } catch (IOException e) {
+            mRegion = null;
+            return false;
+        }
+    }
+}
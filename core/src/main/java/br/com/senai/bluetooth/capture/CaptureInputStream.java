@@ -0,0 +1,61 @@
+package br.com.senai.bluetooth.capture;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records every chunk read from the stream it wraps in a
+ * {@link CaptureFile}, as {@link CaptureFile#DIRECTION_READ}.
+ */
+public class CaptureInputStream extends FilterInputStream {
+
+    private final CaptureFile mCapture;
+
+    /**
+     * @param in The stream to read from
+     * @param capture The capture to record into
+     */
+    public CaptureInputStream(InputStream in, CaptureFile capture) {
+        super(in);
+        mCapture = capture;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            mCapture.record(CaptureFile.DIRECTION_READ, new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int bytes = in.read(buffer, offset, length);
+        if (bytes > 0) {
+            mCapture.record(CaptureFile.DIRECTION_READ, buffer, offset, bytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes would be missing from the capture; read them instead
+        byte[] buffer = new byte[(int) Math.min(n, 1024)];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytes = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (bytes < 0) {
+                break;
+            }
+            skipped += bytes;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package br.com.senai.bluetooth.capture;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records every chunk written to the stream it wraps in a
+ * {@link CaptureFile}, as {@link CaptureFile#DIRECTION_WRITE}. Chunks are
+ * recorded once written, so a failed write leaves no record.
+ */
+public class CaptureOutputStream extends FilterOutputStream {
+
+    private final CaptureFile mCapture;
+
+    /**
+     * @param out The stream to write to
+     * @param capture The capture to record into
+     */
+    public CaptureOutputStream(OutputStream out, CaptureFile capture) {
+        super(out);
+        mCapture = capture;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        mCapture.record(CaptureFile.DIRECTION_WRITE, new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // FilterOutputStream would write byte by byte
+        out.write(buffer, offset, length);
+        mCapture.record(CaptureFile.DIRECTION_WRITE, buffer, offset, length);
+    }
+}
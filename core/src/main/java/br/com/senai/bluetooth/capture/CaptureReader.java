@@ -0,0 +1,156 @@
+package br.com.senai.bluetooth.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back the records of a {@link CaptureFile}, in order. The file is
+ * mapped read-only, so the data of each record is read in place.
+ * <pre>
+ * CaptureReader reader = new CaptureReader(file);
+ * while (reader.next()) {
+ *     reader.getData(buffer, 0);
+ * }
+ * </pre>
+ */
+public class CaptureReader implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final long mStartMillis;
+    private final String mAddress;
+
+    // The current record
+    private byte mDirection;
+    private long mTimestampNanos;
+    private int mLength;
+    private int mDataPosition;
+
+    /**
+     * @param file A file written by {@link CaptureFile}
+     * @throws IOException If the file cannot be read or is no capture
+     */
+    public CaptureReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            if (channel.size() < CaptureFile.HEADER_LENGTH) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    CaptureFile.HEADER_LENGTH);
+            if (header.getInt(0) != CaptureFile.MAGIC) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            if (header.getInt(4) != CaptureFile.VERSION) {
+                throw new IOException("Unknown capture version " + header.getInt(4));
+            }
+            mStartMillis = header.getLong(8);
+            long end = Math.min(header.getLong(CaptureFile.END_OFFSET_POSITION), channel.size());
+            if (end > Integer.MAX_VALUE) {
+                throw new IOException("Capture too large: " + end);
+            }
+            byte[] name = new byte[header.get(CaptureFile.ADDRESS_POSITION)];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = header.get(CaptureFile.ADDRESS_POSITION + 1 + i);
+            }
+            mAddress = new String(name, CaptureFile.UTF_8);
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            mMap.position(CaptureFile.HEADER_LENGTH);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the address of the device the capture was made with.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the wall clock time the capture started, in milliseconds.
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next() {
+        if (mLength > 0) {
+            mMap.position(mDataPosition + mLength);
+        }
+        if (mMap.remaining() < CaptureFile.RECORD_HEADER_LENGTH) {
+            mLength = 0;
+            return false;
+        }
+        mDirection = mMap.get();
+        mTimestampNanos = mMap.getLong();
+        mLength = mMap.getInt();
+        mDataPosition = mMap.position();
+        if (mLength < 0 || mLength > mMap.remaining()) {
+            // Torn record; the capture ends here
+            mLength = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the direction of the current record:
+     * {@link CaptureFile#DIRECTION_READ} or {@link CaptureFile#DIRECTION_WRITE}.
+     */
+    public byte getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * Return when the current record was made, in nanoseconds since the
+     * capture started.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Return the length of the data of the current record.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Copy the data of the current record.
+     *
+     * @param dst The array to copy to, with room for {@link #getLength()} bytes
+     * @param off The offset in dst
+     */
+    public void getData(byte[] dst, int off) {
+        for (int i = 0; i < mLength; i++) {
+            dst[off + i] = mMap.get(mDataPosition + i);
+        }
+    }
+
+    /**
+     * Go back to the first record.
+     */
+    public void rewind() {
+        mLength = 0;
+        mMap.position(CaptureFile.HEADER_LENGTH);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,171 @@
+package br.com.senai.bluetooth.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import br.com.senai.bluetooth.transport.Transport;
+
+/**
+ * A transport that plays back what a captured connection read, so a
+ * BluetoothService given it through
+ * {@link br.com.senai.bluetooth.BluetoothService#connected} runs the
+ * capture through its framing and dispatch path again. Each chunk comes
+ * back from read() as it was read originally, either at its original time
+ * or as fast as the service takes it. What the service writes is counted
+ * and dropped. The end of the capture is the end of the stream.
+ */
+public class ReplayTransport implements Transport {
+
+    private final CaptureReader mReader;
+    private final boolean mRealTime;
+    private final ReplayInputStream mIn = new ReplayInputStream();
+    private final OutputStream mOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(null, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+            mBytesWritten += length;
+        }
+    };
+    private volatile boolean mClosed;
+    private volatile long mBytesRead;
+    private volatile long mBytesWritten;
+
+    /**
+     * @param file The capture to play back
+     * @param realTime Whether to keep the original timing of the reads;
+     *                 otherwise they come as fast as they are taken
+     */
+    public ReplayTransport(File file, boolean realTime) throws IOException {
+        mReader = new CaptureReader(file);
+        mRealTime = realTime;
+    }
+
+    /**
+     * Return the address of the device the capture was made with.
+     */
+    @Override
+    public String getRemoteAddress() {
+        return mReader.getAddress();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Nothing to connect to
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mIn;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mOut;
+    }
+
+    /**
+     * Return the bytes played back so far.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Return the bytes the service wrote, and that were dropped.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        synchronized (mIn) {
+            mIn.notifyAll();
+        }
+        // The mapping the reader reads from stays valid once closed
+        mReader.close();
+    }
+
+    private class ReplayInputStream extends InputStream {
+        // Reader thread only: the chunk being played back
+        private byte[] mmChunk = new byte[0];
+        private int mmOffset;
+        private int mmLength;
+        private long mmStartNanos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+            if (mmOffset == mmLength && !nextChunk()) {
+                return -1;
+            }
+            int bytes = Math.min(length, mmLength - mmOffset);
+            System.arraycopy(mmChunk, mmOffset, buffer, offset, bytes);
+            mmOffset += bytes;
+            mBytesRead += bytes;
+            return bytes;
+        }
+
+        // Load the next chunk read originally, waiting for its time if
+        // playing back in real time
+        private boolean nextChunk() throws IOException {
+            do {
+                if (!mReader.next()) {
+                    return false;
+                }
+            } while (mReader.getDirection() != CaptureFile.DIRECTION_READ);
+
+            if (mRealTime) {
+                if (mmStartNanos == 0) {
+                    mmStartNanos = System.nanoTime() - mReader.getTimestampNanos();
+                }
+                waitUntil(mmStartNanos + mReader.getTimestampNanos());
+            }
+            mmLength = mReader.getLength();
+            if (mmChunk.length < mmLength) {
+                mmChunk = new byte[Math.max(mmLength, mmChunk.length * 2)];
+            }
+            mReader.getData(mmChunk, 0);
+            mmOffset = 0;
+            return true;
+        }
+
+        private synchronized void waitUntil(long deadline) throws IOException {
+            long remaining;
+            while (!mClosed && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("read() interrupted");
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            ReplayTransport.this.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package br.com.senai.bluetooth.discovery;
+
+/**
+ * What a {@link DiscoveryStream} knows of a device when it reports it.
+ */
+public final class DiscoveredDevice {
+
+    // Signal strength of a device that reported none
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final String mAddress;
+    private final String mName;
+    private final int mRssi;
+    private final int mMajorDeviceClass;
+    private final boolean mNew;
+
+    DiscoveredDevice(String address, String name, int rssi, int majorDeviceClass,
+            boolean isNew) {
+        mAddress = address;
+        mName = name;
+        mRssi = rssi;
+        mMajorDeviceClass = majorDeviceClass;
+        mNew = isNew;
+    }
+
+    /**
+     * Return the address of the device.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the name of the device, or null if not resolved yet.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return the signal strength in dBm, or {@link #RSSI_UNKNOWN}.
+     */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Return the major device class, or -1 if not known.
+     */
+    public int getMajorDeviceClass() {
+        return mMajorDeviceClass;
+    }
+
+    /**
+     * Return whether the device is reported for the first time, rather
+     * than updated.
+     */
+    public boolean isNew() {
+        return mNew;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + (mName != null ? " " + mName : "")
+                + (mRssi != RSSI_UNKNOWN ? " " + mRssi + " dBm" : "");
+    }
+}
@@ -0,0 +1,412 @@
+package br.com.senai.bluetooth.discovery;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Runs device discovery when it does not get in the way of transfers. An
+ * inquiry takes the radio away from the connections for much of its
+ * twelve seconds, halving their throughput or worse, so a discovery
+ * requested while the service moves more than a threshold of bytes per
+ * second waits until the links have been quiet for a while. A discovery
+ * running when a transfer starts is cut short and resumed once the links
+ * are quiet again.
+ * <p>
+ * A request is not put off forever: once it has waited the longest
+ * deferral, discovery runs anyway for one slice, and is only cut short
+ * after that. The scheduler counts how long discovery ran during transfers
+ * and estimates how much transfer time that cost, from the throughput
+ * before discovery started and the throughput during it.
+ * <p>
+ * The radio is reached through a {@link Scanner}; whoever receives the
+ * platform's discovery-finished event must pass it to
+ * {@link #onDiscoveryFinished()}. Others may stop discovery too, as a dial
+ * does to get the radio to itself: a discovery that finishes well before
+ * an inquiry's length without the scheduler stopping it was interrupted,
+ * and stays requested until it can run again.
+ */
+public class DiscoveryScheduler {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    /**
+     * Starts and stops device discovery on the radio.
+     */
+    public interface Scanner {
+
+        /**
+         * Start discovery, returning at once.
+         *
+         * @return false if discovery could not be started
+         */
+        boolean startDiscovery();
+
+        /**
+         * Stop discovery.
+         *
+         * @return false if it was not running
+         */
+        boolean cancelDiscovery();
+    }
+
+    // Throughput above which the links count as busy
+    public static final long DEFAULT_BUSY_BYTES_PER_SECOND = 16 * 1024;
+    // Time the links must stay below it before discovery starts
+    public static final long DEFAULT_IDLE_MILLIS = 1000;
+    // Longest time a request waits for the links to go quiet
+    public static final long DEFAULT_MAX_DEFERRAL_MILLIS = 30000;
+    // Time an overdue discovery runs before it can be cut short
+    public static final long DEFAULT_SLICE_MILLIS = 4000;
+    // Shortest time an inquiry runs when nothing stops it
+    public static final long DEFAULT_INQUIRY_MILLIS = 10000;
+    // Time between throughput samples
+    public static final long SAMPLE_INTERVAL_MILLIS = 250;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_RUNNING = 2;
+
+    private final BluetoothService mService;
+    private final Scanner mScanner;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private volatile long mBusyBytesPerSecond = DEFAULT_BUSY_BYTES_PER_SECOND;
+    private volatile long mIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_MILLIS);
+    private volatile long mMaxDeferralNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DEFERRAL_MILLIS);
+    private volatile long mSliceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLICE_MILLIS);
+    private volatile long mInquiryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INQUIRY_MILLIS);
+
+    // Guarded by this
+    private int mState = STATE_IDLE;
+    private ScheduledFuture<?> mSampler;
+    private long mLastSample;
+    private long mLastBytes;
+    private long mLastBusy;
+    // When the request started waiting, and when discovery started
+    private long mWaitingSince;
+    private long mStartedAt;
+    private boolean mOverdue;
+    private boolean mDeferred;
+    // Throughput of transfers without discovery, smoothed
+    private double mBaselineRate;
+    // Finished events caused by our own cancels, still to come
+    private int mCancelsPending;
+
+    // Statistics, guarded by this
+    private long mDeferrals;
+    private long mAborts;
+    private long mInterruptions;
+    private long mCompleted;
+    private long mDiscoveryNanos;
+    private long mContendedNanos;
+    private double mLostNanos;
+
+    /**
+     * @param service The service whose transfers discovery yields to
+     * @param scanner The radio to discover with
+     */
+    public DiscoveryScheduler(BluetoothService service, Scanner scanner) {
+        mService = service;
+        mScanner = scanner;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DiscoveryTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the throughput, over all connections, above which discovery
+     * waits.
+     *
+     * @param bytesPerSecond The threshold
+     */
+    public void setBusyThreshold(long bytesPerSecond) {
+        mBusyBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Set how long the links must stay below the threshold before a
+     * waiting discovery starts.
+     *
+     * @param time The time
+     * @param unit The unit of time
+     */
+    public void setIdleTime(long time, TimeUnit unit) {
+        mIdleNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Set how long a request waits at most, and how long discovery then
+     * runs before a transfer can cut it short.
+     *
+     * @param maxDeferral The longest wait
+     * @param slice The time discovery runs once the wait is over
+     * @param unit The unit of maxDeferral and slice
+     */
+    public void setMaxDeferral(long maxDeferral, long slice, TimeUnit unit) {
+        mMaxDeferralNanos = unit.toNanos(maxDeferral);
+        mSliceNanos = unit.toNanos(slice);
+    }
+
+    /**
+     * Set the shortest time an inquiry runs when nothing stops it. A
+     * discovery that finishes sooner, without the scheduler stopping it,
+     * was stopped by someone else and is run again.
+     *
+     * @param time The time
+     * @param unit The unit of time
+     */
+    public void setInquiryTime(long time, TimeUnit unit) {
+        mInquiryNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Ask for a discovery. It starts now if no device is connected, and
+     * otherwise once the links are quiet. Asking again while one waits or
+     * runs does nothing.
+     */
+    public synchronized void requestDiscovery() {
+        if (mState != STATE_IDLE) {
+            return;
+        }
+        long now = System.nanoTime();
+        mWaitingSince = now;
+        mLastSample = now;
+        mLastBytes = mService.getBytesTransferred();
+        mLastBusy = now - mIdleNanos;
+        mOverdue = false;
+        mDeferred = false;
+        mState = STATE_PENDING;
+        if (mService.getConnectedAddresses().isEmpty()) {
+            start(now);
+        }
+        // Otherwise the first throughput sample decides
+        if (mState != STATE_IDLE) {
+            mSampler = mTimer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    sample();
+                }
+            }, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drop the request, stopping discovery if it runs.
+     */
+    public synchronized void cancel() {
+        if (mState == STATE_RUNNING) {
+            cancelDiscovery();
+        }
+        finish();
+    }
+
+    /**
+     * Tell the scheduler discovery finished. Call from the platform's
+     * discovery-finished event.
+     */
+    public synchronized void onDiscoveryFinished() {
+        if (mCancelsPending > 0) {
+            mCancelsPending--;
+            return;
+        }
+        if (mState != STATE_RUNNING) {
+            return;
+        }
+        long now = System.nanoTime();
+        account(now, -1);
+        if (now - mStartedAt < mInquiryNanos) {
+            // Someone else cancelled it; wait for the radio to be free
+            // again, without losing the time already waited
+            Log.d(TAG, "discovery interrupted");
+            mInterruptions++;
+            mState = STATE_PENDING;
+            mLastSample = now;
+            mLastBytes = mService.getBytesTransferred();
+            mLastBusy = now;
+            return;
+        }
+        mCompleted++;
+        finish();
+    }
+
+    /**
+     * Return whether a discovery is waiting or running.
+     */
+    public synchronized boolean isRequested() {
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * Return whether discovery is running for a request.
+     */
+    public synchronized boolean isDiscovering() {
+        return mState == STATE_RUNNING;
+    }
+
+    /**
+     * Return the number of requests that had to wait for transfers.
+     */
+    public synchronized long getDeferrals() {
+        return mDeferrals;
+    }
+
+    /**
+     * Return the number of times a transfer cut discovery short.
+     */
+    public synchronized long getAborts() {
+        return mAborts;
+    }
+
+    /**
+     * Return the number of times discovery was stopped by someone else.
+     */
+    public synchronized long getInterruptions() {
+        return mInterruptions;
+    }
+
+    /**
+     * Return the number of discoveries that ran to the end.
+     */
+    public synchronized long getCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * Return how long discovery ran for requests.
+     *
+     * @param unit The unit of the result
+     */
+    public synchronized long getDiscoveryTime(TimeUnit unit) {
+        return unit.convert(mDiscoveryNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return how long discovery ran while the links were busy.
+     *
+     * @param unit The unit of the result
+     */
+    public synchronized long getContendedTime(TimeUnit unit) {
+        return unit.convert(mContendedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return an estimate of the transfer time lost to discovery: the time
+     * discovery ran during transfers, weighted by how far it brought their
+     * throughput down.
+     *
+     * @param unit The unit of the result
+     */
+    public synchronized long getLostTransferTime(TimeUnit unit) {
+        return unit.convert((long) mLostNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Drop the request and stop the timer.
+     */
+    public void close() {
+        cancel();
+        mTimer.shutdownNow();
+    }
+
+    private synchronized void sample() {
+        if (mState == STATE_IDLE) {
+            return;
+        }
+        long now = System.nanoTime();
+        long bytes = mService.getBytesTransferred();
+        if (mState == STATE_RUNNING) {
+            account(now, bytes);
+        } else {
+            double rate = rate(now, bytes);
+            boolean busy = rate >= mBusyBytesPerSecond;
+            if (busy) {
+                if (!mDeferred) {
+                    mDeferred = true;
+                    mDeferrals++;
+                    Log.d(TAG, "discovery deferred");
+                }
+                mLastBusy = now;
+                mBaselineRate = mBaselineRate == 0 ? rate : 0.75 * mBaselineRate + 0.25 * rate;
+            }
+            boolean quiet = now - mLastBusy >= mIdleNanos
+                    || mService.getConnectedAddresses().isEmpty();
+            mOverdue = now - mWaitingSince >= mMaxDeferralNanos;
+            if (quiet || mOverdue) {
+                start(now);
+            }
+        }
+        mLastSample = now;
+        mLastBytes = bytes;
+    }
+
+    // Charge the time since the last sample to discovery, and cut it short
+    // if a transfer needs the radio. A negative byte count means discovery
+    // ended and there is no new sample.
+    private void account(long now, long bytes) {
+        long elapsed = now - mLastSample;
+        mDiscoveryNanos += elapsed;
+        if (bytes < 0) {
+            return;
+        }
+        double rate = rate(now, bytes);
+        if (rate < mBusyBytesPerSecond) {
+            return;
+        }
+        mContendedNanos += elapsed;
+        if (mBaselineRate > rate) {
+            mLostNanos += elapsed * (1 - rate / mBaselineRate);
+        }
+        if (!mOverdue || now - mStartedAt >= mSliceNanos) {
+            Log.d(TAG, "discovery cut short by a transfer");
+            cancelDiscovery();
+            mAborts++;
+            mState = STATE_PENDING;
+            mWaitingSince = now;
+            mLastBusy = now;
+        }
+    }
+
+    private double rate(long now, long bytes) {
+        long elapsed = now - mLastSample;
+        // Bytes go down when a connection closes
+        long moved = Math.max(bytes - mLastBytes, 0);
+        return elapsed > 0 ? moved * 1e9 / elapsed : 0;
+    }
+
+    private void start(long now) {
+        if (!mScanner.startDiscovery()) {
+            Log.e(TAG, "startDiscovery() failed");
+            finish();
+            return;
+        }
+        Log.d(TAG, "discovery started" + (mOverdue ? ", overdue" : ""));
+        mState = STATE_RUNNING;
+        mStartedAt = now;
+    }
+
+    private void cancelDiscovery() {
+        if (mScanner.cancelDiscovery()) {
+            mCancelsPending++;
+        }
+    }
+
+    private void finish() {
+        mState = STATE_IDLE;
+        if (mSampler != null) {
+            mSampler.cancel(false);
+            mSampler = null;
+        }
+    }
+}
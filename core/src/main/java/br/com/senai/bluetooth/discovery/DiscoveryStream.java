@@ -0,0 +1,235 @@
+package br.com.senai.bluetooth.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Turns the raw results of discovery into a stream of devices worth
+ * showing. An inquiry reports a device every time it answers, and repeated
+ * inquiries report it again; the stream remembers every address it has
+ * seen, in a hash map, and passes a result on only if the device is new or
+ * changed in a way that matters: its name was resolved or changed, or its
+ * signal strength moved by at least a threshold since it was last passed
+ * on.
+ * <p>
+ * Results are collected for a short interval and handed to the listener
+ * as one batch on the stream's own thread, so the thread reporting them,
+ * usually the main thread, only does a map lookup per result, and the UI
+ * updates once per batch instead of once per device. A device changed
+ * several times within one interval appears once in its batch, as last
+ * seen.
+ */
+public class DiscoveryStream {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    /**
+     * Receives the batches of a stream.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the stream's thread with the devices found or updated
+         * since the last batch, in the order first reported.
+         *
+         * @param devices The devices, never empty
+         */
+        void onDevices(List<DiscoveredDevice> devices);
+    }
+
+    public static final int DEFAULT_RSSI_THRESHOLD = 8;
+    public static final long DEFAULT_BATCH_INTERVAL_MILLIS = 200;
+
+    // What was last passed on for one address
+    private static class Seen {
+        String mmName;
+        int mmRssi;
+    }
+
+    private final Listener mListener;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private volatile int mRssiThreshold = DEFAULT_RSSI_THRESHOLD;
+    private volatile long mBatchIntervalMillis = DEFAULT_BATCH_INTERVAL_MILLIS;
+
+    // Guarded by this
+    private final HashMap<String, Seen> mSeen = new HashMap<String, Seen>();
+    private LinkedHashMap<String, DiscoveredDevice> mPending =
+            new LinkedHashMap<String, DiscoveredDevice>();
+    private boolean mFlushScheduled;
+    private boolean mClosed;
+
+    // Statistics
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mPassed = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+
+    /**
+     * @param listener The listener of the batches
+     */
+    public DiscoveryStream(Listener listener) {
+        mListener = listener;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DiscoveryStream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set how far the signal strength of a device must move before the
+     * device is passed on again.
+     *
+     * @param dbm The threshold in dBm, or 0 to pass on every change
+     */
+    public void setRssiThreshold(int dbm) {
+        mRssiThreshold = dbm;
+    }
+
+    /**
+     * Set how long results are collected before a batch goes out.
+     *
+     * @param interval The interval
+     * @param unit The unit of interval
+     */
+    public void setBatchInterval(long interval, TimeUnit unit) {
+        mBatchIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * Report a result of discovery. Cheap enough for the main thread.
+     *
+     * @param address The address of the device
+     * @param name The name of the device, or null if not resolved
+     * @param rssi The signal strength in dBm, or
+     *             {@link DiscoveredDevice#RSSI_UNKNOWN}
+     * @param majorDeviceClass The major device class, or -1 if not known
+     * @return Whether the result was new or changed enough to pass on
+     */
+    public synchronized boolean offer(String address, String name, int rssi,
+            int majorDeviceClass) {
+        mOffered.incrementAndGet();
+        if (mClosed) {
+            return false;
+        }
+        Seen seen = mSeen.get(address);
+        boolean isNew = seen == null;
+        if (isNew) {
+            seen = new Seen();
+            seen.mmRssi = DiscoveredDevice.RSSI_UNKNOWN;
+            mSeen.put(address, seen);
+        } else if (!changed(seen, name, rssi)) {
+            return false;
+        }
+        if (name != null) {
+            seen.mmName = name;
+        }
+        if (rssi != DiscoveredDevice.RSSI_UNKNOWN) {
+            seen.mmRssi = rssi;
+        }
+
+        // A device still waiting in this batch stays new
+        DiscoveredDevice waiting = mPending.get(address);
+        mPending.put(address, new DiscoveredDevice(address, seen.mmName, seen.mmRssi,
+                majorDeviceClass, isNew || (waiting != null && waiting.isNew())));
+        mPassed.incrementAndGet();
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, mBatchIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private boolean changed(Seen seen, String name, int rssi) {
+        if (name != null && !name.equals(seen.mmName)) {
+            return true;
+        }
+        if (rssi == DiscoveredDevice.RSSI_UNKNOWN) {
+            return false;
+        }
+        return seen.mmRssi == DiscoveredDevice.RSSI_UNKNOWN
+                || Math.abs(rssi - seen.mmRssi) >= mRssiThreshold;
+    }
+
+    /**
+     * Forget the devices seen, so they are passed on as new again, for
+     * instance when the list showing them is cleared. Results waiting for
+     * their batch are dropped.
+     */
+    public synchronized void reset() {
+        mSeen.clear();
+        mPending.clear();
+    }
+
+    /**
+     * Return the number of devices seen since the last reset.
+     */
+    public synchronized int getSeenCount() {
+        return mSeen.size();
+    }
+
+    /**
+     * Return the number of results reported.
+     */
+    public long getOfferedCount() {
+        return mOffered.get();
+    }
+
+    /**
+     * Return the number of results passed on, as new or changed.
+     */
+    public long getPassedCount() {
+        return mPassed.get();
+    }
+
+    /**
+     * Return the number of batches handed to the listener.
+     */
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+
+    /**
+     * Drop the results waiting and stop the stream's thread.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mPending.clear();
+        mTimer.shutdownNow();
+    }
+
+    private void flush() {
+        List<DiscoveredDevice> batch;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty() || mClosed) {
+                return;
+            }
+            batch = new ArrayList<DiscoveredDevice>(mPending.values());
+            mPending = new LinkedHashMap<String, DiscoveredDevice>();
+        }
+        mBatches.incrementAndGet();
+        try {
+            mListener.onDevices(batch);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "DiscoveryStream listener failed", e);
+        }
+    }
+}
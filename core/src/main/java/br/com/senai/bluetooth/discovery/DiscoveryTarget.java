@@ -0,0 +1,107 @@
+package br.com.senai.bluetooth.discovery;
+
+import java.util.regex.Pattern;
+
+/**
+ * The device a targeted discovery looks for: one address, a name pattern,
+ * or a major device class. A discovery looking for a target stops at the
+ * first device that matches, instead of running its full inquiry; a target
+ * given by address needs no discovery at all, since a device can be
+ * connected to by address alone.
+ */
+public final class DiscoveryTarget {
+
+    // Matches any major device class
+    private static final int ANY_CLASS = -1;
+
+    private final String mAddress;
+    private final Pattern mName;
+    private final int mMajorDeviceClass;
+
+    private DiscoveryTarget(String address, Pattern name, int majorDeviceClass) {
+        mAddress = address;
+        mName = name;
+        mMajorDeviceClass = majorDeviceClass;
+    }
+
+    /**
+     * Return a target matching one device address.
+     *
+     * @param address The address, such as "00:11:22:AA:BB:CC"
+     */
+    public static DiscoveryTarget address(String address) {
+        if (address == null) {
+            throw new IllegalArgumentException("address null");
+        }
+        return new DiscoveryTarget(address.toUpperCase(), null, ANY_CLASS);
+    }
+
+    /**
+     * Return a target matching the devices whose name starts with a prefix.
+     *
+     * @param prefix The prefix, compared literally
+     */
+    public static DiscoveryTarget namePrefix(String prefix) {
+        return name(Pattern.compile(Pattern.quote(prefix) + ".*", Pattern.DOTALL));
+    }
+
+    /**
+     * Return a target matching the devices whose whole name matches a
+     * pattern.
+     *
+     * @param pattern The pattern
+     */
+    public static DiscoveryTarget name(Pattern pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern null");
+        }
+        return new DiscoveryTarget(null, pattern, ANY_CLASS);
+    }
+
+    /**
+     * Return a target matching the devices of a major device class, such
+     * as Android's BluetoothClass.Device.Major.PHONE.
+     *
+     * @param majorDeviceClass The major device class
+     */
+    public static DiscoveryTarget majorDeviceClass(int majorDeviceClass) {
+        return new DiscoveryTarget(null, null, majorDeviceClass);
+    }
+
+    /**
+     * Return the address of the device, or null if the target is not
+     * given by address.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return whether a device found by discovery is the target.
+     *
+     * @param address The address of the device
+     * @param name The name of the device, or null if not known yet
+     * @param majorDeviceClass The major device class of the device, or -1
+     *                         if not known
+     */
+    public boolean matches(String address, String name, int majorDeviceClass) {
+        if (mAddress != null) {
+            return mAddress.equalsIgnoreCase(address);
+        }
+        if (mName != null) {
+            return name != null && mName.matcher(name).matches();
+        }
+        return majorDeviceClass != ANY_CLASS && majorDeviceClass == mMajorDeviceClass;
+    }
+
+    @Override
+    public String toString() {
+        if (mAddress != null) {
+            return "address " + mAddress;
+        }
+        if (mName != null) {
+            return "name " + mName.pattern();
+        }
+        return "class 0x" + Integer.toHexString(mMajorDeviceClass);
+    }
+}
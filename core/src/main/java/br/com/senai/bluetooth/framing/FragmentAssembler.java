@@ -0,0 +1,120 @@
+package br.com.senai.bluetooth.framing;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+
+/**
+ * Joins the fragments of messages sent on several logical channels at once.
+ * Fragments of one channel arrive in order, but may be interleaved with
+ * those of other channels, so each channel has its own partial message.
+ * <p>
+ * A message that arrives in a single frame is passed through without
+ * copying. Fragmented ones are copied into a buffer leased from the pool,
+ * which goes back to the pool once the message has been delivered.
+ * <p>
+ * This class is not thread safe; it is meant to be driven by a single
+ * thread.
+ */
+public class FragmentAssembler {
+
+    /**
+     * Receives the complete messages.
+     */
+    public interface Handler {
+        /**
+         * @param channel The logical channel of the message
+         * @param buffer The array holding the message, valid until this returns
+         * @param offset The offset of the message in the array
+         * @param length The length of the message
+         */
+        void onMessage(int channel, byte[] buffer, int offset, int length);
+    }
+
+    private final Handler mHandler;
+    private final BufferPool mPool;
+    private final int mMaxMessageLength;
+    // Partial message of each channel, or null
+    private final PooledBuffer[] mPartial;
+
+    /**
+     * @param handler Receives the complete messages
+     * @param pool Supplies the buffers for fragmented messages
+     * @param channels The number of channels, numbered from 0
+     * @param maxMessageLength The largest message accepted
+     */
+    public FragmentAssembler(Handler handler, BufferPool pool, int channels, int maxMessageLength) {
+        mHandler = handler;
+        mPool = pool;
+        mMaxMessageLength = maxMessageLength;
+        mPartial = new PooledBuffer[channels];
+    }
+
+    /**
+     * Add the next frame of a channel, delivering the message it completes.
+     *
+     * @param channel The logical channel of the frame
+     * @param more Whether more fragments of the message follow
+     * @param buffer The array holding the frame payload
+     * @param offset The offset of the payload in the array
+     * @param length The length of the payload
+     * @throws FrameException If the channel is unknown or the message too long
+     */
+    public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length)
+            throws FrameException {
+        if (channel < 0 || channel >= mPartial.length) {
+            throw new FrameException("Unknown channel " + channel);
+        }
+        PooledBuffer partial = mPartial[channel];
+        if (partial == null && !more) {
+            // The common case: a whole message in one frame
+            mHandler.onMessage(channel, buffer, offset, length);
+            return;
+        }
+
+        int total = (partial == null ? 0 : partial.length()) + length;
+        if (total > mMaxMessageLength) {
+            discard(channel);
+            throw new FrameException("Message too long on channel " + channel);
+        }
+        if (partial == null) {
+            partial = mPool.allocate(Math.max(length * 2, BufferPool.MIN_BUFFER_SIZE));
+        } else if (partial.capacity() < total) {
+            // Grow by doubling, so a long message is copied O(1) times per byte
+            PooledBuffer grown = mPool.allocate(Math.min(
+                    Math.max(total, partial.capacity() * 2), mMaxMessageLength));
+            System.arraycopy(partial.array(), 0, grown.array(), 0, partial.length());
+            grown.setLength(partial.length());
+            partial.release();
+            partial = grown;
+        }
+        System.arraycopy(buffer, offset, partial.array(), partial.length(), length);
+        partial.setLength(total);
+
+        if (more) {
+            mPartial[channel] = partial;
+            return;
+        }
+        mPartial[channel] = null;
+        try {
+            mHandler.onMessage(channel, partial.array(), 0, total);
+        } finally {
+            partial.release();
+        }
+    }
+
+    /**
+     * Drop every partial message and return its buffer to the pool.
+     */
+    public void reset() {
+        for (int channel = 0; channel < mPartial.length; channel++) {
+            discard(channel);
+        }
+    }
+
+    private void discard(int channel) {
+        if (mPartial[channel] != null) {
+            mPartial[channel].release();
+            mPartial[channel] = null;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package br.com.senai.bluetooth.framing;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+
+/**
+ * Splits a byte stream into the frames written by {@link FrameEncoder}, and
+ * picks the credit grants out of their headers.
+ * Bytes are fed in whatever chunks the stream returns them; a frame can
+ * span any number of reads and one read can hold any number of frames.
+ * <p>
+ * Frames that arrive whole inside one chunk are handed out as a slice of
+ * the caller's array without copying. Only frames that span chunks are
+ * copied, once, into an internal buffer that is reused for the next frame.
+ * With a {@link BufferPool}, that buffer is leased from the pool for each
+ * such frame and returned right after delivery, so idle connections hold
+ * no reassembly memory. The slice is only valid for the duration of the
+ * callback. Fragments are delivered one by one, like any other frame;
+ * {@link FragmentAssembler} puts them back together.
+ * <p>
+ * This class is not thread safe; it is meant to be driven by a single
+ * reader thread.
+ */
+public class FrameDecoder {
+
+    // Default upper bound on a single payload
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * Receives the decoded frames.
+     */
+    public interface Handler {
+        /**
+         * Called once for each complete frame.
+         *
+         * @param channel The logical channel of the frame
+         * @param more Whether the frame is a fragment with more to follow
+         * @param buffer The array holding the payload
+         * @param offset The offset of the payload in the array
+         * @param length The length of the payload
+         */
+        void onFrame(int channel, boolean more, byte[] buffer, int offset, int length);
+
+        /**
+         * Called for every credit grant, before the message it rode on.
+         *
+         * @param credit The number of messages the peer lets us send
+         */
+        void onCredit(int credit);
+
+        /**
+         * Called for every control frame that has a payload. Such frames
+         * belong to the connection itself rather than to a channel.
+         *
+         * @param buffer The array holding the payload
+         * @param offset The offset of the payload in the array
+         * @param length The length of the payload
+         */
+        void onControl(byte[] buffer, int offset, int length);
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Handler mHandler;
+    private final int mMaxFrameLength;
+    private final BufferPool mPool;
+
+    // Which header varint is being decoded, valid while mLength < 0
+    private static final int STAGE_HEADER = 0;
+    private static final int STAGE_CREDIT = 1;
+    private static final int STAGE_CHANNEL = 2;
+
+    // Header varint being decoded, valid while mLength < 0
+    private int mStage = STAGE_HEADER;
+    private int mHeaderValue;
+    private int mHeaderShift;
+    // Fields of the current header, kept until its payload starts
+    private int mFlags;
+    private int mPendingLength;
+    private int mChannel;
+
+    // Payload length of the current frame, or -1 while reading the header
+    private int mLength = -1;
+
+    // Reassembly buffer for frames that span chunks
+    private byte[] mPartial = EMPTY;
+    private int mPartialCount;
+    // Pool lease backing mPartial, if any
+    private PooledBuffer mLease;
+
+    public FrameDecoder(Handler handler) {
+        this(handler, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param handler Receives the decoded frames
+     * @param maxFrameLength The largest payload accepted before the stream
+     *                       is considered corrupt
+     */
+    public FrameDecoder(Handler handler, int maxFrameLength) {
+        this(handler, maxFrameLength, null);
+    }
+
+    /**
+     * @param handler Receives the decoded frames
+     * @param maxFrameLength The largest payload accepted before the stream
+     *                       is considered corrupt
+     * @param pool Supplies the reassembly buffers, or null to keep one of
+     *             our own
+     */
+    public FrameDecoder(Handler handler, int maxFrameLength, BufferPool pool) {
+        mHandler = handler;
+        mMaxFrameLength = maxFrameLength;
+        mPool = pool;
+    }
+
+    /**
+     * Feed the next chunk of the stream, delivering every frame it completes.
+     *
+     * @param data The array holding the chunk
+     * @param off The offset of the chunk in the array
+     * @param len The length of the chunk
+     * @throws FrameException If the stream is corrupt
+     */
+    public void feed(byte[] data, int off, int len) throws FrameException {
+        int end = off + len;
+        while (off < end) {
+            if (mLength < 0) {
+                // Read the header varints, which may themselves span chunks
+                int b = data[off++];
+                if (mHeaderShift == 28 && (b & 0x7f) > 0x0f) {
+                    // The fifth byte of a 32 bit value holds only its top bits
+                    throw new FrameException("Malformed frame header");
+                }
+                mHeaderValue |= (b & 0x7f) << mHeaderShift;
+                if ((b & 0x80) != 0) {
+                    mHeaderShift += 7;
+                    if (mHeaderShift >= 35) {
+                        throw new FrameException("Malformed frame header");
+                    }
+                    continue;
+                }
+                int value = mHeaderValue;
+                mHeaderValue = 0;
+                mHeaderShift = 0;
+                if (value < 0) {
+                    throw new FrameException("Malformed frame header");
+                }
+                if (mStage == STAGE_HEADER) {
+                    mPendingLength = value >>> FrameEncoder.FLAG_BITS;
+                    mFlags = value & ((1 << FrameEncoder.FLAG_BITS) - 1);
+                    mChannel = 0;
+                    if (mPendingLength > mMaxFrameLength) {
+                        throw new FrameException("Frame too long: " + mPendingLength);
+                    }
+                    if ((mFlags & FrameEncoder.FLAG_CONTROL) != 0
+                            && mPendingLength > FrameEncoder.MAX_CONTROL_LENGTH) {
+                        throw new FrameException("Control frame too long: " + mPendingLength);
+                    }
+                } else if (mStage == STAGE_CREDIT) {
+                    mHandler.onCredit(value);
+                } else {
+                    mChannel = value;
+                }
+
+                // Move on to the next varint the flags call for, or the payload
+                if (mStage < STAGE_CREDIT && (mFlags & FrameEncoder.FLAG_CREDIT) != 0) {
+                    mStage = STAGE_CREDIT;
+                } else if (mStage < STAGE_CHANNEL && (mFlags & FrameEncoder.FLAG_CHANNEL) != 0) {
+                    mStage = STAGE_CHANNEL;
+                } else {
+                    mStage = STAGE_HEADER;
+                    startPayload(data, off);
+                }
+            } else if (mPartialCount == 0 && end - off >= mLength) {
+                // The whole payload is in this chunk; hand out a slice of it
+                int length = mLength;
+                deliver(data, off, length);
+                off += length;
+            } else {
+                // Accumulate a payload that spans chunks
+                if (mPartialCount == 0 && mPool != null) {
+                    mLease = mPool.allocate(mLength);
+                    mPartial = mLease.array();
+                } else if (mPartial.length < mLength) {
+                    mPartial = new byte[Math.max(mLength, Math.min(mPartial.length * 2, mMaxFrameLength))];
+                }
+                int n = Math.min(end - off, mLength - mPartialCount);
+                System.arraycopy(data, off, mPartial, mPartialCount, n);
+                mPartialCount += n;
+                off += n;
+                if (mPartialCount == mLength) {
+                    deliver(mPartial, 0, mLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget any partially decoded frame, for example after a reconnect,
+     * and return any leased buffer to the pool.
+     */
+    public void reset() {
+        mStage = STAGE_HEADER;
+        mHeaderValue = 0;
+        mHeaderShift = 0;
+        mLength = -1;
+        mPartialCount = 0;
+        releaseLease();
+    }
+
+    private void startPayload(byte[] data, int off) {
+        if ((mFlags & FrameEncoder.FLAG_CONTROL) != 0 && mPendingLength == 0) {
+            // Only a credit grant; go straight to the next header
+            return;
+        }
+        mLength = mPendingLength;
+        if (mLength == 0) {
+            deliver(data, off, 0);
+        }
+    }
+
+    private void deliver(byte[] buffer, int offset, int length) {
+        mLength = -1;
+        mPartialCount = 0;
+        try {
+            if ((mFlags & FrameEncoder.FLAG_CONTROL) != 0) {
+                mHandler.onControl(buffer, offset, length);
+            } else {
+                mHandler.onFrame(mChannel, (mFlags & FrameEncoder.FLAG_MORE) != 0,
+                        buffer, offset, length);
+            }
+        } finally {
+            if (buffer == mPartial) {
+                releaseLease();
+            }
+        }
+    }
+
+    private void releaseLease() {
+        if (mLease != null) {
+            mLease.release();
+            mLease = null;
+            mPartial = EMPTY;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package br.com.senai.bluetooth.framing;
+
+/**
+ * Writes the frame headers understood by {@link FrameDecoder}. A frame
+ * starts with an unsigned LEB128 varint holding the payload length shifted
+ * left by four, with four flags in the low bits:
+ * <ul>
+ * <li>{@link #FLAG_CREDIT}: a varint follows, granting the peer that many
+ * more frames it may send (see {@link FrameDecoder.Handler#onCredit}).
+ * <li>{@link #FLAG_CONTROL}: the frame carries no message. Without a
+ * payload it only carries a credit grant that had no message to ride on;
+ * with one, of up to {@link #MAX_CONTROL_LENGTH} bytes, it is a message of
+ * the connection itself, such as a heartbeat (see
+ * {@link FrameDecoder.Handler#onControl}). Control frames cost no credit.
+ * <li>{@link #FLAG_CHANNEL}: a varint follows, after the credit if any,
+ * holding the logical channel of the payload. Without it the channel is 0.
+ * <li>{@link #FLAG_MORE}: the payload is a fragment of a message, and more
+ * fragments of it follow on the same channel.
+ * </ul>
+ * The payload, if any, comes after the header. Payloads longer than
+ * {@link #MAX_PAYLOAD_LENGTH} cannot be framed; every method throws
+ * IllegalArgumentException for them.
+ */
+public final class FrameEncoder {
+
+    // Low bits of the first header varint
+    public static final int FLAG_CREDIT = 1;
+    public static final int FLAG_CONTROL = 2;
+    public static final int FLAG_CHANNEL = 4;
+    public static final int FLAG_MORE = 8;
+    static final int FLAG_BITS = 4;
+
+    // Three varints of a 32 bit value each never take more than 15 bytes
+    public static final int MAX_HEADER_LENGTH = 15;
+
+    // Longest payload of a control frame
+    public static final int MAX_CONTROL_LENGTH = 64;
+
+    // Longest payload whose length still fits the first header varint
+    // next to the flags
+    public static final int MAX_PAYLOAD_LENGTH = Integer.MAX_VALUE >>> FLAG_BITS;
+
+    private FrameEncoder() {
+    }
+
+    /**
+     * Return the number of bytes needed to encode the header of a message
+     * frame without a credit grant.
+     *
+     * @param payloadLength The length of the payload
+     */
+    public static int headerLength(int payloadLength) {
+        return varintLength(lengthBits(payloadLength));
+    }
+
+    /**
+     * Return the number of bytes needed to encode the header of a message
+     * frame.
+     *
+     * @param payloadLength The length of the payload
+     * @param credit The credit granted to the peer, or 0 for none
+     */
+    public static int headerLength(int payloadLength, int credit) {
+        return headerLength(payloadLength, credit, 0);
+    }
+
+    /**
+     * Return the number of bytes needed to encode the header of a message
+     * frame or fragment.
+     *
+     * @param payloadLength The length of the payload
+     * @param credit The credit granted to the peer, or 0 for none
+     * @param channel The logical channel
+     */
+    public static int headerLength(int payloadLength, int credit, int channel) {
+        int n = varintLength(lengthBits(payloadLength));
+        if (credit > 0) {
+            n += varintLength(credit);
+        }
+        if (channel != 0) {
+            n += varintLength(channel);
+        }
+        return n;
+    }
+
+    /**
+     * Write the header of a message frame without a credit grant.
+     *
+     * @param payloadLength The length of the payload
+     * @param dst The array to write to
+     * @param off The offset of the first header byte in dst
+     * @return The offset right after the header, where the payload goes
+     */
+    public static int encodeHeader(int payloadLength, byte[] dst, int off) {
+        return writeVarint(lengthBits(payloadLength), dst, off);
+    }
+
+    /**
+     * Write the header of a message frame, with a credit grant riding on it.
+     *
+     * @param payloadLength The length of the payload
+     * @param credit The credit granted to the peer, or 0 for none
+     * @param dst The array to write to
+     * @param off The offset of the first header byte in dst
+     * @return The offset right after the header, where the payload goes
+     */
+    public static int encodeHeader(int payloadLength, int credit, byte[] dst, int off) {
+        return encodeHeader(payloadLength, credit, 0, false, dst, off);
+    }
+
+    /**
+     * Write the header of a message frame or fragment.
+     *
+     * @param payloadLength The length of the payload
+     * @param credit The credit granted to the peer, or 0 for none
+     * @param channel The logical channel
+     * @param more Whether more fragments of the message follow
+     * @param dst The array to write to
+     * @param off The offset of the first header byte in dst
+     * @return The offset right after the header, where the payload goes
+     */
+    public static int encodeHeader(int payloadLength, int credit, int channel, boolean more,
+            byte[] dst, int off) {
+        int header = lengthBits(payloadLength);
+        if (credit > 0) {
+            header |= FLAG_CREDIT;
+        }
+        if (channel != 0) {
+            header |= FLAG_CHANNEL;
+        }
+        if (more) {
+            header |= FLAG_MORE;
+        }
+        off = writeVarint(header, dst, off);
+        if (credit > 0) {
+            off = writeVarint(credit, dst, off);
+        }
+        if (channel != 0) {
+            off = writeVarint(channel, dst, off);
+        }
+        return off;
+    }
+
+    /**
+     * Write a control frame that only grants credit.
+     *
+     * @param credit The credit granted to the peer, more than 0
+     * @param dst The array to write to
+     * @param off The offset of the first byte in dst
+     * @return The offset right after the frame
+     */
+    public static int encodeCredit(int credit, byte[] dst, int off) {
+        off = writeVarint(FLAG_CONTROL | FLAG_CREDIT, dst, off);
+        return writeVarint(credit, dst, off);
+    }
+
+    /**
+     * Write a control frame with a payload.
+     *
+     * @param credit The credit granted to the peer, or 0 for none
+     * @param payload The array holding the payload
+     * @param payloadOff The offset of the payload in the array
+     * @param payloadLength The length of the payload, at most
+     *                      {@link #MAX_CONTROL_LENGTH}
+     * @param dst The array to write to
+     * @param off The offset of the first byte in dst
+     * @return The offset right after the frame
+     */
+    public static int encodeControl(int credit, byte[] payload, int payloadOff,
+            int payloadLength, byte[] dst, int off) {
+        if (payloadLength > MAX_CONTROL_LENGTH) {
+            throw new IllegalArgumentException("Control payload too long: " + payloadLength);
+        }
+        int header = lengthBits(payloadLength) | FLAG_CONTROL;
+        if (credit > 0) {
+            header |= FLAG_CREDIT;
+        }
+        off = writeVarint(header, dst, off);
+        if (credit > 0) {
+            off = writeVarint(credit, dst, off);
+        }
+        System.arraycopy(payload, payloadOff, dst, off, payloadLength);
+        return off + payloadLength;
+    }
+
+    /**
+     * Return a new array holding the framed payload.
+     *
+     * @param payload The bytes to frame
+     * @param off The offset of the payload in the array
+     * @param len The length of the payload
+     */
+    public static byte[] encode(byte[] payload, int off, int len) {
+        byte[] frame = new byte[headerLength(len) + len];
+        int start = encodeHeader(len, frame, 0);
+        System.arraycopy(payload, off, frame, start, len);
+        return frame;
+    }
+
+    // Return the payload length shifted over the flag bits, refusing one
+    // that would not fit
+    private static int lengthBits(int payloadLength) {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload length " + payloadLength);
+        }
+        return payloadLength << FLAG_BITS;
+    }
+
+    private static int varintLength(int value) {
+        int n = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static int writeVarint(int value, byte[] dst, int off) {
+        while ((value & ~0x7f) != 0) {
+            dst[off++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[off++] = (byte) value;
+        return off;
+    }
+}
@@ -0,0 +1,17 @@
+package br.com.senai.bluetooth.framing;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the received byte stream cannot be split into frames. The
+ * stream cannot be resynchronized after this, so the connection should be
+ * dropped.
+ */
+public class FrameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameException(String message) {
+        super(message);
+    }
+}
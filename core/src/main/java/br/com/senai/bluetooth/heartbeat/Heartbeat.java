@@ -0,0 +1,119 @@
+package br.com.senai.bluetooth.heartbeat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the heartbeats of one connection. Every interval the
+ * connection sends a ping in a control frame; the peer echoes it back at
+ * once in a pong, and the time the round trip took feeds an
+ * {@link RttEstimator}. A peer that leaves too many pings in a row
+ * unanswered, for longer than the retransmit timeout, is declared dead,
+ * long before a read on the socket would fail on its own.
+ * <p>
+ * A ping or pong payload is a type byte followed by the sender's
+ * {@link System#nanoTime()} at the time of the ping, which the pong
+ * echoes, so no state is needed to match them up.
+ * <p>
+ * Instances are thread safe.
+ */
+public class Heartbeat {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+    public static final int DEFAULT_MAX_MISSED = 3;
+
+    // Control message types
+    public static final byte TYPE_PING = 1;
+    public static final byte TYPE_PONG = 2;
+    public static final int PAYLOAD_LENGTH = 9;
+
+    private final RttEstimator mEstimator = new RttEstimator();
+    private final int mMaxMissed;
+
+    // Guarded by this
+    private int mUnanswered;
+    private long mFirstUnansweredAt;
+    private long mMissed;
+
+    /**
+     * @param maxMissed The pings left unanswered before the peer is dead
+     */
+    public Heartbeat(int maxMissed) {
+        if (maxMissed < 1) {
+            throw new IllegalArgumentException("maxMissed " + maxMissed);
+        }
+        mMaxMissed = maxMissed;
+    }
+
+    /**
+     * Called every interval. Returns the ping to send, or null if the peer
+     * is dead and the connection should be dropped.
+     *
+     * @param now The current {@link System#nanoTime()}
+     */
+    public synchronized byte[] onTick(long now) {
+        if (mUnanswered == 0) {
+            mFirstUnansweredAt = now;
+        } else {
+            mMissed++;
+            if (mUnanswered >= mMaxMissed && now - mFirstUnansweredAt
+                    >= mEstimator.getRetransmitTimeout(TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+        }
+        mUnanswered++;
+        return encode(TYPE_PING, now);
+    }
+
+    /**
+     * Called for every control payload received. Returns the pong to send
+     * back for a ping, or null.
+     *
+     * @param buffer The array holding the payload
+     * @param offset The offset of the payload in the array
+     * @param length The length of the payload
+     * @param now The current {@link System#nanoTime()}
+     */
+    public byte[] onControl(byte[] buffer, int offset, int length, long now) {
+        if (length != PAYLOAD_LENGTH) {
+            return null;
+        }
+        long timestamp = 0;
+        for (int i = 1; i < PAYLOAD_LENGTH; i++) {
+            timestamp = timestamp << 8 | (buffer[offset + i] & 0xff);
+        }
+        if (buffer[offset] == TYPE_PING) {
+            return encode(TYPE_PONG, timestamp);
+        }
+        if (buffer[offset] == TYPE_PONG) {
+            mEstimator.addSample(now - timestamp);
+            synchronized (this) {
+                mUnanswered = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the round trip estimates taken from the pongs.
+     */
+    public RttEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * Return the pings left unanswered by the time the next one was due.
+     */
+    public synchronized long getMissedCount() {
+        return mMissed;
+    }
+
+    private static byte[] encode(byte type, long timestamp) {
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        payload[0] = type;
+        for (int i = PAYLOAD_LENGTH - 1; i > 0; i--) {
+            payload[i] = (byte) timestamp;
+            timestamp >>>= 8;
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,124 @@
+package br.com.senai.bluetooth.heartbeat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round trip time of a connection from samples, the way TCP
+ * does (RFC 6298): a smoothed RTT and the mean deviation of the samples
+ * from it, each an exponentially weighted moving average. The retransmit
+ * timeout derived from them is the time after which an answer is
+ * overdue: long enough to cover the usual jitter of the link, yet short
+ * enough to notice a dead peer quickly.
+ * <p>
+ * Instances are thread safe.
+ */
+public class RttEstimator {
+
+    // Before the first sample
+    public static final long DEFAULT_INITIAL_RTO_MILLIS = 1000;
+    // Bounds of the timeout. RFC 6298 asks for at least one second; a
+    // piconet has far less jitter than the internet, so we go lower.
+    public static final long DEFAULT_MIN_RTO_MILLIS = 200;
+    public static final long DEFAULT_MAX_RTO_MILLIS = 60 * 1000;
+
+    // Gains of the moving averages, as shifts: 1/8 and 1/4
+    private static final int ALPHA_SHIFT = 3;
+    private static final int BETA_SHIFT = 2;
+    // Deviations allowed over the smoothed RTT
+    private static final int K = 4;
+    // Clock granularity
+    private static final long GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long mInitialRtoNanos;
+    private final long mMinRtoNanos;
+    private final long mMaxRtoNanos;
+
+    // Guarded by this
+    private long mSmoothedRttNanos;
+    private long mRttVarianceNanos;
+    private long mLastRttNanos;
+    private long mSamples;
+
+    public RttEstimator() {
+        this(DEFAULT_INITIAL_RTO_MILLIS, DEFAULT_MIN_RTO_MILLIS, DEFAULT_MAX_RTO_MILLIS);
+    }
+
+    /**
+     * @param initialRtoMillis The timeout until the first sample
+     * @param minRtoMillis The shortest timeout
+     * @param maxRtoMillis The longest timeout
+     */
+    public RttEstimator(long initialRtoMillis, long minRtoMillis, long maxRtoMillis) {
+        if (minRtoMillis < 0 || maxRtoMillis < minRtoMillis) {
+            throw new IllegalArgumentException("Invalid timeouts");
+        }
+        mInitialRtoNanos = TimeUnit.MILLISECONDS.toNanos(initialRtoMillis);
+        mMinRtoNanos = TimeUnit.MILLISECONDS.toNanos(minRtoMillis);
+        mMaxRtoNanos = TimeUnit.MILLISECONDS.toNanos(maxRtoMillis);
+    }
+
+    /**
+     * Add a round trip measurement.
+     *
+     * @param rttNanos The time from sending a probe to getting its answer
+     */
+    public synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        mLastRttNanos = rttNanos;
+        if (mSamples++ == 0) {
+            mSmoothedRttNanos = rttNanos;
+            mRttVarianceNanos = rttNanos / 2;
+            return;
+        }
+        // RTTVAR first, from the old SRTT
+        long deviation = Math.abs(mSmoothedRttNanos - rttNanos);
+        mRttVarianceNanos += (deviation - mRttVarianceNanos) >> BETA_SHIFT;
+        mSmoothedRttNanos += (rttNanos - mSmoothedRttNanos) >> ALPHA_SHIFT;
+    }
+
+    /**
+     * Return the smoothed round trip time, or 0 before the first sample.
+     */
+    public synchronized long getSmoothedRtt(TimeUnit unit) {
+        return unit.convert(mSmoothedRttNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the mean deviation of the round trip time, or 0 before the
+     * first sample.
+     */
+    public synchronized long getRttVariance(TimeUnit unit) {
+        return unit.convert(mRttVarianceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the latest sample, or 0 before the first one.
+     */
+    public synchronized long getLastRtt(TimeUnit unit) {
+        return unit.convert(mLastRttNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the retransmit timeout: the smoothed RTT plus four deviations,
+     * within the bounds given at construction.
+     */
+    public synchronized long getRetransmitTimeout(TimeUnit unit) {
+        long rto;
+        if (mSamples == 0) {
+            rto = mInitialRtoNanos;
+        } else {
+            rto = mSmoothedRttNanos + Math.max(GRANULARITY_NANOS, K * mRttVarianceNanos);
+        }
+        rto = Math.max(mMinRtoNanos, Math.min(mMaxRtoNanos, rto));
+        return unit.convert(rto, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the number of samples taken.
+     */
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+}
@@ -0,0 +1,218 @@
+package br.com.senai.bluetooth.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+
+/**
+ * The send queues of the logical channels of one connection, and the order
+ * the writer takes fragments from them in. A channel with a higher priority
+ * always goes first; channels of equal priority take turns, each sending
+ * up to its weight in fragments per turn. Since a fragment is never longer
+ * than the fragment size, an urgent message waits for at most one fragment
+ * of a bulk transfer, not for the whole transfer.
+ * <p>
+ * Any thread may queue messages; only the writer thread picks and consumes
+ * them.
+ */
+final class ChannelScheduler {
+
+    static final class Channel {
+        final int mmId;
+        final ConcurrentLinkedQueue<PooledBuffer> mmQueue =
+                new ConcurrentLinkedQueue<PooledBuffer>();
+        final AtomicLong mmQueuedBytes = new AtomicLong();
+        volatile int mmPriority;
+        volatile int mmWeight = 1;
+
+        // Writer-only state: the message being fragmented and its progress
+        private PooledBuffer mmCurrent;
+        private int mmOffset;
+        private int mmTurn;
+
+        // Statistics
+        final AtomicLong mmMessagesSent = new AtomicLong();
+        final AtomicLong mmBytesSent = new AtomicLong();
+        final AtomicLong mmFragmentsSent = new AtomicLong();
+
+        Channel(int id) {
+            mmId = id;
+        }
+
+        private boolean hasWork() {
+            return mmCurrent != null || !mmQueue.isEmpty();
+        }
+
+        /**
+         * Return the message the next fragment comes from. Writer only, and
+         * only for a channel returned by {@link ChannelScheduler#next()}.
+         */
+        PooledBuffer current() {
+            if (mmCurrent == null) {
+                mmCurrent = mmQueue.poll();
+                mmOffset = 0;
+            }
+            return mmCurrent;
+        }
+
+        /**
+         * Return the offset in the current message of the next fragment.
+         */
+        int offset() {
+            return mmOffset;
+        }
+    }
+
+    private final Channel[] mChannels;
+    // Messages queued or partly sent, over all channels
+    private final AtomicInteger mPending = new AtomicInteger();
+    // One bit per channel that may have something to send. Producers set
+    // bits; only the writer clears them, once it has seen a channel empty.
+    private final AtomicInteger mActive = new AtomicInteger();
+    // Writer-only: the channel whose turn it is
+    private int mCursor;
+
+    /**
+     * @param channels The number of channels, numbered from 0
+     */
+    ChannelScheduler(int channels) {
+        if (channels > Integer.SIZE) {
+            throw new IllegalArgumentException("channels " + channels);
+        }
+        mChannels = new Channel[channels];
+        for (int i = 0; i < channels; i++) {
+            mChannels[i] = new Channel(i);
+        }
+    }
+
+    Channel get(int channel) {
+        return mChannels[channel];
+    }
+
+    /**
+     * Queue a message on a channel.
+     */
+    void offer(int channel, PooledBuffer message) {
+        Channel c = mChannels[channel];
+        c.mmQueuedBytes.addAndGet(message.length());
+        c.mmQueue.offer(message);
+        mPending.incrementAndGet();
+        setActive(channel);
+    }
+
+    /**
+     * Return whether no channel has anything to send.
+     */
+    boolean isEmpty() {
+        return mPending.get() == 0;
+    }
+
+    /**
+     * Pick the channel to send the next fragment from. Writer only.
+     *
+     * @return The channel, or null if there is nothing to send
+     */
+    Channel next() {
+        Channel[] channels = mChannels;
+        int top = 0;
+        int candidates = 0;
+        for (int active = mActive.get(); active != 0; active &= active - 1) {
+            Channel c = channels[Integer.numberOfTrailingZeros(active)];
+            if (!c.hasWork()) {
+                idle(c);
+                continue;
+            }
+            int priority = c.mmPriority;
+            if (candidates == 0 || priority > top) {
+                top = priority;
+                candidates = 0;
+            }
+            if (priority == top) {
+                candidates |= 1 << c.mmId;
+            }
+        }
+        if (candidates == 0) {
+            return null;
+        }
+
+        // Carry on with the current channel until its turn is used up
+        Channel c = channels[mCursor];
+        if ((candidates & (1 << mCursor)) != 0 && c.mmTurn < c.mmWeight) {
+            c.mmTurn++;
+            return c;
+        }
+        // Otherwise the next candidate after it, wrapping around
+        int after = mCursor + 1 < Integer.SIZE ? candidates & (-1 << (mCursor + 1)) : 0;
+        mCursor = Integer.numberOfTrailingZeros(after != 0 ? after : candidates);
+        c = channels[mCursor];
+        c.mmTurn = 1;
+        return c;
+    }
+
+    // Clear the active bit of a channel seen empty. A producer sets the bit
+    // after queuing, so a message queued meanwhile either shows up in the
+    // second look or sets the bit again itself.
+    private void idle(Channel c) {
+        int bit = 1 << c.mmId;
+        int active;
+        do {
+            active = mActive.get();
+        } while (!mActive.compareAndSet(active, active & ~bit));
+        if (c.hasWork()) {
+            setActive(c.mmId);
+        }
+    }
+
+    private void setActive(int channel) {
+        int bit = 1 << channel;
+        int active;
+        while (((active = mActive.get()) & bit) == 0
+                && !mActive.compareAndSet(active, active | bit)) {
+            // Lost a race with another channel's update; try again
+        }
+    }
+
+    /**
+     * Record that a fragment of the channel's current message was sent.
+     * Once it has been sent in full, the message passes to the caller,
+     * which releases it. Writer only.
+     *
+     * @param c The channel
+     * @param length The length of the fragment
+     * @return Whether that was the last fragment of the message
+     */
+    boolean consume(Channel c, int length) {
+        c.mmOffset += length;
+        c.mmQueuedBytes.addAndGet(-length);
+        c.mmBytesSent.addAndGet(length);
+        c.mmFragmentsSent.incrementAndGet();
+        if (c.mmOffset < c.mmCurrent.length()) {
+            return false;
+        }
+        c.mmCurrent = null;
+        c.mmMessagesSent.incrementAndGet();
+        mPending.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drop everything queued and release it. Writer only, once it stops.
+     */
+    void clear() {
+        for (Channel c : mChannels) {
+            if (c.mmCurrent != null) {
+                c.mmCurrent.release();
+                c.mmCurrent = null;
+                mPending.decrementAndGet();
+            }
+            PooledBuffer message;
+            while ((message = c.mmQueue.poll()) != null) {
+                message.release();
+                mPending.decrementAndGet();
+            }
+            c.mmQueuedBytes.set(0);
+        }
+    }
+}
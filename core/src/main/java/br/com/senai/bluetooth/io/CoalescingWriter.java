@@ -0,0 +1,662 @@
+package br.com.senai.bluetooth.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.framing.FrameEncoder;
+
+/**
+ * Frames and writes messages to an OutputStream from a dedicated thread.
+ * Any number of threads may call {@link #write(byte[])}, which only queues
+ * the message and returns. The writer thread packs everything queued into
+ * one batch and writes it to the stream at once, so a burst of small
+ * messages costs one socket write instead of one per message.
+ * <p>
+ * With a maximum delay set, the writer also holds a batch back for up to
+ * that long waiting for more messages, like Nagle's algorithm, unless the
+ * batch fills up first. With no delay it only coalesces what is already
+ * queued and never adds latency.
+ * <p>
+ * Messages may be queued as {@link PooledBuffer}s, which the writer
+ * releases once they are written, and the batch buffer itself can be
+ * leased from a {@link BufferPool}, so a steady stream of messages
+ * allocates nothing on either side.
+ * <p>
+ * With flow control enabled, every message frame costs one credit granted
+ * by the peer. Once the credits run out, messages stay queued until the reader
+ * passes in a new grant with {@link #addCredits(int)}. Going the other
+ * way, grants owed to the peer ({@link #grantCredits(int)}) ride on the
+ * next outgoing message, or go out in a frame of their own once they reach
+ * a threshold, so a receiver with nothing to say never stalls its sender.
+ * <p>
+ * Messages go out on one of {@link #MAX_CHANNELS} logical channels, each
+ * with its own queue. Messages longer than the fragment size are split into
+ * fragments, and the writer picks the channel of every fragment by
+ * priority and weight (see {@link #setChannelPriority}), so a command on
+ * an urgent channel overtakes a bulk transfer already under way. Each
+ * fragment is a frame of its own and costs one credit.
+ * <p>
+ * Control frames, queued with {@link #writeControl(byte[])}, go out ahead
+ * of every channel, without delay and without credit.
+ */
+public class CoalescingWriter implements Runnable {
+
+    // Size of the reused batch buffer; larger messages are fragmented
+    public static final int DEFAULT_BATCH_SIZE = 16 * 1024;
+
+    // Logical channels per connection, numbered from 0
+    public static final int MAX_CHANNELS = 16;
+
+    /**
+     * Notified when the stream fails. The writer stops after this.
+     */
+    public interface Callback {
+        void onWriteError(IOException e);
+    }
+
+    /**
+     * Notified on the writer thread as each message is handed to the
+     * stream, in the order the peer will receive them.
+     */
+    public interface SentListener {
+        /**
+         * @param channel The channel of the message
+         * @param message The message; retain it to keep it past this call
+         */
+        void onMessageSent(int channel, PooledBuffer message);
+    }
+
+    // What the writer thread is parked for, if anything. Work means a
+    // message it has credit for, or a credit grant due to the peer.
+    private static final int RUNNING = 0;
+    private static final int WAITING_FOR_WORK = 1;
+    private static final int WAITING_FOR_BATCH = 2;
+
+    // Longest standalone credit frame
+    private static final int CREDIT_FRAME_LENGTH = 6;
+
+    private final OutputStream mOut;
+    private final Callback mCallback;
+    private final byte[] mBatch;
+    private final PooledBuffer mBatchLease;
+    private final ChannelScheduler mScheduler = new ChannelScheduler(MAX_CHANNELS);
+    private final ConcurrentLinkedQueue<byte[]> mControl = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private volatile int mFragmentSize;
+    private volatile SentListener mSentListener;
+
+    private volatile long mMaxDelayNanos;
+    private volatile long mMaxQueuedBytes = Long.MAX_VALUE;
+    private volatile boolean mClosed;
+
+    // Flow control: frames the peer lets us send, and credit we owe it
+    private volatile boolean mFlowControl;
+    private volatile int mGrantThreshold = 1;
+    private final AtomicInteger mCredits = new AtomicInteger();
+    private final AtomicInteger mPendingGrant = new AtomicInteger();
+    private volatile Thread mWriterThread;
+    private volatile int mParkState = RUNNING;
+
+    // Statistics
+    private final AtomicLong mMessagesWritten = new AtomicLong();
+    private final AtomicLong mFramesWritten = new AtomicLong();
+    private final AtomicLong mStreamWrites = new AtomicLong();
+    private final AtomicLong mCreditsReceived = new AtomicLong();
+    private final AtomicLong mCreditsGranted = new AtomicLong();
+    private final AtomicLong mCreditStalls = new AtomicLong();
+
+    public CoalescingWriter(OutputStream out, Callback callback) {
+        this(out, callback, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param out The stream to write to
+     * @param callback Notified when the stream fails
+     * @param batchSize The largest number of bytes written at once
+     */
+    public CoalescingWriter(OutputStream out, Callback callback, int batchSize) {
+        mOut = out;
+        mCallback = callback;
+        mBatch = new byte[batchSize];
+        mBatchLease = null;
+        mFragmentSize = batchSize - FrameEncoder.MAX_HEADER_LENGTH;
+    }
+
+    /**
+     * @param out The stream to write to
+     * @param callback Notified when the stream fails
+     * @param pool Supplies the batch buffer, which goes back to the pool
+     *             when the writer stops
+     */
+    public CoalescingWriter(OutputStream out, Callback callback, BufferPool pool) {
+        this(out, callback, pool, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param out The stream to write to
+     * @param callback Notified when the stream fails
+     * @param pool Supplies the batch buffer, which goes back to the pool
+     *             when the writer stops
+     * @param batchSize The largest number of bytes written at once
+     */
+    public CoalescingWriter(OutputStream out, Callback callback, BufferPool pool, int batchSize) {
+        mOut = out;
+        mCallback = callback;
+        mBatchLease = pool.allocate(batchSize);
+        mBatch = mBatchLease.array();
+        mFragmentSize = batchSize - FrameEncoder.MAX_HEADER_LENGTH;
+    }
+
+    /**
+     * Set what is told about every message sent, in the order sent.
+     * Messages of different channels may be sent in another order than
+     * they were queued in, following the channel priorities.
+     *
+     * @param listener The listener, or null
+     */
+    public void setSentListener(SentListener listener) {
+        mSentListener = listener;
+    }
+
+    /**
+     * Set how long a batch may wait for more messages before it is written.
+     *
+     * @param delay The maximum delay, or 0 to write as soon as possible
+     * @param unit The unit of delay
+     */
+    public void setMaxDelay(long delay, TimeUnit unit) {
+        mMaxDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Set how many bytes may wait in the queue of each channel. Past that,
+     * write() drops messages and returns false, so a sender that outruns the
+     * peer's credits cannot queue without bound. A message longer than the
+     * limit is still accepted when its channel has nothing queued.
+     *
+     * @param maxQueuedBytes The limit
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Set the longest fragment a message is split into. Smaller fragments
+     * let urgent channels in sooner but cost more header bytes and credits.
+     *
+     * @param fragmentSize The fragment size, at most the batch size less
+     *                     {@link FrameEncoder#MAX_HEADER_LENGTH}
+     */
+    public void setFragmentSize(int fragmentSize) {
+        if (fragmentSize < 1 || fragmentSize > mBatch.length - FrameEncoder.MAX_HEADER_LENGTH) {
+            throw new IllegalArgumentException("fragment size " + fragmentSize);
+        }
+        mFragmentSize = fragmentSize;
+    }
+
+    /**
+     * Set how a channel shares the connection. Fragments of the channels
+     * with the highest priority that have anything queued always go first;
+     * channels of equal priority take turns, sending up to their weight in
+     * fragments each turn. All channels start at priority 0, weight 1.
+     *
+     * @param channel The channel
+     * @param priority The priority; higher goes first
+     * @param weight The fragments per turn among equals, at least 1
+     */
+    public void setChannelPriority(int channel, int priority, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight " + weight);
+        }
+        ChannelScheduler.Channel c = mScheduler.get(channel);
+        c.mmPriority = priority;
+        c.mmWeight = weight;
+    }
+
+    /**
+     * Turn on credit-based flow control. Call before the writer runs.
+     *
+     * @param initialCredits The frames the peer accepts before its first
+     *                       grant, normally the size of its receive ring
+     * @param grantThreshold The credit owed to the peer that is worth a
+     *                       frame of its own; at most initialCredits
+     */
+    public void enableFlowControl(int initialCredits, int grantThreshold) {
+        mCredits.set(initialCredits);
+        mGrantThreshold = Math.max(1, grantThreshold);
+        mFlowControl = true;
+    }
+
+    /**
+     * Add the credit granted by the peer. Called by the reader thread.
+     *
+     * @param credits The number of frames the peer lets us send
+     */
+    public void addCredits(int credits) {
+        mCredits.addAndGet(credits);
+        mCreditsReceived.addAndGet(credits);
+        if (mParkState == WAITING_FOR_WORK) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * Owe the peer more credit, for frames of its that have been
+     * processed. Sent with the next frame, or alone once it adds up.
+     *
+     * @param credits The number of frames the peer may send
+     */
+    public void grantCredits(int credits) {
+        if (!mFlowControl) {
+            return;
+        }
+        int pending = mPendingGrant.addAndGet(credits);
+        if (pending >= mGrantThreshold && mParkState == WAITING_FOR_WORK) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * Queue a message to be framed and written on channel 0. The array is
+     * written as is later on, so the caller must not modify it after this
+     * call.
+     *
+     * @param payload The message
+     * @return false if the writer is closed or the queue full, and the
+     *         message was dropped
+     */
+    public boolean write(byte[] payload) {
+        return write(0, PooledBuffer.wrap(payload));
+    }
+
+    /**
+     * Queue a message to be framed and written on channel 0.
+     *
+     * @param payload The message, {@code length()} bytes long
+     * @return false if the writer is closed or the queue full, and the
+     *         message was dropped
+     * @see #write(int, PooledBuffer)
+     */
+    public boolean write(PooledBuffer payload) {
+        return write(0, payload);
+    }
+
+    /**
+     * Queue a message to be framed and written on a channel. The writer
+     * takes over the caller's reference and releases it once the message is
+     * written or dropped; the caller must not modify the buffer after this
+     * call. Messages of one channel arrive in the order they were queued.
+     *
+     * @param channel The channel, from 0 to {@link #MAX_CHANNELS} - 1
+     * @param payload The message, {@code length()} bytes long
+     * @return false if the writer is closed or the channel's queue full,
+     *         and the message was dropped
+     */
+    public boolean write(int channel, PooledBuffer payload) {
+        if (channel < 0 || channel >= MAX_CHANNELS) {
+            payload.release();
+            throw new IllegalArgumentException("channel " + channel);
+        }
+        long channelQueued = mScheduler.get(channel).mmQueuedBytes.get();
+        if (mClosed || (channelQueued > 0
+                && channelQueued + payload.length() > mMaxQueuedBytes)) {
+            payload.release();
+            return false;
+        }
+        long queued = mQueuedBytes.addAndGet(payload.length());
+        mScheduler.offer(channel, payload);
+
+        // Only wake the writer when it is idle, or lingering and the batch is full
+        int state = mParkState;
+        if (state == WAITING_FOR_WORK
+                || (state == WAITING_FOR_BATCH && queued >= mBatch.length)) {
+            LockSupport.unpark(mWriterThread);
+        }
+        return true;
+    }
+
+    /**
+     * Queue the payload of a control frame, to be written before any
+     * message and regardless of credit.
+     *
+     * @param payload The payload, at most
+     *                {@link FrameEncoder#MAX_CONTROL_LENGTH} bytes; it must
+     *                not be modified afterwards
+     * @return false if the writer is closed
+     */
+    public boolean writeControl(byte[] payload) {
+        if (payload.length > FrameEncoder.MAX_CONTROL_LENGTH) {
+            throw new IllegalArgumentException("control payload " + payload.length);
+        }
+        if (mClosed) {
+            return false;
+        }
+        mControl.offer(payload);
+        if (mParkState != RUNNING) {
+            LockSupport.unpark(mWriterThread);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the writer. Messages already queued are still written if the
+     * stream allows it.
+     */
+    public void close() {
+        mClosed = true;
+        Thread writer = mWriterThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Return the number of bytes queued and not yet written.
+     */
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /**
+     * Return the number of bytes queued on a channel and not yet written.
+     *
+     * @param channel The channel
+     */
+    public long getQueuedBytes(int channel) {
+        return mScheduler.get(channel).mmQueuedBytes.get();
+    }
+
+    /**
+     * Return the priority of a channel.
+     *
+     * @param channel The channel
+     */
+    public int getChannelPriority(int channel) {
+        return mScheduler.get(channel).mmPriority;
+    }
+
+    /**
+     * Return the weight of a channel.
+     *
+     * @param channel The channel
+     */
+    public int getChannelWeight(int channel) {
+        return mScheduler.get(channel).mmWeight;
+    }
+
+    /**
+     * Return the number of messages written so far on a channel.
+     *
+     * @param channel The channel
+     */
+    public long getMessagesWritten(int channel) {
+        return mScheduler.get(channel).mmMessagesSent.get();
+    }
+
+    /**
+     * Return the number of payload bytes written so far on a channel.
+     *
+     * @param channel The channel
+     */
+    public long getBytesWritten(int channel) {
+        return mScheduler.get(channel).mmBytesSent.get();
+    }
+
+    /**
+     * Return the number of frames written so far on a channel. More frames
+     * than messages means messages were fragmented.
+     *
+     * @param channel The channel
+     */
+    public long getFragmentsWritten(int channel) {
+        return mScheduler.get(channel).mmFragmentsSent.get();
+    }
+
+    /**
+     * Return the number of messages written so far.
+     */
+    public long getMessagesWritten() {
+        return mMessagesWritten.get();
+    }
+
+    /**
+     * Return the number of message frames written so far, on every channel.
+     * With flow control, the peer grants one credit back for each frame it
+     * has processed, in the order written, so once
+     * {@link #getCreditsReceived()} reaches the count taken as a message
+     * was sent, the peer has handled that message.
+     */
+    public long getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * Return the number of writes made to the stream so far. The ratio of
+     * messages to stream writes tells how well writes are coalesced.
+     */
+    public long getStreamWrites() {
+        return mStreamWrites.get();
+    }
+
+    /**
+     * Return the frames we may still send before the peer grants more.
+     * Meaningless without flow control.
+     */
+    public int getSendCredits() {
+        return mCredits.get();
+    }
+
+    /**
+     * Return the credit owed to the peer and not sent yet.
+     */
+    public int getPendingGrant() {
+        return mPendingGrant.get();
+    }
+
+    /**
+     * Return the total credit received from the peer.
+     */
+    public long getCreditsReceived() {
+        return mCreditsReceived.get();
+    }
+
+    /**
+     * Return the total credit sent to the peer.
+     */
+    public long getCreditsGranted() {
+        return mCreditsGranted.get();
+    }
+
+    /**
+     * Return how many times the writer had messages queued but had to wait
+     * for credit. A growing count means the peer is the bottleneck.
+     */
+    public long getCreditStalls() {
+        return mCreditStalls.get();
+    }
+
+    @Override
+    public void run() {
+        mWriterThread = Thread.currentThread();
+        boolean stalled = false;
+        try {
+            while (true) {
+                if (!hasWork()) {
+                    // Messages left without credit are dropped on close
+                    if (mClosed) {
+                        break;
+                    }
+                    mParkState = WAITING_FOR_WORK;
+                    if (!hasWork() && !mClosed) {
+                        if (!stalled && !mScheduler.isEmpty()) {
+                            stalled = true;
+                            mCreditStalls.incrementAndGet();
+                        }
+                        LockSupport.park(this);
+                    }
+                    mParkState = RUNNING;
+                    continue;
+                }
+
+                stalled = false;
+                linger();
+                drain();
+            }
+        } catch (IOException e) {
+            boolean closed = mClosed;
+            mClosed = true;
+            // Errors caused by close() closing the stream are expected
+            if (!closed) {
+                mCallback.onWriteError(e);
+            }
+        } finally {
+            mClosed = true;
+            mScheduler.clear();
+            mQueuedBytes.set(0);
+            mParkState = RUNNING;
+            if (mBatchLease != null) {
+                mBatchLease.release();
+            }
+        }
+    }
+
+    private boolean hasCredit() {
+        return !mFlowControl || mCredits.get() > 0;
+    }
+
+    private boolean hasWork() {
+        return !mControl.isEmpty()
+                || (!mScheduler.isEmpty() && hasCredit())
+                || (mFlowControl && mPendingGrant.get() >= mGrantThreshold);
+    }
+
+    // Take everything owed to the peer, to send it now
+    private int takeGrant() {
+        if (!mFlowControl) {
+            return 0;
+        }
+        int grant = mPendingGrant.getAndSet(0);
+        if (grant > 0) {
+            mCreditsGranted.addAndGet(grant);
+        }
+        return grant;
+    }
+
+    /**
+     * Give producers up to the maximum delay to fill the batch.
+     */
+    private void linger() {
+        long delay = mMaxDelayNanos;
+        if (delay <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + delay;
+        while (!mClosed && mQueuedBytes.get() < mBatch.length && mControl.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            mParkState = WAITING_FOR_BATCH;
+            if (mQueuedBytes.get() < mBatch.length) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            mParkState = RUNNING;
+        }
+    }
+
+    /**
+     * Frame everything queued that we have credit for into the batch
+     * buffer, one fragment at a time in scheduler order, along with any
+     * credit owed to the peer, and write it.
+     */
+    private void drain() throws IOException {
+        int pos = appendControl(0);
+        ChannelScheduler.Channel channel;
+        while (hasCredit() && (channel = mScheduler.next()) != null) {
+            if (mFlowControl) {
+                mCredits.decrementAndGet();
+            }
+            pos = append(channel, takeGrant(), pos);
+            // This loop lasts as long as messages keep coming; let control
+            // frames in between fragments rather than after all of them
+            pos = appendControl(pos);
+        }
+
+        // Nothing to ride on; send the grant alone if it is worth a frame
+        if (mFlowControl && mPendingGrant.get() >= mGrantThreshold) {
+            if (pos + CREDIT_FRAME_LENGTH > mBatch.length) {
+                flush(pos);
+                pos = 0;
+            }
+            pos = FrameEncoder.encodeCredit(takeGrant(), mBatch, pos);
+        }
+        if (pos > 0) {
+            flush(pos);
+        }
+    }
+
+    /**
+     * Frame every queued control payload into the batch at the given
+     * position, flushing the batch first whenever one does not fit.
+     *
+     * @return The new position in the batch
+     */
+    private int appendControl(int pos) throws IOException {
+        byte[] control;
+        while ((control = mControl.poll()) != null) {
+            if (pos + FrameEncoder.MAX_HEADER_LENGTH + control.length > mBatch.length) {
+                flush(pos);
+                pos = 0;
+            }
+            pos = FrameEncoder.encodeControl(takeGrant(), control, 0, control.length, mBatch, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Frame the next fragment of a channel into the batch at the given
+     * position, flushing the batch first if the fragment does not fit.
+     *
+     * @param credit Credit to grant in the frame header, or 0
+     * @return The new position in the batch
+     */
+    private int append(ChannelScheduler.Channel channel, int credit, int pos)
+            throws IOException {
+        PooledBuffer message = channel.current();
+        int offset = channel.offset();
+        int length = Math.min(message.length() - offset, mFragmentSize);
+        boolean more = offset + length < message.length();
+        int frameLength = FrameEncoder.headerLength(length, credit, channel.mmId) + length;
+
+        if (pos + frameLength > mBatch.length) {
+            flush(pos);
+            pos = 0;
+        }
+        pos = FrameEncoder.encodeHeader(length, credit, channel.mmId, more, mBatch, pos);
+        System.arraycopy(message.array(), offset, mBatch, pos, length);
+        mQueuedBytes.addAndGet(-length);
+        mFramesWritten.incrementAndGet();
+        if (mScheduler.consume(channel, length)) {
+            mMessagesWritten.incrementAndGet();
+            SentListener listener = mSentListener;
+            if (listener != null) {
+                listener.onMessageSent(channel.mmId, message);
+            }
+            message.release();
+        }
+        return pos + length;
+    }
+
+    private void flush(int length) throws IOException {
+        mOut.write(mBatch, 0, length);
+        mOut.flush();
+        mStreamWrites.incrementAndGet();
+    }
+}
@@ -0,0 +1,215 @@
+package br.com.senai.bluetooth.io;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * A bounded pool of named threads for the blocking socket work: accepting,
+ * connecting and running sessions. Threads are reused across connections
+ * and die after sitting idle, so the number of threads created stops
+ * growing with the rate of reconnects. When every thread is busy, new
+ * tasks wait in a queue. {@link #shutdown()} lets every thread go once its
+ * task ends; tasks executed after it start new threads.
+ */
+public class IoExecutor {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // How long an idle thread is kept around for the next task
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * A job run by the executor. Cancelling it removes it from the queue if
+     * it has not started, and otherwise calls {@link #onCancel()}, which
+     * should close whatever the task is blocked on. A RuntimeException
+     * thrown by the task is logged and passed to {@link #onError}, since
+     * the pool would otherwise keep it in a future nobody reads. Once the
+     * task holds no thread and never will, {@link #onDone()} is called.
+     */
+    public abstract static class Task implements Runnable {
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+
+        private final String mName;
+        private final AtomicInteger mState = new AtomicInteger(NEW);
+        private volatile boolean mCancelled;
+        private volatile Future<?> mFuture;
+
+        protected Task(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancel the task. Safe to call more than once and from any thread.
+         */
+        public final void cancel() {
+            mCancelled = true;
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+            onCancel();
+            // Never to run, so it is done now
+            if (mState.compareAndSet(NEW, DONE)) {
+                onDone();
+            }
+        }
+
+        @Override
+        public final void run() {
+            if (mCancelled || !mState.compareAndSet(NEW, RUNNING)) {
+                return;
+            }
+            // Name the pool thread after the task while it runs
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            thread.setName(mName);
+            try {
+                runTask();
+            } catch (RuntimeException e) {
+                Log.e(TAG, mName + " failed", e);
+                onError(e);
+            } finally {
+                thread.setName(poolName);
+                mState.set(DONE);
+                onDone();
+            }
+        }
+
+        /**
+         * Do the work. Blocking is fine; {@link #onCancel()} unblocks it.
+         */
+        protected abstract void runTask();
+
+        /**
+         * Unblock {@link #runTask()}, typically by closing a socket.
+         */
+        protected abstract void onCancel();
+
+        /**
+         * Report a task that died of an unexpected exception, so whatever
+         * it was doing is not left for dead. Does nothing by default.
+         *
+         * @param e The exception
+         */
+        protected void onError(RuntimeException e) {
+        }
+
+        /**
+         * Called once, when the task has finished running or was cancelled
+         * before it started, on the thread that did either. Does nothing by
+         * default.
+         */
+        protected void onDone() {
+        }
+    }
+
+    private final String mName;
+    private final int mMaxThreads;
+    private final AtomicInteger mThreadsCreated = new AtomicInteger();
+    // Replaced after a shutdown, guarded by this
+    private ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param name The prefix of the thread names
+     * @param maxThreads The most threads running at once
+     */
+    public IoExecutor(String name, int maxThreads) {
+        mName = name;
+        mMaxThreads = maxThreads;
+        mExecutor = newPool();
+    }
+
+    private ThreadPoolExecutor newPool() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(mMaxThreads, mMaxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                mName + "-" + mThreadsCreated.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queue a task to run on a pool thread.
+     *
+     * @param task The task
+     */
+    public void execute(Task task) {
+        synchronized (this) {
+            if (mExecutor.isShutdown()) {
+                mExecutor = newPool();
+            }
+            task.mFuture = mExecutor.submit(task);
+        }
+        // A cancel() that raced with submit() did not see the future
+        if (task.isCancelled()) {
+            task.mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Let every thread go as soon as its task ends, instead of keeping it
+     * for the next task. Tasks already queued still run, so cancel them
+     * first. Tasks executed afterwards start a new pool.
+     */
+    public synchronized void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Return the number of tasks running right now (approximate).
+     */
+    public synchronized int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Return the number of tasks waiting for a free thread.
+     */
+    public synchronized int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Return the number of tasks that have finished (approximate).
+     */
+    public synchronized long getCompletedCount() {
+        return mExecutor.getCompletedTaskCount();
+    }
+
+    /**
+     * Return the number of threads created since the executor was built.
+     */
+    public int getThreadsCreated() {
+        return mThreadsCreated.get();
+    }
+
+    /**
+     * Return the number of threads alive right now, busy or idle.
+     */
+    public synchronized int getPoolSize() {
+        return mExecutor.getPoolSize();
+    }
+}
@@ -0,0 +1,627 @@
+package br.com.senai.bluetooth.outbox;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.util.AtomicFile;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Messages kept on disk for devices that are not connected, sent in order
+ * once they are. All devices share one append-only log, split into segment
+ * files; each device has a cursor into the log, before which all of its
+ * messages have been sent. A segment is deleted once every device with
+ * messages in it has got past it, or once all of its messages expired.
+ * <p>
+ * Sending goes in sessions, one per connection. Opening a session rewinds
+ * the device to its cursor; {@link #read} then hands out its messages in
+ * large batches, and {@link #commit} moves the cursor past those written
+ * to the connection. Once a session has read everything, the device is
+ * live: {@link #offer} refuses further messages, which go straight to the
+ * connection instead, until the session is closed. Messages read but not
+ * committed when a session closes are sent again by the next one, so a
+ * device may see a message twice but never misses one.
+ * <p>
+ * Appended messages survive the process dying; {@link #sync()} makes them
+ * survive the device losing power too. Instances are thread safe.
+ */
+public class Outbox implements Closeable {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    /**
+     * A message read from the outbox.
+     */
+    public static final class Message {
+        private final int mChannel;
+        private final PooledBuffer mPayload;
+        private final long mPosition;
+
+        Message(int channel, PooledBuffer payload, long position) {
+            mChannel = channel;
+            mPayload = payload;
+            mPosition = position;
+        }
+
+        /**
+         * Return the channel the message was written to.
+         */
+        public int getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * Return the message. The reference passes to the caller.
+         */
+        public PooledBuffer getPayload() {
+            return mPayload;
+        }
+
+        /**
+         * Return the cursor to commit once the message has been sent.
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+    }
+
+    private static final class Peer {
+        final byte[] mmAddress;
+        // Everything of this device before here has been sent
+        long mmCursor;
+        // Where the open session reads next
+        long mmReadPosition;
+        int mmSession;
+        boolean mmLive;
+
+        Peer(String address) {
+            mmAddress = address.getBytes(UTF_8);
+        }
+    }
+
+    // Record layout: payload length, CRC32 of the rest, expiry, channel,
+    // address length, address, payload
+    private static final int RECORD_HEADER_LENGTH = 18;
+    private static final int MAX_ADDRESS_LENGTH = 255;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CURSORS = "cursors";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Bytes read from a segment at once
+    private static final int READ_BLOCK_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    // What each device was sent up to
+    private final AtomicFile mCursors;
+    private final int mSegmentSize;
+    private final long mMaxSize;
+    private volatile long mTimeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+
+    // All guarded by this
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private final HashMap<String, Peer> mPeers = new HashMap<String, Peer>();
+    // Log position right after the last record of each device
+    private final HashMap<String, Long> mLastEnd = new HashMap<String, Long>();
+    private final ByteBuffer mBlock = ByteBuffer.allocate(READ_BLOCK_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private long mSize;
+    private long mAppended;
+    private long mExpired;
+    private boolean mClosed;
+
+    /**
+     * Open the outbox kept in a directory, creating it if needed.
+     *
+     * @param directory The directory, used by this outbox alone
+     */
+    public Outbox(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Open the outbox kept in a directory, creating it if needed. A record
+     * torn by a crash while it was appended is cut off.
+     *
+     * @param directory The directory, used by this outbox alone
+     * @param segmentSize The size at which a new segment file is started
+     * @param maxSize The size of all segments past which offers fail
+     */
+    public Outbox(File directory, int segmentSize, long maxSize) throws IOException {
+        mDirectory = directory;
+        mCursors = new AtomicFile(new File(directory, CURSORS));
+        mSegmentSize = segmentSize;
+        mMaxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Set how long messages offered from now on are kept. Expired messages
+     * are never sent.
+     *
+     * @param timeToLive The time, or 0 to keep messages forever
+     * @param unit The unit of timeToLive
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        mTimeToLiveMillis = unit.toMillis(timeToLive);
+    }
+
+    /**
+     * Keep a message for a device, unless it is live.
+     *
+     * @param address The address of the device
+     * @param channel The channel the message goes to
+     * @param data The array holding the message
+     * @param off The offset of the message in the array
+     * @param len The length of the message
+     * @return false if the device is live and the caller should send the
+     *         message itself
+     * @throws IOException If the outbox is full, closed or cannot be written
+     */
+    public boolean offer(String address, int channel, byte[] data, int off, int len)
+            throws IOException {
+        return offer(address, channel, data, off, len, mTimeToLiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keep a message for a device, unless it is live.
+     *
+     * @param address The address of the device
+     * @param channel The channel the message goes to
+     * @param data The array holding the message
+     * @param off The offset of the message in the array
+     * @param len The length of the message
+     * @param timeToLive How long to keep the message, or 0 for ever
+     * @param unit The unit of timeToLive
+     * @return false if the device is live and the caller should send the
+     *         message itself
+     * @throws IOException If the outbox is full, closed or cannot be written
+     */
+    public synchronized boolean offer(String address, int channel, byte[] data, int off,
+            int len, long timeToLive, TimeUnit unit) throws IOException {
+        if (mClosed) {
+            throw new IOException("Outbox closed");
+        }
+        Peer peer = peer(address);
+        if (peer.mmLive) {
+            return false;
+        }
+        if (peer.mmAddress.length > MAX_ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("address " + address);
+        }
+        int recordLength = RECORD_HEADER_LENGTH + peer.mmAddress.length + len;
+        if (mSize + recordLength > mMaxSize) {
+            collect();
+            if (mSize + recordLength > mMaxSize) {
+                throw new IOException("Outbox full");
+            }
+        }
+
+        long expiry = timeToLive > 0
+                ? System.currentTimeMillis() + unit.toMillis(timeToLive) : Long.MAX_VALUE;
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(len);
+        record.putInt(0);
+        record.putLong(expiry);
+        record.put((byte) channel);
+        record.put((byte) peer.mmAddress.length);
+        record.put(peer.mmAddress);
+        record.put(data, off, len);
+        mCrc.reset();
+        mCrc.update(record.array(), 8, recordLength - 8);
+        record.putInt(4, (int) mCrc.getValue());
+        record.flip();
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || (segment.mLength > 0
+                && segment.mLength + recordLength > mSegmentSize)) {
+            segment = newSegment(segment != null ? segment.end() : firstBase());
+        }
+        segment.append(record);
+        segment.mMaxExpiry = Math.max(segment.mMaxExpiry, expiry);
+        segment.mLastEnd.put(address, segment.end());
+        mLastEnd.put(address, segment.end());
+        mSize += recordLength;
+        mAppended++;
+        return true;
+    }
+
+    /**
+     * Start sending to a device that just connected. Messages from its
+     * cursor on will be read again, and the session of a previous
+     * connection ends.
+     *
+     * @param address The address of the device
+     * @return The session, for {@link #read}, {@link #commit} and
+     *         {@link #closeSession}
+     */
+    public synchronized int openSession(String address) {
+        Peer peer = peer(address);
+        peer.mmSession++;
+        peer.mmLive = false;
+        peer.mmReadPosition = peer.mmCursor;
+        return peer.mmSession;
+    }
+
+    /**
+     * Stop sending to a device whose connection ended. It is no longer
+     * live, so messages for it are kept again.
+     *
+     * @param address The address of the device
+     * @param session The session of the connection
+     */
+    public synchronized void closeSession(String address, int session) {
+        Peer peer = mPeers.get(address);
+        if (peer != null && peer.mmSession == session) {
+            peer.mmSession++;
+            peer.mmLive = false;
+        }
+    }
+
+    /**
+     * Read the next messages for a device. Expired messages are skipped.
+     * Once there is nothing left, the device becomes live.
+     *
+     * @param address The address of the device
+     * @param session The session from {@link #openSession}
+     * @param maxBytes Stop once the messages read hold this many bytes
+     * @param pool The pool to take the message buffers from
+     * @param out The list the messages are added to, in order
+     * @return false if the device is live now, or the session is over,
+     *         and no more messages will be read
+     */
+    public synchronized boolean read(String address, int session, int maxBytes,
+            BufferPool pool, List<Message> out) throws IOException {
+        Peer peer = mPeers.get(address);
+        if (mClosed || peer == null || peer.mmSession != session) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        int bytes = 0;
+        while (bytes < maxBytes) {
+            Long lastEnd = mLastEnd.get(address);
+            Segment segment = segmentAt(peer);
+            if (lastEnd == null || lastEnd <= peer.mmReadPosition || segment == null) {
+                peer.mmLive = true;
+                return false;
+            }
+
+            // Parse a block of records, skipping other devices'
+            long readFrom = peer.mmReadPosition;
+            long offset = readFrom - segment.mBase;
+            ByteBuffer block = mBlock;
+            block.clear();
+            if (segment.mLength - offset < block.capacity()) {
+                block.limit((int) (segment.mLength - offset));
+            }
+            segment.read(block, offset);
+            block.flip();
+            while (bytes < maxBytes && block.remaining() >= RECORD_HEADER_LENGTH) {
+                int start = block.position();
+                int length = block.getInt(start);
+                long expiry = block.getLong(start + 8);
+                int channel = block.get(start + 16) & 0xff;
+                int addressLength = block.get(start + 17) & 0xff;
+                int headerLength = RECORD_HEADER_LENGTH + addressLength;
+                if (block.remaining() < headerLength
+                        || (block.remaining() < headerLength + length
+                        && headerLength + length <= block.capacity())) {
+                    // Cut by the end of the block; read it with the next one
+                    break;
+                }
+                long recordOffset = offset + start;
+                peer.mmReadPosition = segment.mBase + recordOffset + headerLength + length;
+                if (!matches(block, start + RECORD_HEADER_LENGTH, peer.mmAddress)) {
+                    skip(block, headerLength + length);
+                    continue;
+                }
+                if (expiry < now) {
+                    mExpired++;
+                    skip(block, headerLength + length);
+                    continue;
+                }
+                PooledBuffer payload = pool.allocate(length);
+                if (block.remaining() >= headerLength + length) {
+                    block.position(start + headerLength);
+                    block.get(payload.array(), 0, length);
+                } else {
+                    // Longer than a block: read it on its own
+                    segment.read(ByteBuffer.wrap(payload.array(), 0, length),
+                            recordOffset + headerLength);
+                    block.position(block.limit());
+                }
+                payload.setLength(length);
+                out.add(new Message(channel, payload, peer.mmReadPosition));
+                bytes += length;
+            }
+            if (peer.mmReadPosition == readFrom) {
+                throw new IOException("Outbox segment " + segment.mFile + " corrupt at " + offset);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that messages have been sent, up to and including the one
+     * with the given position, and delete what no device needs any more.
+     *
+     * @param address The address of the device
+     * @param session The session the messages were read in
+     * @param position The {@link Message#getPosition()} of the last one
+     */
+    public synchronized void commit(String address, int session, long position)
+            throws IOException {
+        Peer peer = mPeers.get(address);
+        if (mClosed || peer == null || peer.mmSession != session
+                || position <= peer.mmCursor) {
+            return;
+        }
+        peer.mmCursor = position;
+        collect();
+        saveCursors();
+    }
+
+    /**
+     * Return the bytes the outbox takes on disk.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the number of messages offered and kept.
+     */
+    public synchronized long getAppendedCount() {
+        return mAppended;
+    }
+
+    /**
+     * Return the number of messages skipped because they expired.
+     */
+    public synchronized long getExpiredCount() {
+        return mExpired;
+    }
+
+    /**
+     * Return whether messages are kept for a device, waiting to be sent.
+     *
+     * @param address The address of the device
+     */
+    public synchronized boolean hasPending(String address) {
+        Long lastEnd = mLastEnd.get(address);
+        Peer peer = mPeers.get(address);
+        return lastEnd != null && (peer == null || lastEnd > peer.mmCursor);
+    }
+
+    /**
+     * Write what was appended through to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        if (!mClosed && !mSegments.isEmpty()) {
+            mSegments.get(mSegments.size() - 1).mChannel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        closeSegments();
+    }
+
+    private Peer peer(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            mPeers.put(address, peer);
+        }
+        return peer;
+    }
+
+    // Return the segment holding the next record the peer reads, moving
+    // its read position past deleted segments, or null at the end
+    private Segment segmentAt(Peer peer) {
+        for (Segment segment : mSegments) {
+            if (peer.mmReadPosition < segment.mBase) {
+                peer.mmReadPosition = segment.mBase;
+            }
+            if (peer.mmReadPosition < segment.end()) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer block, int offset, byte[] address) {
+        if ((block.get(offset - 1) & 0xff) != address.length) {
+            return false;
+        }
+        for (int i = 0; i < address.length; i++) {
+            if (block.get(offset + i) != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skip(ByteBuffer block, int length) {
+        block.position(Math.min(block.position() + length, block.limit()));
+    }
+
+    private long firstBase() {
+        // With every segment gone, carry on after the furthest cursor
+        long base = 0;
+        for (Peer peer : mPeers.values()) {
+            base = Math.max(base, peer.mmCursor);
+        }
+        return base;
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        Segment segment = new Segment(mDirectory, base);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    // Delete segments no device needs, keeping the last one to append to
+    private void collect() throws IOException {
+        long now = System.currentTimeMillis();
+        boolean deleted = false;
+        for (Iterator<Segment> i = mSegments.iterator(); i.hasNext();) {
+            Segment segment = i.next();
+            if (segment == mSegments.get(mSegments.size() - 1)) {
+                break;
+            }
+            if (segment.mMaxExpiry < now || isSent(segment)) {
+                segment.delete();
+                mSize -= segment.mLength;
+                i.remove();
+                deleted = true;
+            }
+        }
+        if (!deleted) {
+            return;
+        }
+        // Forget devices that have no messages left at all
+        Set<String> present = new HashSet<String>();
+        for (Segment segment : mSegments) {
+            present.addAll(segment.mLastEnd.keySet());
+        }
+        mLastEnd.keySet().retainAll(present);
+    }
+
+    private boolean isSent(Segment segment) {
+        for (Map.Entry<String, Long> entry : segment.mLastEnd.entrySet()) {
+            Peer peer = mPeers.get(entry.getKey());
+            if (peer == null || peer.mmCursor < entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void saveCursors() throws IOException {
+        mCursors.write(new AtomicFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                int count = 0;
+                for (String address : mLastEnd.keySet()) {
+                    if (mPeers.containsKey(address)) {
+                        count++;
+                    }
+                }
+                out.writeInt(count);
+                for (String address : mLastEnd.keySet()) {
+                    Peer peer = mPeers.get(address);
+                    if (peer != null) {
+                        out.writeUTF(address);
+                        out.writeLong(peer.mmCursor);
+                    }
+                }
+            }
+        });
+    }
+
+    private void recover() throws IOException {
+        mCursors.read(new AtomicFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                for (int count = in.readInt(); count > 0; count--) {
+                    peer(in.readUTF()).mmCursor = in.readLong();
+                }
+            }
+        });
+
+        File[] files = mDirectory.listFiles();
+        ArrayList<Long> bases = new ArrayList<Long>();
+        for (File file : files != null ? Arrays.asList(files) : Collections.<File>emptyList()) {
+            if (file.getName().endsWith(Segment.SUFFIX)) {
+                long base = Segment.parseBase(file.getName());
+                if (base >= 0) {
+                    bases.add(base);
+                }
+            }
+        }
+        Collections.sort(bases, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return a.compareTo(b);
+            }
+        });
+        for (long base : bases) {
+            scan(newSegment(base));
+        }
+    }
+
+    // Rebuild the bookkeeping of a segment, cutting off a torn record
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        long offset = 0;
+        while (offset < segment.mLength) {
+            header.clear();
+            segment.read(header, offset);
+            int length = header.getInt(0);
+            int addressLength = header.get(17) & 0xff;
+            long recordLength = RECORD_HEADER_LENGTH + addressLength + (long) length;
+            if (header.hasRemaining() || length < 0
+                    || offset + recordLength > segment.mLength) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate((int) recordLength);
+            segment.read(record, offset);
+            mCrc.reset();
+            mCrc.update(record.array(), 8, record.capacity() - 8);
+            if ((int) mCrc.getValue() != record.getInt(4)) {
+                break;
+            }
+            String address = new String(record.array(), RECORD_HEADER_LENGTH, addressLength,
+                    UTF_8);
+            offset += recordLength;
+            segment.mMaxExpiry = Math.max(segment.mMaxExpiry, record.getLong(8));
+            segment.mLastEnd.put(address, segment.mBase + offset);
+            mLastEnd.put(address, segment.mBase + offset);
+        }
+        if (offset < segment.mLength) {
+            Log.w(TAG, "Outbox segment " + segment.mFile + " torn at " + offset + ", cut");
+            segment.truncate(offset);
+        }
+        mSize += segment.mLength;
+    }
+
+    private void closeSegments() throws IOException {
+        for (Segment segment : mSegments) {
+            segment.close();
+        }
+    }
+}
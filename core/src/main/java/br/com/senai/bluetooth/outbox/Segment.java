@@ -0,0 +1,85 @@
+package br.com.senai.bluetooth.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One file of the outbox log. Its name is the log position of its first
+ * byte, so positions stay valid as older segments are deleted.
+ */
+final class Segment {
+
+    static final String SUFFIX = ".log";
+
+    final long mBase;
+    final File mFile;
+    private final RandomAccessFile mRaf;
+    final FileChannel mChannel;
+    long mLength;
+    // Latest expiry of the records in the segment
+    long mMaxExpiry;
+    // Log position right after the last record of each device
+    final Map<String, Long> mLastEnd = new HashMap<String, Long>();
+
+    Segment(File directory, long base) throws IOException {
+        mBase = base;
+        mFile = new File(directory, String.format("%016x", base) + SUFFIX);
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        mLength = mChannel.size();
+    }
+
+    long end() {
+        return mBase + mLength;
+    }
+
+    void append(ByteBuffer record) throws IOException {
+        long position = mLength;
+        while (record.hasRemaining()) {
+            position += mChannel.write(record, position);
+        }
+        mLength = position;
+    }
+
+    /**
+     * Read up to dst.remaining() bytes from an offset in the segment.
+     */
+    void read(ByteBuffer dst, long offset) throws IOException {
+        while (dst.hasRemaining() && offset < mLength) {
+            int bytes = mChannel.read(dst, offset);
+            if (bytes < 0) {
+                break;
+            }
+            offset += bytes;
+        }
+    }
+
+    void truncate(long length) throws IOException {
+        mChannel.truncate(length);
+        mLength = length;
+    }
+
+    void close() throws IOException {
+        mRaf.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        if (!mFile.delete()) {
+            throw new IOException("Cannot delete " + mFile);
+        }
+    }
+
+    static long parseBase(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package br.com.senai.bluetooth.pool;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.util.AtomicFile;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Keeps connections open to the devices most likely to be used next, so
+ * connecting to one of them costs nothing. Each device gets a score that
+ * grows by one on every use and halves every half-life, which ranks it by
+ * how often and how recently it was used; the best {@link #getSize()}
+ * devices are connected ahead of time, usually at startup with
+ * {@link #warm(Collection)}.
+ * <p>
+ * Warm connections are ordinary connections of the service: its
+ * heartbeats keep them alive and notice when they drop, and its reconnect
+ * policy redials them. The pool closes the ones that fall out of the top,
+ * so it never holds more than its size of idle links. A device connected
+ * through {@link #connect} belongs to the caller from then on, and the
+ * pool never closes it until the caller hands it back with
+ * {@link #release}. Scores are kept in a file across restarts.
+ */
+public class WarmPool {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    public static final int DEFAULT_SIZE = 3;
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    // Devices remembered, best first
+    public static final int MAX_ENTRIES = 64;
+
+    private static class Entry {
+        final String mmAddress;
+        boolean mmSecure;
+        double mmScore;
+        long mmLastUsed;
+
+        Entry(String address) {
+            mmAddress = address;
+        }
+
+        double score(long now, long halfLife) {
+            return mmScore * Math.pow(0.5, (double) (now - mmLastUsed) / halfLife);
+        }
+    }
+
+    private final BluetoothService mService;
+    private final AtomicFile mFile;
+    private final int mSize;
+    private final long mHalfLifeMillis;
+    // Guarded by this
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // The devices the pool connected, guarded by this
+    private final Set<String> mWarm = new HashSet<String>();
+    // The devices callers connected and have not released, guarded by this
+    private final Set<String> mOwned = new HashSet<String>();
+    // The devices warm() may connect, or null for any
+    private Set<String> mCandidates;
+
+    // Statistics
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Create a pool of {@link #DEFAULT_SIZE} connections, loading the
+     * scores saved in its file if any.
+     *
+     * @param service The service to connect with
+     * @param file The file the scores are kept in
+     */
+    public WarmPool(BluetoothService service, File file) {
+        this(service, file, DEFAULT_SIZE, DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    /**
+     * Create a pool, loading the scores saved in its file if any.
+     *
+     * @param service The service to connect with
+     * @param file The file the scores are kept in
+     * @param size The most connections kept open ahead of time, less than
+     *             {@link BluetoothService#MAX_CONNECTIONS} to leave room
+     *             for others
+     * @param halfLifeMillis How long a use takes to count half as much
+     */
+    public WarmPool(BluetoothService service, File file, int size, long halfLifeMillis) {
+        if (size < 0 || size >= BluetoothService.MAX_CONNECTIONS || halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("size " + size + " halfLife " + halfLifeMillis);
+        }
+        mService = service;
+        mFile = new AtomicFile(file);
+        mSize = size;
+        mHalfLifeMillis = halfLifeMillis;
+        load();
+    }
+
+    /**
+     * Connect ahead of time to the best scored devices. The connections
+     * are made in the background; this returns at once.
+     *
+     * @param candidates The devices that may be connected, such as the
+     *                   paired ones, or null for any device used before
+     */
+    public synchronized void warm(Collection<String> candidates) {
+        mCandidates = candidates != null ? new HashSet<String>(candidates) : null;
+        rebalance();
+    }
+
+    /**
+     * Connect to a device, recording the use. A device the pool kept warm
+     * is connected already, so the connection is ready right away. The
+     * connection belongs to the caller until {@link #release} is called.
+     *
+     * @param address The address of the remote peer
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @return Whether the device was connected already
+     */
+    public synchronized boolean connect(String address, boolean secure) {
+        boolean warm = mService.getState(address) == BluetoothService.STATE_CONNECTED;
+        (warm ? mHits : mMisses).incrementAndGet();
+
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            mEntries.put(address, entry);
+        }
+        entry.mmScore = entry.score(now, mHalfLifeMillis) + 1;
+        entry.mmLastUsed = now;
+        entry.mmSecure = secure;
+
+        // The caller owns this connection now
+        mWarm.remove(address);
+        mOwned.add(address);
+        mService.connect(address, secure);
+        rebalance();
+        save();
+        return warm;
+    }
+
+    /**
+     * Hand a connection made with {@link #connect} back to the pool, which
+     * keeps it open if the device is among the best scored and closes it
+     * otherwise.
+     *
+     * @param address The address of the remote peer
+     */
+    public synchronized void release(String address) {
+        if (!mOwned.remove(address)) {
+            return;
+        }
+        if (mService.getState(address) != BluetoothService.STATE_NONE) {
+            // Closed by the rebalance unless wanted
+            mWarm.add(address);
+        }
+        rebalance();
+    }
+
+    /**
+     * Return the devices the pool keeps connected.
+     */
+    public synchronized Set<String> getWarmAddresses() {
+        return new HashSet<String>(mWarm);
+    }
+
+    /**
+     * Return the most connections kept open ahead of time.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the number of connects that found the device connected.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Return the number of connects that had to dial the device.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    // Connect the best devices and close the pool's other connections.
+    // Devices the callers own are neither counted nor closed. Called with
+    // the lock held.
+    private void rebalance() {
+        long now = System.currentTimeMillis();
+        List<Entry> best = ranked(now);
+        Set<String> wanted = new HashSet<String>();
+        for (Entry entry : best) {
+            if (wanted.size() == mSize) {
+                break;
+            }
+            if (mOwned.contains(entry.mmAddress)
+                    || (mCandidates != null && !mCandidates.contains(entry.mmAddress))) {
+                continue;
+            }
+            wanted.add(entry.mmAddress);
+            if (mService.getState(entry.mmAddress) == BluetoothService.STATE_NONE) {
+                Log.d(TAG, "warming up " + entry.mmAddress);
+                mService.connect(entry.mmAddress, entry.mmSecure);
+            }
+        }
+        for (String address : new ArrayList<String>(mWarm)) {
+            if (!wanted.contains(address)) {
+                Log.d(TAG, "cooling down " + address);
+                mService.disconnect(address);
+            }
+        }
+        mWarm.clear();
+        mWarm.addAll(wanted);
+    }
+
+    private List<Entry> ranked(final long now) {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.score(now, mHalfLifeMillis),
+                        a.score(now, mHalfLifeMillis));
+            }
+        });
+        return entries;
+    }
+
+    private void load() {
+        try {
+            mFile.read(new AtomicFile.Reader() {
+                @Override
+                public void read(DataInputStream in) throws IOException {
+                    for (int count = in.readInt(); count > 0; count--) {
+                        Entry entry = new Entry(in.readUTF());
+                        entry.mmSecure = in.readBoolean();
+                        entry.mmScore = in.readDouble();
+                        entry.mmLastUsed = in.readLong();
+                        mEntries.put(entry.mmAddress, entry);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load " + mFile.getFile(), e);
+            mEntries.clear();
+        }
+    }
+
+    // Called with the lock held
+    private void save() {
+        final List<Entry> entries = ranked(System.currentTimeMillis());
+        while (entries.size() > MAX_ENTRIES) {
+            mEntries.remove(entries.remove(entries.size() - 1).mmAddress);
+        }
+        try {
+            mFile.write(new AtomicFile.Writer() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    out.writeInt(entries.size());
+                    for (Entry entry : entries) {
+                        out.writeUTF(entry.mmAddress);
+                        out.writeBoolean(entry.mmSecure);
+                        out.writeDouble(entry.mmScore);
+                        out.writeLong(entry.mmLastUsed);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save " + mFile.getFile(), e);
+        }
+    }
+}
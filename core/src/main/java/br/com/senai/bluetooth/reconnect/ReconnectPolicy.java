@@ -0,0 +1,81 @@
+package br.com.senai.bluetooth.reconnect;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each reconnect attempt. The delay grows
+ * exponentially from an initial value up to a cap, and a random part of it
+ * is jittered so that devices that lost each other at the same moment do
+ * not retry in lock step. Instances are immutable.
+ */
+public class ReconnectPolicy {
+
+    // 1 s, 2 s, 4 s ... up to a minute, jittered by up to half, ten tries
+    public static final ReconnectPolicy DEFAULT =
+            new ReconnectPolicy(1000, 60 * 1000, 2.0, 0.5, 10);
+
+    // Never reconnect automatically
+    public static final ReconnectPolicy NEVER =
+            new ReconnectPolicy(1000, 1000, 1.0, 0.0, 0);
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+
+    /**
+     * @param initialDelayMillis The delay before the first attempt
+     * @param maxDelayMillis The largest delay between attempts
+     * @param multiplier How much the delay grows after each attempt
+     * @param jitter The fraction of the delay that is randomized, 0 to 1
+     * @param maxAttempts How many attempts to make before giving up
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+            double jitter, int maxAttempts) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("Invalid multiplier " + multiplier);
+        }
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("Invalid jitter " + jitter);
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Return the delay before an attempt.
+     *
+     * @param attempt The number of attempts already made, starting at 0
+     * @param random The source of jitter
+     * @return The delay in milliseconds, or -1 to give up
+     */
+    public long getDelayMillis(int attempt, Random random) {
+        if (attempt >= mMaxAttempts) {
+            return -1;
+        }
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, attempt);
+        delay = Math.min(delay, mMaxDelayMillis);
+        // Keep the fixed part and randomize the rest
+        delay = delay * (1.0 - mJitter) + delay * mJitter * random.nextDouble();
+        return (long) delay;
+    }
+
+    /**
+     * Return the largest delay between attempts. A connection that stays up
+     * this long is considered stable and starts over from the first delay.
+     */
+    public long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,115 @@
+package br.com.senai.bluetooth.reconnect;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules reconnect attempts per peer following a {@link ReconnectPolicy}.
+ * Each peer has its own attempt counter, which grows with every scheduled
+ * attempt until the policy gives up or {@link #reset(String)} is called.
+ * At most one attempt per peer is pending at a time. The timer thread is
+ * only alive while attempts are pending.
+ */
+public class Reconnector {
+
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final Random mRandom = new Random();
+    private final Map<String, Attempt> mAttempts = new HashMap<String, Attempt>();
+    private volatile ReconnectPolicy mPolicy;
+
+    private static class Attempt {
+        int count;
+        ScheduledFuture<?> future;
+    }
+
+    public Reconnector(ReconnectPolicy policy) {
+        mPolicy = policy;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReconnectTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    public void setPolicy(ReconnectPolicy policy) {
+        mPolicy = policy;
+    }
+
+    public ReconnectPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Schedule the next attempt for a peer, replacing any pending one.
+     *
+     * @param key The peer, usually its address
+     * @param task The attempt to run
+     * @return The delay in milliseconds, or -1 if the policy gave up
+     */
+    public synchronized long schedule(String key, Runnable task) {
+        Attempt attempt = mAttempts.get(key);
+        if (attempt == null) {
+            attempt = new Attempt();
+            mAttempts.put(key, attempt);
+        }
+
+        long delay = mPolicy.getDelayMillis(attempt.count, mRandom);
+        if (attempt.future != null) {
+            attempt.future.cancel(false);
+            attempt.future = null;
+        }
+        if (delay < 0) {
+            mAttempts.remove(key);
+            return -1;
+        }
+
+        attempt.count++;
+        attempt.future = mTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    /**
+     * Return the number of attempts scheduled for a peer since the last reset.
+     *
+     * @param key The peer
+     */
+    public synchronized int getAttempts(String key) {
+        Attempt attempt = mAttempts.get(key);
+        return attempt == null ? 0 : attempt.count;
+    }
+
+    /**
+     * Cancel the pending attempt for a peer and start over from the
+     * policy's first delay next time.
+     *
+     * @param key The peer
+     */
+    public synchronized void reset(String key) {
+        Attempt attempt = mAttempts.remove(key);
+        if (attempt != null && attempt.future != null) {
+            attempt.future.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel every pending attempt and reset all counters.
+     */
+    public synchronized void cancelAll() {
+        for (Attempt attempt : mAttempts.values()) {
+            if (attempt.future != null) {
+                attempt.future.cancel(false);
+            }
+        }
+        mAttempts.clear();
+    }
+}
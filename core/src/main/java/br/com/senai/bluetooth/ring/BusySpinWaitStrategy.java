@@ -0,0 +1,24 @@
+package br.com.senai.bluetooth.ring;
+
+/**
+ * Spins on the cursor without ever giving up the CPU. Lowest latency, but
+ * burns a core per consumer even while idle; only for short, hot bursts
+ * on a device with cores to spare.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ring) {
+        long available;
+        while ((available = ring.getCursor()) < sequence) {
+            if (ring.isHalted()) {
+                return ring.getCursor() >= sequence ? ring.getCursor() : -1;
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
@@ -0,0 +1,56 @@
+package br.com.senai.bluetooth.ring;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parks consumers until the producer signals a publish. Idle consumers
+ * cost nothing, which makes this the right default on a battery; the
+ * price is a thread wake-up per batch. The producer only takes the lock
+ * when a consumer has actually gone to sleep.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mPublished = mLock.newCondition();
+    private final AtomicBoolean mSignalNeeded = new AtomicBoolean();
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ring) {
+        long available = ring.getCursor();
+        if (available >= sequence) {
+            return available;
+        }
+        mLock.lock();
+        try {
+            while ((available = ring.getCursor()) < sequence) {
+                // Ask for a signal before the last check, so a publish
+                // between the check and await() is not missed
+                mSignalNeeded.set(true);
+                if ((available = ring.getCursor()) >= sequence) {
+                    break;
+                }
+                if (ring.isHalted()) {
+                    return ring.getCursor() >= sequence ? ring.getCursor() : -1;
+                }
+                mPublished.awaitUninterruptibly();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAll() {
+        if (mSignalNeeded.getAndSet(false)) {
+            mLock.lock();
+            try {
+                mPublished.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package br.com.senai.bluetooth.ring;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated ring of message entries between one producer thread and
+ * any number of consumer threads, in the style of the LMAX Disruptor. The
+ * producer claims the next entry, copies a message into it and publishes
+ * it; every consumer sees every published entry, in order, and processes
+ * whole runs of them at once.
+ * <p>
+ * Nothing is locked on the way through. The producer only waits when the
+ * slowest consumer is a full ring behind, and consumers wait for new
+ * entries according to a {@link WaitStrategy}. Entries keep their arrays
+ * between laps, so once they have grown to the usual message size the
+ * ring allocates nothing.
+ */
+public class RingBuffer {
+
+    /**
+     * One message slot. Only the producer writes it, and only between
+     * {@link #next()} and {@link #publish(long)}; consumers read it until
+     * they move past it.
+     */
+    public static final class Entry {
+        private byte[] mData = new byte[0];
+        private ByteBuffer mView = ByteBuffer.wrap(mData).asReadOnlyBuffer();
+        private int mLength;
+        private int mTag;
+
+        /**
+         * Copy a message into the entry, growing its array if needed.
+         *
+         * @param src The array holding the message
+         * @param off The offset of the message
+         * @param len The length of the message
+         */
+        public void set(byte[] src, int off, int len) {
+            set(0, src, off, len);
+        }
+
+        /**
+         * Copy a message into the entry along with a tag of the producer's
+         * choosing, growing its array if needed.
+         *
+         * @param tag Whatever the consumers need to know about the message
+         * @param src The array holding the message
+         * @param off The offset of the message
+         * @param len The length of the message
+         */
+        public void set(int tag, byte[] src, int off, int len) {
+            if (mData.length < len) {
+                mData = new byte[Math.max(len, Integer.highestOneBit(len - 1) << 1)];
+                mView = ByteBuffer.wrap(mData).asReadOnlyBuffer();
+            }
+            System.arraycopy(src, off, mData, 0, len);
+            mLength = len;
+            mTag = tag;
+        }
+
+        /**
+         * Return the tag set with the message, or 0.
+         */
+        public int tag() {
+            return mTag;
+        }
+
+        /**
+         * Return the array holding the message, from offset 0.
+         */
+        public byte[] array() {
+            return mData;
+        }
+
+        /**
+         * Return the length of the message.
+         */
+        public int length() {
+            return mLength;
+        }
+
+        /**
+         * Return a read-only view of the message. The same view object is
+         * returned each time; its position and limit are reset here.
+         */
+        public ByteBuffer view() {
+            mView.limit(mLength);
+            mView.position(0);
+            return mView;
+        }
+    }
+
+    /**
+     * Processes the entries a consumer is given.
+     */
+    public interface Handler {
+        /**
+         * @param entry The entry, valid until this returns
+         * @param sequence The sequence of the entry
+         * @param endOfBatch Whether more entries are already available
+         */
+        void onEntry(Entry entry, long sequence, boolean endOfBatch);
+    }
+
+    /**
+     * A reader of the ring, with its own position. The producer never
+     * overwrites an entry a consumer has not processed yet.
+     */
+    public final class Consumer {
+        private final AtomicLong mmSequence;
+
+        private Consumer(long sequence) {
+            mmSequence = new AtomicLong(sequence);
+        }
+
+        /**
+         * Wait for entries and hand every one available to the handler.
+         *
+         * @param handler Processes the entries
+         * @return The number of entries processed, or -1 once the ring is
+         *         halted and drained
+         */
+        public int process(Handler handler) {
+            long next = mmSequence.get() + 1;
+            long available = mWaitStrategy.waitFor(next, RingBuffer.this);
+            if (available < 0) {
+                return -1;
+            }
+            try {
+                for (long sequence = next; sequence <= available; sequence++) {
+                    handler.onEntry(mEntries[(int) sequence & mMask], sequence,
+                            sequence == available);
+                }
+            } finally {
+                // Release the entries even if the handler threw
+                mmSequence.set(available);
+            }
+            return (int) (available - next + 1);
+        }
+
+        /**
+         * Return the sequence of the last entry processed.
+         */
+        public long getSequence() {
+            return mmSequence.get();
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final int mMask;
+    private final WaitStrategy mWaitStrategy;
+
+    // Last published sequence, read by the consumers
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    private volatile boolean mHalted;
+    // Consumers gating the producer, replaced on every change
+    private volatile Consumer[] mConsumers = new Consumer[0];
+
+    // Producer-only state
+    private long mNextSequence = -1;
+    private long mCachedGatingSequence = -1;
+
+    /**
+     * @param capacity The number of entries, a power of two
+     * @param waitStrategy How consumers wait for entries
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+        mMask = capacity - 1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * Add a consumer that sees every entry published from now on.
+     */
+    public synchronized Consumer addConsumer() {
+        Consumer consumer = new Consumer(mCursor.get());
+        Consumer[] consumers = new Consumer[mConsumers.length + 1];
+        System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+        consumers[mConsumers.length] = consumer;
+        mConsumers = consumers;
+        return consumer;
+    }
+
+    /**
+     * Remove a consumer, so the producer no longer waits for it.
+     *
+     * @param consumer The consumer to remove
+     */
+    public synchronized void removeConsumer(Consumer consumer) {
+        Consumer[] consumers = mConsumers;
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i] == consumer) {
+                Consumer[] copy = new Consumer[consumers.length - 1];
+                System.arraycopy(consumers, 0, copy, 0, i);
+                System.arraycopy(consumers, i + 1, copy, i, copy.length - i);
+                mConsumers = copy;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claim the next entry, waiting while the slowest consumer is a full
+     * ring behind. Producer thread only.
+     *
+     * @return The sequence of the entry, or -1 if the ring was halted
+     */
+    public long next() {
+        long next = mNextSequence + 1;
+        long wrapPoint = next - mEntries.length;
+        if (wrapPoint > mCachedGatingSequence) {
+            long gating;
+            while (wrapPoint > (gating = getMinimumSequence(next - 1))) {
+                if (mHalted) {
+                    return -1;
+                }
+                LockSupport.parkNanos(1L);
+            }
+            mCachedGatingSequence = gating;
+        }
+        mNextSequence = next;
+        return next;
+    }
+
+    /**
+     * Return the entry for a sequence claimed with {@link #next()}.
+     */
+    public Entry get(long sequence) {
+        return mEntries[(int) sequence & mMask];
+    }
+
+    /**
+     * Make a claimed entry visible to the consumers. Producer thread only.
+     *
+     * @param sequence The sequence returned by {@link #next()}
+     */
+    public void publish(long sequence) {
+        mCursor.set(sequence);
+        mWaitStrategy.signalAll();
+    }
+
+    /**
+     * Copy a message into the next entry and publish it.
+     *
+     * @return false if the ring was halted and the message dropped
+     */
+    public boolean publish(byte[] src, int off, int len) {
+        return publish(0, src, off, len);
+    }
+
+    /**
+     * Copy a tagged message into the next entry and publish it.
+     *
+     * @return false if the ring was halted and the message dropped
+     */
+    public boolean publish(int tag, byte[] src, int off, int len) {
+        long sequence = next();
+        if (sequence < 0) {
+            return false;
+        }
+        get(sequence).set(tag, src, off, len);
+        publish(sequence);
+        return true;
+    }
+
+    /**
+     * Stop the ring. The producer can publish no more, and consumers return
+     * -1 once they have processed what was already published.
+     */
+    public void halt() {
+        mHalted = true;
+        mWaitStrategy.signalAll();
+    }
+
+    public boolean isHalted() {
+        return mHalted;
+    }
+
+    /**
+     * Return the last published sequence.
+     */
+    public long getCursor() {
+        return mCursor.get();
+    }
+
+    /**
+     * Return the number of entries published but not yet processed by the
+     * slowest consumer.
+     */
+    public long getBacklog() {
+        long cursor = mCursor.get();
+        return cursor - getMinimumSequence(cursor);
+    }
+
+    private long getMinimumSequence(long minimum) {
+        for (Consumer consumer : mConsumers) {
+            minimum = Math.min(minimum, consumer.mmSequence.get());
+        }
+        return minimum;
+    }
+}
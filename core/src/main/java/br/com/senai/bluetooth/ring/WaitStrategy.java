@@ -0,0 +1,26 @@
+package br.com.senai.bluetooth.ring;
+
+/**
+ * How a consumer waits for the producer to publish the next entry of a
+ * {@link RingBuffer}. The choice trades latency against CPU: spinning reacts
+ * fastest but keeps a core busy, parking costs a wake-up but lets the
+ * thread sleep while the connection is idle.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Wait until the given sequence is published.
+     *
+     * @param sequence The sequence the consumer needs next
+     * @param ring The ring being consumed
+     * @return The highest published sequence, at least the one asked for,
+     *         or -1 if the ring was halted and will publish no more
+     */
+    long waitFor(long sequence, RingBuffer ring);
+
+    /**
+     * Wake the consumers after a publish or a halt. Called by the producer,
+     * so it must be cheap when nobody is waiting.
+     */
+    void signalAll();
+}
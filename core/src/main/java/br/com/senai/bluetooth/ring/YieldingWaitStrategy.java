@@ -0,0 +1,32 @@
+package br.com.senai.bluetooth.ring;
+
+/**
+ * Spins briefly, then yields the CPU between checks. Close to busy-spin
+ * latency while letting other threads run, but still never sleeps.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+    // Checks before the first yield
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ring) {
+        int spins = SPIN_TRIES;
+        long available;
+        while ((available = ring.getCursor()) < sequence) {
+            if (ring.isHalted()) {
+                return ring.getCursor() >= sequence ? ring.getCursor() : -1;
+            }
+            if (spins > 0) {
+                spins--;
+            } else {
+                Thread.yield();
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
@@ -0,0 +1,22 @@
+package br.com.senai.bluetooth.rpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Answers the requests peers send to an {@link RpcEndpoint}.
+ */
+public interface RequestHandler {
+
+    /**
+     * Called on the connection's dispatcher thread for every request. The
+     * request is only valid until this method returns, but the reply may be
+     * sent later and from any thread, so slow work can be handed off and
+     * answered out of order. Until it returns, no other message from the
+     * peer is delivered.
+     *
+     * @param address The address of the peer that sent the request
+     * @param request The request
+     * @param reply Sends the response, once
+     */
+    void onRequest(String address, ByteBuffer request, RpcReply reply);
+}
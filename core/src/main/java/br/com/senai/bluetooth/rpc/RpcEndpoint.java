@@ -0,0 +1,362 @@
+package br.com.senai.bluetooth.rpc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.MessageListener;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Request/response calls over one logical channel of a
+ * {@link BluetoothService}. Every request carries an ID that its response
+ * echoes, so any number of calls can be in flight to a peer at once and
+ * their responses can come back in any order. A link with a 50 ms round
+ * trip then completes many calls per round trip instead of one.
+ * <p>
+ * Both sides of a connection use an endpoint on the same channel; each can
+ * call the other and answer the other's calls through its
+ * {@link RequestHandler}. Each message on the channel starts with a type
+ * byte and a four byte call ID, followed by the request, the response, or
+ * the UTF-8 error message.
+ * <p>
+ * Calls that get no answer in time fail with an {@link RpcException}, and
+ * a response arriving after that is dropped. Losing the connection does
+ * not fail calls by itself; their timeouts do. Unless the caller gives
+ * one, the timeout follows the round trip time the connection's
+ * heartbeats measure, so calls fail fast on a quick link and are given
+ * longer on a slow one.
+ */
+public class RpcEndpoint implements MessageListener {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // Message types
+    static final byte TYPE_REQUEST = 0;
+    static final byte TYPE_RESPONSE = 1;
+    static final byte TYPE_ERROR = 2;
+
+    private static final int HEADER_LENGTH = 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Cancelled timeouts stay queued until due; sweep them out this often
+    private static final int PURGE_INTERVAL = 1024;
+
+    // Longest timeout of calls made without one, and the timeout before
+    // the link's round trip time is known
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    // Retransmit timeouts a call made without a timeout waits, leaving the
+    // peer time to process the request
+    public static final int DEFAULT_RTO_MULTIPLE = 8;
+
+    private final BluetoothService mService;
+    private final int mChannel;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final ConcurrentHashMap<Integer, RpcFuture> mPending =
+            new ConcurrentHashMap<Integer, RpcFuture>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private volatile RequestHandler mRequestHandler;
+    private volatile long mDefaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int mRtoMultiple = DEFAULT_RTO_MULTIPLE;
+    private volatile boolean mClosed;
+    // Orders registering a call against closing
+    private final Object mCloseLock = new Object();
+
+    // Statistics
+    private final AtomicLong mCallsStarted = new AtomicLong();
+    private final AtomicLong mCallsSucceeded = new AtomicLong();
+    private final AtomicLong mCallsFailed = new AtomicLong();
+    private final AtomicLong mCallsTimedOut = new AtomicLong();
+    private final AtomicLong mLateResponses = new AtomicLong();
+    private final AtomicLong mRequestsReceived = new AtomicLong();
+    private final AtomicLong mCallsFinished = new AtomicLong();
+
+    /**
+     * Create an endpoint and start listening for messages on its channel.
+     *
+     * @param service The service the calls go through
+     * @param channel The channel reserved for calls, from 0 to
+     *                {@link BluetoothService#MAX_CHANNELS} - 1. Giving it
+     *                a higher priority than bulk channels keeps calls fast
+     *                while data flows.
+     */
+    public RpcEndpoint(BluetoothService service, int channel) {
+        if (channel < 0 || channel >= BluetoothService.MAX_CHANNELS) {
+            throw new IllegalArgumentException("channel " + channel);
+        }
+        mService = service;
+        mChannel = channel;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RpcTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        service.addMessageListener(this);
+    }
+
+    /**
+     * Set what answers the requests of peers. Without one, requests fail.
+     *
+     * @param handler The handler, or null
+     */
+    public void setRequestHandler(RequestHandler handler) {
+        mRequestHandler = handler;
+    }
+
+    /**
+     * Set the longest timeout of calls made without one.
+     *
+     * @param timeout The timeout
+     * @param unit The unit of timeout
+     */
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        mDefaultTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Set how many of the link's retransmit timeouts a call made without a
+     * timeout waits for its answer.
+     *
+     * @param multiple The multiple, at least 1
+     * @see BluetoothService#getRetransmitTimeout(String, TimeUnit)
+     */
+    public void setTimeoutRtoMultiple(int multiple) {
+        if (multiple < 1) {
+            throw new IllegalArgumentException("multiple " + multiple);
+        }
+        mRtoMultiple = multiple;
+    }
+
+    /**
+     * Call a peer with a timeout of a few retransmit timeouts of the link,
+     * at most the default timeout.
+     *
+     * @param address The address of the peer
+     * @param request The request, which must not be modified afterwards
+     * @return The future response
+     * @see #call(String, byte[], long, TimeUnit)
+     */
+    public Future<byte[]> call(String address, byte[] request) {
+        long timeout = mDefaultTimeoutMillis;
+        long rto = mService.getRetransmitTimeout(address, TimeUnit.MILLISECONDS);
+        if (rto > 0) {
+            timeout = Math.min(timeout, rto * mRtoMultiple);
+        }
+        return call(address, request, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Call a peer. This only queues the request and returns, so a caller
+     * can start many calls before waiting for any. The future fails with an
+     * {@link RpcException} if the peer answers with an error, if no answer
+     * comes within the timeout, or right away if the request cannot be
+     * queued. Cancelling the future gives up on the answer.
+     *
+     * @param address The address of the peer
+     * @param request The request, which must not be modified afterwards
+     * @param timeout How long to wait for the answer
+     * @param unit The unit of timeout
+     * @return The future response
+     */
+    public Future<byte[]> call(String address, byte[] request, long timeout, TimeUnit unit) {
+        final RpcFuture future = new RpcFuture(this, address, mNextId.incrementAndGet());
+        mCallsStarted.incrementAndGet();
+
+        // Register before sending, or a fast answer could find no call. Under
+        // the lock close() takes, so a call either sees the endpoint closed or
+        // is registered before close() fails every registered call.
+        synchronized (mCloseLock) {
+            if (!mClosed) {
+                mPending.put(future.getId(), future);
+            }
+        }
+        if (mClosed) {
+            if (future.fail(new RpcException("Endpoint closed"))) {
+                mCallsFailed.incrementAndGet();
+            }
+            return future;
+        }
+        try {
+            future.mTimeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.fail(new RpcException("Call timed out"))) {
+                        mCallsTimedOut.incrementAndGet();
+                    }
+                }
+            }, timeout, unit);
+        } catch (RejectedExecutionException e) {
+            // close() shut the timer down since the check
+            if (future.fail(new RpcException("Endpoint closed"))) {
+                mCallsFailed.incrementAndGet();
+            }
+            return future;
+        }
+        if (!send(address, TYPE_REQUEST, future.getId(), request)
+                && future.fail(new RpcException("Not connected, or send queue full"))) {
+            mCallsFailed.incrementAndGet();
+        }
+        return future;
+    }
+
+    /**
+     * Stop listening and fail every call in flight.
+     */
+    public void close() {
+        synchronized (mCloseLock) {
+            mClosed = true;
+        }
+        mService.removeMessageListener(this);
+        for (RpcFuture future : mPending.values()) {
+            future.fail(new RpcException("Endpoint closed"));
+        }
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Return the number of calls waiting for an answer.
+     */
+    public int getCallsInFlight() {
+        return mPending.size();
+    }
+
+    /**
+     * Return the number of calls made.
+     */
+    public long getCallsStarted() {
+        return mCallsStarted.get();
+    }
+
+    /**
+     * Return the number of calls answered with a response.
+     */
+    public long getCallsSucceeded() {
+        return mCallsSucceeded.get();
+    }
+
+    /**
+     * Return the number of calls answered with an error, or not sent.
+     */
+    public long getCallsFailed() {
+        return mCallsFailed.get();
+    }
+
+    /**
+     * Return the number of calls that got no answer in time.
+     */
+    public long getCallsTimedOut() {
+        return mCallsTimedOut.get();
+    }
+
+    /**
+     * Return the number of answers that came after their call was over.
+     * Many of them mean the timeouts are too short.
+     */
+    public long getLateResponses() {
+        return mLateResponses.get();
+    }
+
+    /**
+     * Return the number of requests received from peers.
+     */
+    public long getRequestsReceived() {
+        return mRequestsReceived.get();
+    }
+
+    @Override
+    public void onMessage(String address, int channel, ByteBuffer payload) {
+        if (channel != mChannel) {
+            return;
+        }
+        if (payload.remaining() < HEADER_LENGTH) {
+            Log.e(TAG, "RPC message too short from " + address);
+            return;
+        }
+        int position = payload.position();
+        byte type = payload.get(position);
+        int id = payload.getInt(position + 1);
+        payload.position(position + HEADER_LENGTH);
+
+        if (type == TYPE_REQUEST) {
+            mRequestsReceived.incrementAndGet();
+            RpcReply reply = new RpcReply(this, address, id);
+            RequestHandler handler = mRequestHandler;
+            if (handler == null) {
+                reply.fail("No request handler");
+                return;
+            }
+            try {
+                handler.onRequest(address, payload, reply);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "RequestHandler failed", e);
+                reply.fail(String.valueOf(e));
+            }
+            return;
+        }
+
+        RpcFuture future = mPending.get(id);
+        if (future == null || !future.getAddress().equals(address)) {
+            // Timed out or cancelled already
+            mLateResponses.incrementAndGet();
+            return;
+        }
+        // The payload is only valid until this returns
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+        if (type == TYPE_RESPONSE) {
+            if (future.complete(body)) {
+                mCallsSucceeded.incrementAndGet();
+            }
+        } else {
+            if (future.fail(new RpcException(new String(body, UTF_8)))) {
+                mCallsFailed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forget a call that is over. Called by the future itself.
+     */
+    void remove(RpcFuture future) {
+        if (mPending.remove(future.getId(), future)
+                && mCallsFinished.incrementAndGet() % PURGE_INTERVAL == 0) {
+            mTimer.purge();
+        }
+    }
+
+    /**
+     * Queue one message of the call protocol.
+     *
+     * @return false if the peer is not connected or its queue is full
+     */
+    boolean send(String address, byte type, int id, byte[] body) {
+        PooledBuffer buffer = mService.getBufferPool().allocate(HEADER_LENGTH + body.length);
+        byte[] array = buffer.array();
+        array[0] = type;
+        array[1] = (byte) (id >>> 24);
+        array[2] = (byte) (id >>> 16);
+        array[3] = (byte) (id >>> 8);
+        array[4] = (byte) id;
+        System.arraycopy(body, 0, array, HEADER_LENGTH, body.length);
+        buffer.setLength(HEADER_LENGTH + body.length);
+        return mService.write(address, mChannel, buffer);
+    }
+
+    static byte[] encodeString(String message) {
+        return String.valueOf(message).getBytes(UTF_8);
+    }
+}
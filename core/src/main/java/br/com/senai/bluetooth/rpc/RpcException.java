@@ -0,0 +1,18 @@
+package br.com.senai.bluetooth.rpc;
+
+import java.io.IOException;
+
+/**
+ * Why a remote call failed: the peer answered with an error, the call timed
+ * out, or the request could not be sent. Futures returned by
+ * {@link RpcEndpoint#call} wrap it in an
+ * {@link java.util.concurrent.ExecutionException}.
+ */
+public class RpcException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(String message) {
+        super(message);
+    }
+}
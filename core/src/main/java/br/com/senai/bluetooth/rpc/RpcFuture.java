@@ -0,0 +1,139 @@
+package br.com.senai.bluetooth.rpc;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of one call. Completed by the dispatcher thread when
+ * the response arrives, by the timer when the call times out, or by the
+ * caller when it cancels.
+ */
+final class RpcFuture implements Future<byte[]> {
+
+    private final RpcEndpoint mEndpoint;
+    private final String mAddress;
+    private final int mId;
+    volatile ScheduledFuture<?> mTimeout;
+
+    // Guarded by this
+    private boolean mDone;
+    private boolean mCancelled;
+    private byte[] mResult;
+    private RpcException mError;
+
+    RpcFuture(RpcEndpoint endpoint, String address, int id) {
+        mEndpoint = endpoint;
+        mAddress = address;
+        mId = id;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    /**
+     * @return false if the call was already over
+     */
+    boolean complete(byte[] result) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mResult = result;
+            mDone = true;
+            notifyAll();
+        }
+        onDone();
+        return true;
+    }
+
+    /**
+     * @return false if the call was already over
+     */
+    boolean fail(RpcException error) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+        onDone();
+        return true;
+    }
+
+    private void onDone() {
+        ScheduledFuture<?> timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        mEndpoint.remove(this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mCancelled = true;
+            mDone = true;
+            notifyAll();
+        }
+        // A late response is dropped like that of a timed out call
+        onDone();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    // Called with the lock held, once done
+    private byte[] result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+}
@@ -0,0 +1,52 @@
+package br.com.senai.bluetooth.rpc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The answer owed for one request. Exactly one of {@link #send(byte[])}
+ * and {@link #fail(String)} takes effect; later calls are ignored.
+ */
+public final class RpcReply {
+
+    private final RpcEndpoint mEndpoint;
+    private final String mAddress;
+    private final int mId;
+    private final AtomicBoolean mSent = new AtomicBoolean();
+
+    RpcReply(RpcEndpoint endpoint, String address, int id) {
+        mEndpoint = endpoint;
+        mAddress = address;
+        mId = id;
+    }
+
+    /**
+     * Send the response.
+     *
+     * @param response The response, which must not be modified afterwards
+     * @return false if a reply was sent already, or the peer is gone
+     */
+    public boolean send(byte[] response) {
+        return mSent.compareAndSet(false, true)
+                && mEndpoint.send(mAddress, RpcEndpoint.TYPE_RESPONSE, mId, response);
+    }
+
+    /**
+     * Tell the caller the request failed. Its future fails with an
+     * {@link RpcException} holding the message.
+     *
+     * @param message Why the request failed
+     * @return false if a reply was sent already, or the peer is gone
+     */
+    public boolean fail(String message) {
+        return mSent.compareAndSet(false, true)
+                && mEndpoint.send(mAddress, RpcEndpoint.TYPE_ERROR, mId,
+                        RpcEndpoint.encodeString(message));
+    }
+
+    /**
+     * Return the address of the peer that sent the request.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+}
@@ -0,0 +1,409 @@
+package br.com.senai.bluetooth.session;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.io.CoalescingWriter;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * The state of the conversation with one device that outlives its
+ * connections, so a transfer cut by a dropped link resumes where it
+ * stopped instead of starting over.
+ * <p>
+ * Each direction numbers its messages from 1, in the order the writer
+ * hands them to the stream, which is the order the peer receives them in.
+ * The receiver acknowledges how many it has received, cumulatively, in
+ * control frames; the sender keeps every message until it is acknowledged.
+ * On each new connection both sides send a hello with their session token,
+ * the token they know of the peer, and how many messages they received.
+ * If the peer still knows our session, we send again only what it did not
+ * acknowledge; if it does not (it restarted), everything we still hold.
+ * A connection is a reliable ordered stream, so messages only go missing
+ * at its end and a cumulative count says exactly what arrived: there are
+ * never gaps to acknowledge selectively. A message the old connection's
+ * dispatcher delivered after the hello went out comes again on the new
+ * one, and is dropped as a duplicate.
+ * <p>
+ * Each connection talks through its own {@link Link}. Messages written
+ * before the peer's hello arrives wait in the session.
+ */
+public class Session {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // Control frame types, after the heartbeat's
+    public static final byte TYPE_HELLO = 3;
+    public static final byte TYPE_ACK = 4;
+    static final int HELLO_LENGTH = 25;
+    static final int ACK_LENGTH = 9;
+
+    // Bytes held for a peer, sent or not, past which writes are refused
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 256 * 1024;
+
+    // The receiver acknowledges after this many messages or bytes
+    static final int ACK_EVERY_MESSAGES = 32;
+    static final int ACK_EVERY_BYTES = 16 * 1024;
+
+    private static final Random sRandom = new Random();
+
+    private static final class Pending {
+        final int mmChannel;
+        final PooledBuffer mmMessage;
+
+        Pending(int channel, PooledBuffer message) {
+            mmChannel = channel;
+            mmMessage = message;
+        }
+    }
+
+    private final long mLocalToken;
+    private final long mMaxRetainedBytes;
+
+    // All guarded by this
+    private long mPeerToken;
+    private Link mLink;
+    private boolean mClosed;
+    // Sending: messages not sent yet, per channel in the order written, and
+    // messages sent and not acknowledged, in the order sent. The first of
+    // those is number mAcked + 1.
+    private final ArrayList<LinkedList<Pending>> mUnsent;
+    private final LinkedList<Pending> mUnacked = new LinkedList<Pending>();
+    private long mAcked;
+    private long mRetainedBytes;
+    // Receiving: messages received, and how many of those we acknowledged
+    private long mReceived;
+    private long mAckedReceived;
+    private int mBytesSinceAck;
+
+    // Statistics
+    private long mRetransmitted;
+    private long mDuplicates;
+
+    /**
+     * @param channels The number of channels messages are written to
+     */
+    public Session(int channels) {
+        this(channels, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param channels The number of channels messages are written to
+     * @param maxRetainedBytes The bytes held for the peer past which writes
+     *                         are refused. A connection's send queue must
+     *                         take at least this much per channel.
+     */
+    public Session(int channels, long maxRetainedBytes) {
+        long token;
+        do {
+            token = sRandom.nextLong();
+        } while (token == 0);
+        mLocalToken = token;
+        mMaxRetainedBytes = maxRetainedBytes;
+        mUnsent = new ArrayList<LinkedList<Pending>>(channels);
+        for (int i = 0; i < channels; i++) {
+            mUnsent.add(new LinkedList<Pending>());
+        }
+    }
+
+    /**
+     * Start talking over a new connection. Any previous link stops taking
+     * messages.
+     *
+     * @param writer The writer of the connection, which must not have
+     *               anything queued yet
+     * @return The link
+     */
+    public synchronized Link attach(CoalescingWriter writer) {
+        Link link = new Link(writer);
+        writer.setSentListener(link);
+        mLink = link;
+        return link;
+    }
+
+    /**
+     * Release every message held. The session is unusable afterwards.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mLink = null;
+        for (LinkedList<Pending> unsent : mUnsent) {
+            releaseAll(unsent);
+        }
+        releaseAll(mUnacked);
+        mRetainedBytes = 0;
+    }
+
+    /**
+     * Return the messages sent and not acknowledged yet.
+     */
+    public synchronized int getUnackedCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * Return the bytes held for the peer, sent or not.
+     */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    /**
+     * Return the messages sent again after a reconnect.
+     */
+    public synchronized long getRetransmittedCount() {
+        return mRetransmitted;
+    }
+
+    /**
+     * Return the messages received twice and dropped.
+     */
+    public synchronized long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    private void releaseAll(LinkedList<Pending> list) {
+        for (Pending pending : list) {
+            pending.mmMessage.release();
+        }
+        list.clear();
+    }
+
+    // Drop the messages the peer has acknowledged
+    private void ack(long received) {
+        if (received <= mAcked) {
+            return;
+        }
+        while (mAcked < received && !mUnacked.isEmpty()) {
+            Pending pending = mUnacked.removeFirst();
+            mRetainedBytes -= pending.mmMessage.length();
+            pending.mmMessage.release();
+            mAcked++;
+        }
+        if (mAcked < received) {
+            Log.w(TAG, "Peer acknowledged " + received + " messages, only " + mAcked + " sent");
+            mAcked = received;
+        }
+    }
+
+    private static void putLong(byte[] dst, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] src, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (src[off + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * One connection of the session. Its methods are called by the
+     * connection's threads, as noted on each.
+     */
+    public final class Link implements CoalescingWriter.SentListener {
+        private final CoalescingWriter mmWriter;
+        // Guarded by the session: whether the peer's hello has come, and
+        // the number of the next message arriving over this link
+        private boolean mmReady;
+        private long mmNextReceived;
+
+        Link(CoalescingWriter writer) {
+            mmWriter = writer;
+        }
+
+        /**
+         * Return the hello to send first on the connection. Messages
+         * arriving over the link are numbered from what it says we
+         * received.
+         */
+        public byte[] hello() {
+            synchronized (Session.this) {
+                mmNextReceived = mReceived + 1;
+                byte[] hello = new byte[HELLO_LENGTH];
+                hello[0] = TYPE_HELLO;
+                putLong(hello, 1, mLocalToken);
+                putLong(hello, 9, mPeerToken);
+                putLong(hello, 17, mReceived);
+                return hello;
+            }
+        }
+
+        /**
+         * Queue a message, and keep it until the peer acknowledges it.
+         * Until the peer's hello arrives, it only waits in the session.
+         *
+         * @param channel The channel
+         * @param message The message; the reference passes to the session
+         * @return false if the link is over, or too much is held for the
+         *         peer already, and the message was dropped
+         */
+        public boolean write(int channel, PooledBuffer message) {
+            synchronized (Session.this) {
+                int length = message.length();
+                if (mLink != this || (mRetainedBytes > 0
+                        && mRetainedBytes + length > mMaxRetainedBytes)) {
+                    message.release();
+                    return false;
+                }
+                if (mmReady && !mmWriter.write(channel, message.retain())) {
+                    message.release();
+                    return false;
+                }
+                mUnsent.get(channel).add(new Pending(channel, message));
+                mRetainedBytes += length;
+                return true;
+            }
+        }
+
+        /**
+         * Number a message as the writer sends it. Called by the writer.
+         */
+        @Override
+        public void onMessageSent(int channel, PooledBuffer message) {
+            synchronized (Session.this) {
+                // A dying link may still send until a new one takes over;
+                // what it sends after that goes again anyway
+                if (mClosed || (mLink != this && mLink != null && mLink.mmReady)) {
+                    return;
+                }
+                LinkedList<Pending> unsent = mUnsent.get(channel);
+                if (unsent.isEmpty() || unsent.getFirst().mmMessage != message) {
+                    return;
+                }
+                mUnacked.add(unsent.removeFirst());
+            }
+        }
+
+        /**
+         * Handle the peer's hello: forget what it acknowledges, then send
+         * the rest again, followed by what was never sent. Called by the
+         * reader.
+         */
+        public void onHello(byte[] buffer, int offset, int length) {
+            if (length != HELLO_LENGTH) {
+                return;
+            }
+            long peerToken = getLong(buffer, offset + 1);
+            long knownToken = getLong(buffer, offset + 9);
+            long received = getLong(buffer, offset + 17);
+            synchronized (Session.this) {
+                if (mLink != this || mmReady) {
+                    return;
+                }
+                if (peerToken != mPeerToken) {
+                    // A new session of the peer: it numbers from 1 again
+                    if (mPeerToken != 0) {
+                        Log.i(TAG, "Peer started a new session");
+                    }
+                    mPeerToken = peerToken;
+                    mReceived = 0;
+                    mAckedReceived = 0;
+                    mBytesSinceAck = 0;
+                    mmNextReceived = 1;
+                }
+                if (knownToken == mLocalToken) {
+                    ack(received);
+                } else {
+                    // The peer does not know our session, so it received
+                    // none of what we hold; number it from 1 again
+                    mAcked = 0;
+                }
+
+                // Send what is unacknowledged again, ahead of the rest
+                int resent = mUnacked.size();
+                while (!mUnacked.isEmpty()) {
+                    Pending pending = mUnacked.removeLast();
+                    mUnsent.get(pending.mmChannel).addFirst(pending);
+                }
+                mRetransmitted += resent;
+                mmReady = true;
+                for (LinkedList<Pending> unsent : mUnsent) {
+                    for (Pending pending : unsent) {
+                        if (!mmWriter.write(pending.mmChannel, pending.mmMessage.retain())) {
+                            // Closed already; the next link sends them
+                            return;
+                        }
+                    }
+                }
+                if (resent > 0) {
+                    Log.i(TAG, "Resumed session, sending " + resent + " messages again");
+                }
+            }
+        }
+
+        /**
+         * Handle an acknowledgement from the peer. Called by the reader.
+         */
+        public void onAck(byte[] buffer, int offset, int length) {
+            if (length != ACK_LENGTH) {
+                return;
+            }
+            long received = getLong(buffer, offset + 1);
+            synchronized (Session.this) {
+                if (mLink == this) {
+                    ack(received);
+                }
+            }
+        }
+
+        /**
+         * Count a message received over the link. Called by the dispatcher.
+         *
+         * @param length The length of the message
+         * @return false if it was received before, and must be dropped
+         */
+        public boolean onReceived(int length) {
+            synchronized (Session.this) {
+                long number = mmNextReceived++;
+                if (number <= mReceived) {
+                    mDuplicates++;
+                    return false;
+                }
+                mReceived = number;
+                mBytesSinceAck += length;
+                return true;
+            }
+        }
+
+        /**
+         * Return the acknowledgement to send, or null if none is due.
+         *
+         * @param force Whether to acknowledge anything new at all, rather
+         *              than only once enough has arrived
+         */
+        public byte[] pollAck(boolean force) {
+            synchronized (Session.this) {
+                long unacked = mReceived - mAckedReceived;
+                if (unacked <= 0 || (!force && unacked < ACK_EVERY_MESSAGES
+                        && mBytesSinceAck < ACK_EVERY_BYTES)) {
+                    return null;
+                }
+                mAckedReceived = mReceived;
+                mBytesSinceAck = 0;
+                byte[] ack = new byte[ACK_LENGTH];
+                ack[0] = TYPE_ACK;
+                putLong(ack, 1, mReceived);
+                return ack;
+            }
+        }
+
+        /**
+         * End the link once its connection is gone. What it held stays in
+         * the session for the next link.
+         */
+        public void detach() {
+            synchronized (Session.this) {
+                if (mLink == this) {
+                    mLink = null;
+                }
+            }
+        }
+    }
+}
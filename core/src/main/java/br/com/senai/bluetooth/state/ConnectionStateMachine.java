@@ -0,0 +1,129 @@
+package br.com.senai.bluetooth.state;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds a connection state and moves it between the STATE_* values of
+ * BluetoothService without locking. Reads are a single volatile load,
+ * transitions are compare-and-set operations, and every transition is
+ * checked against the table of legal ones. Listeners are notified after
+ * the change, outside of any lock.
+ */
+public class ConnectionStateMachine {
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // LEGAL[from][to]; staying in the same state is always allowed. A stopped
+    // service has to listen or connect before it can be connected.
+    private static final boolean[][] LEGAL = {
+            /* from NONE       */ { true, true, true, false },
+            /* from LISTEN     */ { true, true, true, true },
+            /* from CONNECTING */ { true, true, true, true },
+            /* from CONNECTED  */ { true, true, true, true },
+    };
+
+    private final AtomicInteger mState;
+    private final CopyOnWriteArrayList<StateListener> mListeners =
+            new CopyOnWriteArrayList<StateListener>();
+
+    public ConnectionStateMachine() {
+        this(STATE_NONE);
+    }
+
+    public ConnectionStateMachine(int initialState) {
+        checkState(initialState);
+        mState = new AtomicInteger(initialState);
+    }
+
+    /**
+     * Return the current state.
+     */
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Return whether a transition is allowed.
+     *
+     * @param from The current state
+     * @param to The requested state
+     */
+    public static boolean isLegal(int from, int to) {
+        checkState(from);
+        checkState(to);
+        return LEGAL[from][to];
+    }
+
+    /**
+     * Move to a new state only if the current state is the expected one.
+     *
+     * @param expect The expected current state
+     * @param update The new state
+     * @return false if the current state was not the expected one
+     * @throws IllegalStateException If the transition is not legal
+     */
+    public boolean compareAndSet(int expect, int update) {
+        if (!isLegal(expect, update)) {
+            throw new IllegalStateException("Illegal transition " + expect + " -> " + update);
+        }
+        if (expect == update) {
+            return mState.get() == expect;
+        }
+        if (!mState.compareAndSet(expect, update)) {
+            return false;
+        }
+        notifyListeners(expect, update);
+        return true;
+    }
+
+    /**
+     * Move to a new state from whatever the current state is.
+     *
+     * @param update The new state
+     * @return The state before the transition
+     * @throws IllegalStateException If the transition is not legal
+     */
+    public int moveTo(int update) {
+        while (true) {
+            int current = mState.get();
+            if (compareAndSet(current, update)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Register a listener for state changes.
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(StateListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregister a listener added with {@link #addListener}.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners(int oldState, int newState) {
+        for (StateListener listener : mListeners) {
+            listener.onStateChanged(oldState, newState);
+        }
+    }
+
+    private static void checkState(int state) {
+        if (state < STATE_NONE || state > STATE_CONNECTED) {
+            throw new IllegalArgumentException("Unknown state " + state);
+        }
+    }
+}
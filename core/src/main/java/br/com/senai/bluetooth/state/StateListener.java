@@ -0,0 +1,17 @@
+package br.com.senai.bluetooth.state;
+
+/**
+ * Notified by {@link ConnectionStateMachine} after each state change.
+ */
+public interface StateListener {
+
+    /**
+     * Called on the thread that made the transition, after it took effect.
+     * Transitions made by different threads may be reported out of order,
+     * so read the machine's current state if only the latest one matters.
+     *
+     * @param oldState The state before the transition
+     * @param newState The state after the transition
+     */
+    void onStateChanged(int oldState, int newState);
+}
@@ -0,0 +1,135 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import br.com.senai.bluetooth.util.AtomicFile;
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * The RFCOMM channels that service lookups found, per device and service,
+ * kept in a file across restarts. Connecting straight to a known channel
+ * skips the SDP lookup, which takes a good part of a short session. The
+ * channel a device gives a service can change, for example when the
+ * device restarts, so an entry must be invalidated as soon as connecting
+ * to it fails.
+ * <p>
+ * Only the most recently used {@link #MAX_ENTRIES} entries are kept. The
+ * file is rewritten on every change; losing it only costs a lookup.
+ */
+public class ChannelCache {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    public static final int MAX_ENTRIES = 64;
+
+    private final AtomicFile mFile;
+    // Channels by address and service, least recently used first
+    private final LinkedHashMap<String, Integer> mChannels =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Create a cache, loading the entries saved in its file if any.
+     *
+     * @param file The file the entries are kept in
+     */
+    public ChannelCache(File file) {
+        mFile = new AtomicFile(file);
+        load();
+    }
+
+    /**
+     * Return the channel cached for a service of a device.
+     *
+     * @param address The remote address
+     * @param service The name of the service
+     * @return The channel, or 0 if none is cached
+     */
+    public synchronized int get(String address, String service) {
+        Integer channel = mChannels.get(key(address, service));
+        return channel != null ? channel : 0;
+    }
+
+    /**
+     * Cache the channel a lookup found for a service of a device.
+     *
+     * @param address The remote address
+     * @param service The name of the service
+     * @param channel The RFCOMM channel, from 1 to 30
+     */
+    public synchronized void put(String address, String service, int channel) {
+        Integer old = mChannels.put(key(address, service), channel);
+        if (old == null || old != channel) {
+            save();
+        }
+    }
+
+    /**
+     * Forget the channel of a service of a device, after connecting to it
+     * failed.
+     *
+     * @param address The remote address
+     * @param service The name of the service
+     */
+    public synchronized void invalidate(String address, String service) {
+        if (mChannels.remove(key(address, service)) != null) {
+            Log.i(TAG, "Cached channel of " + service + " on " + address + " invalidated");
+            save();
+        }
+    }
+
+    /**
+     * Return the number of cached channels.
+     */
+    public synchronized int size() {
+        return mChannels.size();
+    }
+
+    private static String key(String address, String service) {
+        return address + '/' + service;
+    }
+
+    private void load() {
+        try {
+            mFile.read(new AtomicFile.Reader() {
+                @Override
+                public void read(DataInputStream in) throws IOException {
+                    for (int count = in.readInt(); count > 0; count--) {
+                        String key = in.readUTF();
+                        mChannels.put(key, in.readInt());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load " + mFile.getFile(), e);
+            mChannels.clear();
+        }
+    }
+
+    // Called with the lock held
+    private void save() {
+        try {
+            mFile.write(new AtomicFile.Writer() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    out.writeInt(mChannels.size());
+                    for (Map.Entry<String, Integer> entry : mChannels.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save " + mFile.getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+
+/**
+ * One way of opening a connection to a device, such as an RFCOMM socket
+ * found through an SDP lookup, or one to a fixed channel. Several of them
+ * race each other in a {@link ConnectRace}.
+ */
+public interface ConnectMethod {
+
+    /**
+     * Return the name the method is remembered by, unique in its race.
+     */
+    String getName();
+
+    /**
+     * Create an unconnected transport to the device.
+     *
+     * @param address The remote address
+     */
+    Transport create(String address) throws IOException;
+}
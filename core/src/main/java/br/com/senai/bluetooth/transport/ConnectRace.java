@@ -0,0 +1,383 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import br.com.senai.bluetooth.util.Log;
+
+/**
+ * Transport provider whose transports connect by racing several
+ * {@link ConnectMethod}s. The method that last won for the device starts
+ * first; the others follow one by one, each after a stagger delay or as
+ * soon as every attempt so far has failed. The first transport to connect
+ * is kept and the other attempts are closed. Connecting then takes as long
+ * as the fastest method, instead of the sum of the timeouts of the ones
+ * tried before it.
+ * <p>
+ * The secure flag of {@link #create} picks the methods of that kind; those
+ * of the other kind only follow if {@link #setFallback} allows it.
+ * Listening is left to another provider. Attempts run on an
+ * {@link Executor}, by default a bounded pool of daemon threads shared by
+ * every race and reused across dials.
+ */
+public class ConnectRace implements TransportProvider {
+    // Debugging
+    private static final String TAG = "bluetooth";
+
+    // Head start of each method over the next
+    public static final long DEFAULT_STAGGER_MILLIS = 1000;
+    // Attempts the default executor runs at once across every race; more
+    // wait for a thread
+    public static final int DEFAULT_MAX_THREADS = 16;
+
+    private final TransportProvider mServer;
+    private final List<ConnectMethod> mSecureMethods;
+    private final List<ConnectMethod> mInsecureMethods;
+    private final long mStaggerNanos;
+    private final Executor mExecutor;
+    // The method that last won, per device
+    private final ConcurrentHashMap<String, String> mWinners =
+            new ConcurrentHashMap<String, String>();
+    private volatile boolean mFallback;
+
+    /**
+     * @param server The provider to listen with
+     * @param secureMethods The methods tried first for secure connections,
+     *                      in order
+     * @param insecureMethods The methods tried first for insecure
+     *                        connections, in order
+     */
+    public ConnectRace(TransportProvider server, List<ConnectMethod> secureMethods,
+            List<ConnectMethod> insecureMethods) {
+        this(server, secureMethods, insecureMethods, DEFAULT_STAGGER_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param server The provider to listen with
+     * @param secureMethods The methods tried first for secure connections,
+     *                      in order
+     * @param insecureMethods The methods tried first for insecure
+     *                        connections, in order
+     * @param stagger The head start of each method over the next, or 0 to
+     *                start them all at once
+     * @param unit The unit of stagger
+     */
+    public ConnectRace(TransportProvider server, List<ConnectMethod> secureMethods,
+            List<ConnectMethod> insecureMethods, long stagger, TimeUnit unit) {
+        this(server, secureMethods, insecureMethods, stagger, unit, DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * @param server The provider to listen with
+     * @param secureMethods The methods tried first for secure connections,
+     *                      in order
+     * @param insecureMethods The methods tried first for insecure
+     *                        connections, in order
+     * @param stagger The head start of each method over the next, or 0 to
+     *                start them all at once
+     * @param unit The unit of stagger
+     * @param executor Runs the attempts, which block until they connect or
+     *                 fail; an attempt it rejects counts as failed
+     */
+    public ConnectRace(TransportProvider server, List<ConnectMethod> secureMethods,
+            List<ConnectMethod> insecureMethods, long stagger, TimeUnit unit,
+            Executor executor) {
+        mServer = server;
+        mExecutor = executor;
+        mSecureMethods = new ArrayList<ConnectMethod>(secureMethods);
+        mInsecureMethods = new ArrayList<ConnectMethod>(insecureMethods);
+        mStaggerNanos = unit.toNanos(stagger);
+    }
+
+    /**
+     * Let a connection go on to the methods of the other kind once its own
+     * have started, such as insecure methods for a secure connection. Off
+     * by default, since a secure connection could then end up insecure;
+     * {@link #getWinner} tells which method connected.
+     *
+     * @param fallback Whether to fall back to the other kind
+     */
+    public void setFallback(boolean fallback) {
+        mFallback = fallback;
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        return mServer.listen(secure);
+    }
+
+    @Override
+    public Transport create(String address, boolean secure) {
+        // Nothing is created until connect(), where the methods race
+        return new RacingTransport(address, order(address, secure));
+    }
+
+    /**
+     * Return the name of the method that last connected to a device.
+     *
+     * @param address The remote address
+     * @return The name, or null if no method has connected yet
+     */
+    public String getWinner(String address) {
+        return mWinners.get(address);
+    }
+
+    /**
+     * Forget which method connected to a device, so the next race starts
+     * from the default order.
+     *
+     * @param address The remote address
+     */
+    public void forget(String address) {
+        mWinners.remove(address);
+    }
+
+    /**
+     * Return the transport that won the race of a connected transport from
+     * a ConnectRace, to get at what the method created.
+     *
+     * @param transport A transport
+     * @return The winner, or the transport itself if it did not race
+     */
+    public static Transport unwrap(Transport transport) {
+        if (transport instanceof RacingTransport) {
+            Transport winner = ((RacingTransport) transport).mmWinner;
+            return winner != null ? winner : transport;
+        }
+        return transport;
+    }
+
+    private List<ConnectMethod> order(String address, boolean secure) {
+        List<ConnectMethod> order = new ArrayList<ConnectMethod>();
+        add(order, secure ? mSecureMethods : mInsecureMethods);
+        if (mFallback) {
+            add(order, secure ? mInsecureMethods : mSecureMethods);
+        }
+        String winner = mWinners.get(address);
+        for (int i = 1; i < order.size(); i++) {
+            if (order.get(i).getName().equals(winner)) {
+                order.add(0, order.remove(i));
+                break;
+            }
+        }
+        return order;
+    }
+
+    private static void add(List<ConnectMethod> order, List<ConnectMethod> methods) {
+        for (ConnectMethod method : methods) {
+            if (!order.contains(method)) {
+                order.add(method);
+            }
+        }
+    }
+
+    private class RacingTransport implements Transport {
+        private final String mmAddress;
+        private final List<ConnectMethod> mmMethods;
+        // Guarded by this
+        private final List<Transport> mmAttempts = new ArrayList<Transport>();
+        private int mmFailures;
+        private IOException mmLastError;
+        private boolean mmClosed;
+        private volatile Transport mmWinner;
+
+        RacingTransport(String address, List<ConnectMethod> methods) {
+            mmAddress = address;
+            mmMethods = methods;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            long start = System.nanoTime();
+            int started = 0;
+            long nextStart = start;
+            synchronized (this) {
+                while (mmWinner == null) {
+                    if (mmClosed) {
+                        throw new IOException("Transport closed");
+                    }
+                    long now = System.nanoTime();
+                    if (started < mmMethods.size() && (now >= nextStart || mmFailures == started)) {
+                        race(mmMethods.get(started++));
+                        nextStart = now + mStaggerNanos;
+                        continue;
+                    }
+                    if (mmFailures == mmMethods.size()) {
+                        throw new IOException("No connect method reached " + mmAddress,
+                                mmLastError);
+                    }
+                    try {
+                        if (started < mmMethods.size()) {
+                            long wait = Math.max(nextStart - now, 1);
+                            wait(wait / 1000000, (int) (wait % 1000000));
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        close();
+                        throw new IOException("connect() interrupted");
+                    }
+                }
+            }
+            Log.i(TAG, "Connected to " + mmAddress + " by " + mWinners.get(mmAddress) + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        // Start one attempt on the executor. Called with the lock held.
+        private void race(final ConnectMethod method) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(method);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed(method, e);
+            }
+        }
+
+        private void attempt(ConnectMethod method) {
+            Transport transport = null;
+            try {
+                transport = method.create(mmAddress);
+                synchronized (this) {
+                    if (mmClosed || mmWinner != null) {
+                        closeQuietly(transport);
+                        return;
+                    }
+                    mmAttempts.add(transport);
+                }
+                transport.connect();
+            } catch (Throwable e) {
+                // Whatever went wrong, connect() must hear of it or it
+                // waits for this attempt forever
+                closeQuietly(transport);
+                failed(method, e);
+                return;
+            }
+
+            List<Transport> losers;
+            synchronized (this) {
+                if (mmClosed || mmWinner != null) {
+                    // Too late
+                    losers = new ArrayList<Transport>();
+                    losers.add(transport);
+                } else {
+                    mmWinner = transport;
+                    mWinners.put(mmAddress, method.getName());
+                    mmAttempts.remove(transport);
+                    losers = new ArrayList<Transport>(mmAttempts);
+                    notifyAll();
+                }
+                mmAttempts.clear();
+            }
+            for (Transport loser : losers) {
+                closeQuietly(loser);
+            }
+        }
+
+        private synchronized void failed(ConnectMethod method, Throwable e) {
+            if (e instanceof IOException) {
+                Log.d(TAG, "Connect method " + method.getName() + " failed for " + mmAddress);
+                mmLastError = (IOException) e;
+            } else {
+                Log.e(TAG, "Connect method " + method.getName() + " crashed for " + mmAddress, e);
+                mmLastError = new IOException(method.getName() + " failed", e);
+            }
+            mmFailures++;
+            notifyAll();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connected().getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            List<Transport> attempts;
+            synchronized (this) {
+                mmClosed = true;
+                attempts = new ArrayList<Transport>(mmAttempts);
+                mmAttempts.clear();
+                notifyAll();
+            }
+            for (Transport attempt : attempts) {
+                closeQuietly(attempt);
+            }
+            Transport winner = mmWinner;
+            if (winner != null) {
+                winner.close();
+            }
+        }
+
+        private Transport connected() throws IOException {
+            Transport winner = mmWinner;
+            if (winner == null) {
+                throw new IOException("Transport not connected");
+            }
+            return winner;
+        }
+    }
+
+    // Created on first use, so a race that is given an executor starts no
+    // threads of its own
+    private static class DefaultExecutor {
+        // How long an idle thread is kept around for the next attempt
+        private static final long KEEP_ALIVE_SECONDS = 30;
+
+        static final Executor INSTANCE = newExecutor();
+
+        private static Executor newExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_THREADS,
+                    DEFAULT_MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mmThreadsCreated = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "ConnectRace-" + mmThreadsCreated.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of losing transport failed", e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport provider backed by TCP sockets on the loopback interface. Each
+ * endpoint is identified by a base port: the secure service listens on the
+ * base port and the insecure one on the port right after it. Remote
+ * addresses use the form "host:basePort".
+ */
+public class LoopbackTransportProvider implements TransportProvider {
+
+    private final int mBasePort;
+
+    /**
+     * @param basePort The port of the secure service; the insecure service
+     *                 uses basePort + 1
+     */
+    public LoopbackTransportProvider(int basePort) {
+        mBasePort = basePort;
+    }
+
+    /**
+     * Return the address other providers should use to reach this one.
+     */
+    public String getLocalAddress() {
+        return "127.0.0.1:" + mBasePort;
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                secure ? mBasePort : mBasePort + 1));
+        return new LoopbackTransportServer(serverSocket);
+    }
+
+    @Override
+    public Transport create(String address, boolean secure) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("Invalid loopback address: " + address);
+        }
+        String host = address.substring(0, separator);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid loopback address: " + address);
+        }
+        return new LoopbackTransport(new Socket(),
+                new InetSocketAddress(host, secure ? port : port + 1), address);
+    }
+
+    private static class LoopbackTransportServer implements TransportServer {
+        private final ServerSocket mmServerSocket;
+
+        public LoopbackTransportServer(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            Socket socket = mmServerSocket.accept();
+            // The peer dials from an ephemeral port, so this is not an address
+            // that can be dialed back
+            return new LoopbackTransport(socket, null,
+                    socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class LoopbackTransport implements Transport {
+        private final Socket mmSocket;
+        private final InetSocketAddress mmEndpoint;
+        private final String mmAddress;
+
+        public LoopbackTransport(Socket socket, InetSocketAddress endpoint, String address)
+                throws IOException {
+            mmSocket = socket;
+            mmEndpoint = endpoint;
+            mmAddress = address;
+            // Batching is our job, not the kernel's
+            mmSocket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmEndpoint != null) {
+                mmSocket.connect(mmEndpoint);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Transport provider that connects endpoints through in-memory pipes. All
+ * providers created on the same {@link Network} can reach each other by
+ * their local address, which lets two BluetoothService instances talk in a
+ * single JVM without any radio or socket involved.
+ */
+public class PipeTransportProvider implements TransportProvider {
+
+    // Bytes that can be in flight in each direction before a writer blocks
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * A set of in-memory endpoints that can reach each other by address.
+     */
+    public static class Network {
+        private final Map<String, PipeTransportServer> mServers =
+                new HashMap<String, PipeTransportServer>();
+
+        synchronized void register(String key, PipeTransportServer server) throws IOException {
+            if (mServers.containsKey(key)) {
+                throw new IOException("Address already in use: " + key);
+            }
+            mServers.put(key, server);
+        }
+
+        synchronized void unregister(String key, PipeTransportServer server) {
+            if (mServers.get(key) == server) {
+                mServers.remove(key);
+            }
+        }
+
+        synchronized PipeTransportServer lookup(String key) {
+            return mServers.get(key);
+        }
+    }
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+
+    /**
+     * @param network The network this endpoint is attached to
+     * @param localAddress The address other endpoints use to reach this one
+     */
+    public PipeTransportProvider(Network network, String localAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+    }
+
+    /**
+     * Return the address other providers should use to reach this one.
+     */
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        String key = serviceKey(mLocalAddress, secure);
+        PipeTransportServer server = new PipeTransportServer(key);
+        mNetwork.register(key, server);
+        return server;
+    }
+
+    @Override
+    public Transport create(String address, boolean secure) throws IOException {
+        return new PipeTransport(address, secure);
+    }
+
+    private static String serviceKey(String address, boolean secure) {
+        return address + (secure ? "/secure" : "/insecure");
+    }
+
+    private class PipeTransportServer implements TransportServer {
+        private final String mmKey;
+        private final LinkedList<PipeTransport> mmPending = new LinkedList<PipeTransport>();
+        private boolean mmClosed;
+
+        public PipeTransportServer(String key) {
+            mmKey = key;
+        }
+
+        synchronized void offer(PipeTransport transport) throws IOException {
+            if (mmClosed) {
+                throw new IOException("Connection refused: " + mmKey);
+            }
+            mmPending.add(transport);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Transport accept() throws IOException {
+            while (mmPending.isEmpty()) {
+                if (mmClosed) {
+                    throw new IOException("Server closed: " + mmKey);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("accept() interrupted");
+                }
+            }
+            return mmPending.removeFirst();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mNetwork.unregister(mmKey, this);
+            synchronized (this) {
+                mmClosed = true;
+                for (PipeTransport transport : mmPending) {
+                    transport.close();
+                }
+                mmPending.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    private class PipeTransport implements Transport {
+        private final String mmRemoteAddress;
+        private final boolean mmSecure;
+        private BytePipe mmIn;
+        private BytePipe mmOut;
+        private boolean mmClosed;
+
+        /**
+         * Create an unconnected client-side transport.
+         */
+        public PipeTransport(String remoteAddress, boolean secure) {
+            mmRemoteAddress = remoteAddress;
+            mmSecure = secure;
+        }
+
+        /**
+         * Create a connected server-side transport.
+         */
+        public PipeTransport(String remoteAddress, BytePipe in, BytePipe out) {
+            mmRemoteAddress = remoteAddress;
+            mmSecure = false;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            synchronized (this) {
+                if (mmClosed) {
+                    throw new IOException("Transport closed");
+                }
+                if (mmIn != null) {
+                    return;
+                }
+            }
+
+            PipeTransportServer server = mNetwork.lookup(serviceKey(mmRemoteAddress, mmSecure));
+            if (server == null) {
+                throw new IOException("Connection refused: " + mmRemoteAddress);
+            }
+
+            BytePipe upstream = new BytePipe(PIPE_CAPACITY);
+            BytePipe downstream = new BytePipe(PIPE_CAPACITY);
+            synchronized (this) {
+                if (mmClosed) {
+                    throw new IOException("Transport closed");
+                }
+                mmIn = downstream;
+                mmOut = upstream;
+            }
+            server.offer(new PipeTransport(mLocalAddress, upstream, downstream));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmIn == null) {
+                throw new IOException("Transport not connected");
+            }
+            return mmIn.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmOut == null) {
+                throw new IOException("Transport not connected");
+            }
+            return mmOut.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            mmClosed = true;
+            if (mmIn != null) {
+                mmIn.closeReader();
+            }
+            if (mmOut != null) {
+                mmOut.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * A bounded single-direction byte queue. Closing the reader side makes
+     * reads fail and writes fail with a broken pipe; closing the writer side
+     * makes reads return end of stream once the buffered bytes are drained.
+     */
+    private static class BytePipe {
+        private final byte[] mmBuffer;
+        private int mmHead;
+        private int mmCount;
+        private boolean mmReaderClosed;
+        private boolean mmWriterClosed;
+
+        public BytePipe(int capacity) {
+            mmBuffer = new byte[capacity];
+        }
+
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mmCount == 0) {
+                if (mmReaderClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mmWriterClosed) {
+                    return -1;
+                }
+                await();
+            }
+            if (mmReaderClosed) {
+                throw new IOException("Pipe closed");
+            }
+
+            int n = Math.min(len, mmCount);
+            int first = Math.min(n, mmBuffer.length - mmHead);
+            System.arraycopy(mmBuffer, mmHead, b, off, first);
+            System.arraycopy(mmBuffer, 0, b, off + first, n - first);
+            mmHead = (mmHead + n) % mmBuffer.length;
+            mmCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mmCount == mmBuffer.length && !mmReaderClosed && !mmWriterClosed) {
+                    await();
+                }
+                if (mmReaderClosed) {
+                    throw new IOException("Broken pipe");
+                }
+                if (mmWriterClosed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                int tail = (mmHead + mmCount) % mmBuffer.length;
+                int n = Math.min(len, mmBuffer.length - mmCount);
+                int first = Math.min(n, mmBuffer.length - tail);
+                System.arraycopy(b, off, mmBuffer, tail, first);
+                System.arraycopy(b, off + first, mmBuffer, 0, n - first);
+                mmCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        public synchronized int available() {
+            return mmCount;
+        }
+
+        public synchronized void closeReader() {
+            mmReaderClosed = true;
+            notifyAll();
+        }
+
+        public synchronized void closeWriter() {
+            mmWriterClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Pipe interrupted");
+            }
+        }
+
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return BytePipe.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return BytePipe.this.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return BytePipe.this.available();
+                }
+
+                @Override
+                public void close() {
+                    closeReader();
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    BytePipe.this.write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    BytePipe.this.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    closeWriter();
+                }
+            };
+        }
+    }
+}
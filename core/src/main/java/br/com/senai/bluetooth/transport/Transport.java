@@ -0,0 +1,42 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a remote peer. This is the part of a
+ * BluetoothSocket that the connection threads actually need, so the same
+ * code path can run over RFCOMM, an in-memory pipe or a TCP loopback socket.
+ */
+public interface Transport {
+
+    /**
+     * Attempt to connect to the remote peer. This is a blocking call and
+     * will only return on a successful connection or an exception. Transports
+     * returned by {@link TransportServer#accept()} are already connected.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Return the stream of bytes received from the remote peer.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Return the stream of bytes sent to the remote peer.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return the address of the remote peer, in the provider's own format
+     * (a MAC address for RFCOMM, host:port for TCP).
+     */
+    String getRemoteAddress();
+
+    /**
+     * Close the transport. Any thread blocked in a read or in
+     * {@link #connect()} will immediately throw an IOException.
+     */
+    void close() throws IOException;
+}
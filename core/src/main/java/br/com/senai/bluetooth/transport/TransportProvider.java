@@ -0,0 +1,27 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+
+/**
+ * Creates the client and server endpoints used by BluetoothService. The
+ * secure flag picks between the two services every provider exposes,
+ * mirroring the secure and insecure RFCOMM service records.
+ */
+public interface TransportProvider {
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    TransportServer listen(boolean secure) throws IOException;
+
+    /**
+     * Create an unconnected transport to the given remote address. Call
+     * {@link Transport#connect()} to actually open the connection.
+     *
+     * @param address The remote address
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    Transport create(String address, boolean secure) throws IOException;
+}
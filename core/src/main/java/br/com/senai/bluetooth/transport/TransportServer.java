@@ -0,0 +1,24 @@
+package br.com.senai.bluetooth.transport;
+
+import java.io.IOException;
+
+/**
+ * A listening endpoint that hands out a connected {@link Transport} for
+ * each incoming connection.
+ */
+public interface TransportServer {
+
+    /**
+     * Block until a connection is established. Throws an IOException when
+     * the server is closed or fails.
+     *
+     * @return A connected transport
+     */
+    Transport accept() throws IOException;
+
+    /**
+     * Close the server. Any thread blocked in {@link #accept()} will
+     * immediately throw an IOException.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,97 @@
+package br.com.senai.bluetooth.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A small file replaced as a whole. A write goes to a temporary file next
+ * to it, is synced to the disk and then renamed over the old file, so a
+ * crash leaves either the old contents or the new ones, never a mix. A
+ * read that fails anyway, on a file some other program wrote for example,
+ * throws, and the caller starts over as if there had been no file.
+ */
+public final class AtomicFile {
+
+    /**
+     * Writes the contents of the file.
+     */
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads back what a {@link Writer} wrote.
+     */
+    public interface Reader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    private final File mFile;
+    private final File mTmp;
+
+    /**
+     * @param file The file
+     */
+    public AtomicFile(File file) {
+        mFile = file;
+        mTmp = new File(file.getPath() + ".tmp");
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Read the file.
+     *
+     * @param reader What reads the contents
+     * @return false if there is no file
+     * @throws IOException If the file cannot be read, or the reader fails
+     */
+    public boolean read(Reader reader) throws IOException {
+        if (!mFile.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            reader.read(in);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Replace the contents of the file.
+     *
+     * @param writer What writes the new contents
+     * @throws IOException If they cannot be written; the old ones are left
+     */
+    public void write(Writer writer) throws IOException {
+        FileOutputStream file = new FileOutputStream(mTmp);
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            writer.write(out);
+            out.flush();
+            file.getFD().sync();
+            written = true;
+        } finally {
+            file.close();
+            if (!written) {
+                mTmp.delete();
+            }
+        }
+        if (!mTmp.renameTo(mFile)) {
+            mTmp.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+}
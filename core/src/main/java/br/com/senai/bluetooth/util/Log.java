@@ -0,0 +1,39 @@
+package br.com.senai.bluetooth.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drop-in for android.util.Log in the code shared with the JVM. Messages go
+ * to java.util.logging, which Android forwards to logcat, with the tag as
+ * the logger name.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static void d(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.FINE, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.INFO, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.WARNING, msg);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        Logger.getLogger(tag).log(Level.WARNING, msg, tr);
+    }
+
+    public static void e(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.SEVERE, msg);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        Logger.getLogger(tag).log(Level.SEVERE, msg, tr);
+    }
+}
@@ -0,0 +1,39 @@
+package br.com.senai.bluetooth;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Waits in tests for something another thread does. Public only because
+ * the tests of every package use it; it is not part of the library.
+ */
+public final class Await {
+
+    /**
+     * What a test waits for.
+     */
+    public interface Condition {
+        boolean holds();
+    }
+
+    // Time between two looks at the condition
+    private static final long POLL_MILLIS = 1;
+
+    private Await() {
+    }
+
+    /**
+     * Wait until a condition holds, failing the test if it does not in time.
+     *
+     * @param what What is waited for, for the failure message
+     * @param timeoutMillis The longest wait
+     * @param condition The condition
+     */
+    public static void until(String what, long timeoutMillis, Condition condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.holds()) {
+            assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+}
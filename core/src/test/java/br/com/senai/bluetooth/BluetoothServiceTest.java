@@ -0,0 +1,413 @@
+package br.com.senai.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import br.com.senai.bluetooth.outbox.Outbox;
+import br.com.senai.bluetooth.reconnect.ReconnectPolicy;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+import br.com.senai.bluetooth.transport.Transport;
+import br.com.senai.bluetooth.transport.TransportProvider;
+import br.com.senai.bluetooth.transport.TransportServer;
+
+public class BluetoothServiceTest {
+
+    // Keeps the messages received, in order
+    private static class Inbox implements MessageListener {
+        final List<byte[]> mMessages = new ArrayList<byte[]>();
+
+        @Override
+        public synchronized void onMessage(String address, int channel, ByteBuffer payload) {
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            mMessages.add(message);
+        }
+
+        synchronized int size() {
+            return mMessages.size();
+        }
+    }
+
+    // Checks that the messages of each channel are numbered 0, 1, 2...
+    private static class SequenceChecker implements MessageListener {
+        final int[] mNext = new int[3];
+        int mReceived;
+        int mErrors;
+
+        @Override
+        public synchronized void onMessage(String address, int channel, ByteBuffer payload) {
+            int sequence = payload.getInt(payload.position());
+            if (sequence != mNext[channel]) {
+                mErrors++;
+            }
+            mNext[channel] = sequence + 1;
+            mReceived++;
+        }
+
+        synchronized int received() {
+            return mReceived;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final PipeTransportProvider.Network mNetwork = new PipeTransportProvider.Network();
+    private final List<BluetoothService> mServices = new ArrayList<BluetoothService>();
+
+    @After
+    public void tearDown() {
+        for (BluetoothService service : mServices) {
+            service.stop();
+        }
+    }
+
+    private BluetoothService service(TransportProvider provider) {
+        BluetoothService service = new BluetoothService(provider);
+        mServices.add(service);
+        return service;
+    }
+
+    private BluetoothService service(String address) {
+        return service(new PipeTransportProvider(mNetwork, address));
+    }
+
+    private static void awaitConnected(final BluetoothService service, final String address)
+            throws InterruptedException {
+        Await.until("a connection to " + address, 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return service.getState(address) == BluetoothService.STATE_CONNECTED;
+            }
+        });
+    }
+
+    @Test
+    public void connectsAndDeliversMessages() throws InterruptedException {
+        BluetoothService server = service("A");
+        BluetoothService client = service("B");
+        final Inbox inbox = new Inbox();
+        server.addMessageListener(inbox);
+        server.start();
+        client.start();
+
+        client.connect("A", true);
+        awaitConnected(client, "A");
+        awaitConnected(server, "B");
+        assertTrue(client.write("A", new byte[] { 1, 2, 3 }));
+        assertTrue(client.write("A", 2, new byte[] { 4 }));
+        Await.until("the messages", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return inbox.size() == 2;
+            }
+        });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, inbox.mMessages.get(0));
+        assertArrayEquals(new byte[] { 4 }, inbox.mMessages.get(1));
+        assertTrue(client.getBytesTransferred() > 0);
+    }
+
+    @Test
+    public void takesOverATransportConnectedElsewhere() throws Exception {
+        BluetoothService server = service("A");
+        BluetoothService client = service("B");
+        final Inbox inbox = new Inbox();
+        server.addMessageListener(inbox);
+        server.start();
+        client.start();
+
+        Transport transport = new PipeTransportProvider(mNetwork, "B").create("A", true);
+        transport.connect();
+        client.connected(transport, "Secure");
+        awaitConnected(client, "A");
+        assertTrue(client.write("A", new byte[] { 7 }));
+        Await.until("the message", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return inbox.size() == 1;
+            }
+        });
+    }
+
+    @Test
+    public void writesFailWithoutAConnection() {
+        BluetoothService client = service("B");
+        client.start();
+        assertEquals(BluetoothService.STATE_NONE, client.getState("A"));
+        assertFalse(client.write("A", new byte[] { 1 }));
+    }
+
+    @Test
+    public void reusesThreadsAcrossReconnects() throws InterruptedException {
+        final BluetoothService server = service("A");
+        final BluetoothService client = service("B");
+        // Each round dials anew
+        client.setReconnectPolicy(ReconnectPolicy.NEVER);
+        server.start();
+        client.start();
+        for (int i = 0; i < 200; i++) {
+            client.connect("A", true);
+            awaitConnected(client, "A");
+            awaitConnected(server, "B");
+            client.write(new byte[3]);
+            server.disconnect("B");
+            Await.until("the connection to drop", 5000, new Await.Condition() {
+                @Override
+                public boolean holds() {
+                    return client.getState("A") != BluetoothService.STATE_CONNECTED;
+                }
+            });
+        }
+        int limit = 2 + 5 * BluetoothService.MAX_CONNECTIONS;
+        assertTrue("client created " + client.getExecutor().getThreadsCreated() + " threads",
+                client.getExecutor().getThreadsCreated() <= limit);
+        assertTrue("server created " + server.getExecutor().getThreadsCreated() + " threads",
+                server.getExecutor().getThreadsCreated() <= limit);
+    }
+
+    @Test
+    public void stopLetsTheThreadsGoAndStartTakesNew() throws InterruptedException {
+        final BluetoothService server = service("A");
+        final BluetoothService client = service("B");
+        server.start();
+        client.start();
+        client.connect("A", true);
+        awaitConnected(client, "A");
+        server.stop();
+        Await.until("the threads to end", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return server.getExecutor().getPoolSize() == 0;
+            }
+        });
+
+        server.start();
+        client.connect("A", true);
+        awaitConnected(client, "A");
+        assertTrue(server.getExecutor().getPoolSize() > 0);
+    }
+
+    @Test
+    public void drainsAnOutboxLargerThanTheSendQueue() throws Exception {
+        final BluetoothService server = service("A");
+        final BluetoothService client = service("B");
+        final SequenceChecker checker = new SequenceChecker();
+        server.addMessageListener(checker);
+        final Outbox outbox = new Outbox(mFolder.getRoot());
+        client.setOutbox(outbox);
+        final int count = 2 * BluetoothService.MAX_QUEUED_BYTES / 1024;
+        for (int i = 0; i < count; i++) {
+            assertTrue(client.write("A", 0, ByteBuffer.allocate(1024).putInt(i).array()));
+        }
+        server.start();
+        client.start();
+        client.connect("A", true);
+        Await.until("the outbox to drain", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return checker.received() == count && !outbox.hasPending("A");
+            }
+        });
+        assertEquals(0, checker.mErrors);
+        outbox.close();
+    }
+
+    @Test
+    public void admitsAtMostMaxConnections() throws InterruptedException {
+        final BluetoothService hub = service("HUB");
+        hub.start();
+        final int peers = BluetoothService.MAX_CONNECTIONS + 2;
+        for (int i = 0; i < peers; i++) {
+            BluetoothService peer = service("P" + i);
+            peer.setReconnectPolicy(ReconnectPolicy.NEVER);
+            peer.start();
+            peer.connect("HUB", true);
+        }
+        Await.until("the hub to fill up", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return hub.getConnectedAddresses().size() == BluetoothService.MAX_CONNECTIONS;
+            }
+        });
+        Thread.sleep(300);
+        assertEquals(BluetoothService.MAX_CONNECTIONS, hub.getConnectedAddresses().size());
+        assertEquals(0, hub.getExecutor().getQueuedCount());
+
+        // The slots free up once the connections close
+        for (String address : hub.getConnectedAddresses()) {
+            hub.disconnect(address);
+        }
+        Await.until("the slots to free up", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return hub.getExecutor().getActiveCount() <= 2;
+            }
+        });
+        hub.connect("P0", true);
+        awaitConnected(hub, "P0");
+    }
+
+    @Test
+    public void resumedSessionsSurviveDroppedLinks() throws InterruptedException {
+        // Each link drops after about 400 KB
+        BluetoothService receiver =
+                service(new Flaky(new PipeTransportProvider(mNetwork, "A"), 400000));
+        BluetoothService sender =
+                service(new Flaky(new PipeTransportProvider(mNetwork, "B"), 400000));
+        receiver.setResumableSessions(true);
+        sender.setResumableSessions(true);
+        sender.setReconnectPolicy(new ReconnectPolicy(10, 50, 2, 0, Integer.MAX_VALUE));
+        receiver.setHeartbeat(100, TimeUnit.MILLISECONDS, 5);
+        sender.setHeartbeat(100, TimeUnit.MILLISECONDS, 5);
+        final SequenceChecker checker = new SequenceChecker();
+        receiver.addMessageListener(checker);
+        receiver.start();
+        sender.start();
+        sender.connect("A", true);
+
+        final int total = 30000;
+        int[] sequence = new int[3];
+        long deadline = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < total; i++) {
+            int channel = i % 3;
+            byte[] message = ByteBuffer.allocate(i % 20 == 0 ? 8000 : 200)
+                    .putInt(0, sequence[channel]).array();
+            // Refused while the link is down and the session full
+            while (!sender.write("A", channel, message)) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            sequence[channel]++;
+        }
+        Await.until("every message", 60000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return checker.received() >= total;
+            }
+        });
+        Thread.sleep(200);
+        assertEquals(total, checker.received());
+        assertEquals(0, checker.mErrors);
+    }
+
+    /**
+     * A provider whose connections drop after writing a random number of
+     * bytes, half to one and a half times the mean.
+     */
+    private static class Flaky implements TransportProvider {
+        private final TransportProvider mProvider;
+        private final int mMeanBytes;
+        private final Random mRandom = new Random(7);
+
+        Flaky(TransportProvider provider, int meanBytes) {
+            mProvider = provider;
+            mMeanBytes = meanBytes;
+        }
+
+        @Override
+        public TransportServer listen(boolean secure) throws IOException {
+            final TransportServer server = mProvider.listen(secure);
+            return new TransportServer() {
+                @Override
+                public Transport accept() throws IOException {
+                    return wrap(server.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    server.close();
+                }
+            };
+        }
+
+        @Override
+        public Transport create(String address, boolean secure) throws IOException {
+            return wrap(mProvider.create(address, secure));
+        }
+
+        private synchronized Transport wrap(Transport transport) {
+            return new FlakyTransport(transport, mMeanBytes / 2 + mRandom.nextInt(mMeanBytes));
+        }
+    }
+
+    private static class FlakyTransport implements Transport {
+        private final Transport mTransport;
+        private final long mLimit;
+        private OutputStream mOut;
+
+        FlakyTransport(Transport transport, long limit) {
+            mTransport = transport;
+            mLimit = limit;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mTransport.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mTransport.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                final OutputStream out = mTransport.getOutputStream();
+                mOut = new OutputStream() {
+                    private long mmWritten;
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (mmWritten + len > mLimit) {
+                            // Let part of it through, as a real link might
+                            out.write(b, off, (int) Math.max(0, mLimit - mmWritten));
+                            mmWritten = mLimit;
+                            mTransport.close();
+                            throw new IOException("link dropped");
+                        }
+                        out.write(b, off, len);
+                        mmWritten += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+                };
+            }
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mTransport.getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTransport.close();
+        }
+    }
+}
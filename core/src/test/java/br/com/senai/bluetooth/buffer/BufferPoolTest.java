@@ -0,0 +1,124 @@
+package br.com.senai.bluetooth.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void servesTheSmallestClassThatFits() {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.allocate(0).capacity());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.allocate(64).capacity());
+        assertEquals(128, pool.allocate(65).capacity());
+        assertEquals(4096, pool.allocate(4000).capacity());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.allocate(BufferPool.MAX_BUFFER_SIZE).capacity());
+        // Past the largest class, an array of its own
+        assertEquals(100000, pool.allocate(100000).capacity());
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer first = pool.allocate(1000);
+        first.setLength(10);
+        assertTrue(first.release());
+        assertEquals(1, pool.getIdleCount());
+
+        PooledBuffer second = pool.allocate(900);
+        assertSame(first, second);
+        assertEquals(0, second.length());
+        assertEquals(1, second.refCount());
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void onlyTheLastReleaseRecycles() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.allocate(100);
+        assertSame(buffer, buffer.retain());
+        assertEquals(2, buffer.refCount());
+        assertFalse(buffer.release());
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(buffer.release());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void refusesADoubleRelease() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.allocate(100);
+        buffer.release();
+        try {
+            buffer.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // Not recycled twice, so it cannot be handed out to two holders
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, buffer.refCount());
+        try {
+            buffer.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void keepsIdleBuffersWithinTheBudget() {
+        // Room for two idle 512-byte buffers
+        BufferPool pool = new BufferPool(1024);
+        PooledBuffer[] buffers = new PooledBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.allocate(512);
+        }
+        for (PooledBuffer buffer : buffers) {
+            buffer.release();
+        }
+        assertEquals(2, pool.getIdleCount());
+
+        // Large buffers still keep one
+        PooledBuffer large = pool.allocate(BufferPool.MAX_BUFFER_SIZE);
+        large.release();
+        assertSame(large, pool.allocate(BufferPool.MAX_BUFFER_SIZE));
+    }
+
+    @Test
+    public void neverPoolsOversizedOrWrappedBuffers() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer oversized = pool.allocate(BufferPool.MAX_BUFFER_SIZE + 1);
+        assertTrue(oversized.release());
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(oversized, pool.allocate(BufferPool.MAX_BUFFER_SIZE + 1));
+
+        byte[] array = new byte[5];
+        PooledBuffer wrapped = PooledBuffer.wrap(array);
+        assertSame(array, wrapped.array());
+        assertEquals(5, wrapped.length());
+        assertTrue(wrapped.release());
+    }
+
+    @Test
+    public void lengthStaysWithinTheArray() {
+        PooledBuffer buffer = new BufferPool().allocate(64);
+        buffer.setLength(64);
+        try {
+            buffer.setLength(65);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            new BufferPool().allocate(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
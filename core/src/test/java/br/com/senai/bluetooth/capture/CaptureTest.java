@@ -0,0 +1,207 @@
+package br.com.senai.bluetooth.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import br.com.senai.bluetooth.Await;
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.MessageListener;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+
+public class CaptureTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Keeps the messages received as "channel:bytes"
+    private static class Inbox implements MessageListener {
+        final List<String> mMessages = new ArrayList<String>();
+
+        @Override
+        public synchronized void onMessage(String address, int channel, ByteBuffer payload) {
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            mMessages.add(channel + ":" + new String(message));
+        }
+
+        synchronized List<String> messages() {
+            return new ArrayList<String>(mMessages);
+        }
+    }
+
+    private static byte[] data(CaptureReader reader) {
+        byte[] data = new byte[reader.getLength()];
+        reader.getData(data, 0);
+        return data;
+    }
+
+    @Test
+    public void readsBackWhatTheStreamsRecorded() throws IOException {
+        File file = mFolder.newFile("streams.cap");
+        CaptureFile capture = new CaptureFile(file, "00:11:22:33:44:55");
+        InputStream in = new CaptureInputStream(
+                new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }), capture);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        CaptureOutputStream out = new CaptureOutputStream(sink, capture);
+
+        byte[] buffer = new byte[3];
+        assertEquals(3, in.read(buffer, 0, 3));
+        out.write(new byte[] { 9, 8 }, 0, 2);
+        assertEquals(4, in.read());
+        assertEquals(-1, in.read(buffer, 0, 3));
+        capture.close();
+        assertEquals(file.length(), capture.getSize());
+
+        CaptureReader reader = new CaptureReader(file);
+        assertEquals("00:11:22:33:44:55", reader.getAddress());
+        assertTrue(reader.next());
+        assertEquals(CaptureFile.DIRECTION_READ, reader.getDirection());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, data(reader));
+        assertTrue(reader.next());
+        assertEquals(CaptureFile.DIRECTION_WRITE, reader.getDirection());
+        assertArrayEquals(new byte[] { 9, 8 }, data(reader));
+        long written = reader.getTimestampNanos();
+        assertTrue(reader.next());
+        assertEquals(CaptureFile.DIRECTION_READ, reader.getDirection());
+        assertArrayEquals(new byte[] { 4 }, data(reader));
+        assertTrue(reader.getTimestampNanos() >= written);
+        assertFalse(reader.next());
+
+        reader.rewind();
+        assertTrue(reader.next());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, data(reader));
+        reader.close();
+    }
+
+    @Test
+    public void recordsSpanningRegionsAndTheSizeLimit() throws IOException {
+        File file = mFolder.newFile("small.cap");
+        // Two records of 13 + 100 bytes fit, the third does not
+        CaptureFile capture = new CaptureFile(file, "A", 150, CaptureFile.HEADER_LENGTH + 250);
+        for (int i = 0; i < 3; i++) {
+            byte[] chunk = new byte[100];
+            chunk[0] = (byte) i;
+            capture.record(CaptureFile.DIRECTION_READ, chunk, 0, chunk.length);
+        }
+        assertEquals(1, capture.getDroppedCount());
+        capture.close();
+        // Closing again does nothing, and records after it are dropped
+        capture.close();
+        capture.record(CaptureFile.DIRECTION_READ, new byte[1], 0, 1);
+        assertEquals(2, capture.getDroppedCount());
+
+        CaptureReader reader = new CaptureReader(file);
+        assertTrue(reader.next());
+        assertEquals(0, data(reader)[0]);
+        assertTrue(reader.next());
+        assertEquals(1, data(reader)[0]);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void aCaptureCutShortReadsUpToItsLastRecord() throws IOException {
+        File file = mFolder.newFile("torn.cap");
+        CaptureFile capture = new CaptureFile(file, "A");
+        capture.record(CaptureFile.DIRECTION_READ, new byte[] { 1 }, 0, 1);
+        capture.record(CaptureFile.DIRECTION_READ, new byte[] { 2, 3 }, 0, 2);
+        capture.close();
+        // Lose the end of the last record, as a crash might
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        CaptureReader reader = new CaptureReader(file);
+        assertTrue(reader.next());
+        assertArrayEquals(new byte[] { 1 }, data(reader));
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void refusesFilesThatAreNoCapture() throws IOException {
+        File file = mFolder.newFile("other");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[CaptureFile.HEADER_LENGTH]);
+        raf.close();
+        try {
+            new CaptureReader(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void replaysACapturedConnectionThroughAService() throws Exception {
+        File directory = mFolder.newFolder("captures");
+        PipeTransportProvider.Network network = new PipeTransportProvider.Network();
+        final BluetoothService server = new BluetoothService(new PipeTransportProvider(network, "A"));
+        BluetoothService client = new BluetoothService(new PipeTransportProvider(network, "B"));
+        final Inbox live = new Inbox();
+        server.addMessageListener(live);
+        server.setCaptureDirectory(directory);
+        server.start();
+        client.start();
+        client.connect("A", true);
+        Await.until("a connection", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return server.getState("B") == BluetoothService.STATE_CONNECTED;
+            }
+        });
+        while (!client.write("A", 0, "one".getBytes())) {
+            Thread.sleep(1);
+        }
+        client.write("A", 2, "two".getBytes());
+        client.write("A", 1, "three".getBytes());
+        Await.until("the messages", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return live.messages().size() == 3;
+            }
+        });
+        client.stop();
+        server.stop();
+
+        File[] captures = directory.listFiles();
+        assertEquals(1, captures.length);
+        assertTrue(captures[0].getName().startsWith("B-"));
+
+        final BluetoothService replay = new BluetoothService(new PipeTransportProvider(network, "R"));
+        final Inbox replayed = new Inbox();
+        replay.addMessageListener(replayed);
+        replay.start();
+        ReplayTransport transport = new ReplayTransport(captures[0], false);
+        assertEquals("B", transport.getRemoteAddress());
+        replay.connected(transport, "Secure");
+        try {
+            Await.until("the replayed messages", 5000, new Await.Condition() {
+                @Override
+                public boolean holds() {
+                    return replayed.messages().size() == 3;
+                }
+            });
+            assertEquals(live.messages(), replayed.messages());
+            assertTrue(transport.getBytesRead() > 0);
+        } finally {
+            replay.stop();
+        }
+    }
+}
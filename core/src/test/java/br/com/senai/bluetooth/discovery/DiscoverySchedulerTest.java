@@ -0,0 +1,220 @@
+package br.com.senai.bluetooth.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.senai.bluetooth.Await;
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+
+public class DiscoverySchedulerTest {
+
+    // A radio that reports a cancel as a finished event, on its own thread
+    // like the platform does
+    private class FakeScanner implements DiscoveryScheduler.Scanner {
+        volatile boolean mDiscovering;
+        volatile int mStarts;
+        volatile int mCancels;
+
+        @Override
+        public boolean startDiscovery() {
+            mDiscovering = true;
+            mStarts++;
+            return true;
+        }
+
+        @Override
+        public boolean cancelDiscovery() {
+            boolean was = mDiscovering;
+            mDiscovering = false;
+            mCancels++;
+            if (was) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        mScheduler.onDiscoveryFinished();
+                    }
+                }.start();
+            }
+            return was;
+        }
+
+        // The inquiry ends, or someone else stops it
+        void finish() {
+            mDiscovering = false;
+            mScheduler.onDiscoveryFinished();
+        }
+    }
+
+    private BluetoothService mServer;
+    private BluetoothService mClient;
+    private FakeScanner mScanner;
+    private DiscoveryScheduler mScheduler;
+    private volatile boolean mSending;
+    private Thread mSender;
+
+    @Before
+    public void setUp() {
+        PipeTransportProvider.Network network = new PipeTransportProvider.Network();
+        mServer = new BluetoothService(new PipeTransportProvider(network, "A"));
+        mClient = new BluetoothService(new PipeTransportProvider(network, "B"));
+        mScanner = new FakeScanner();
+        mScheduler = new DiscoveryScheduler(mClient, mScanner);
+        mScheduler.setIdleTime(300, TimeUnit.MILLISECONDS);
+        mScheduler.setInquiryTime(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mSending = false;
+        if (mSender != null) {
+            mSender.interrupt();
+            mSender.join(5000);
+        }
+        mScheduler.close();
+        mClient.stop();
+        mServer.stop();
+    }
+
+    // Connect the client to the server, and send about 200 KB/s whenever
+    // mSending is set
+    private void connect() throws InterruptedException {
+        mServer.start();
+        mClient.start();
+        mClient.connect("A", true);
+        Await.until("a connection", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClient.getConnectedAddresses().contains("A");
+            }
+        });
+        mSender = new Thread() {
+            @Override
+            public void run() {
+                byte[] message = new byte[1000];
+                try {
+                    while (!isInterrupted()) {
+                        if (mSending) {
+                            mClient.write("A", message);
+                        }
+                        Thread.sleep(5);
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }
+        };
+        mSender.start();
+    }
+
+    private final Await.Condition mDiscovering = new Await.Condition() {
+        @Override
+        public boolean holds() {
+            return mScheduler.isDiscovering();
+        }
+    };
+
+    @Test
+    public void startsAtOnceWithoutConnections() {
+        mScheduler.requestDiscovery();
+        assertTrue(mScheduler.isDiscovering());
+        assertEquals(1, mScanner.mStarts);
+        // Asking again while it runs does nothing
+        mScheduler.requestDiscovery();
+        assertEquals(1, mScanner.mStarts);
+    }
+
+    @Test
+    public void completesWhenTheInquiryRunsItsLength() throws InterruptedException {
+        mScheduler.setInquiryTime(100, TimeUnit.MILLISECONDS);
+        mScheduler.requestDiscovery();
+        Thread.sleep(150);
+        mScanner.finish();
+        assertFalse(mScheduler.isRequested());
+        assertEquals(1, mScheduler.getCompleted());
+        assertTrue(mScheduler.getDiscoveryTime(TimeUnit.MILLISECONDS) >= 100);
+    }
+
+    @Test
+    public void runsAgainWhenSomeoneElseStopsIt() throws InterruptedException {
+        mScheduler.requestDiscovery();
+        // A dial cancels discovery to get the radio to itself
+        mScanner.finish();
+        assertTrue(mScheduler.isRequested());
+        assertFalse(mScheduler.isDiscovering());
+        assertEquals(1, mScheduler.getInterruptions());
+        assertEquals(0, mScheduler.getCompleted());
+        Await.until("a restart", 10000, mDiscovering);
+        assertEquals(2, mScanner.mStarts);
+    }
+
+    @Test
+    public void cancelStopsDiscovery() {
+        mScheduler.requestDiscovery();
+        mScheduler.cancel();
+        assertFalse(mScheduler.isRequested());
+        assertEquals(1, mScanner.mCancels);
+        assertEquals(0, mScheduler.getInterruptions());
+    }
+
+    @Test
+    public void waitsForTransfersAndYieldsToNewOnes() throws InterruptedException {
+        connect();
+        mSending = true;
+        Thread.sleep(500);
+        mScheduler.requestDiscovery();
+        Await.until("a deferral", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mScheduler.getDeferrals() == 1;
+            }
+        });
+        assertFalse(mScheduler.isDiscovering());
+
+        mSending = false;
+        Await.until("the links to go quiet", 10000, mDiscovering);
+
+        // A transfer starting cuts discovery short, and the request waits
+        // again; its own cancel is not an interruption
+        mSending = true;
+        Await.until("an abort", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mScheduler.getAborts() == 1;
+            }
+        });
+        assertTrue(mScheduler.isRequested());
+        assertFalse(mScheduler.isDiscovering());
+        assertTrue(mScheduler.getContendedTime(TimeUnit.MILLISECONDS) > 0);
+        Thread.sleep(100);
+        assertEquals(0, mScheduler.getInterruptions());
+    }
+
+    @Test
+    public void runsAnOverdueRequestForASlice() throws InterruptedException {
+        mScheduler.setMaxDeferral(1, 1, TimeUnit.SECONDS);
+        connect();
+        mSending = true;
+        Thread.sleep(500);
+        long start = System.currentTimeMillis();
+        mScheduler.requestDiscovery();
+        Await.until("an overdue start", 10000, mDiscovering);
+        long started = System.currentTimeMillis();
+        assertTrue(started - start >= 900);
+
+        Await.until("the end of the slice", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mScheduler.getAborts() == 1;
+            }
+        });
+        assertTrue(System.currentTimeMillis() - started >= 900);
+    }
+}
@@ -0,0 +1,154 @@
+package br.com.senai.bluetooth.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiscoveryStreamTest {
+
+    // Keeps every batch, and the thread it came on
+    private static class Batches implements DiscoveryStream.Listener {
+        final List<List<DiscoveredDevice>> mBatches = new ArrayList<List<DiscoveredDevice>>();
+        String mThread;
+
+        @Override
+        public synchronized void onDevices(List<DiscoveredDevice> devices) {
+            mBatches.add(devices);
+            mThread = Thread.currentThread().getName();
+            notifyAll();
+        }
+
+        synchronized List<DiscoveredDevice> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mBatches.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("batch " + count, left > 0);
+                wait(left);
+            }
+            return mBatches.get(count - 1);
+        }
+
+        synchronized int size() {
+            return mBatches.size();
+        }
+    }
+
+    private Batches mBatches;
+    private DiscoveryStream mStream;
+
+    @Before
+    public void setUp() {
+        mBatches = new Batches();
+        mStream = new DiscoveryStream(mBatches);
+        mStream.setBatchInterval(50, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        mStream.close();
+    }
+
+    private static String address(int i) {
+        return String.format("00:11:22:33:%02X:%02X", i / 256, i % 256);
+    }
+
+    private static int countNew(List<DiscoveredDevice> batch) {
+        int count = 0;
+        for (DiscoveredDevice device : batch) {
+            if (device.isNew()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void repeatedInquiriesPassOnOnlyWhatChanged() throws InterruptedException {
+        // Each batch gathers a phase of ten inquiries
+        mStream.setBatchInterval(500, TimeUnit.MILLISECONDS);
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            if (round == 10) {
+                mBatches.await(1);
+            }
+            for (int i = 0; i < 150; i++) {
+                // Names resolve from the third inquiry; the signal jitters
+                // by 3 dBm, below the threshold
+                String name = round >= 2 ? "device" + i : null;
+                int rssi = -60 - i % 30 + random.nextInt(7) - 3;
+                if (round == 10 && i < 10) {
+                    // Ten walk away for one inquiry
+                    rssi -= 20;
+                }
+                mStream.offer(address(i), name, rssi, 0x200);
+            }
+        }
+
+        // Named before their first batch went out, so still new
+        List<DiscoveredDevice> first = mBatches.await(1);
+        assertEquals(150, first.size());
+        assertEquals(150, countNew(first));
+        assertEquals("device0", first.get(0).getName());
+
+        // Moved away and back within one batch, so once each
+        List<DiscoveredDevice> second = mBatches.await(2);
+        assertEquals(10, second.size());
+        assertEquals(0, countNew(second));
+
+        Thread.sleep(600);
+        assertEquals(2, mBatches.size());
+        assertEquals(3000, mStream.getOfferedCount());
+        assertEquals(320, mStream.getPassedCount());
+        assertEquals(150, mStream.getSeenCount());
+        assertEquals("DiscoveryStream", mBatches.mThread);
+    }
+
+    @Test
+    public void aResolvedNameIsAnUpdate() throws InterruptedException {
+        assertTrue(mStream.offer("A", null, -50, 0x200));
+        mBatches.await(1);
+        assertFalse(mStream.offer("A", null, -52, 0x200));
+        assertTrue(mStream.offer("A", "phone", -52, 0x200));
+        DiscoveredDevice device = mBatches.await(2).get(0);
+        assertFalse(device.isNew());
+        assertEquals("phone", device.getName());
+        // A result without a name keeps the one known
+        assertFalse(mStream.offer("A", null, -52, 0x200));
+    }
+
+    @Test
+    public void aThresholdOfZeroPassesEveryChange() {
+        mStream.setRssiThreshold(0);
+        assertTrue(mStream.offer("A", null, -50, 0x200));
+        assertTrue(mStream.offer("A", null, -51, 0x200));
+        assertFalse(mStream.offer("A", null, DiscoveredDevice.RSSI_UNKNOWN, 0x200));
+    }
+
+    @Test
+    public void resetDevicesAreNewAgain() throws InterruptedException {
+        mStream.offer("A", "phone", -50, 0x200);
+        mBatches.await(1);
+        mStream.reset();
+        assertEquals(0, mStream.getSeenCount());
+        assertTrue(mStream.offer("A", "phone", -50, 0x200));
+        assertTrue(mBatches.await(2).get(0).isNew());
+    }
+
+    @Test
+    public void closeDropsWhatWaits() throws InterruptedException {
+        mStream.offer("A", "phone", -50, 0x200);
+        mStream.close();
+        assertFalse(mStream.offer("B", "phone", -50, 0x200));
+        Thread.sleep(100);
+        assertEquals(0, mBatches.size());
+    }
+}
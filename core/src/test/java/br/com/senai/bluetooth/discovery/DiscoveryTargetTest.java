@@ -0,0 +1,60 @@
+package br.com.senai.bluetooth.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class DiscoveryTargetTest {
+
+    // BluetoothClass.Device.Major values
+    private static final int PHONE = 0x0200;
+    private static final int AUDIO_VIDEO = 0x0400;
+
+    @Test
+    public void anAddressMatchesInAnyCase() {
+        DiscoveryTarget target = DiscoveryTarget.address("00:11:22:aa:bb:cc");
+        assertEquals("00:11:22:AA:BB:CC", target.getAddress());
+        assertTrue(target.matches("00:11:22:AA:BB:CC", null, -1));
+        assertTrue(target.matches("00:11:22:aa:bb:cc", "Printer", PHONE));
+        assertFalse(target.matches("00:11:22:AA:BB:CD", null, -1));
+    }
+
+    @Test
+    public void aPrefixIsLiteralAndNeedsTheName() {
+        DiscoveryTarget target = DiscoveryTarget.namePrefix("Senai.");
+        assertNull(target.getAddress());
+        assertTrue(target.matches("01", "Senai.Lab 3", -1));
+        assertTrue(target.matches("01", "Senai.", -1));
+        assertFalse(target.matches("01", "SenaiXLab", -1));
+        assertFalse(target.matches("01", "Lab Senai.", -1));
+        // The name often comes in a later broadcast
+        assertFalse(target.matches("01", null, PHONE));
+    }
+
+    @Test
+    public void aPatternMatchesTheWholeName() {
+        DiscoveryTarget target = DiscoveryTarget.name(Pattern.compile("HC-0[56]"));
+        assertTrue(target.matches("01", "HC-05", -1));
+        assertFalse(target.matches("01", "HC-05 2", -1));
+        assertFalse(target.matches("01", "HC-07", -1));
+    }
+
+    @Test
+    public void aClassNeedsTheClassKnown() {
+        DiscoveryTarget target = DiscoveryTarget.majorDeviceClass(PHONE);
+        assertTrue(target.matches("01", null, PHONE));
+        assertFalse(target.matches("01", "Phone", AUDIO_VIDEO));
+        assertFalse(target.matches("01", "Phone", -1));
+        assertEquals("class 0x200", target.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesANullAddress() {
+        DiscoveryTarget.address(null);
+    }
+}
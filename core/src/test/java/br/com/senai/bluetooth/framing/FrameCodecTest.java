@@ -0,0 +1,156 @@
+package br.com.senai.bluetooth.framing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+
+public class FrameCodecTest {
+
+    // Records every callback of the decoder as a string, payloads included
+    private static class Recorder implements FrameDecoder.Handler {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length) {
+            mEvents.add("frame " + channel + (more ? "+ " : " ")
+                    + Arrays.toString(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+
+        @Override
+        public void onCredit(int credit) {
+            mEvents.add("credit " + credit);
+        }
+
+        @Override
+        public void onControl(byte[] buffer, int offset, int length) {
+            mEvents.add("control "
+                    + Arrays.toString(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+    }
+
+    private static byte[] stream() {
+        byte[] batch = new byte[256];
+        int pos = 0;
+        pos = FrameEncoder.encodeHeader(3, batch, pos);
+        batch[pos++] = 1;
+        batch[pos++] = 2;
+        batch[pos++] = 3;
+        pos = FrameEncoder.encodeHeader(2, 5, 9, true, batch, pos);
+        batch[pos++] = 4;
+        batch[pos++] = 5;
+        pos = FrameEncoder.encodeCredit(300, batch, pos);
+        pos = FrameEncoder.encodeControl(2, new byte[] { 7, 8 }, 0, 2, batch, pos);
+        pos = FrameEncoder.encodeHeader(0, batch, pos);
+        return Arrays.copyOf(batch, pos);
+    }
+
+    private static final List<String> EXPECTED = Arrays.asList(
+            "frame 0 [1, 2, 3]",
+            "credit 5",
+            "frame 9+ [4, 5]",
+            "credit 300",
+            "credit 2",
+            "control [7, 8]",
+            "frame 0 []");
+
+    @Test
+    public void decodesWhatWasEncoded() throws FrameException {
+        Recorder recorder = new Recorder();
+        byte[] data = stream();
+        new FrameDecoder(recorder).feed(data, 0, data.length);
+        assertEquals(EXPECTED, recorder.mEvents);
+    }
+
+    @Test
+    public void decodesAStreamFedOneByteAtATime() throws FrameException {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder, 1024, new BufferPool());
+        byte[] data = stream();
+        for (int i = 0; i < data.length; i++) {
+            decoder.feed(data, i, 1);
+        }
+        assertEquals(EXPECTED, recorder.mEvents);
+    }
+
+    @Test
+    public void reassemblesAFrameSpanningChunks() throws FrameException {
+        byte[] payload = new byte[5000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] frame = FrameEncoder.encode(payload, 0, payload.length);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameDecoder decoder = new FrameDecoder(new Recorder() {
+            @Override
+            public void onFrame(int channel, boolean more, byte[] buffer, int offset,
+                    int length) {
+                out.write(buffer, offset, length);
+            }
+        }, 8192, new BufferPool());
+        for (int off = 0; off < frame.length; off += 1000) {
+            decoder.feed(frame, off, Math.min(1000, frame.length - off));
+        }
+        assertArrayEquals(payload, out.toByteArray());
+    }
+
+    @Test
+    public void headerLengthMatchesWhatIsWritten() {
+        byte[] dst = new byte[FrameEncoder.MAX_HEADER_LENGTH];
+        int[] lengths = { 0, 7, 8, 1023, 1024, 1 << 20, FrameEncoder.MAX_PAYLOAD_LENGTH };
+        for (int length : lengths) {
+            assertEquals(FrameEncoder.headerLength(length, 3, 200),
+                    FrameEncoder.encodeHeader(length, 3, 200, false, dst, 0));
+        }
+    }
+
+    @Test
+    public void refusesTooLongFrames() {
+        byte[] header = new byte[FrameEncoder.MAX_HEADER_LENGTH];
+        int length = FrameEncoder.encodeHeader(2000, header, 0);
+        try {
+            new FrameDecoder(new Recorder(), 1000).feed(header, 0, length);
+            fail();
+        } catch (FrameException expected) {
+        }
+    }
+
+    @Test
+    public void refusesHeaderVarintsOverflowing32Bits() {
+        // Five bytes whose last one sets bits past the 32nd
+        byte[] header = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10 };
+        try {
+            new FrameDecoder(new Recorder()).feed(header, 0, header.length);
+            fail();
+        } catch (FrameException expected) {
+        }
+    }
+
+    @Test
+    public void refusesPayloadLengthsThatDoNotFitTheHeader() {
+        byte[] dst = new byte[FrameEncoder.MAX_HEADER_LENGTH];
+        try {
+            FrameEncoder.encodeHeader(FrameEncoder.MAX_PAYLOAD_LENGTH + 1, dst, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FrameEncoder.headerLength(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FrameEncoder.encodeControl(0, new byte[100], 0, 100, new byte[200], 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package br.com.senai.bluetooth.heartbeat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HeartbeatTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Play the peer: answer a ping with its pong
+    private static byte[] echo(byte[] ping) {
+        return new Heartbeat(1).onControl(ping, 0, ping.length, 0);
+    }
+
+    @Test
+    public void aPongGivesARoundTripSample() {
+        Heartbeat heartbeat = new Heartbeat(3);
+        long start = 1000 * MILLIS;
+        byte[] ping = heartbeat.onTick(start);
+        assertEquals(Heartbeat.TYPE_PING, ping[0]);
+        assertEquals(Heartbeat.PAYLOAD_LENGTH, ping.length);
+
+        byte[] pong = echo(ping);
+        assertEquals(Heartbeat.TYPE_PONG, pong[0]);
+        assertNull(heartbeat.onControl(pong, 0, pong.length, start + 40 * MILLIS));
+        RttEstimator estimator = heartbeat.getEstimator();
+        assertEquals(1, estimator.getSampleCount());
+        assertEquals(40, estimator.getLastRtt(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void answeredPingsAreNeverMissed() {
+        Heartbeat heartbeat = new Heartbeat(1);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 2000 * MILLIS;
+            byte[] pong = echo(heartbeat.onTick(now));
+            heartbeat.onControl(pong, 0, pong.length, now + 10 * MILLIS);
+        }
+        assertEquals(0, heartbeat.getMissedCount());
+    }
+
+    @Test
+    public void aSilentPeerIsDeadAfterMaxMissedAndTheTimeout() {
+        Heartbeat heartbeat = new Heartbeat(3);
+        // With no samples, the timeout is the initial one of 1 s
+        long interval = 100 * MILLIS;
+        long now = 0;
+        assertNotNull(heartbeat.onTick(now));
+        assertNotNull(heartbeat.onTick(now += interval));
+        assertNotNull(heartbeat.onTick(now += interval));
+        // Three unanswered, but only for 300 ms
+        assertNotNull(heartbeat.onTick(now += interval));
+        assertEquals(3, heartbeat.getMissedCount());
+        assertNull(heartbeat.onTick(RttEstimator.DEFAULT_INITIAL_RTO_MILLIS * MILLIS));
+    }
+
+    @Test
+    public void aLatePongStartsTheCountOver() {
+        Heartbeat heartbeat = new Heartbeat(2);
+        long second = 1000 * MILLIS;
+        byte[] ping = heartbeat.onTick(0);
+        heartbeat.onTick(second);
+        byte[] pong = echo(ping);
+        heartbeat.onControl(pong, 0, pong.length, second + 500 * MILLIS);
+        assertNotNull(heartbeat.onTick(2 * second));
+        assertNotNull(heartbeat.onTick(3 * second));
+        assertEquals(2, heartbeat.getMissedCount());
+    }
+
+    @Test
+    public void ignoresOtherControlPayloads() {
+        Heartbeat heartbeat = new Heartbeat(1);
+        assertNull(heartbeat.onControl(new byte[] { Heartbeat.TYPE_PING }, 0, 1, 0));
+        byte[] unknown = new byte[Heartbeat.PAYLOAD_LENGTH];
+        unknown[0] = 9;
+        assertNull(heartbeat.onControl(unknown, 0, unknown.length, 0));
+        assertEquals(0, heartbeat.getEstimator().getSampleCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAtLeastOnePing() {
+        new Heartbeat(0);
+    }
+}
@@ -0,0 +1,88 @@
+package br.com.senai.bluetooth.heartbeat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RttEstimatorTest {
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void usesTheInitialTimeoutBeforeTheFirstSample() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(RttEstimator.DEFAULT_INITIAL_RTO_MILLIS,
+                rtt.getRetransmitTimeout(TimeUnit.MILLISECONDS));
+        assertEquals(0, rtt.getSmoothedRtt(TimeUnit.MILLISECONDS));
+        assertEquals(0, rtt.getSampleCount());
+    }
+
+    @Test
+    public void firstSampleSetsTheAverageAndHalfOfItAsVariance() {
+        RttEstimator rtt = new RttEstimator(1000, 0, 60000);
+        rtt.addSample(millis(100));
+        assertEquals(100, rtt.getSmoothedRtt(TimeUnit.MILLISECONDS));
+        assertEquals(50, rtt.getRttVariance(TimeUnit.MILLISECONDS));
+        // SRTT + 4 * RTTVAR
+        assertEquals(300, rtt.getRetransmitTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void followsTheGainsOfRfc6298() {
+        RttEstimator rtt = new RttEstimator(1000, 0, 60000);
+        rtt.addSample(millis(100));
+        rtt.addSample(millis(180));
+        // RTTVAR = 50 + (80 - 50) / 4, then SRTT = 100 + 80 / 8
+        assertEquals(57500, rtt.getRttVariance(TimeUnit.MICROSECONDS));
+        assertEquals(110, rtt.getSmoothedRtt(TimeUnit.MILLISECONDS));
+        assertEquals(180, rtt.getLastRtt(TimeUnit.MILLISECONDS));
+        assertEquals(2, rtt.getSampleCount());
+    }
+
+    @Test
+    public void steadySamplesShrinkTheTimeoutToTheBound() {
+        RttEstimator rtt = new RttEstimator();
+        for (int i = 0; i < 100; i++) {
+            rtt.addSample(millis(20));
+        }
+        assertEquals(20, rtt.getSmoothedRtt(TimeUnit.MILLISECONDS));
+        assertEquals(RttEstimator.DEFAULT_MIN_RTO_MILLIS,
+                rtt.getRetransmitTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timeoutStaysWithinTheBounds() {
+        RttEstimator rtt = new RttEstimator(1000, 200, 5000);
+        rtt.addSample(millis(10000));
+        assertEquals(5000, rtt.getRetransmitTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void ignoresNegativeSamples() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.addSample(-1);
+        assertEquals(0, rtt.getSampleCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesInvertedBounds() {
+        new RttEstimator(1000, 500, 100);
+    }
+
+    @Test
+    public void jitterRaisesTheTimeout() {
+        RttEstimator steady = new RttEstimator(1000, 0, 60000);
+        RttEstimator jittery = new RttEstimator(1000, 0, 60000);
+        for (int i = 0; i < 50; i++) {
+            steady.addSample(millis(50));
+            jittery.addSample(millis(i % 2 == 0 ? 10 : 90));
+        }
+        assertTrue(jittery.getRetransmitTimeout(TimeUnit.MILLISECONDS)
+                > steady.getRetransmitTimeout(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,236 @@
+package br.com.senai.bluetooth.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import br.com.senai.bluetooth.Await;
+import br.com.senai.bluetooth.buffer.BufferPool;
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.framing.FrameDecoder;
+import br.com.senai.bluetooth.framing.FrameException;
+
+public class CoalescingWriterTest {
+
+    // Decodes what the writer wrote into one string per frame
+    private static class Recorder implements FrameDecoder.Handler {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onFrame(int channel, boolean more, byte[] buffer, int offset, int length) {
+            mEvents.add("frame " + channel + " " + length);
+        }
+
+        @Override
+        public void onCredit(int credit) {
+            mEvents.add("credit " + credit);
+        }
+
+        @Override
+        public void onControl(byte[] buffer, int offset, int length) {
+            mEvents.add("control " + length);
+        }
+    }
+
+    // ByteArrayOutputStream is synchronized, so the test may read it while
+    // the writer thread writes
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    private CoalescingWriter mWriter;
+    private Thread mThread;
+
+    private CoalescingWriter newWriter() {
+        mWriter = new CoalescingWriter(mOut, new CoalescingWriter.Callback() {
+            @Override
+            public void onWriteError(IOException e) {
+                throw new AssertionError(e);
+            }
+        }, new BufferPool(), 1024);
+        return mWriter;
+    }
+
+    private void start() {
+        mThread = new Thread(mWriter, "writer");
+        mThread.start();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        if (mThread != null) {
+            mThread.join(5000);
+            assertFalse(mThread.isAlive());
+        }
+    }
+
+    private static PooledBuffer message(int length) {
+        return PooledBuffer.wrap(new byte[length]);
+    }
+
+    private List<String> decode() throws FrameException {
+        Recorder recorder = new Recorder();
+        byte[] data = mOut.toByteArray();
+        new FrameDecoder(recorder).feed(data, 0, data.length);
+        return recorder.mEvents;
+    }
+
+    @Test
+    public void writesEveryMessageInOrder() throws Exception {
+        newWriter();
+        start();
+        for (int i = 1; i <= 50; i++) {
+            assertTrue(mWriter.write(3, message(i)));
+        }
+        Await.until("messages written", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getMessagesWritten(3) == 50;
+            }
+        });
+        List<String> events = decode();
+        assertEquals(50, events.size());
+        for (int i = 1; i <= 50; i++) {
+            assertEquals("frame 3 " + i, events.get(i - 1));
+        }
+        assertEquals(50, mWriter.getFramesWritten());
+    }
+
+    @Test
+    public void waitsForCreditAndResumesOnAGrant() throws Exception {
+        newWriter();
+        mWriter.enableFlowControl(2, 1);
+        start();
+        for (int i = 0; i < 5; i++) {
+            mWriter.write(0, message(10));
+        }
+        Await.until("a stall", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getCreditStalls() == 1;
+            }
+        });
+        assertEquals(2, mWriter.getFramesWritten());
+        assertEquals(0, mWriter.getSendCredits());
+
+        mWriter.addCredits(3);
+        Await.until("the rest written", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getFramesWritten() == 5;
+            }
+        });
+        assertEquals(3, mWriter.getCreditsReceived());
+        assertEquals(0, mWriter.getQueuedBytes());
+    }
+
+    @Test
+    public void controlFramesNeedNoCredit() throws Exception {
+        newWriter();
+        mWriter.enableFlowControl(0, 1);
+        mWriter.write(0, message(10));
+        mWriter.writeControl(new byte[] { 1, 2, 3 });
+        start();
+        Await.until("the control frame", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mOut.size() > 0;
+            }
+        });
+        assertEquals(0, mWriter.getFramesWritten());
+        assertEquals("control 3", decode().get(0));
+    }
+
+    @Test
+    public void grantsGoOutAloneOnceTheyReachTheThreshold() throws Exception {
+        newWriter();
+        mWriter.enableFlowControl(10, 4);
+        start();
+        mWriter.grantCredits(3);
+        Thread.sleep(50);
+        assertEquals(0, mOut.size());
+        mWriter.grantCredits(2);
+        Await.until("the grant", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getCreditsGranted() == 5;
+            }
+        });
+        assertEquals("credit 5", decode().get(0));
+    }
+
+    @Test
+    public void anUrgentChannelOvertakesABulkTransfer() throws Exception {
+        newWriter();
+        mWriter.setFragmentSize(100);
+        mWriter.setChannelPriority(1, 1, 1);
+        mWriter.enableFlowControl(1, 1);
+        start();
+        // The first fragment of the transfer goes out, then credit runs out
+        mWriter.write(0, message(1000));
+        Await.until("a stall", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getCreditStalls() == 1;
+            }
+        });
+        mWriter.write(1, message(10));
+        mWriter.addCredits(100);
+        Await.until("both written", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getMessagesWritten() == 2;
+            }
+        });
+        List<String> events = decode();
+        assertEquals(11, events.size());
+        assertEquals("frame 0 100", events.get(0));
+        assertEquals("frame 1 10", events.get(1));
+        assertEquals(10, mWriter.getFragmentsWritten(0));
+    }
+
+    @Test
+    public void equalChannelsShareByWeight() throws Exception {
+        newWriter();
+        mWriter.setFragmentSize(100);
+        mWriter.setChannelPriority(0, 0, 3);
+        mWriter.enableFlowControl(0, 1);
+        start();
+        mWriter.write(0, message(2000));
+        mWriter.write(1, message(2000));
+        mWriter.addCredits(16);
+        Await.until("the credit used", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mWriter.getFramesWritten() == 16;
+            }
+        });
+        assertEquals(12, mWriter.getFragmentsWritten(0));
+        assertEquals(4, mWriter.getFragmentsWritten(1));
+    }
+
+    @Test
+    public void dropsMessagesPastTheQueueLimit() {
+        newWriter();
+        mWriter.setMaxQueuedBytes(100);
+        assertTrue(mWriter.write(0, message(500)));
+        assertFalse(mWriter.write(0, message(1)));
+        assertTrue(mWriter.write(1, message(60)));
+        assertTrue(mWriter.write(1, message(40)));
+        assertFalse(mWriter.write(1, message(1)));
+        assertEquals(600, mWriter.getQueuedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnknownChannels() {
+        newWriter().write(CoalescingWriter.MAX_CHANNELS, message(1));
+    }
+}
@@ -0,0 +1,172 @@
+package br.com.senai.bluetooth.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import br.com.senai.bluetooth.Await;
+
+public class IoExecutorTest {
+
+    // Blocks until released or cancelled, and records what happened to it
+    private static class Blocker extends IoExecutor.Task {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger mRuns = new AtomicInteger();
+        final AtomicInteger mDones = new AtomicInteger();
+        volatile String mThreadName;
+
+        Blocker(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void runTask() {
+            mRuns.incrementAndGet();
+            mThreadName = Thread.currentThread().getName();
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            mRelease.countDown();
+        }
+
+        @Override
+        protected void onDone() {
+            mDones.incrementAndGet();
+            mDone.countDown();
+        }
+    }
+
+    @Test
+    public void runsTasksUnderTheirOwnName() throws InterruptedException {
+        IoExecutor executor = new IoExecutor("io", 2);
+        Blocker task = new Blocker("ConnectThread");
+        executor.execute(task);
+        assertTrue(task.mStarted.await(5, TimeUnit.SECONDS));
+        assertEquals("ConnectThread", task.mThreadName);
+        task.mRelease.countDown();
+        assertTrue(task.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, task.mDones.get());
+    }
+
+    @Test
+    public void queuesTasksPastTheThreadLimit() throws InterruptedException {
+        IoExecutor executor = new IoExecutor("io", 1);
+        Blocker first = new Blocker("first");
+        Blocker second = new Blocker("second");
+        executor.execute(first);
+        executor.execute(second);
+        assertTrue(first.mStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getQueuedCount());
+
+        first.mRelease.countDown();
+        assertTrue(second.mStarted.await(5, TimeUnit.SECONDS));
+        second.mRelease.countDown();
+        assertTrue(second.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getThreadsCreated());
+    }
+
+    @Test
+    public void aQueuedTaskCancelledNeverRuns() throws InterruptedException {
+        IoExecutor executor = new IoExecutor("io", 1);
+        Blocker first = new Blocker("first");
+        Blocker second = new Blocker("second");
+        executor.execute(first);
+        executor.execute(second);
+        assertTrue(first.mStarted.await(5, TimeUnit.SECONDS));
+
+        second.cancel();
+        second.cancel();
+        assertTrue(second.isCancelled());
+        assertEquals(1, second.mDones.get());
+        first.cancel();
+        assertTrue(first.mDone.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(0, second.mRuns.get());
+        assertEquals(1, second.mDones.get());
+        assertEquals(1, first.mDones.get());
+    }
+
+    @Test
+    public void reportsATaskThatDies() throws InterruptedException {
+        IoExecutor executor = new IoExecutor("io", 1);
+        final IllegalStateException failure = new IllegalStateException("broken");
+        final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new IoExecutor.Task("failing") {
+            @Override
+            protected void runTask() {
+                throw failure;
+            }
+
+            @Override
+            protected void onCancel() {
+            }
+
+            @Override
+            protected void onError(RuntimeException e) {
+                error.set(e);
+            }
+
+            @Override
+            protected void onDone() {
+                // After onError, so whoever waits on it sees the failure
+                if (error.get() == failure) {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(failure, error.get());
+
+        // The thread survives for the next task
+        Blocker next = new Blocker("next");
+        executor.execute(next);
+        assertTrue(next.mStarted.await(5, TimeUnit.SECONDS));
+        next.mRelease.countDown();
+        assertTrue(next.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getThreadsCreated());
+    }
+
+    @Test
+    public void shutdownEndsTheThreadsAndALaterTaskStartsNewOnes()
+            throws InterruptedException {
+        final IoExecutor executor = new IoExecutor("io", 2);
+        Blocker first = new Blocker("first");
+        executor.execute(first);
+        assertTrue(first.mStarted.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        // A running task is left to finish
+        assertEquals(1, executor.getActiveCount());
+        first.cancel();
+        assertTrue(first.mDone.await(5, TimeUnit.SECONDS));
+        Await.until("the thread to end", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return executor.getPoolSize() == 0;
+            }
+        });
+
+        Blocker second = new Blocker("second");
+        executor.execute(second);
+        assertTrue(second.mStarted.await(5, TimeUnit.SECONDS));
+        second.mRelease.countDown();
+        assertTrue(second.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, executor.getThreadsCreated());
+    }
+}
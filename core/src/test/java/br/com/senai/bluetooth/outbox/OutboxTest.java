@@ -0,0 +1,195 @@
+package br.com.senai.bluetooth.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import br.com.senai.bluetooth.buffer.BufferPool;
+
+public class OutboxTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BufferPool mPool = new BufferPool();
+    private Outbox mOutbox;
+
+    @Before
+    public void setUp() throws IOException {
+        mOutbox = new Outbox(mFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mOutbox.close();
+    }
+
+    private void offer(String address, String text) throws IOException {
+        byte[] data = text.getBytes(UTF_8);
+        assertTrue(mOutbox.offer(address, 0, data, 0, data.length));
+    }
+
+    // Read everything left in a session, committing the first commitCount
+    private List<String> read(String address, int session, int commitCount)
+            throws IOException {
+        List<Outbox.Message> messages = new ArrayList<Outbox.Message>();
+        while (mOutbox.read(address, session, 64, mPool, messages)) {
+        }
+        List<String> texts = new ArrayList<String>();
+        for (Outbox.Message message : messages) {
+            texts.add(new String(message.getPayload().array(), 0,
+                    message.getPayload().length(), UTF_8));
+            message.getPayload().release();
+            if (texts.size() == commitCount) {
+                mOutbox.commit(address, session, message.getPosition());
+            }
+        }
+        return texts;
+    }
+
+    @Test
+    public void keepsEachDevicesMessagesInOrder() throws IOException {
+        offer("A", "a1");
+        offer("B", "b1");
+        offer("A", "a2");
+        offer("B", "b2");
+        assertEquals(Arrays.asList("a1", "a2"), read("A", mOutbox.openSession("A"), 0));
+        assertEquals(Arrays.asList("b1", "b2"), read("B", mOutbox.openSession("B"), 0));
+    }
+
+    @Test
+    public void aDeviceIsLiveOnceEverythingIsRead() throws IOException {
+        offer("A", "a1");
+        int session = mOutbox.openSession("A");
+        read("A", session, 1);
+        assertFalse(mOutbox.offer("A", 0, new byte[1], 0, 1));
+        assertFalse(mOutbox.hasPending("A"));
+
+        mOutbox.closeSession("A", session);
+        offer("A", "a2");
+        assertTrue(mOutbox.hasPending("A"));
+    }
+
+    @Test
+    public void sendsAgainWhatWasNotCommitted() throws IOException {
+        offer("A", "a1");
+        offer("A", "a2");
+        offer("A", "a3");
+        int session = mOutbox.openSession("A");
+        assertEquals(Arrays.asList("a1", "a2", "a3"), read("A", session, 1));
+        mOutbox.closeSession("A", session);
+
+        assertEquals(Arrays.asList("a2", "a3"), read("A", mOutbox.openSession("A"), 0));
+    }
+
+    @Test
+    public void ignoresCommitsOfAnEndedSession() throws IOException {
+        offer("A", "a1");
+        int session = mOutbox.openSession("A");
+        List<Outbox.Message> messages = new ArrayList<Outbox.Message>();
+        mOutbox.read("A", session, 64, mPool, messages);
+        int next = mOutbox.openSession("A");
+        mOutbox.commit("A", session, messages.get(0).getPosition());
+        assertEquals(Arrays.asList("a1"), read("A", next, 0));
+    }
+
+    @Test
+    public void recoversMessagesAndCursorsAfterARestart() throws IOException {
+        offer("A", "a1");
+        offer("A", "a2");
+        offer("B", "b1");
+        read("A", mOutbox.openSession("A"), 1);
+        mOutbox.close();
+
+        mOutbox = new Outbox(mFolder.getRoot());
+        assertTrue(mOutbox.hasPending("A"));
+        assertEquals(Arrays.asList("a2"), read("A", mOutbox.openSession("A"), 0));
+        assertEquals(Arrays.asList("b1"), read("B", mOutbox.openSession("B"), 0));
+    }
+
+    @Test
+    public void cutsATornRecordOnRecovery() throws IOException {
+        offer("A", "a1");
+        offer("A", "a2");
+        long size = mOutbox.getSize();
+        offer("A", "a3");
+        mOutbox.close();
+
+        // Lose the end of the last record, as a crash mid-write would
+        File[] segments = mFolder.getRoot().listFiles();
+        assertEquals(1, segments.length);
+        FileOutputStream out = new FileOutputStream(segments[0], true);
+        try {
+            out.getChannel().truncate(out.getChannel().size() - 1);
+        } finally {
+            out.close();
+        }
+
+        mOutbox = new Outbox(mFolder.getRoot());
+        assertEquals(size, mOutbox.getSize());
+        int session = mOutbox.openSession("A");
+        assertEquals(Arrays.asList("a1", "a2"), read("A", session, 0));
+        mOutbox.closeSession("A", session);
+        offer("A", "a4");
+        assertEquals(Arrays.asList("a1", "a2", "a4"), read("A", mOutbox.openSession("A"), 0));
+    }
+
+    @Test
+    public void skipsExpiredMessages() throws Exception {
+        byte[] data = "old".getBytes(UTF_8);
+        mOutbox.offer("A", 0, data, 0, data.length, 1, TimeUnit.MILLISECONDS);
+        offer("A", "new");
+        Thread.sleep(20);
+        assertEquals(Arrays.asList("new"), read("A", mOutbox.openSession("A"), 0));
+        assertEquals(1, mOutbox.getExpiredCount());
+    }
+
+    @Test
+    public void deletesSegmentsOnceEveryDeviceIsPastThem() throws IOException {
+        mOutbox.close();
+        mOutbox = new Outbox(mFolder.getRoot(), 1024, 1024 * 1024);
+        byte[] data = new byte[300];
+        for (int i = 0; i < 20; i++) {
+            mOutbox.offer(i % 2 == 0 ? "A" : "B", 0, data, 0, data.length);
+        }
+        long size = mOutbox.getSize();
+        read("A", mOutbox.openSession("A"), 10);
+        // B still needs every segment
+        assertEquals(size, mOutbox.getSize());
+        read("B", mOutbox.openSession("B"), 10);
+        assertTrue(mOutbox.getSize() < 1024);
+    }
+
+    @Test
+    public void refusesMessagesOnceFull() throws IOException {
+        mOutbox.close();
+        mOutbox = new Outbox(mFolder.getRoot(), 1024, 4096);
+        byte[] data = new byte[1000];
+        try {
+            for (int i = 0; i < 5; i++) {
+                mOutbox.offer("A", 0, data, 0, data.length);
+            }
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(mOutbox.getSize() <= 4096);
+    }
+}
@@ -0,0 +1,223 @@
+package br.com.senai.bluetooth.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import br.com.senai.bluetooth.Await;
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.MessageListener;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+import br.com.senai.bluetooth.transport.Transport;
+import br.com.senai.bluetooth.transport.TransportProvider;
+import br.com.senai.bluetooth.transport.TransportServer;
+
+public class WarmPoolTest {
+
+    private static final String[] DEVICES = { "D0", "D1", "D2", "D3" };
+    private static final long CONNECT_MILLIS = 1500;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final PipeTransportProvider.Network mNetwork = new PipeTransportProvider.Network();
+    private final List<BluetoothService> mServices = new ArrayList<BluetoothService>();
+    // When each device got its first message
+    private final ConcurrentHashMap<String, Long> mReceived = new ConcurrentHashMap<String, Long>();
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "warm");
+        for (final String device : DEVICES) {
+            BluetoothService service = start(new PipeTransportProvider(mNetwork, device));
+            service.addMessageListener(new MessageListener() {
+                @Override
+                public void onMessage(String address, int channel, ByteBuffer payload) {
+                    mReceived.putIfAbsent(device, System.nanoTime());
+                }
+            });
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (BluetoothService service : mServices) {
+            service.stop();
+        }
+    }
+
+    private BluetoothService start(TransportProvider provider) {
+        BluetoothService service = new BluetoothService(provider);
+        service.start();
+        mServices.add(service);
+        return service;
+    }
+
+    // A radio whose connects take CONNECT_MILLIS
+    private static TransportProvider slow(final TransportProvider provider) {
+        return new TransportProvider() {
+            @Override
+            public TransportServer listen(boolean secure) throws IOException {
+                return provider.listen(secure);
+            }
+
+            @Override
+            public Transport create(String address, boolean secure) throws IOException {
+                final Transport transport = provider.create(address, secure);
+                return new Transport() {
+                    @Override
+                    public void connect() throws IOException {
+                        try {
+                            Thread.sleep(CONNECT_MILLIS);
+                        } catch (InterruptedException e) {
+                            throw new IOException("interrupted");
+                        }
+                        transport.connect();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return transport.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return transport.getOutputStream();
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return transport.getRemoteAddress();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        transport.close();
+                    }
+                };
+            }
+        };
+    }
+
+    // Use the devices 3, 2, 1 and 0 times, then restart with a slow radio
+    // and warm the pool from the saved scores
+    private WarmPool restartWarm() throws InterruptedException {
+        BluetoothService first = start(new PipeTransportProvider(mNetwork, "C1"));
+        WarmPool pool = new WarmPool(first, mFile);
+        int[] uses = { 3, 2, 1, 0 };
+        for (int i = 0; i < DEVICES.length; i++) {
+            for (int k = 0; k < uses[i]; k++) {
+                pool.connect(DEVICES[i], true);
+            }
+        }
+        first.stop();
+
+        final BluetoothService service =
+                start(slow(new PipeTransportProvider(mNetwork, "C2")));
+        pool = new WarmPool(service, mFile);
+        pool.warm(null);
+        Await.until("the warm connections", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return service.getConnectedAddresses().size() == 3;
+            }
+        });
+        return pool;
+    }
+
+    // Connect through the pool and return how long the first message took
+    private long firstMessageMillis(WarmPool pool, BluetoothService service, String device)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        pool.connect(device, true);
+        while (!service.write(device, new byte[] { 1 })) {
+            Thread.sleep(1);
+        }
+        while (mReceived.get(device) == null) {
+            Thread.sleep(1);
+        }
+        return (mReceived.get(device) - start) / 1000000;
+    }
+
+    @Test
+    public void warmsTheBestScoredDevicesAfterARestart() throws InterruptedException {
+        WarmPool pool = restartWarm();
+        assertEquals(new HashSet<String>(Arrays.asList("D0", "D1", "D2")),
+                pool.getWarmAddresses());
+    }
+
+    @Test
+    public void aWarmDeviceIsReadyAtOnce() throws InterruptedException {
+        WarmPool pool = restartWarm();
+        BluetoothService service = mServices.get(mServices.size() - 1);
+
+        long warm = firstMessageMillis(pool, service, "D0");
+        assertTrue("warm device took " + warm + " ms", warm < 500);
+        long cold = firstMessageMillis(pool, service, "D3");
+        assertTrue("cold device took " + cold + " ms", cold >= CONNECT_MILLIS);
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void onlyPairedCandidatesAreWarmed() throws InterruptedException {
+        BluetoothService service = start(new PipeTransportProvider(mNetwork, "C1"));
+        WarmPool pool = new WarmPool(service, mFile);
+        pool.connect("D0", true);
+        pool.connect("D1", true);
+        pool.release("D0");
+        pool.release("D1");
+        pool.warm(Arrays.asList("D1"));
+        // D1 is the only candidate, so D0 is closed
+        assertEquals(new HashSet<String>(Arrays.asList("D1")), pool.getWarmAddresses());
+        assertFalse(pool.getWarmAddresses().contains("D0"));
+    }
+
+    @Test
+    public void neverClosesAConnectionTheCallerOwns() throws InterruptedException {
+        final BluetoothService service = start(new PipeTransportProvider(mNetwork, "C1"));
+        WarmPool pool = new WarmPool(service, mFile, 1, WarmPool.DEFAULT_HALF_LIFE_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            pool.connect(DEVICES[i], true);
+        }
+        Await.until("the connections", 10000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return service.getConnectedAddresses().size() == 3;
+            }
+        });
+        Thread.sleep(200);
+        assertEquals(BluetoothService.STATE_CONNECTED, service.getState("D0"));
+        assertTrue(pool.getWarmAddresses().isEmpty());
+
+        // Handed back, D0 takes the pool's one place, and D1 stays the caller's
+        pool.release("D0");
+        assertEquals(new HashSet<String>(Arrays.asList("D0")), pool.getWarmAddresses());
+        pool.connect(DEVICES[3], true);
+        assertEquals(BluetoothService.STATE_CONNECTED, service.getState("D1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leavesRoomForOtherConnections() {
+        new WarmPool(start(new PipeTransportProvider(mNetwork, "C1")), mFile,
+                BluetoothService.MAX_CONNECTIONS, WarmPool.DEFAULT_HALF_LIFE_MILLIS);
+    }
+}
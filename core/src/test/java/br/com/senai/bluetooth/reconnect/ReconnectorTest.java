@@ -0,0 +1,102 @@
+package br.com.senai.bluetooth.reconnect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReconnectorTest {
+
+    // Counts the attempts run
+    private static class Dial implements Runnable {
+        final AtomicInteger mRuns = new AtomicInteger();
+        final CountDownLatch mRan = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            mRuns.incrementAndGet();
+            mRan.countDown();
+        }
+    }
+
+    @Test
+    public void delaysDoubleUpToTheCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 10000, 2.0, 0.0, 8);
+        Random random = new Random(1);
+        long[] expected = { 1000, 2000, 4000, 8000, 10000, 10000, 10000, 10000, -1 };
+        for (int attempt = 0; attempt < expected.length; attempt++) {
+            assertEquals(expected[attempt], policy.getDelayMillis(attempt, random));
+        }
+    }
+
+    @Test
+    public void jitterStaysWithinItsShare() {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 60000, 2.0, 0.5, 10);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelayMillis(2, random);
+            assertTrue("delay " + delay, delay >= 2000 && delay <= 4000);
+        }
+    }
+
+    @Test
+    public void neverGivesUpAtOnce() {
+        assertEquals(-1, ReconnectPolicy.NEVER.getDelayMillis(0, new Random()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAShrinkingDelay() {
+        new ReconnectPolicy(1000, 1000, 0.5, 0.0, 1);
+    }
+
+    @Test
+    public void countsAttemptsUntilThePolicyGivesUp() throws InterruptedException {
+        Reconnector reconnector = new Reconnector(new ReconnectPolicy(10, 40, 2.0, 0.0, 3));
+        Dial dial = new Dial();
+        assertEquals(10, reconnector.schedule("A", dial));
+        assertEquals(20, reconnector.schedule("A", dial));
+        assertEquals(40, reconnector.schedule("A", dial));
+        assertEquals(3, reconnector.getAttempts("A"));
+        // Each schedule replaced the pending attempt, so only the last runs
+        assertTrue(dial.mRan.await(5, TimeUnit.SECONDS));
+        assertEquals(-1, reconnector.schedule("A", dial));
+        assertEquals(0, reconnector.getAttempts("A"));
+        Thread.sleep(100);
+        assertEquals(1, dial.mRuns.get());
+    }
+
+    @Test
+    public void resetStartsOverAndCancels() throws InterruptedException {
+        Reconnector reconnector = new Reconnector(new ReconnectPolicy(100, 1000, 2.0, 0.0, 5));
+        Dial a = new Dial();
+        Dial b = new Dial();
+        reconnector.schedule("A", a);
+        reconnector.schedule("A", a);
+        reconnector.schedule("B", b);
+        reconnector.reset("A");
+        assertEquals(0, reconnector.getAttempts("A"));
+        assertEquals(1, reconnector.getAttempts("B"));
+        assertEquals(100, reconnector.schedule("A", a));
+
+        reconnector.cancelAll();
+        assertEquals(0, reconnector.getAttempts("A"));
+        assertEquals(0, reconnector.getAttempts("B"));
+        Thread.sleep(300);
+        assertEquals(0, a.mRuns.get());
+        assertEquals(0, b.mRuns.get());
+    }
+
+    @Test
+    public void aNewPolicyAppliesToTheNextAttempt() {
+        Reconnector reconnector = new Reconnector(ReconnectPolicy.NEVER);
+        assertEquals(-1, reconnector.schedule("A", new Dial()));
+        reconnector.setPolicy(new ReconnectPolicy(5000, 5000, 1.0, 0.0, 1));
+        assertEquals(5000, reconnector.schedule("A", new Dial()));
+        reconnector.cancelAll();
+    }
+}
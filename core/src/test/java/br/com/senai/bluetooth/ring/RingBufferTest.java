@@ -0,0 +1,136 @@
+package br.com.senai.bluetooth.ring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    private static final int MESSAGES = 100000;
+
+    // Checks that entries arrive numbered 0, 1, 2... and counts them
+    private static class Checker implements RingBuffer.Handler {
+        long mNext;
+        long mErrors;
+
+        @Override
+        public void onEntry(RingBuffer.Entry entry, long sequence, boolean endOfBatch) {
+            ByteBuffer view = entry.view();
+            if (sequence != mNext || view.remaining() != 8 || view.getLong(0) != mNext) {
+                mErrors++;
+            }
+            mNext++;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesACapacityThatIsNotAPowerOfTwo() {
+        new RingBuffer(100, new ParkingWaitStrategy());
+    }
+
+    @Test
+    public void everyConsumerSeesEveryEntryInOrder() throws InterruptedException {
+        everyConsumerSeesEveryEntryInOrder(new ParkingWaitStrategy());
+        everyConsumerSeesEveryEntryInOrder(new YieldingWaitStrategy());
+        everyConsumerSeesEveryEntryInOrder(new BusySpinWaitStrategy());
+    }
+
+    private void everyConsumerSeesEveryEntryInOrder(WaitStrategy waitStrategy)
+            throws InterruptedException {
+        RingBuffer ring = new RingBuffer(64, waitStrategy);
+        Thread[] threads = new Thread[2];
+        final Checker[] checkers = new Checker[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final RingBuffer.Consumer consumer = ring.addConsumer();
+            final Checker checker = new Checker();
+            checkers[i] = checker;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (consumer.process(checker) >= 0) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // A ring far smaller than the stream makes the producer wait
+        byte[] message = new byte[8];
+        for (long i = 0; i < MESSAGES; i++) {
+            ByteBuffer.wrap(message).putLong(0, i);
+            assertTrue(ring.publish(message, 0, message.length));
+        }
+        ring.halt();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(10000);
+            assertEquals(MESSAGES, checkers[i].mNext);
+            assertEquals(0, checkers[i].mErrors);
+        }
+        assertEquals(0, ring.getBacklog());
+    }
+
+    @Test
+    public void consumersProcessRunsOfEntries() {
+        RingBuffer ring = new RingBuffer(16, new ParkingWaitStrategy());
+        RingBuffer.Consumer consumer = ring.addConsumer();
+        for (int i = 0; i < 10; i++) {
+            ring.publish(i, new byte[] { (byte) i }, 0, 1);
+        }
+        assertEquals(10, ring.getBacklog());
+        final AtomicLong tags = new AtomicLong();
+        final AtomicLong ends = new AtomicLong();
+        assertEquals(10, consumer.process(new RingBuffer.Handler() {
+            @Override
+            public void onEntry(RingBuffer.Entry entry, long sequence, boolean endOfBatch) {
+                tags.addAndGet(entry.tag());
+                if (endOfBatch) {
+                    ends.incrementAndGet();
+                }
+            }
+        }));
+        assertEquals(45, tags.get());
+        assertEquals(1, ends.get());
+        assertEquals(9, consumer.getSequence());
+    }
+
+    @Test
+    public void haltReleasesAWaitingProducer() throws InterruptedException {
+        final RingBuffer ring = new RingBuffer(4, new ParkingWaitStrategy());
+        ring.addConsumer();
+        for (int i = 0; i < 4; i++) {
+            ring.publish(new byte[1], 0, 1);
+        }
+        final boolean[] published = { true };
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                // The consumer never moves, so this waits until the halt
+                published[0] = ring.publish(new byte[1], 0, 1);
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        ring.halt();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertFalse(published[0]);
+    }
+
+    @Test
+    public void removedConsumersNoLongerHoldTheProducer() {
+        RingBuffer ring = new RingBuffer(4, new ParkingWaitStrategy());
+        RingBuffer.Consumer consumer = ring.addConsumer();
+        for (int i = 0; i < 4; i++) {
+            ring.publish(new byte[1], 0, 1);
+        }
+        ring.removeConsumer(consumer);
+        // Would wait forever with the consumer still there
+        assertTrue(ring.publish(new byte[1], 0, 1));
+    }
+}
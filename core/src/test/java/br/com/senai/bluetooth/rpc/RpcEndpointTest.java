@@ -0,0 +1,238 @@
+package br.com.senai.bluetooth.rpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.senai.bluetooth.Await;
+import br.com.senai.bluetooth.BluetoothService;
+import br.com.senai.bluetooth.transport.PipeTransportProvider;
+
+public class RpcEndpointTest {
+
+    private static final int CHANNEL = 1;
+
+    // Keeps every request and its reply, to answer them later
+    private static class Held implements RequestHandler {
+        final List<byte[]> mRequests = new ArrayList<byte[]>();
+        final List<RpcReply> mReplies = new ArrayList<RpcReply>();
+
+        @Override
+        public synchronized void onRequest(String address, ByteBuffer request, RpcReply reply) {
+            byte[] copy = new byte[request.remaining()];
+            request.get(copy);
+            mRequests.add(copy);
+            mReplies.add(reply);
+        }
+
+        synchronized int size() {
+            return mReplies.size();
+        }
+
+        synchronized RpcReply reply(int index) {
+            return mReplies.get(index);
+        }
+    }
+
+    private BluetoothService mServer;
+    private BluetoothService mClient;
+    private RpcEndpoint mServerEndpoint;
+    private RpcEndpoint mClientEndpoint;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        PipeTransportProvider.Network network = new PipeTransportProvider.Network();
+        mServer = new BluetoothService(new PipeTransportProvider(network, "A"));
+        mClient = new BluetoothService(new PipeTransportProvider(network, "B"));
+        mServerEndpoint = new RpcEndpoint(mServer, CHANNEL);
+        mClientEndpoint = new RpcEndpoint(mClient, CHANNEL);
+        mServer.start();
+        mClient.start();
+        mClient.connect("A", true);
+        Await.until("a connection", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClient.getState("A") == BluetoothService.STATE_CONNECTED
+                        && mServer.getState("B") == BluetoothService.STATE_CONNECTED;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mClientEndpoint.close();
+        mServerEndpoint.close();
+        mClient.stop();
+        mServer.stop();
+    }
+
+    private Held hold() {
+        final Held held = new Held();
+        mServerEndpoint.setRequestHandler(held);
+        return held;
+    }
+
+    private static void awaitRequests(final Held held, final int count)
+            throws InterruptedException {
+        Await.until(count + " requests", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return held.size() == count;
+            }
+        });
+    }
+
+    @Test
+    public void answersComeBackToTheirOwnCalls() throws Exception {
+        Held held = hold();
+        List<Future<byte[]>> calls = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 3; i++) {
+            calls.add(mClientEndpoint.call("A", new byte[] { (byte) i }, 5, TimeUnit.SECONDS));
+        }
+        awaitRequests(held, 3);
+        assertEquals(3, mClientEndpoint.getCallsInFlight());
+
+        // Answer in reverse order, each with its own request
+        for (int i = 2; i >= 0; i--) {
+            assertTrue(held.reply(i).send(held.mRequests.get(i)));
+            assertArrayEquals(new byte[] { (byte) i }, calls.get(i).get(5, TimeUnit.SECONDS));
+            for (int k = 0; k < i; k++) {
+                assertFalse(calls.get(k).isDone());
+            }
+        }
+        Await.until("the calls counted", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClientEndpoint.getCallsSucceeded() == 3
+                        && mClientEndpoint.getCallsInFlight() == 0;
+            }
+        });
+        assertEquals(3, mServerEndpoint.getRequestsReceived());
+    }
+
+    @Test
+    public void anErrorReplyFailsTheCall() throws Exception {
+        Held held = hold();
+        Future<byte[]> call = mClientEndpoint.call("A", new byte[0], 5, TimeUnit.SECONDS);
+        awaitRequests(held, 1);
+        assertTrue(held.reply(0).fail("no such thing"));
+        // Only the first reply counts
+        assertFalse(held.reply(0).send(new byte[0]));
+        try {
+            call.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RpcException);
+            assertEquals("no such thing", expected.getCause().getMessage());
+        }
+        Await.until("the failure counted", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClientEndpoint.getCallsFailed() == 1;
+            }
+        });
+    }
+
+    @Test
+    public void aLateResponseIsDropped() throws Exception {
+        Held held = hold();
+        Future<byte[]> call = mClientEndpoint.call("A", new byte[0], 100, TimeUnit.MILLISECONDS);
+        awaitRequests(held, 1);
+        try {
+            call.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertEquals("Call timed out", expected.getCause().getMessage());
+        }
+        // Counted once the waiter is woken
+        Await.until("the timeout counted", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClientEndpoint.getCallsTimedOut() == 1
+                        && mClientEndpoint.getCallsInFlight() == 0;
+            }
+        });
+        held.reply(0).send(new byte[] { 1 });
+        Await.until("the late response", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClientEndpoint.getLateResponses() == 1;
+            }
+        });
+        assertEquals(0, mClientEndpoint.getCallsSucceeded());
+    }
+
+    @Test
+    public void aCancelledCallDropsItsAnswer() throws Exception {
+        Held held = hold();
+        Future<byte[]> call = mClientEndpoint.call("A", new byte[0], 5, TimeUnit.SECONDS);
+        awaitRequests(held, 1);
+        assertTrue(call.cancel(false));
+        assertTrue(call.isCancelled());
+        try {
+            call.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+        held.reply(0).send(new byte[0]);
+        Await.until("the late response", 5000, new Await.Condition() {
+            @Override
+            public boolean holds() {
+                return mClientEndpoint.getLateResponses() == 1;
+            }
+        });
+    }
+
+    @Test
+    public void requestsFailWithoutAHandler() throws Exception {
+        Future<byte[]> call = mClientEndpoint.call("A", new byte[0], 5, TimeUnit.SECONDS);
+        try {
+            call.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertEquals("No request handler", expected.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void callsFailAtOnceWithoutAConnection() throws Exception {
+        Future<byte[]> call = mClientEndpoint.call("C", new byte[0], 5, TimeUnit.SECONDS);
+        assertTrue(call.isDone());
+        try {
+            call.get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RpcException);
+        }
+        assertEquals(1, mClientEndpoint.getCallsFailed());
+    }
+
+    @Test
+    public void closingFailsTheCallsInFlight() throws Exception {
+        Held held = hold();
+        Future<byte[]> call = mClientEndpoint.call("A", new byte[0], 5, TimeUnit.SECONDS);
+        awaitRequests(held, 1);
+        mClientEndpoint.close();
+        try {
+            call.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertEquals("Endpoint closed", expected.getCause().getMessage());
+        }
+        assertTrue(mClientEndpoint.call("A", new byte[0]).isDone());
+    }
+}
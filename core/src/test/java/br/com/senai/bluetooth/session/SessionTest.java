@@ -0,0 +1,167 @@
+package br.com.senai.bluetooth.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.senai.bluetooth.buffer.PooledBuffer;
+import br.com.senai.bluetooth.io.CoalescingWriter;
+
+public class SessionTest {
+
+    private Session mSender;
+    private Session mReceiver;
+
+    // A writer that is never run, so what the session queues stays queued
+    private static CoalescingWriter writer() {
+        return new CoalescingWriter(new ByteArrayOutputStream(), new CoalescingWriter.Callback() {
+            @Override
+            public void onWriteError(IOException e) {
+            }
+        });
+    }
+
+    private static PooledBuffer message(int length) {
+        return PooledBuffer.wrap(new byte[length]);
+    }
+
+    // Exchange hellos as a new connection does
+    private static void handshake(Session.Link a, Session.Link b) {
+        byte[] helloA = a.hello();
+        byte[] helloB = b.hello();
+        a.onHello(helloB, 0, helloB.length);
+        b.onHello(helloA, 0, helloA.length);
+    }
+
+    @Before
+    public void setUp() {
+        mSender = new Session(1);
+        mReceiver = new Session(1);
+    }
+
+    @Test
+    public void messagesWaitForThePeersHello() {
+        CoalescingWriter writer = writer();
+        Session.Link link = mSender.attach(writer);
+        assertTrue(link.write(0, message(10)));
+        assertEquals(0, writer.getQueuedBytes());
+
+        Session.Link peer = mReceiver.attach(writer());
+        handshake(link, peer);
+        assertEquals(10, writer.getQueuedBytes());
+        assertEquals(10, mSender.getRetainedBytes());
+    }
+
+    @Test
+    public void acknowledgedMessagesAreDropped() {
+        Session.Link link = mSender.attach(writer());
+        Session.Link peer = mReceiver.attach(writer());
+        handshake(link, peer);
+        PooledBuffer[] messages = { message(10), message(20), message(30) };
+        for (PooledBuffer m : messages) {
+            link.write(0, m);
+            link.onMessageSent(0, m);
+        }
+        assertEquals(3, mSender.getUnackedCount());
+
+        peer.onReceived(10);
+        peer.onReceived(20);
+        // Too little to be worth an acknowledgement unless forced
+        assertNull(peer.pollAck(false));
+        byte[] ack = peer.pollAck(true);
+        link.onAck(ack, 0, ack.length);
+        assertEquals(1, mSender.getUnackedCount());
+        assertEquals(30, mSender.getRetainedBytes());
+        assertNull(peer.pollAck(true));
+    }
+
+    @Test
+    public void resumesWithWhatThePeerDidNotReceive() {
+        Session.Link link = mSender.attach(writer());
+        Session.Link peer = mReceiver.attach(writer());
+        handshake(link, peer);
+        PooledBuffer[] messages = { message(10), message(20), message(30) };
+        for (PooledBuffer m : messages) {
+            link.write(0, m);
+            link.onMessageSent(0, m);
+        }
+        // The third is lost with the connection, before any acknowledgement
+        peer.onReceived(10);
+        peer.onReceived(20);
+        link.detach();
+        peer.detach();
+
+        CoalescingWriter writer = writer();
+        Session.Link link2 = mSender.attach(writer);
+        Session.Link peer2 = mReceiver.attach(writer());
+        handshake(link2, peer2);
+        assertEquals(1, mSender.getRetransmittedCount());
+        assertEquals(30, writer.getQueuedBytes());
+        assertEquals(0, mSender.getUnackedCount());
+    }
+
+    @Test
+    public void dropsWhatTheOldConnectionDeliveredLate() {
+        Session.Link link = mSender.attach(writer());
+        Session.Link peer = mReceiver.attach(writer());
+        handshake(link, peer);
+        PooledBuffer m = message(10);
+        link.write(0, m);
+        link.onMessageSent(0, m);
+
+        Session.Link link2 = mSender.attach(writer());
+        Session.Link peer2 = mReceiver.attach(writer());
+        handshake(link2, peer2);
+        // The old dispatcher delivers the message after the hello said it
+        // had not arrived, so it is sent again and arrives twice
+        assertTrue(peer.onReceived(10));
+        assertFalse(peer2.onReceived(10));
+        assertEquals(1, mReceiver.getDuplicateCount());
+    }
+
+    @Test
+    public void sendsEverythingAgainToARestartedPeer() {
+        Session.Link link = mSender.attach(writer());
+        Session.Link peer = mReceiver.attach(writer());
+        handshake(link, peer);
+        PooledBuffer[] messages = { message(10), message(20) };
+        for (PooledBuffer m : messages) {
+            link.write(0, m);
+            link.onMessageSent(0, m);
+        }
+        peer.onReceived(10);
+        peer.onReceived(20);
+
+        // The peer lost its session, so it did not receive anything we hold
+        CoalescingWriter writer = writer();
+        Session.Link link2 = mSender.attach(writer);
+        handshake(link2, new Session(1).attach(writer()));
+        assertEquals(2, mSender.getRetransmittedCount());
+        assertEquals(30, writer.getQueuedBytes());
+    }
+
+    @Test
+    public void refusesWritesPastTheRetainedLimit() {
+        Session session = new Session(1, 100);
+        Session.Link link = session.attach(writer());
+        assertTrue(link.write(0, message(60)));
+        assertFalse(link.write(0, message(60)));
+        assertTrue(link.write(0, message(40)));
+        assertEquals(100, session.getRetainedBytes());
+    }
+
+    @Test
+    public void anOldLinkTakesNoMoreMessages() {
+        Session.Link link = mSender.attach(writer());
+        mSender.attach(writer());
+        assertFalse(link.write(0, message(10)));
+        assertEquals(0, mSender.getRetainedBytes());
+    }
+}
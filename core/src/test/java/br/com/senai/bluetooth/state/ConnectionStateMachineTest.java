@@ -0,0 +1,112 @@
+package br.com.senai.bluetooth.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConnectionStateMachineTest {
+
+    // Keeps the transitions reported, as "old->new"
+    private static class Recorder implements StateListener {
+        final List<String> mTransitions = new ArrayList<String>();
+
+        @Override
+        public synchronized void onStateChanged(int oldState, int newState) {
+            mTransitions.add(oldState + "->" + newState);
+        }
+    }
+
+    @Test
+    public void aStoppedServiceCannotBeConnected() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        assertEquals(ConnectionStateMachine.STATE_NONE, machine.getState());
+        assertFalse(ConnectionStateMachine.isLegal(ConnectionStateMachine.STATE_NONE,
+                ConnectionStateMachine.STATE_CONNECTED));
+        try {
+            machine.moveTo(ConnectionStateMachine.STATE_CONNECTED);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(ConnectionStateMachine.STATE_NONE, machine.getState());
+
+        assertEquals(ConnectionStateMachine.STATE_NONE,
+                machine.moveTo(ConnectionStateMachine.STATE_CONNECTING));
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING,
+                machine.moveTo(ConnectionStateMachine.STATE_CONNECTED));
+    }
+
+    @Test
+    public void compareAndSetNeedsTheExpectedState() {
+        ConnectionStateMachine machine =
+                new ConnectionStateMachine(ConnectionStateMachine.STATE_LISTEN);
+        assertFalse(machine.compareAndSet(ConnectionStateMachine.STATE_CONNECTING,
+                ConnectionStateMachine.STATE_CONNECTED));
+        assertEquals(ConnectionStateMachine.STATE_LISTEN, machine.getState());
+        assertTrue(machine.compareAndSet(ConnectionStateMachine.STATE_LISTEN,
+                ConnectionStateMachine.STATE_CONNECTED));
+        // Staying put succeeds only from that state
+        assertTrue(machine.compareAndSet(ConnectionStateMachine.STATE_CONNECTED,
+                ConnectionStateMachine.STATE_CONNECTED));
+        assertFalse(machine.compareAndSet(ConnectionStateMachine.STATE_LISTEN,
+                ConnectionStateMachine.STATE_LISTEN));
+    }
+
+    @Test
+    public void listenersHearEveryChangeButNoneForStayingPut() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        Recorder recorder = new Recorder();
+        machine.addListener(recorder);
+        machine.addListener(recorder);
+        machine.moveTo(ConnectionStateMachine.STATE_LISTEN);
+        machine.moveTo(ConnectionStateMachine.STATE_LISTEN);
+        machine.moveTo(ConnectionStateMachine.STATE_CONNECTED);
+        machine.removeListener(recorder);
+        machine.moveTo(ConnectionStateMachine.STATE_NONE);
+        assertEquals("[0->1, 1->3]", recorder.mTransitions.toString());
+    }
+
+    @Test
+    public void oneThreadWinsARace() throws InterruptedException {
+        final ConnectionStateMachine machine =
+                new ConnectionStateMachine(ConnectionStateMachine.STATE_LISTEN);
+        final AtomicInteger winners = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (machine.compareAndSet(ConnectionStateMachine.STATE_LISTEN,
+                            ConnectionStateMachine.STATE_CONNECTING)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, winners.get());
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, machine.getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnknownStates() {
+        new ConnectionStateMachine().moveTo(4);
+    }
+}
@@ -0,0 +1,87 @@
+package br.com.senai.bluetooth.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChannelCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File file() {
+        return new File(mFolder.getRoot(), "channels");
+    }
+
+    @Test
+    public void keepsChannelsPerDeviceAndService() {
+        ChannelCache cache = new ChannelCache(file());
+        cache.put("00:11", "chat", 5);
+        cache.put("00:11", "files", 7);
+        cache.put("00:22", "chat", 3);
+        assertEquals(5, cache.get("00:11", "chat"));
+        assertEquals(7, cache.get("00:11", "files"));
+        assertEquals(3, cache.get("00:22", "chat"));
+        assertEquals(0, cache.get("00:22", "files"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void invalidatedChannelsAreGone() {
+        ChannelCache cache = new ChannelCache(file());
+        cache.put("00:11", "chat", 5);
+        cache.invalidate("00:11", "chat");
+        assertEquals(0, cache.get("00:11", "chat"));
+        assertEquals(0, new ChannelCache(file()).get("00:11", "chat"));
+    }
+
+    @Test
+    public void survivesARestart() {
+        ChannelCache cache = new ChannelCache(file());
+        cache.put("00:11", "chat", 5);
+        cache.put("00:11", "chat", 6);
+        ChannelCache reloaded = new ChannelCache(file());
+        assertEquals(6, reloaded.get("00:11", "chat"));
+        assertEquals(1, reloaded.size());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedEntries() {
+        ChannelCache cache = new ChannelCache(file());
+        for (int i = 0; i < ChannelCache.MAX_ENTRIES; i++) {
+            cache.put("device" + i, "chat", 1 + i % 30);
+        }
+        // Using the oldest keeps it; the next oldest goes instead
+        cache.get("device0", "chat");
+        cache.put("another", "chat", 9);
+        assertEquals(ChannelCache.MAX_ENTRIES, cache.size());
+        assertEquals(1, cache.get("device0", "chat"));
+        assertEquals(0, cache.get("device1", "chat"));
+        assertEquals(ChannelCache.MAX_ENTRIES, new ChannelCache(file()).size());
+    }
+
+    @Test
+    public void startsEmptyFromATornFile() throws IOException {
+        ChannelCache cache = new ChannelCache(file());
+        cache.put("00:11", "chat", 5);
+        cache.put("00:22", "chat", 6);
+        // Cut the file in the middle of an entry
+        long length = file().length();
+        FileOutputStream out = new FileOutputStream(file(), true);
+        try {
+            out.getChannel().truncate(length - 3);
+        } finally {
+            out.close();
+        }
+        ChannelCache reloaded = new ChannelCache(file());
+        assertEquals(0, reloaded.size());
+        reloaded.put("00:33", "chat", 4);
+        assertEquals(4, new ChannelCache(file()).get("00:33", "chat"));
+    }
+}
@@ -0,0 +1,207 @@
+package br.com.senai.bluetooth.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectRaceTest {
+
+    private PipeTransportProvider mClient;
+    private TransportServer mServer;
+    private Thread mAcceptor;
+
+    @Before
+    public void setUp() throws IOException {
+        PipeTransportProvider.Network network = new PipeTransportProvider.Network();
+        mServer = new PipeTransportProvider(network, "A").listen(true);
+        mClient = new PipeTransportProvider(network, "B");
+        mAcceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        mServer.accept();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        mAcceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mAcceptor.join(5000);
+    }
+
+    // A method that takes a while, then connects over the pipes or fails
+    private ConnectMethod method(final String name, final long delayMillis,
+            final boolean succeeds) {
+        return new ConnectMethod() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Transport create(final String address) throws IOException {
+                final Transport pipe = mClient.create(address, true);
+                return new Transport() {
+                    @Override
+                    public void connect() throws IOException {
+                        try {
+                            Thread.sleep(delayMillis);
+                        } catch (InterruptedException e) {
+                            throw new IOException("interrupted");
+                        }
+                        if (!succeeds) {
+                            throw new IOException(name + " failed");
+                        }
+                        pipe.connect();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return pipe.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return pipe.getOutputStream();
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return address;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        pipe.close();
+                    }
+                };
+            }
+        };
+    }
+
+    private static long connect(ConnectRace race) throws IOException {
+        long start = System.nanoTime();
+        Transport transport = race.create("A", true);
+        transport.connect();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        transport.close();
+        return millis;
+    }
+
+    @Test
+    public void aSlowFailingLookupDoesNotHoldUpADirectConnect() throws IOException {
+        // An SDP lookup failing after 3 s, then a 200 ms connect to a
+        // fixed channel, one stagger of 1 s later
+        List<ConnectMethod> secure = Arrays.asList(
+                method("sdp", 3000, false), method("channel", 200, true));
+        ConnectRace race = new ConnectRace(null, secure, Collections.<ConnectMethod>emptyList());
+
+        long first = connect(race);
+        assertTrue("first connect took " + first + " ms", first >= 1100 && first < 2000);
+        assertEquals("channel", race.getWinner("A"));
+
+        // The winner goes first from now on
+        long second = connect(race);
+        assertTrue("second connect took " + second + " ms", second < 1000);
+    }
+
+    @Test
+    public void neverFallsBackToTheOtherKindUnlessAllowed() {
+        ConnectRace race = new ConnectRace(null,
+                Arrays.asList(method("sdp", 100, false)),
+                Arrays.asList(method("insecure", 100, true)));
+        try {
+            connect(race);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertNull(race.getWinner("A"));
+    }
+
+    @Test
+    public void startsTheNextMethodAsSoonAsTheOthersFailed() throws IOException {
+        ConnectRace race = new ConnectRace(null,
+                Arrays.asList(method("sdp", 100, false)),
+                Arrays.asList(method("insecure", 100, true)));
+        race.setFallback(true);
+        long millis = connect(race);
+        assertTrue("connect took " + millis + " ms", millis < 900);
+        assertEquals("insecure", race.getWinner("A"));
+
+        race.forget("A");
+        assertNull(race.getWinner("A"));
+    }
+
+    @Test
+    public void failsOnceEveryMethodFailed() {
+        ConnectRace race = new ConnectRace(null,
+                Arrays.asList(method("a", 100, false)),
+                Arrays.asList(method("b", 300, false)));
+        race.setFallback(true);
+        try {
+            connect(race);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertNull(race.getWinner("A"));
+    }
+
+    @Test
+    public void aCrashingMethodCountsAsFailed() {
+        ConnectMethod crashing = new ConnectMethod() {
+            @Override
+            public String getName() {
+                return "crashing";
+            }
+
+            @Override
+            public Transport create(String address) {
+                throw new IllegalStateException("crash");
+            }
+        };
+        ConnectRace race = new ConnectRace(null, Arrays.asList(crashing),
+                Collections.<ConnectMethod>emptyList());
+        long start = System.nanoTime();
+        try {
+            connect(race);
+            fail();
+        } catch (IOException expected) {
+            // The last error, with the crash as its cause
+            assertTrue(expected.getCause().getCause() instanceof IllegalStateException);
+        }
+        // Not after a stagger, let alone never
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void unwrapReturnsTheWinner() throws IOException {
+        ConnectRace race = new ConnectRace(null, Arrays.asList(method("channel", 0, true)),
+                Collections.<ConnectMethod>emptyList());
+        Transport transport = race.create("A", true);
+        assertSame(transport, ConnectRace.unwrap(transport));
+        transport.connect();
+        assertTrue(ConnectRace.unwrap(transport) != transport);
+        transport.close();
+    }
+}
@@ -0,0 +1,97 @@
+package br.com.senai.bluetooth.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AtomicFileTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static AtomicFile.Writer strings(final String... strings) {
+        return new AtomicFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(strings.length);
+                for (String string : strings) {
+                    out.writeUTF(string);
+                }
+            }
+        };
+    }
+
+    private static List<String> read(AtomicFile file) throws IOException {
+        final List<String> strings = new ArrayList<String>();
+        file.read(new AtomicFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                for (int count = in.readInt(); count > 0; count--) {
+                    strings.add(in.readUTF());
+                }
+            }
+        });
+        return strings;
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        AtomicFile file = new AtomicFile(new File(mFolder.getRoot(), "state"));
+        assertFalse(file.read(new AtomicFile.Reader() {
+            @Override
+            public void read(DataInputStream in) {
+                fail();
+            }
+        }));
+        file.write(strings("a", "b"));
+        file.write(strings("c"));
+        assertEquals("[c]", read(file).toString());
+        assertEquals(1, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void aFailedWriteKeepsTheOldContents() throws IOException {
+        AtomicFile file = new AtomicFile(new File(mFolder.getRoot(), "state"));
+        file.write(strings("a"));
+        try {
+            file.write(new AtomicFile.Writer() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    out.writeInt(2);
+                    throw new IOException("disk full");
+                }
+            });
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals("[a]", read(file).toString());
+        assertEquals(1, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void aForeignFileFailsToRead() throws IOException {
+        File state = new File(mFolder.getRoot(), "state");
+        FileOutputStream out = new FileOutputStream(state);
+        out.write(new byte[] { 0, 0, 0, 5, 1 });
+        out.close();
+        try {
+            read(new AtomicFile(state));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(state.exists());
+    }
+}
@@ -1,16 +0,0 @@
-package br.com.senai.bluetooth.receiver;
-
-import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.util.Log;
-
-public class BluetoothDiscoveryReceiver extends BroadcastReceiver {
-		
-	@Override
-	public void onReceive(Context context, Intent intent) {
-		
-	}
-	
-}